@@ -7,10 +7,8 @@ package edu.ucar.unidata.sruth;
 
 import java.io.IOException;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import net.jcip.annotations.NotThreadSafe;
-import net.jcip.annotations.ThreadSafe;
 
 /**
  * A processing action to be applied to data-products.
@@ -21,50 +19,6 @@ import net.jcip.annotations.ThreadSafe;
  */
 @NotThreadSafe
 public abstract class Action {
-    /**
-     * Replaces references to subsequences of capturing groups.
-     * 
-     * Instances are thread-safe.
-     * 
-     * @author Steven R. Emmerson
-     */
-    @ThreadSafe
-    static final class Replacer {
-        private final Matcher matcher;
-
-        /**
-         * Constructs from the {@link Matcher} returned by
-         * {@link DataProduct#matcher(java.util.regex.Pattern)}.
-         * 
-         * @param matcher
-         *            The {@link Matcher} returned by
-         *            {@link DataProduct#matcher(java.util.regex.Pattern)}.
-         */
-        Replacer(final Matcher matcher) {
-            this.matcher = matcher;
-        }
-
-        /**
-         * Replaces all references to matched subsequences.
-         * 
-         * @param string
-         *            The string to have its references replaced.
-         * @return The given string with all references replaced.
-         */
-        String replace(final String string) {
-            String str = string;
-            final int groupCount = matcher.groupCount();
-            for (int groupIndex = 1; groupIndex <= groupCount; groupIndex++) {
-                final Pattern capturingGroupPat = Pattern
-                        .compile("([^\\\\]?)\\$" + groupIndex + "\\b");
-                final String replacement = "$1"
-                        + Matcher.quoteReplacement(matcher.group(groupIndex));
-                str = capturingGroupPat.matcher(str).replaceAll(replacement);
-            }
-            return str;
-        }
-    }
-
     /**
      * Performs the action on a data-product.
      * 
@@ -82,16 +36,10 @@ public abstract class Action {
             throws IOException, InterruptedException;
 
     /**
-     * Returns a replacer of references to the subsequences of capturing groups.
-     * 
-     * @param matcher
-     *            The result of
-     *            {@link DataProduct#matcher(java.util.regex.Pattern)}.
-     * @return a replacer of references to the subsequences of capture groups of
-     *         the given {@link Matcher}.
+     * Releases any resources held by this instance. Called when the processing
+     * of data-products ends. This implementation does nothing.
      */
-    protected static Replacer getReplacer(final Matcher matcher) {
-        return new Replacer(matcher);
+    void close() {
     }
 
     @Override
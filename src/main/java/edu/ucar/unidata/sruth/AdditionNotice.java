@@ -42,6 +42,15 @@ final class AdditionNotice implements Notice {
         this.set = set;
     }
 
+    /**
+     * Returns the specification of the new data.
+     * 
+     * @return The specification of the new data.
+     */
+    PieceSpecSetIface getSpecs() {
+        return set;
+    }
+
     @Override
     public void processYourself(final Peer peer) throws IOException,
             InterruptedException {
@@ -6,22 +6,21 @@
 package edu.ucar.unidata.sruth;
 
 import java.io.ByteArrayInputStream;
-import java.io.FileInputStream;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOError;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.ObjectStreamException;
-import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.io.StreamCorruptedException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.DirectoryStream;
@@ -41,19 +40,35 @@ import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.prefs.Preferences;
 
 import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
 import net.jcip.annotations.NotThreadSafe;
 import net.jcip.annotations.ThreadSafe;
 
@@ -68,6 +83,27 @@ import org.slf4j.Logger;
  */
 @ThreadSafe
 final class Archive {
+    /**
+     * The outcome of writing a piece of data.
+     * 
+     * @author Steven R. Emmerson
+     */
+    enum PutStatus {
+        /**
+         * The piece wasn't written because the archive already has it or has
+         * a newer version of its file.
+         */
+        UNUSED,
+        /**
+         * The piece was written but its file is still incomplete.
+         */
+        WRITTEN,
+        /**
+         * The piece was written and completed its file, which is now visible.
+         */
+        COMPLETED
+    }
+
     /**
      * Visits archive files.
      * 
@@ -109,6 +145,68 @@ final class Archive {
          * Distributes tracker-specific files via the network.
          */
         private class Distributor extends Thread {
+            /**
+             * The last distributed full snapshot of the topology or
+             * {@code null}.
+             */
+            private Topology snapshot;
+            /**
+             * When {@link #snapshot} was distributed in nanoseconds.
+             */
+            private long     snapshotTime;
+
+            /**
+             * Distributes the network topology. The changes since the last
+             * distributed snapshot are distributed instead of the topology if
+             * possible so that nodes that have the snapshot only receive the
+             * changes. A full snapshot is distributed if there's no previous
+             * one, if the changes can't be computed, if the changes are
+             * numerous relative to the snapshot, or if the previous snapshot
+             * is older than {@link Topology#SNAPSHOT_PERIOD}. Otherwise,
+             * nothing is distributed if the topology hasn't changed since the
+             * snapshot.
+             * 
+             * @param topology
+             *            The network topology.
+             * @throws IOException
+             *             if an I/O error occurs.
+             */
+            private void distribute(final Topology topology)
+                    throws IOException {
+                final long now = System.nanoTime();
+                final TopologyDelta delta = snapshot == null
+                        ? null
+                        : topology.getDelta(snapshot.getEpoch(),
+                                snapshot.getVersion());
+                if (delta == null
+                        || delta.size() > Math.max(MIN_SNAPSHOT_CHANGES,
+                                snapshot.getServerCount() / 2)
+                        || now - snapshotTime >= Topology.SNAPSHOT_PERIOD) {
+                    if (topologyFile.set(topology)) {
+                        snapshot = topology;
+                        snapshotTime = now;
+                    }
+                    else {
+                        logger.debug(
+                                "Topology-file not distributed because it's not sufficiently new: {}",
+                                topologyFile.getArchivePath());
+                    }
+                }
+                else if (delta.size() == 0) {
+                    /*
+                     * Deltas are cumulative, so the topology hasn't changed
+                     * since the snapshot and no delta has been distributed.
+                     */
+                    logger.trace("Topology unchanged since snapshot: {}",
+                            topologyFile.getArchivePath());
+                }
+                else if (!deltaFile.set(delta)) {
+                    logger.debug(
+                            "Topology-delta file not distributed because it's not sufficiently new: {}",
+                            deltaFile.getArchivePath());
+                }
+            }
+
             @Override
             public void run() {
                 for (;;) {
@@ -121,11 +219,7 @@ final class Archive {
                     try {
                         final Topology topology = topologyLock.take();
                         try {
-                            if (!topologyFile.set(topology)) {
-                                logger.debug(
-                                        "Topology-file not distributed because it's not sufficiently new: {}",
-                                        topologyFile.getArchivePath());
-                            }
+                            distribute(topology);
                         }
                         catch (final IOException e) {
                             logger.error("Couldn't save network topology", e);
@@ -260,14 +354,39 @@ final class Archive {
             }
         }
 
+        /**
+         * The number of changed servers below which the changes since the
+         * last snapshot are always distributed instead of a new snapshot.
+         */
+        private static final int                         MIN_SNAPSHOT_CHANGES = 16;
         /**
          * The data archive.
          */
         private final Archive                            archive;
         /**
-         * The distributed topology file.
+         * The distributed topology file, which contains a full snapshot.
          */
         private final DistributedFile<Topology>          topologyFile;
+        /**
+         * The distributed topology-delta file, which contains the changes
+         * since the snapshot in the topology file.
+         */
+        private final DistributedFile<TopologyDelta>     deltaFile;
+        /**
+         * The snapshot from which {@link #topology} was computed.
+         */
+        @GuardedBy("this")
+        private Topology                                 snapshot;
+        /**
+         * The delta from which {@link #topology} was computed.
+         */
+        @GuardedBy("this")
+        private TopologyDelta                            delta;
+        /**
+         * The current network topology obtained via the network.
+         */
+        @GuardedBy("this")
+        private Topology                                 topology;
         /**
          * The distributed reporting address file.
          */
@@ -320,6 +439,8 @@ final class Archive {
                     .resolve("topology");
             topologyFile = new DistributedFile<Topology>(topologyArchivePath,
                     Topology.class);
+            deltaFile = new DistributedFile<TopologyDelta>(
+                    trackerPath.resolve("topologyDelta"), TopologyDelta.class);
             final ArchivePath reportingAddressArchivePath = trackerPath
                     .resolve("reportingAddress");
             reportingAddressFile = new DistributedFile<InetSocketAddress>(
@@ -348,14 +469,20 @@ final class Archive {
          *             if an I/O error occurs.
          */
         ArchiveTime getTopologyArchiveTime() throws IOException {
-            return topologyFile.getArchiveTime();
+            final ArchiveTime snapshotTime = topologyFile.getArchiveTime();
+            final ArchiveTime deltaTime = deltaFile.getArchiveTime();
+            return snapshotTime.compareTo(deltaTime) < 0
+                    ? deltaTime
+                    : snapshotTime;
         }
 
         /**
          * Returns the tracker-specific network topology information obtained
-         * via the network. Might modify the value returned by
-         * {@link #getTopologyArchiveTime()}. The actual object is returned --
-         * not a copy. This method should only be called by a subscriber.
+         * via the network: the last snapshot updated by the last delta if the
+         * delta applies to the snapshot. Might modify the value returned by
+         * {@link #getTopologyArchiveTime()}. If neither file has changed since
+         * the previous invocation, then the same object is returned. This
+         * method should only be called by a subscriber.
          * 
          * @return the tracker-specific network topology information.
          * @throws NoSuchFileException
@@ -364,8 +491,26 @@ final class Archive {
          * @throws IOException
          *             if an I/O error occurs.
          */
-        Topology getTopology() throws NoSuchFileException, IOException {
-            return topologyFile.get();
+        synchronized Topology getTopology() throws NoSuchFileException,
+                IOException {
+            final Topology currSnapshot = topologyFile.get();
+            TopologyDelta currDelta;
+            try {
+                currDelta = deltaFile.get();
+            }
+            catch (final NoSuchFileException e) {
+                currDelta = null;
+            }
+            if (currSnapshot != snapshot || currDelta != delta) {
+                snapshot = currSnapshot;
+                delta = currDelta;
+                topology = snapshot;
+                if (delta != null && delta.getEpoch() == snapshot.getEpoch()
+                        && delta.getFromVersion() == snapshot.getVersion()) {
+                    topology = snapshot.update(delta);
+                }
+            }
+            return topology;
         }
 
         /**
@@ -647,21 +792,10 @@ final class Archive {
         private void notifyServerAbout(final Path path,
                 final BasicFileAttributes attributes) {
             try {
-                ArchiveTime.adjustTime(path);
-                final FileInfo fileInfo;
-                final ArchivePath archivePath = new ArchivePath(path, rootDir);
-                final FileId fileId = new FileId(archivePath, new ArchiveTime(
-                        attributes));
-                if (archivePath.startsWith(adminDir)) {
-                    // Indefinite time-to-live
-                    fileInfo = new FileInfo(fileId, attributes.size(),
-                            PIECE_SIZE, -1);
-                }
-                else {
-                    // Default time-to-live
-                    fileInfo = new FileInfo(fileId, attributes.size(),
-                            PIECE_SIZE);
-                }
+                ArchiveTime.adjustTime(path, attributes);
+                final FileInfo fileInfo = newFileInfo(new ArchivePath(path,
+                        rootDir), attributes);
+                catalog.put(fileInfo);
                 logger.trace("New file: {}", path);
                 server.newData(FilePieceSpecSet.newInstance(fileInfo, true));
             }
@@ -687,6 +821,7 @@ final class Archive {
              * sites.
              */
             final ArchivePath archivePath = new ArchivePath(path, rootDir);
+            catalog.removeTree(archivePath);
             if (!archivePath.startsWith(adminDir)) {
                 final WatchKey k = keys.remove(path);
                 if (null != k) {
@@ -1164,30 +1299,6 @@ final class Archive {
         }
     }
 
-    /**
-     * Indicates a corrupt hidden file.
-     */
-    private static class BadHiddenFileException extends IOException {
-        /**
-         * Serial version identifier
-         */
-        private static final long serialVersionUID = 1L;
-        /**
-         * Absolute pathname of the corrupt hidden file.
-         */
-        private final Path        path;
-
-        BadHiddenFileException(final Path path, final String msg) {
-            super(msg);
-            this.path = path;
-        }
-
-        @Override
-        public String toString() {
-            return getMessage() + " [path=" + path + "]";
-        }
-    }
-
     /**
      * An archive-file that presents a segmented (i.e., piecewise) interface.
      * Such archive-files can be closed while they are still incomplete and are
@@ -1199,6 +1310,38 @@ final class Archive {
      */
     @ThreadSafe
     private static final class SegmentedArchiveFile extends ArchiveFile {
+        /**
+         * The state of a complete archive-file. Because a complete
+         * archive-file doesn't change, its data-pieces can be read by
+         * concurrent threads without locking the archive-file.
+         * <p>
+         * Instances are immutable.
+         * 
+         * @author Steven R. Emmerson
+         */
+        @Immutable
+        private static final class Complete {
+            /**
+             * Information on the file.
+             */
+            final FileInfo    fileInfo;
+            /**
+             * The absolute pathname of the file.
+             */
+            final Path        path;
+            /**
+             * The channel for positional reads of the file.
+             */
+            final FileChannel channel;
+
+            Complete(final FileInfo fileInfo, final Path path,
+                    final FileChannel channel) {
+                this.fileInfo = fileInfo;
+                this.path = path;
+                this.channel = channel;
+            }
+        }
+
         /**
          * The set of existing pieces.
          */
@@ -1213,12 +1356,28 @@ final class Archive {
          * Reentrant lock for this instance
          */
         private final ReentrantLock lock = new ReentrantLock();
+        /**
+         * The logical time of the last use of this instance by the
+         * {@link ArchiveFileManager}.
+         */
+        volatile long               lastUse;
+        /**
+         * The state of this instance if it's open and complete; otherwise
+         * {@code null}.
+         */
+        private volatile Complete   complete;
+        /**
+         * The index of incomplete archive-files.
+         */
+        private final PartialFileIndex partialFileIndex;
 
         /**
          * Constructs from the pathname of the root-directory.
          * 
          * @param rootDir
          *            Absolute pathname of the root-directory of the archive
+         * @param partialFileIndex
+         *            The index of incomplete archive-files
          * @param fileInfo
          *            Information on the file
          * @throws NullPointerException
@@ -1228,8 +1387,10 @@ final class Archive {
          * @throws IllegalArgumentException
          *             if {@code !rootDir.isAbsolute()}
          */
-        private SegmentedArchiveFile(final Path rootDir, final FileInfo fileInfo) {
+        private SegmentedArchiveFile(final Path rootDir,
+                final PartialFileIndex partialFileIndex, final FileInfo fileInfo) {
             super(rootDir, fileInfo.getPath());
+            this.partialFileIndex = partialFileIndex;
         }
 
         /**
@@ -1238,6 +1399,8 @@ final class Archive {
          * 
          * @param rootDir
          *            Absolute pathname of the root-directory of the archive
+         * @param partialFileIndex
+         *            The index of incomplete archive-files
          * @param fileInfo
          *            Information on the file. The file-information of the
          *            returned instance will be based on the actual archive-file
@@ -1257,35 +1420,39 @@ final class Archive {
          *             if an I/O error occurs
          */
         static SegmentedArchiveFile newInstance(final Path rootDir,
+                final PartialFileIndex partialFileIndex,
                 final FileInfo fileInfo, final boolean readonly)
                 throws FileSystemException, IOException {
             final ArchivePath archivePath = fileInfo.getPath();
             final SegmentedArchiveFile file = new SegmentedArchiveFile(rootDir,
-                    fileInfo);
+                    partialFileIndex, fileInfo);
             Path path = hide(rootDir, archivePath);
             if (Files.exists(path)) {
                 // The hidden file exists
-                try {
-                    file.openHiddenFile(fileInfo);
-                }
-                catch (final FileNotFoundException e) {
-                    logger.debug(
-                            "Hidden file just deleted by another thread: {}",
-                            path);
-                    if (!readonly) {
-                        logger.debug("Creating new hidden file.");
-                        file.createHiddenFile(fileInfo);
+                final PartialFileIndex.Entry entry = partialFileIndex
+                        .get(archivePath);
+                if (entry != null) {
+                    try {
+                        file.openHiddenFile(entry);
+                    }
+                    catch (final FileNotFoundException e) {
+                        logger.debug(
+                                "Hidden file just deleted by another thread: {}",
+                                path);
+                        if (!readonly) {
+                            logger.debug("Creating new hidden file.");
+                            file.createHiddenFile(fileInfo);
+                        }
                     }
                 }
-                catch (final BadHiddenFileException e) {
-                    logger.debug("Deleting corrupt hidden file {}: {}", path,
-                            e.toString());
+                else {
+                    logger.debug("Deleting unindexed hidden file {}", path);
                     try {
                         Files.delete(path);
                     }
-                    catch (final IOException e2) {
+                    catch (final IOException e) {
                         logger.debug("Couldn't delete hidden file {}: {}",
-                                path, e2.toString());
+                                path, e.toString());
                     }
                     if (!readonly) {
                         logger.debug("Creating new hidden file");
@@ -1351,6 +1518,7 @@ final class Archive {
                         template.getPieceSize(), template.getTimeToLive());
                 indexes = new CompleteBitSet(fileInfo.getPieceCount());
                 this.randomFile = randomFile;
+                complete = new Complete(fileInfo, path, randomFile.getChannel());
             }
             finally {
                 unlock();
@@ -1377,6 +1545,7 @@ final class Archive {
                 Files.createDirectories(path.getParent());
                 indexes = new PartialBitSet(fileInfo.getPieceCount());
                 randomFile = new RandomAccessFile(path.toFile(), "rw");
+                partialFileIndex.add(fileInfo, indexes);
             }
             finally {
                 unlock();
@@ -1384,161 +1553,34 @@ final class Archive {
         }
 
         /**
-         * Initializes this instance from an incomplete, hidden file.
+         * Initializes this instance from an incomplete, hidden file. The
+         * file-information and the set of existing pieces are obtained from
+         * the index of incomplete archive-files rather than from the file. If
+         * the file has all its pieces, then it's made visible.
          * 
-         * @param template
-         *            File-information that the archive-file is expected to
-         *            have. The subsequent file-information of this instance
-         *            might be different.
+         * @param entry
+         *            The entry of the file in the index of incomplete
+         *            archive-files.
          * @throws FileSystemException
          *             if too many files are open
          * @throws FileNotFoundException
          *             if the file doesn't exist
-         * @throws BadHiddenFileException
-         *             if the hidden file is corrupt
          * @throws IOException
          *             if an I/O error occurs
          */
-        private void openHiddenFile(final FileInfo template)
-                throws FileSystemException, FileNotFoundException,
-                BadHiddenFileException, IOException {
+        private void openHiddenFile(final PartialFileIndex.Entry entry)
+                throws FileSystemException, FileNotFoundException, IOException {
             lock();
             try {
                 path = hide(rootDir, archivePath);
                 isVisible = false;
-                boolean closeIt = true;
-                final RandomAccessFile randomFile = new RandomAccessFile(
-                        path.toFile(), "rw");
-                try {
-                    final long longSize = Long.SIZE / Byte.SIZE;
-                    final long fileLength;
-
-                    try {
-                        fileLength = randomFile.length();
-                    }
-                    catch (final IOException e) {
-                        throw (IOException) new IOException(
-                                "Couldn't get length of file \"" + path + "\"")
-                                .initCause(e);
-                    }
-
-                    long pos = fileLength - longSize;
-                    if (pos < 0) {
-                        throw new BadHiddenFileException(path,
-                                "Hidden file too small to be valid");
-                    }
-
-                    try {
-                        randomFile.seek(pos);
-                    }
-                    catch (final IOException e) {
-                        throw (IOException) new IOException(
-                                "Couldn't seek to byte " + pos + " in file \""
-                                        + path + "\"").initCause(e);
-                    }
-
-                    try {
-                        pos = randomFile.readLong();
-                    }
-                    catch (final IOException e) {
-                        throw (IOException) new IOException("Couldn't read "
-                                + "byte-offset of metadata in file \"" + path
-                                + "\"").initCause(e);
-                    }
-
-                    if (pos < 0 || pos >= fileLength) {
-                        throw new BadHiddenFileException(path,
-                                "Invalid metadata offset: " + pos);
-                    }
-
-                    try {
-                        randomFile.seek(pos);
-                    }
-                    catch (final IOException e) {
-                        throw (IOException) new IOException(
-                                "Couldn't seek to byte " + pos + " in file \""
-                                        + path + "\"").initCause(e);
-                    }
-
-                    FileInputStream inputStream;
-                    try {
-                        inputStream = new FileInputStream(randomFile.getFD());
-                    }
-                    catch (final IOException e) {
-                        throw (IOException) new IOException(
-                                "Couldn't get file-descriptor for file \""
-                                        + path + "\"").initCause(e);
-                    }
-
-                    try {
-                        ObjectInputStream ois;
-                        try {
-                            ois = new ObjectInputStream(inputStream);
-                        }
-                        catch (final StreamCorruptedException e) {
-                            throw (BadHiddenFileException) new BadHiddenFileException(
-                                    path,
-                                    "Couldn't get object-input-stream for file")
-                                    .initCause(e);
-                        }
-                        catch (final IOException e) {
-                            throw (IOException) new IOException(
-                                    "Couldn't get object-input-stream for "
-                                            + "file \"" + path + "\"")
-                                    .initCause(e);
-                        }
-
-                        try {
-                            fileInfo = (FileInfo) ois.readObject();
-                            indexes = (FiniteBitSet) ois.readObject();
-                            this.randomFile = randomFile;
-                            closeIt = false;
-                        }
-                        catch (final ClassNotFoundException e) {
-                            throw (BadHiddenFileException) new BadHiddenFileException(
-                                    path, "Couldn't read file metadata")
-                                    .initCause(e);
-                        }
-                        catch (final ObjectStreamException e) {
-                            throw (BadHiddenFileException) new BadHiddenFileException(
-                                    path, "Couldn't read file metadata")
-                                    .initCause(e);
-                        }
-                        catch (final IOException e) {
-                            throw (IOException) new IOException(
-                                    "Couldn't read file metadata: " + path)
-                                    .initCause(e);
-                        }
-                        finally {
-                            if (closeIt) {
-                                try {
-                                    ois.close();
-                                }
-                                catch (final IOException ignored) {
-                                }
-                                closeIt = false;
-                            }
-                        }
-                    }
-                    finally {
-                        if (closeIt) {
-                            try {
-                                inputStream.close();
-                            }
-                            catch (final IOException ignored) {
-                            }
-                            closeIt = false;
-                        }
-                    }
-                }
-                finally {
-                    if (closeIt) {
-                        try {
-                            randomFile.close();
-                        }
-                        catch (final IOException ignored) {
-                        }
-                    }
+                fileInfo = entry.getFileInfo();
+                indexes = entry.getIndexes();
+                randomFile = new RandomAccessFile(path.toFile(), "rw");
+                if (indexes.areAllSet()) {
+                    close();
+                    assert isVisible;
+                    openVisibleFile(fileInfo);
                 }
             }
             finally {
@@ -1604,8 +1646,11 @@ final class Archive {
          * 
          * @param piece
          *            The piece of data.
-         * @return {@code true} if and only if the file is complete, in which
-         *         case the file is now visible.
+         * @return {@link PutStatus#UNUSED} if the file already has the piece;
+         *         otherwise, {@link PutStatus#COMPLETED} if the piece completed
+         *         the file, in which case the file is now visible and its
+         *         pieces can be read without locking it; otherwise,
+         *         {@link PutStatus#WRITTEN}.
          * @throws FileSystemException
          *             if too many files are open.
          * @throws NoSuchFileException
@@ -1615,22 +1660,36 @@ final class Archive {
          * @throws NullPointerException
          *             if {@code piece == null}.
          */
-        boolean putPiece(final Piece piece) throws FileSystemException,
+        PutStatus putPiece(final Piece piece) throws FileSystemException,
                 IOException {
             lock();
             try {
                 final int index = piece.getIndex();
-                if (!indexes.isSet(index)) {
-                    randomFile.seek(piece.getOffset());
-                    randomFile.write(piece.getData());
-                    indexes = indexes.setBit(index);
-                    if (indexes.areAllSet()) {
-                        close();
-                        assert isVisible;
-                        openVisibleFile(fileInfo);
-                    }
+                if (indexes.isSet(index)) {
+                    return PutStatus.UNUSED;
+                }
+                final FileChannel channel = randomFile.getChannel();
+                final ByteBuffer buf = piece.getBuffer();
+                long position = piece.getOffset();
+                while (buf.hasRemaining()) {
+                    position += channel.write(buf, position);
+                }
+                indexes = indexes.setBit(index);
+                partialFileIndex.setPiece(archivePath, index);
+                if (!indexes.areAllSet()) {
+                    return PutStatus.WRITTEN;
                 }
-                return isVisible;
+                close();
+                assert isVisible;
+                /*
+                 * The file-information is already known, so the file isn't
+                 * examined again and the lock-free snapshot has exactly the
+                 * file-information of the pieces that will be requested.
+                 */
+                randomFile = new RandomAccessFile(path.toFile(), "r");
+                complete = new Complete(fileInfo, path,
+                        randomFile.getChannel());
+                return PutStatus.COMPLETED;
             }
             finally {
                 unlock();
@@ -1662,27 +1721,121 @@ final class Archive {
          * 
          * @param pieceSpec
          *            Information on the piece of data.
+         * @param byReference
+         *            Whether or not the returned piece should reference this
+         *            file rather than contain the data if this file is
+         *            complete.
          * @throws FileSystemException
          *             if too many files are open.
          * @throws IOException
          *             if an I/O error occurs.
          */
-        Piece getPiece(final PieceSpec pieceSpec) throws FileSystemException,
-                IOException {
+        Piece getPiece(final PieceSpec pieceSpec, final boolean byReference)
+                throws FileSystemException, IOException {
             lock();
             try {
                 assert indexes.isSet(pieceSpec.getIndex());
-                final byte[] data = new byte[pieceSpec.getSize()];
-                randomFile.seek(pieceSpec.getOffset());
-                final int nbytes = randomFile.read(data);
-                assert nbytes == data.length;
-                return new Piece(pieceSpec, data);
+                if (byReference && isVisible) {
+                    return new Piece(pieceSpec, path);
+                }
+                final ByteBuffer buf = Piece.POOL.acquire(pieceSpec.getSize());
+                try {
+                    final FileChannel channel = randomFile.getChannel();
+                    long position = pieceSpec.getOffset();
+                    while (buf.hasRemaining()) {
+                        final int nbytes = channel.read(buf, position);
+                        if (nbytes < 0) {
+                            throw new EOFException("File truncated: " + path);
+                        }
+                        position += nbytes;
+                    }
+                }
+                catch (final IOException e) {
+                    Piece.POOL.release(buf);
+                    throw e;
+                }
+                buf.flip();
+                return new Piece(pieceSpec, buf);
             }
             finally {
                 unlock();
             }
         }
 
+        /**
+         * Indicates if this instance is open and complete and has given
+         * file-information. Doesn't lock this instance.
+         * 
+         * @param fileInfo
+         *            The file-information.
+         * @return {@code true} if and only if this instance is open and
+         *         complete and has the given file-information.
+         */
+        boolean isComplete(final FileInfo fileInfo) {
+            final Complete state = complete;
+            return state != null && state.fileInfo.equals(fileInfo);
+        }
+
+        /**
+         * Returns a piece of data if this instance is open and complete and
+         * has the file-information of the piece. Doesn't lock this instance:
+         * the data is read with a positional read that doesn't block other
+         * readers.
+         * 
+         * @param pieceSpec
+         *            Information on the piece of data.
+         * @param byReference
+         *            Whether or not the returned piece should reference this
+         *            file rather than contain the data.
+         * @return The piece of data or {@code null} if this instance isn't
+         *         open and complete or doesn't have the file-information of
+         *         the piece.
+         * @throws ClosedByInterruptException
+         *             if the current thread is interrupted. This instance is
+         *             closed because the interrupt closed its channel.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        Piece getCompletePiece(final PieceSpec pieceSpec,
+                final boolean byReference) throws ClosedByInterruptException,
+                IOException {
+            final Complete state = complete;
+            if (state == null || !state.fileInfo.equals(pieceSpec.getFileInfo())) {
+                return null;
+            }
+            if (byReference) {
+                return new Piece(pieceSpec, state.path);
+            }
+            final ByteBuffer buf = Piece.POOL.acquire(pieceSpec.getSize());
+            boolean success = false;
+            long position = pieceSpec.getOffset();
+            try {
+                while (buf.hasRemaining()) {
+                    final int nbytes = state.channel.read(buf, position);
+                    if (nbytes < 0) {
+                        return null;
+                    }
+                    position += nbytes;
+                }
+                success = true;
+            }
+            catch (final ClosedByInterruptException e) {
+                close();
+                throw e;
+            }
+            catch (final ClosedChannelException e) {
+                // This instance was just closed by another thread
+                return null;
+            }
+            finally {
+                if (!success) {
+                    Piece.POOL.release(buf);
+                }
+            }
+            buf.flip();
+            return new Piece(pieceSpec, buf);
+        }
+
         /**
          * Closes this instance if necessary. If the file is complete, then it
          * is made visible. Idempotent.
@@ -1694,6 +1847,7 @@ final class Archive {
         protected void close() throws IOException {
             lock();
             try {
+                complete = null;
                 if (randomFile != null) {
                     if (isVisible) {
                         randomFile.close();
@@ -1701,15 +1855,13 @@ final class Archive {
                     else {
                         final long length = fileInfo.getSize();
                         if (!indexes.areAllSet()) {
-                            randomFile.seek(length);
-                            final OutputStream outputStream = new FileOutputStream(
-                                    randomFile.getFD());
-                            final ObjectOutputStream oos = new ObjectOutputStream(
-                                    outputStream);
-                            oos.writeObject(fileInfo);
-                            oos.writeObject(indexes);
-                            oos.writeLong(length);
-                            oos.close();
+                            /*
+                             * The index has the pieces. Their data is forced
+                             * so that a clean shutdown of the index implies
+                             * that the data is in storage.
+                             */
+                            randomFile.getChannel().force(false);
+                            randomFile.close();
                             fileInfo.getTime().setTime(path);
                         }
                         else {
@@ -1733,6 +1885,7 @@ final class Archive {
                                                 StandardCopyOption.REPLACE_EXISTING);
                                         path = newPath;
                                         isVisible = true;
+                                        partialFileIndex.remove(archivePath);
                                         logger.debug("Complete file: {}",
                                                 fileInfo);
                                         break;
@@ -1778,6 +1931,31 @@ final class Archive {
             lock.unlock();
         }
 
+        /**
+         * Locks this instance if it isn't locked by another thread.
+         * 
+         * @return {@code true} if and only if this instance was locked.
+         */
+        boolean tryLock() {
+            return lock.tryLock();
+        }
+
+        /**
+         * Indicates if this instance is open, i.e., hasn't been closed or
+         * deleted.
+         * 
+         * @return {@code true} if and only if this instance is open.
+         */
+        boolean isOpen() {
+            lock();
+            try {
+                return randomFile != null;
+            }
+            finally {
+                unlock();
+            }
+        }
+
         /**
          * Deletes the archive-file. Closes it first if necessary.
          * 
@@ -1794,6 +1972,9 @@ final class Archive {
                 catch (final IOException ignored) {
                 }
                 Files.deleteIfExists(path);
+                if (!isVisible) {
+                    partialFileIndex.remove(archivePath);
+                }
             }
             finally {
                 unlock();
@@ -1801,10 +1982,13 @@ final class Archive {
         }
 
         /**
-         * Ensures that an archive-file doesn't exist.
+         * Ensures that an archive-file doesn't exist. Its hidden form is
+         * deleted as well.
          * 
          * @param rootDir
          *            Absolute pathname of the root-directory of the archive
+         * @param partialFileIndex
+         *            The index of incomplete archive-files
          * @param archivePath
          *            Archive-pathname of the file
          * @throws IllegalArgumentException
@@ -1817,6 +2001,7 @@ final class Archive {
          *             if {@code archivePath == null}.
          */
         static void deleteIfExists(final Path rootDir,
+                final PartialFileIndex partialFileIndex,
                 final ArchivePath archivePath) throws IOException {
             final Path path = archivePath.getAbsolutePath(rootDir);
             try {
@@ -1825,62 +2010,55 @@ final class Archive {
             catch (final NoSuchFileException e) {
                 logger.trace("File doesn't exist: {}", archivePath);
             }
+            partialFileIndex.remove(archivePath);
+            try {
+                Files.deleteIfExists(hide(rootDir, archivePath));
+            }
+            catch (final NoSuchFileException e) {
+                logger.trace("Hidden file doesn't exist: {}", archivePath);
+            }
         }
     }
 
     /**
      * Manages a collection of archive-files.
      * <p>
+     * Open, segmented archive-files are cached in a concurrent map so that
+     * looking one up doesn't acquire a lock that's shared by all files.
+     * Opening, closing, and deleting an archive-file is done under the lock
+     * of the stripe to which the pathname of the file hashes so that one
+     * archive-file doesn't have two instances and so that the slow I/O of
+     * opening one file doesn't block access to the other files. The number of
+     * open files is bounded by evicting the least-recently-used ones that
+     * aren't in use.
+     * <p>
      * Instances are thread-safe.
      * 
      * @author Steven R. Emmerson
      */
     @ThreadSafe
     final class ArchiveFileManager {
-        private final class ArchiveFileMap extends
-                LinkedHashMap<ArchivePath, SegmentedArchiveFile> {
-            /**
-             * The serial version identifier.
-             */
-            private static final long serialVersionUID = 1L;
-
-            /**
-             * The maximum number of open files.
-             */
-            private final int         maxNumOpenFiles;
-
-            private ArchiveFileMap(final int maxNumOpenFiles) {
-                super(maxNumOpenFiles, 0.75f, true);
-                this.maxNumOpenFiles = maxNumOpenFiles;
-            }
-
-            @Override
-            protected boolean removeEldestEntry(
-                    final Map.Entry<ArchivePath, SegmentedArchiveFile> entry) {
-                if (size() > maxNumOpenFiles) {
-                    final ArchiveFile archiveFile = entry.getValue();
-                    try {
-                        archiveFile.close();
-                    }
-                    catch (final NoSuchFileException e) {
-                        logger.error("File deleted by another thread: \"{}\"",
-                                archiveFile);
-                    }
-                    catch (final IOException e) {
-                        logger.error("Couldn't close file \"" + archiveFile
-                                + "\"", e);
-                    }
-                    return true;
-                }
-                return false;
-            }
-        }
-
+        /**
+         * The number of lock stripes. A power of two.
+         */
+        private static final int                                     STRIPE_COUNT = 64;
         /**
          * The set of open, segmented archive-files.
          */
-        @GuardedBy("itself")
-        private final ArchiveFileMap openSegmentedFiles;
+        private final ConcurrentMap<ArchivePath, SegmentedArchiveFile> openSegmentedFiles;
+        /**
+         * The locks for opening, closing, and deleting archive-files.
+         */
+        private final ReentrantLock[]                                stripes      = new ReentrantLock[STRIPE_COUNT];
+        /**
+         * The logical clock for determining the least-recently-used
+         * archive-file.
+         */
+        private final AtomicLong                                     clock        = new AtomicLong();
+        /**
+         * The maximum number of open files.
+         */
+        private final int                                            maxNumOpenFiles;
 
         /**
          * Constructs from the maximum number of open files.
@@ -1894,7 +2072,26 @@ final class Archive {
             if (maxNumOpenFiles <= 0) {
                 throw new IllegalArgumentException();
             }
-            openSegmentedFiles = new ArchiveFileMap(maxNumOpenFiles);
+            this.maxNumOpenFiles = maxNumOpenFiles;
+            openSegmentedFiles = new ConcurrentHashMap<ArchivePath, SegmentedArchiveFile>(
+                    maxNumOpenFiles, 0.75f, STRIPE_COUNT);
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                stripes[i] = new ReentrantLock();
+            }
+        }
+
+        /**
+         * Returns the lock of the stripe of an archive-pathname.
+         * 
+         * @param archivePath
+         *            The archive-pathname.
+         * @return The lock of the stripe of the archive-pathname.
+         */
+        private ReentrantLock stripe(final ArchivePath archivePath) {
+            int hash = archivePath.hashCode();
+            hash ^= (hash >>> 20) ^ (hash >>> 12);
+            hash ^= (hash >>> 7) ^ (hash >>> 4);
+            return stripes[hash & (STRIPE_COUNT - 1)];
         }
 
         /**
@@ -1957,70 +2154,117 @@ final class Archive {
          *             incompatible with the given file-information
          * @throws FileSystemException
          *             if too many files are open. This exception will be thrown
-         *             only after all open files in this collection have been
-         *             closed.
+         *             only after all open files in this collection that aren't
+         *             in use have been closed.
          * @throws IOException
          *             if an I/O error occurs
          */
         public SegmentedArchiveFile get(final FileInfo fileInfo,
                 final boolean readonly) throws FileInfoMismatchException,
                 FileSystemException, IOException {
-            SegmentedArchiveFile file;
             final ArchivePath archivePath = fileInfo.getPath();
-            synchronized (openSegmentedFiles) {
-                for (;;) {
-                    file = openSegmentedFiles.get(archivePath);
+            for (;;) {
+                SegmentedArchiveFile file = openSegmentedFiles.get(archivePath);
+                if (file == null) {
+                    file = open(fileInfo, readonly);
                     if (file == null) {
-                        file = getArchiveFile(fileInfo, readonly);
-                        if (file == null) {
-                            return null;
-                        }
-                        final ArchiveFile prevFile = openSegmentedFiles.put(
-                                archivePath, file);
-                        assert prevFile == null;
+                        return null;
                     }
+                }
+                file.lock();
+                if (!file.isOpen()) {
+                    // The archive-file was just evicted or deleted
+                    file.unlock();
+                    openSegmentedFiles.remove(archivePath, file);
+                    continue;
+                }
+                file.lastUse = clock.incrementAndGet();
+                /*
+                 * Vet the archive-file's file-information against the expected
+                 * file-information
+                 */
+                final FileInfo archiveFileInfo = file.getFileInfo();
+                if (fileInfo.equals(archiveFileInfo)) {
+                    return file;
+                }
+                file.unlock();
+
+                final int cmp = fileInfo.getTime().compareTo(file.getTime());
+                if (readonly || cmp < 0) {
                     /*
-                     * Vet the archive-file's file-information against the
-                     * expected file-information
+                     * The file-informations differ and the archive-file will
+                     * only be read or is newer than the specified file.
                      */
-                    final FileInfo archiveFileInfo = file.getFileInfo();
-                    if (fileInfo.equals(archiveFileInfo)) {
-                        file.lock();
-                        return file;
+                    return null;
+                }
+                if (cmp == 0) {
+                    /*
+                     * The file-information of the archive-file is incompatible
+                     * with the given file-information.
+                     */
+                    throw new FileInfoMismatchException(fileInfo,
+                            archiveFileInfo);
+                }
+                /*
+                 * The file-informations differ and the archive-file will be
+                 * written and is older than the specified file.
+                 */
+                final ReentrantLock lock = stripe(archivePath);
+                lock.lock();
+                try {
+                    if (openSegmentedFiles.remove(archivePath, file)) {
+                        catalog.remove(archivePath);
+                        file.deleteIfExists();
                     }
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+        }
 
-                    final int cmp = fileInfo.getTime()
-                            .compareTo(file.getTime());
-                    if (readonly || cmp < 0) {
-                        /*
-                         * The file-informations differ and the archive-file
-                         * will only be read or is newer than the specified
-                         * file.
-                         */
-                        return null;
-                    }
-                    if (cmp > 0) {
-                        /*
-                         * The file-informations differ and the archive-file
-                         * will be written and is older than the specified file.
-                         */
-                        try {
-                            file.deleteIfExists();
-                        }
-                        finally {
-                            openSegmentedFiles.remove(archivePath);
-                        }
-                    }
-                    else {
-                        /*
-                         * The file-information of the archive-file is
-                         * incompatible with the given file-information.
-                         */
-                        throw new FileInfoMismatchException(fileInfo,
-                                archiveFileInfo);
-                    }
+        /**
+         * Returns the open, segmented archive-file of a file -- opening it if
+         * necessary -- or {@code null} if the file only needs to be read and
+         * doesn't exist. The returned archive-file is unlocked.
+         * 
+         * @param fileInfo
+         *            Information on the file
+         * @param readonly
+         *            Whether or not the file only needs to be read
+         * @return The archive-file or {@code null}.
+         * @throws FileSystemException
+         *             if too many files are open.
+         * @throws IOException
+         *             if an I/O error occurs
+         */
+        private SegmentedArchiveFile open(final FileInfo fileInfo,
+                final boolean readonly) throws FileSystemException, IOException {
+            final ArchivePath archivePath = fileInfo.getPath();
+            SegmentedArchiveFile file;
+            final ReentrantLock lock = stripe(archivePath);
+            lock.lock();
+            try {
+                file = openSegmentedFiles.get(archivePath);
+                if (file != null) {
+                    return file;
                 }
+                file = getArchiveFile(fileInfo, readonly);
+                if (file == null) {
+                    return null;
+                }
+                file.lastUse = clock.incrementAndGet();
+                openSegmentedFiles.put(archivePath, file);
+            }
+            finally {
+                lock.unlock();
             }
+            while (openSegmentedFiles.size() > maxNumOpenFiles) {
+                if (removeLru() == null) {
+                    break;
+                }
+            }
+            return file;
         }
 
         /**
@@ -2034,54 +2278,101 @@ final class Archive {
          * @return The newly-created archive-file or {@code null}.
          * @throws FileSystemException
          *             if too many files are open. This exception will be thrown
-         *             only after all open files in this collection have been
-         *             closed.
+         *             only after all open files in this collection that aren't
+         *             in use have been closed.
          * @throws IOException
          *             if an I/O error occurs
          */
         private SegmentedArchiveFile getArchiveFile(final FileInfo fileInfo,
                 final boolean readonly) throws FileSystemException, IOException {
-            synchronized (openSegmentedFiles) {
-                for (;;) {
-                    try {
-                        return SegmentedArchiveFile.newInstance(rootDir,
-                                fileInfo, readonly);
-                    }
-                    catch (final FileSystemException e) {
-                        // Too many open files
-                        if (removeLru() == null) {
-                            throw e;
-                        }
+            for (;;) {
+                try {
+                    return SegmentedArchiveFile.newInstance(rootDir,
+                            partialFileIndex, fileInfo, readonly);
+                }
+                catch (final FileSystemException e) {
+                    // Too many open files
+                    if (removeLru() == null) {
+                        throw e;
                     }
                 }
             }
         }
 
         /**
-         * Removes the least-recently-used (LRU), segmented archive-file from
-         * the map: gets the LRU, segmented archive-file, ensures that it's
-         * closed, and removes it from the map.
+         * Removes the least-recently-used (LRU), segmented archive-file that
+         * isn't in use from the map: gets the LRU, segmented archive-file,
+         * ensures that it's closed, and removes it from the map. Never blocks
+         * on a lock held by another thread, so it may be called while holding
+         * the lock of a stripe or of an archive-file. The LRU is found by a
+         * linear scan that's repeated, excluding the archive-files found to be
+         * in use, only if the LRU is in use.
          * 
          * @return The removed, segmented archive-file or {@code null} if the
-         *         map is empty.
+         *         map is empty or all its archive-files are in use.
          * @throws IOException
          *             if an I/O error occurs.
          */
         private SegmentedArchiveFile removeLru() throws IOException {
-            synchronized (openSegmentedFiles) {
-                final SegmentedArchiveFile file;
-                final Iterator<Map.Entry<ArchivePath, SegmentedArchiveFile>> iter = openSegmentedFiles
-                        .entrySet().iterator();
-                if (!iter.hasNext()) {
+            final Set<ArchivePath> inUse = new HashSet<ArchivePath>();
+            for (;;) {
+                ArchivePath archivePath = null;
+                SegmentedArchiveFile file = null;
+                for (final Map.Entry<ArchivePath, SegmentedArchiveFile> entry : openSegmentedFiles
+                        .entrySet()) {
+                    final SegmentedArchiveFile candidate = entry.getValue();
+                    if ((file == null || candidate.lastUse < file.lastUse)
+                            && !inUse.contains(entry.getKey())) {
+                        archivePath = entry.getKey();
+                        file = candidate;
+                    }
+                }
+                if (file == null) {
                     return null;
                 }
-                file = iter.next().getValue();
-                file.close();
-                iter.remove();
-                return file;
+                final ReentrantLock lock = stripe(archivePath);
+                if (lock.tryLock()) {
+                    try {
+                        if (file.tryLock()) {
+                            try {
+                                if (openSegmentedFiles.remove(archivePath, file)) {
+                                    file.close();
+                                    return file;
+                                }
+                            }
+                            finally {
+                                file.unlock();
+                            }
+                        }
+                    }
+                    finally {
+                        lock.unlock();
+                    }
+                }
+                inUse.add(archivePath);
             }
         }
 
+        /**
+         * Returns the open, segmented archive-file of a file if it's in this
+         * collection; otherwise, returns {@code null}. Doesn't lock anything.
+         * The returned archive-file is unlocked and might be closed by another
+         * thread at any time.
+         * 
+         * @param archivePath
+         *            Pathname of the archive-file.
+         * @return The archive-file or {@code null}.
+         */
+        SegmentedArchiveFile getIfOpen(final ArchivePath archivePath) {
+            final SegmentedArchiveFile file = openSegmentedFiles
+                    .get(archivePath);
+            if (file != null) {
+                // Approximate so that concurrent readers don't contend
+                file.lastUse = clock.get();
+            }
+            return file;
+        }
+
         /**
          * Returns the archive-time of a file in the archive or {@code null} if
          * the file doesn't yet exist.
@@ -2091,26 +2382,25 @@ final class Archive {
          * @return The archive-time of the given file or {@code null}
          * @throws FileSystemException
          *             if too many files are open. This will only be thrown
-         *             after all open segmented archive-files have been closed.
+         *             after all open segmented archive-files that aren't in use
+         *             have been closed.
          * @throws IOException
          *             if an I/O error occurs
          */
         ArchiveTime getTime(final ArchivePath archivePath)
                 throws FileSystemException, IOException {
-            synchronized (openSegmentedFiles) {
-                final SegmentedArchiveFile file = openSegmentedFiles
-                        .get(archivePath);
-                if (file != null) {
-                    return file.getTime();
+            final SegmentedArchiveFile file = openSegmentedFiles
+                    .get(archivePath);
+            if (file != null) {
+                return file.getTime();
+            }
+            for (;;) {
+                try {
+                    return BulkArchiveFile.getTime(rootDir, archivePath);
                 }
-                for (;;) {
-                    try {
-                        return BulkArchiveFile.getTime(rootDir, archivePath);
-                    }
-                    catch (final FileSystemException e) {
-                        if (removeLru() == null) {
-                            throw e;
-                        }
+                catch (final FileSystemException e) {
+                    if (removeLru() == null) {
+                        throw e;
                     }
                 }
             }
@@ -2125,6 +2415,7 @@ final class Archive {
          *             if an I/O error occurs
          */
         void delete(final ArchivePath archivePath) throws IOException {
+            catalog.remove(archivePath);
             for (;;) {
                 try {
                     BulkArchiveFile.delete(rootDir, archivePath);
@@ -2145,7 +2436,8 @@ final class Archive {
          *            Archive-pathname of the -file.
          * @throws FileSystemException
          *             if too many files are open. This will only be thrown
-         *             after all open segmented archive-files have been closed.
+         *             after all open segmented archive-files that aren't in use
+         *             have been closed.
          * @throws IOException
          *             if an I/O error occurs
          * @throws NullPointerException
@@ -2153,18 +2445,20 @@ final class Archive {
          */
         void deleteIfExists(final ArchivePath archivePath)
                 throws FileSystemException, IOException {
-            synchronized (openSegmentedFiles) {
+            catalog.remove(archivePath);
+            final ReentrantLock lock = stripe(archivePath);
+            lock.lock();
+            try {
                 final SegmentedArchiveFile file = openSegmentedFiles
-                        .get(archivePath);
+                        .remove(archivePath);
                 if (file != null) {
                     file.deleteIfExists();
-                    openSegmentedFiles.remove(archivePath);
                 }
                 else {
                     for (;;) {
                         try {
                             SegmentedArchiveFile.deleteIfExists(rootDir,
-                                    archivePath);
+                                    partialFileIndex, archivePath);
                             break;
                         }
                         catch (final FileSystemException e) {
@@ -2175,6 +2469,9 @@ final class Archive {
                     }
                 }
             }
+            finally {
+                lock.unlock();
+            }
         }
 
         /**
@@ -2183,11 +2480,18 @@ final class Archive {
          * @throws IOException
          */
         void closeAll() throws IOException {
-            synchronized (openSegmentedFiles) {
-                for (final Iterator<Map.Entry<ArchivePath, SegmentedArchiveFile>> iter = openSegmentedFiles
-                        .entrySet().iterator(); iter.hasNext();) {
-                    iter.next().getValue().close();
-                    iter.remove();
+            for (final Map.Entry<ArchivePath, SegmentedArchiveFile> entry : openSegmentedFiles
+                    .entrySet()) {
+                final ReentrantLock lock = stripe(entry.getKey());
+                lock.lock();
+                try {
+                    if (openSegmentedFiles.remove(entry.getKey(),
+                            entry.getValue())) {
+                        entry.getValue().close();
+                    }
+                }
+                finally {
+                    lock.unlock();
                 }
             }
         }
@@ -2211,6 +2515,40 @@ final class Archive {
     private static final int                     ACTIVE_FILE_CACHE_SIZE;
     private static final int                     ACTIVE_FILE_CACHE_SIZE_DEFAULT = 512;
     private static final String                  ACTIVE_FILE_CACHE_SIZE_KEY     = "active file cache size";
+    /**
+     * Whether the file-deleter uses a timing-wheel rather than a heap.
+     */
+    private static final boolean                 DELETION_WHEEL;
+    private static final String                  DELETION_QUEUE_TYPE_DEFAULT    = "heap";
+    private static final String                  DELETION_QUEUE_TYPE_KEY        = "file deletion queue type";
+    /**
+     * The number of threads that walk the archive.
+     */
+    private static final int                     SCAN_PARALLELISM;
+    private static final String                  SCAN_PARALLELISM_KEY           = "archive scan parallelism";
+    /**
+     * The maximum number of data-specifications of a walk that can await
+     * consumption.
+     */
+    private static final int                     SCAN_QUEUE_CAPACITY            = 1024;
+    /**
+     * The threads that walk the archive.
+     */
+    private static final ForkJoinPool            scanPool;
+    /**
+     * The interval, in seconds, between checkpoints of the catalog.
+     */
+    private static final int                     CATALOG_CHECKPOINT_INTERVAL;
+    private static final int                     CATALOG_CHECKPOINT_INTERVAL_DEFAULT = 60;
+    private static final String                  CATALOG_CHECKPOINT_INTERVAL_KEY     = "archive catalog checkpoint interval";
+    /**
+     * The executor that checkpoints the catalogs of instances.
+     */
+    private static final ScheduledExecutorService catalogExecutor;
+    /**
+     * The resolution, in milliseconds, of the file-deletion timing-wheel.
+     */
+    private static final long                    DELETION_WHEEL_RESOLUTION      = 1000;
     /**
      * The pathname of the root of the file-tree.
      */
@@ -2238,6 +2576,22 @@ final class Archive {
      * The manager of the archive-files.
      */
     private final ArchiveFileManager             archiveFileManager;
+    /**
+     * The catalog of complete archive-files.
+     */
+    private final ArchiveCatalog                 catalog;
+    /**
+     * The periodic checkpointing of the catalog.
+     */
+    private final ScheduledFuture<?>             catalogCheckpointer;
+    /**
+     * The thread that reconciles the catalog with the file-system.
+     */
+    private final Thread                         catalogReconciler;
+    /**
+     * The index of incomplete archive-files.
+     */
+    private final PartialFileIndex               partialFileIndex;
 
     static {
         final Preferences prefs = Preferences.userNodeForPackage(Archive.class);
@@ -2248,6 +2602,47 @@ final class Archive {
                     + ACTIVE_FILE_CACHE_SIZE_KEY + "\": "
                     + ACTIVE_FILE_CACHE_SIZE);
         }
+        final String type = prefs.get(DELETION_QUEUE_TYPE_KEY,
+                DELETION_QUEUE_TYPE_DEFAULT);
+        if (type.equals("heap")) {
+            DELETION_WHEEL = false;
+        }
+        else if (type.equals("wheel")) {
+            DELETION_WHEEL = true;
+        }
+        else {
+            throw new IllegalArgumentException("Invalid user-preference \""
+                    + DELETION_QUEUE_TYPE_KEY + "\": " + type);
+        }
+        /*
+         * Walking is dominated by file-system latency rather than computation;
+         * hence, the default is more threads than processors.
+         */
+        SCAN_PARALLELISM = prefs.getInt(SCAN_PARALLELISM_KEY,
+                Math.max(4, Runtime.getRuntime().availableProcessors()));
+        if (SCAN_PARALLELISM <= 0) {
+            throw new IllegalArgumentException("Invalid user-preference \""
+                    + SCAN_PARALLELISM_KEY + "\": " + SCAN_PARALLELISM);
+        }
+        scanPool = new ForkJoinPool(SCAN_PARALLELISM);
+        CATALOG_CHECKPOINT_INTERVAL = prefs.getInt(
+                CATALOG_CHECKPOINT_INTERVAL_KEY,
+                CATALOG_CHECKPOINT_INTERVAL_DEFAULT);
+        if (CATALOG_CHECKPOINT_INTERVAL <= 0) {
+            throw new IllegalArgumentException("Invalid user-preference \""
+                    + CATALOG_CHECKPOINT_INTERVAL_KEY + "\": "
+                    + CATALOG_CHECKPOINT_INTERVAL);
+        }
+        catalogExecutor = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "ArchiveCatalog-checkpointer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
     }
 
     /**
@@ -2309,8 +2704,23 @@ final class Archive {
         final Path hiddenDir = rootDir.resolve(HIDDEN_DIR);
         final Path fileDeletionQueuePath = hiddenDir
                 .resolve("fileDeletionQueue");
+        final Path fileDeletionWheelPath = hiddenDir
+                .resolve("fileDeletionWheel");
+        final Path catalogPath = hiddenDir.resolve("catalog");
+        final Path partialFileIndexPath = hiddenDir.resolve("partialFiles");
         Files.createDirectories(hiddenDir);
-        purgeHiddenDir(hiddenDir, fileDeletionQueuePath);
+        final List<Path> keepPaths = new ArrayList<Path>(
+                Arrays.asList(PathDelayQueue.getPaths(fileDeletionQueuePath)));
+        keepPaths.add(fileDeletionWheelPath);
+        keepPaths.add(catalogPath);
+        keepPaths.add(partialFileIndexPath);
+        /*
+         * Incomplete files are kept so that their downloads can resume.
+         */
+        partialFileIndex = new PartialFileIndex(partialFileIndexPath);
+        purgeHiddenDir(hiddenDir,
+                recoverPartialFiles(rootDir, partialFileIndex),
+                keepPaths.toArray(new Path[0]));
         /*
          * According to the Java 7 tutorial, the following is valid:
          * 
@@ -2331,9 +2741,20 @@ final class Archive {
             // The file-system isn't DOS
         }
         this.rootDir = rootDir;
+        catalog = new ArchiveCatalog(catalogPath);
         archiveFileManager = new ArchiveFileManager(maxNumOpenFiles);
+        /*
+         * The file-deleter's queue is chosen by the user-preference
+         * DELETION_QUEUE_TYPE_KEY: "heap" keeps a binary heap sorted by time;
+         * "wheel" appends to coarse time-buckets, which is cheaper when many
+         * files are pending. A queue of the other type is left by a session
+         * with the other preference; its files are still to be deleted.
+         */
+        drainDeletionQueue(fileDeletionQueuePath, fileDeletionWheelPath);
+        final TimedPathQueue fileDeletionQueue = newDeletionQueue(
+                fileDeletionQueuePath, fileDeletionWheelPath, DELETION_WHEEL);
         delayedPathActionQueue = new DelayedPathActionQueue(rootDir,
-                new PathDelayQueue(fileDeletionQueuePath),
+                fileDeletionQueue,
                 new DelayedPathActionQueue.Action() {
                     @Override
                     void act(final Path path) throws IOException {
@@ -2346,6 +2767,207 @@ final class Archive {
                         return "DELETE";
                     }
                 });
+        /*
+         * The catalog is reconciled with the file-system in the background
+         * because it might be stale or absent. If it was read from a
+         * checkpoint, then it can be used in the meantime.
+         */
+        catalogReconciler = new Thread("ArchiveCatalog-reconciler") {
+            @Override
+            public void run() {
+                try {
+                    reconcileCatalog();
+                }
+                catch (final InterruptedException e) {
+                    logger.trace("Interrupted: {}", this);
+                }
+                catch (final IOException e) {
+                    logger.error("Couldn't walk archive " + rootDir, e);
+                }
+            }
+        };
+        catalogReconciler.setDaemon(true);
+        catalogReconciler.start();
+        catalogCheckpointer = catalogExecutor.scheduleWithFixedDelay(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            catalog.checkpoint();
+                        }
+                        catch (final IOException e) {
+                            logger.error("Couldn't checkpoint " + catalog, e);
+                        }
+                    }
+                }, CATALOG_CHECKPOINT_INTERVAL, CATALOG_CHECKPOINT_INTERVAL,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns the file-information of a complete archive-file.
+     * 
+     * @param archivePath
+     *            The archive-pathname of the file.
+     * @param attributes
+     *            The attributes of the file.
+     * @return The file-information of the file.
+     */
+    private FileInfo newFileInfo(final ArchivePath archivePath,
+            final BasicFileAttributes attributes) {
+        final FileId fileId = new FileId(archivePath, new ArchiveTime(
+                attributes));
+        if (archivePath.startsWith(adminDir)) {
+            // Indefinite time-to-live
+            return new FileInfo(fileId, attributes.size(), PIECE_SIZE, -1);
+        }
+        // Default time-to-live
+        return new FileInfo(fileId, attributes.size(), PIECE_SIZE);
+    }
+
+    /**
+     * Adds a complete, visible file to the catalog. Adjusts the time of the
+     * file if necessary.
+     * 
+     * @param path
+     *            The absolute pathname of the file.
+     * @throws NoSuchFileException
+     *             if the file doesn't exist.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    void addToCatalog(final Path path) throws NoSuchFileException,
+            IOException {
+        final BasicFileAttributes attributes = Files.readAttributes(path,
+                BasicFileAttributes.class);
+        if (attributes.isRegularFile()) {
+            ArchiveTime.adjustTime(path, attributes);
+            catalog.put(newFileInfo(new ArchivePath(path, rootDir),
+                    attributes));
+        }
+    }
+
+    /**
+     * Vets the incomplete files of a previous session against the index of
+     * incomplete files. An incomplete file is valid if it exists and is long
+     * enough to contain the pieces that the index says it has. The entries of
+     * invalid files are removed from the index. The files themselves aren't
+     * read.
+     * 
+     * @param rootDir
+     *            The pathname of the root of the file-tree.
+     * @param partialFileIndex
+     *            The index of incomplete files.
+     * @return The absolute pathnames of the valid, incomplete files.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static Set<Path> recoverPartialFiles(final Path rootDir,
+            final PartialFileIndex partialFileIndex) throws IOException {
+        final Set<Path> paths = new HashSet<Path>();
+        for (final PartialFileIndex.Entry entry : partialFileIndex
+                .getEntries()) {
+            final ArchivePath archivePath = entry.getFileInfo().getPath();
+            final Path path = ArchiveFile.hide(rootDir.toAbsolutePath(),
+                    archivePath);
+            long length;
+            try {
+                length = Files.size(path);
+            }
+            catch (final NoSuchFileException e) {
+                length = -1;
+            }
+            if (length >= entry.getMinimumLength()) {
+                paths.add(path);
+            }
+            else {
+                logger.debug("Discarding invalid incomplete file: {}", entry);
+                partialFileIndex.remove(archivePath);
+            }
+        }
+        logger.debug("Recovered {} incomplete files", paths.size());
+        return paths;
+    }
+
+    /**
+     * Returns a new file-deletion queue.
+     * 
+     * @param queuePath
+     *            The pathname of the heap-based queue.
+     * @param wheelPath
+     *            The pathname of the timing-wheel's directory.
+     * @param wheel
+     *            Whether the queue is the timing-wheel rather than the heap.
+     * @return A new file-deletion queue.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static TimedPathQueue newDeletionQueue(final Path queuePath,
+            final Path wheelPath, final boolean wheel) throws IOException {
+        return wheel
+                ? new TimingWheel(wheelPath, DELETION_WHEEL_RESOLUTION,
+                        PathDelayQueue.COMMIT_INTERVAL)
+                : new PathDelayQueue(queuePath);
+    }
+
+    /**
+     * Moves the pathnames of the file-deletion queue whose type isn't the
+     * preferred one into the preferred queue and then deletes the former.
+     * Does nothing if the former doesn't exist. The preferred queue is closed
+     * before the other is deleted, so a crash can cause a pathname to be in
+     * both queues but not to be lost.
+     * 
+     * @param queuePath
+     *            The pathname of the heap-based queue.
+     * @param wheelPath
+     *            The pathname of the timing-wheel's directory.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static void drainDeletionQueue(final Path queuePath,
+            final Path wheelPath) throws IOException {
+        final Path unusedPath = DELETION_WHEEL
+                ? queuePath
+                : wheelPath;
+        if (!Files.exists(unusedPath)) {
+            return;
+        }
+        final TimedPathQueue unused = newDeletionQueue(queuePath, wheelPath,
+                !DELETION_WHEEL);
+        try {
+            final TimedPathQueue active = newDeletionQueue(queuePath,
+                    wheelPath, DELETION_WHEEL);
+            try {
+                unused.copyTo(active);
+            }
+            finally {
+                active.close();
+            }
+        }
+        finally {
+            unused.close();
+        }
+        if (DELETION_WHEEL) {
+            for (final Path path : PathDelayQueue.getPaths(queuePath)) {
+                Files.deleteIfExists(path);
+            }
+        }
+        else {
+            final DirectoryStream<Path> stream = Files
+                    .newDirectoryStream(wheelPath);
+            try {
+                for (final Path path : stream) {
+                    Files.delete(path);
+                }
+            }
+            finally {
+                stream.close();
+            }
+            Files.delete(wheelPath);
+        }
+        logger.info("Moved the pending file-deletions of {} into {}",
+                unusedPath, DELETION_WHEEL
+                        ? wheelPath
+                        : queuePath);
     }
 
     /**
@@ -2355,22 +2977,38 @@ final class Archive {
      * 
      * @param hiddenDir
      *            Pathname of the hidden directory
-     * @param keepPath
-     *            Pathname of the only file to keep.
+     * @param keepFiles
+     *            Absolute pathnames of additional files to keep. Their
+     *            directories are kept as well.
+     * @param keepPaths
+     *            Pathnames of the only other files and directories to keep.
      * @throws IOException
      *             if an I/O error occurs other than a no-such-file exception.
      */
-    private static void purgeHiddenDir(final Path hiddenDir, final Path keepPath)
+    private static void purgeHiddenDir(final Path hiddenDir,
+            final Set<Path> keepFiles, final Path... keepPaths)
             throws IOException {
         final EnumSet<FileVisitOption> opts = EnumSet
                 .of(FileVisitOption.FOLLOW_LINKS);
         Files.walkFileTree(hiddenDir, opts, Integer.MAX_VALUE,
                 new SimpleVisitor() {
+                    private boolean isKept(final Path path) {
+                        if (keepFiles.contains(path.toAbsolutePath())) {
+                            return true;
+                        }
+                        for (final Path keepPath : keepPaths) {
+                            if (path.startsWith(keepPath)) {
+                                return true;
+                            }
+                        }
+                        return false;
+                    }
+
                     @Override
                     public FileVisitResult visitFile(final Path path,
                             final BasicFileAttributes attributes)
                             throws IOException {
-                        if (!path.equals(keepPath)) {
+                        if (!isKept(path)) {
                             try {
                                 Files.delete(path);
                             }
@@ -2388,10 +3026,13 @@ final class Archive {
                         if (e != null) {
                             throw e;
                         }
-                        if (!dir.equals(hiddenDir)) {
+                        if (!dir.equals(hiddenDir) && !isKept(dir)) {
                             try {
                                 Files.delete(dir);
                             }
+                            catch (final DirectoryNotEmptyException e2) {
+                                // Contains a kept file
+                            }
                             catch (final IOException e2) {
                                 logger.error(
                                         "Couldn't purge directory: " + dir, e2);
@@ -2483,7 +3124,11 @@ final class Archive {
      */
     boolean exists(final PieceSpec pieceSpec) throws FileSystemException,
             IOException {
-        SegmentedArchiveFile file;
+        SegmentedArchiveFile file = archiveFileManager.getIfOpen(pieceSpec
+                .getArchivePath());
+        if (file != null && file.isComplete(pieceSpec.getFileInfo())) {
+            return true;
+        }
         try {
             file = archiveFileManager.get(pieceSpec.getFileInfo(), true);
             if (file == null) {
@@ -2515,7 +3160,41 @@ final class Archive {
      */
     Piece getPiece(final PieceSpec pieceSpec) throws FileSystemException,
             IOException {
-        final SegmentedArchiveFile file;
+        return getPiece(pieceSpec, false);
+    }
+
+    /**
+     * Returns a piece of data. If requested, a piece of a complete file will
+     * reference the file rather than contain the data (see
+     * {@link Piece#getFile()}) so that the data can be sent without being read
+     * into memory. Data that's read into memory is in a pooled buffer, so the
+     * last user of the piece should release it (see {@link Piece#release()}).
+     * 
+     * @param pieceSpec
+     *            Information on the piece of data.
+     * @param byReference
+     *            Whether or not a piece of a complete file should reference
+     *            the file.
+     * @return The piece of data or {@code null} if the piece is unavailable.
+     * @throws FileSystemException
+     *             if too many files are open.
+     * @throws IOException
+     *             if an I/O error occurred.
+     */
+    Piece getPiece(final PieceSpec pieceSpec, final boolean byReference)
+            throws FileSystemException, IOException {
+        /*
+         * A complete file is read without locking it so that concurrent
+         * readers don't block each other.
+         */
+        SegmentedArchiveFile file = archiveFileManager.getIfOpen(pieceSpec
+                .getArchivePath());
+        if (file != null) {
+            final Piece piece = file.getCompletePiece(pieceSpec, byReference);
+            if (piece != null) {
+                return piece;
+            }
+        }
         try {
             file = archiveFileManager.get(pieceSpec.getFileInfo(), true);
         }
@@ -2528,7 +3207,7 @@ final class Archive {
             return null;
         }
         try {
-            return file.getPiece(pieceSpec);
+            return file.getPiece(pieceSpec, byReference);
         }
         finally {
             file.unlock();
@@ -2542,7 +3221,8 @@ final class Archive {
      * 
      * @param piece
      *            Piece of data to be written.
-     * @return {@code true} if and only if the file is now complete.
+     * @return Whether the piece was written and, if so, whether it completed
+     *         its file.
      * @throws FileSystemException
      *             if too many files are open.
      * @throws NoSuchFileException
@@ -2557,7 +3237,7 @@ final class Archive {
      * @throws NullPointerException
      *             if {@code piece == null}.
      */
-    boolean putPiece(final Piece piece) throws FileSystemException,
+    PutStatus putPiece(final Piece piece) throws FileSystemException,
             NoSuchFileException, FileInfoMismatchException, IOException,
             InterruptedException {
         final FileInfo fileInfo = piece.getFileInfo();
@@ -2566,7 +3246,7 @@ final class Archive {
         if (file == null) {
             // A newer version of the file exists.
             logger.trace("Newer file version exists: {}", fileInfo);
-            return false;
+            return PutStatus.UNUSED;
         }
         try {
             final int timeToLive = piece.getTimeToLive();
@@ -2583,8 +3263,9 @@ final class Archive {
                             1000 * timeToLive);
                 }
             }
-            final boolean isComplete = file.putPiece(piece);
-            if (isComplete) {
+            final PutStatus status = file.putPiece(piece);
+            if (status == PutStatus.COMPLETED) {
+                catalog.put(fileInfo);
                 synchronized (dataProductListeners) {
                     for (final DataProductListener listener : dataProductListeners) {
                         final DataProduct product = new DataProduct(rootDir,
@@ -2593,7 +3274,7 @@ final class Archive {
                     }
                 }
             }
-            return isComplete;
+            return status;
         }
         finally {
             file.unlock();
@@ -2698,6 +3379,7 @@ final class Archive {
                 archiveFileManager.delete(archivePath);
             }
         }
+        addToCatalog(archivePath.getAbsolutePath(rootDir));
     }
 
     /**
@@ -2834,96 +3516,262 @@ final class Archive {
     }
 
     /**
-     * Recursively visits all the file-based data-specifications in a directory
-     * that match a selection criteria. Doesn't visit files in hidden
-     * directories. Returns when all files have been visited. Logs no-such-file
-     * exceptions rather than throwing them.
+     * A parallel walk of a file-tree. The file-tree is divided into tasks by
+     * directory and the tasks are executed by {@link #scanPool}. Each regular
+     * file that matches the selection criteria has its time adjusted if
+     * necessary and its file-information is passed to the thread that's
+     * executing {@link #walk(Path, Map)}.
+     * <p>
+     * Instances are thread-safe.
      * 
-     * @param root
-     *            The directory to recursively walk.
-     * @param consumer
-     *            The consumer of file-based data-specifications.
-     * @param filter
-     *            The selection criteria.
-     * @throws IOException
-     *             if an I/O error occurs other than a no-such-file exception.
-     * @throws InterruptedException
-     *             if the current thread is interrupted.
+     * @author Steven R. Emmerson
      */
-    private void walkDirectory(final Path root,
-            final FilePieceSpecSetConsumer consumer, final Filter filter)
-            throws IOException, InterruptedException {
-        final class ArchiveVisitor extends SimpleVisitor {
-            @Override
-            public FileVisitResult preVisitDirectory(final Path dir,
-                    final BasicFileAttributes attributes) {
-                if (Thread.currentThread().isInterrupted()) {
-                    return FileVisitResult.TERMINATE;
-                }
-                if (ArchiveFile.isHidden(rootDir, dir)) {
-                    return FileVisitResult.SKIP_SUBTREE;
-                }
-                logger.trace("Visiting directory: {}", dir);
-                return FileVisitResult.CONTINUE;
+    @ThreadSafe
+    private final class ParallelWalk {
+        /**
+         * A directory whose entries are to be visited.
+         * 
+         * @author Steven R. Emmerson
+         */
+        @SuppressWarnings("serial")
+        private final class DirectoryTask extends RecursiveAction {
+            /**
+             * The pathname of the directory.
+             */
+            private final Path dir;
+
+            /**
+             * Constructs.
+             * 
+             * @param dir
+             *            The pathname of the directory.
+             */
+            DirectoryTask(final Path dir) {
+                this.dir = dir;
             }
 
             @Override
-            public FileVisitResult visitFile(final Path path,
-                    final BasicFileAttributes attributes) {
-                if (Thread.currentThread().isInterrupted()) {
-                    return FileVisitResult.TERMINATE;
+            protected void compute() {
+                if (isStopped()) {
+                    return;
                 }
-                if (attributes.isRegularFile()) {
-                    final ArchiveTime archiveTime = new ArchiveTime(attributes);
+                logger.trace("Visiting directory: {}", dir);
+                final List<DirectoryTask> subtasks = new ArrayList<DirectoryTask>();
+                try {
+                    final DirectoryStream<Path> stream = Files
+                            .newDirectoryStream(dir);
                     try {
-                        archiveTime.setTime(path);
-                        final ArchivePath archivePath = new ArchivePath(path,
-                                rootDir);
-                        if (filter.matches(archivePath)) {
-                            final FileId fileId = new FileId(archivePath,
-                                    archiveTime);
-                            final FileInfo fileInfo;
-                            if (archivePath.startsWith(adminDir)) {
-                                // Indefinite time-to-live
-                                fileInfo = new FileInfo(fileId,
-                                        attributes.size(), PIECE_SIZE, -1);
+                        for (final Path path : stream) {
+                            if (isStopped()) {
+                                return;
+                            }
+                            final BasicFileAttributes attributes;
+                            try {
+                                /*
+                                 * Symbolic links aren't followed, so the walk
+                                 * can't leave the archive or revisit a
+                                 * directory.
+                                 */
+                                attributes = Files.readAttributes(path,
+                                        BasicFileAttributes.class,
+                                        LinkOption.NOFOLLOW_LINKS);
+                            }
+                            catch (final NoSuchFileException e) {
+                                logger.debug(
+                                        "File was just deleted by another thread: {}",
+                                        path);
+                                continue;
+                            }
+                            if (attributes.isDirectory()) {
+                                if (ArchiveFile.isHidden(rootDir, path)) {
+                                    continue;
+                                }
+                                subtasks.add(new DirectoryTask(path));
                             }
-                            else {
-                                // Default time-to-live
-                                fileInfo = new FileInfo(fileId,
-                                        attributes.size(), PIECE_SIZE);
+                            else if (attributes.isRegularFile()) {
+                                visitFile(path, attributes);
                             }
-                            final FilePieceSpecSet specSet = FilePieceSpecSet
-                                    .newInstance(fileInfo, true);
-                            logger.trace("Visiting file: {}", path);
-                            consumer.consume(specSet);
                         }
                     }
-                    catch (final IOException e) {
-                        logger.error("Couldn't adjust time of file {}: {}",
-                                path, e.toString());
+                    finally {
+                        stream.close();
                     }
-                    catch (final InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        return FileVisitResult.TERMINATE;
+                }
+                catch (final NoSuchFileException e) {
+                    logger.debug(
+                            "Directory was just deleted by another thread: {}",
+                            dir);
+                }
+                catch (final IOException e) {
+                    fail((IOException) new IOException(
+                            "Couldn't visit directory \"" + dir + "\"")
+                            .initCause(e));
+                }
+                invokeAll(subtasks);
+            }
+        }
+
+        /**
+         * The selection criteria.
+         */
+        private final Filter                          filter;
+        /**
+         * The file-informations that haven't been consumed.
+         */
+        private final BlockingQueue<FileInfo>         fileInfos = new ArrayBlockingQueue<FileInfo>(
+                                                                        SCAN_QUEUE_CAPACITY);
+        /**
+         * Whether or not the walk should stop.
+         */
+        private volatile boolean                      stopped;
+        /**
+         * The first exception thrown by a task.
+         */
+        private final AtomicReference<IOException>    exception = new AtomicReference<IOException>();
+
+        /**
+         * Constructs.
+         * 
+         * @param filter
+         *            The selection criteria.
+         */
+        ParallelWalk(final Filter filter) {
+            this.filter = filter;
+        }
+
+        /**
+         * Indicates if the walk should stop.
+         * 
+         * @return {@code true} if and only if the walk should stop.
+         */
+        private boolean isStopped() {
+            return stopped;
+        }
+
+        /**
+         * Stops the walk because of an exception.
+         * 
+         * @param e
+         *            The exception.
+         */
+        private void fail(final IOException e) {
+            exception.compareAndSet(null, e);
+            stopped = true;
+        }
+
+        /**
+         * Visits a regular file.
+         * 
+         * @param path
+         *            The pathname of the file.
+         * @param attributes
+         *            The attributes of the file.
+         */
+        private void visitFile(final Path path,
+                final BasicFileAttributes attributes) {
+            final ArchivePath archivePath = new ArchivePath(path, rootDir);
+            try {
+                new ArchiveTime(attributes).setTime(path, attributes);
+            }
+            catch (final IOException e) {
+                logger.error("Couldn't adjust time of file {}: {}", path,
+                        e.toString());
+                return;
+            }
+            if (filter.matches(archivePath)) {
+                final FileInfo fileInfo = newFileInfo(archivePath, attributes);
+                logger.trace("Visiting file: {}", path);
+                try {
+                    while (!fileInfos.offer(fileInfo, 100,
+                            TimeUnit.MILLISECONDS)) {
+                        if (isStopped()) {
+                            return;
+                        }
                     }
                 }
-                return FileVisitResult.CONTINUE;
+                catch (final InterruptedException e) {
+                    stopped = true;
+                }
             }
         }
-        final EnumSet<FileVisitOption> opts = EnumSet
-                .of(FileVisitOption.FOLLOW_LINKS);
-        Files.walkFileTree(root, opts, Integer.MAX_VALUE, new ArchiveVisitor());
+
+        /**
+         * Walks a file-tree. Returns when all files have been visited.
+         * 
+         * @param root
+         *            The root of the file-tree.
+         * @param found
+         *            The file-informations that were found indexed by
+         *            archive-pathname.
+         * @throws IOException
+         *             if an I/O error occurs other than a no-such-file
+         *             exception.
+         * @throws InterruptedException
+         *             if the current thread is interrupted.
+         */
+        void walk(final Path root, final Map<String, FileInfo> found)
+                throws IOException, InterruptedException {
+            final ForkJoinTask<Void> task = scanPool
+                    .submit(new DirectoryTask(root));
+            try {
+                for (;;) {
+                    final FileInfo fileInfo = fileInfos.poll(100,
+                            TimeUnit.MILLISECONDS);
+                    if (fileInfo != null) {
+                        found.put(fileInfo.getPath().toString(), fileInfo);
+                    }
+                    else if (task.isDone() && fileInfos.isEmpty()) {
+                        break;
+                    }
+                }
+            }
+            finally {
+                stopped = true;
+                task.cancel(false);
+            }
+            try {
+                task.get();
+            }
+            catch (final ExecutionException e) {
+                throw Util.launderThrowable(e.getCause());
+            }
+            final IOException e = exception.get();
+            if (e != null) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Walks the archive and reconciles the catalog with the result. Doesn't
+     * visit files in hidden directories. Logs no-such-file exceptions rather
+     * than throwing them.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs other than a no-such-file exception.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    private void reconcileCatalog() throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        final Map<String, FileInfo> found = new HashMap<String, FileInfo>();
+        new ParallelWalk(Filter.EVERYTHING).walk(rootDir, found);
         if (Thread.currentThread().isInterrupted()) {
             logger.trace("Interrupted: {}", toString());
             throw new InterruptedException();
         }
+        catalog.reconcile(found, rootDir);
+        logger.debug("Walked {} files in {} s", found.size(),
+                (System.nanoTime() - start) / 1e9);
     }
 
     /**
      * Visits all the file-based data-specifications in the archive that match a
      * selection criteria. Doesn't visit files in hidden directories. Returns
-     * only when all files have been visited.
+     * only when all files have been visited. The pieces of incomplete files
+     * are visited first and without delay. The complete files are obtained
+     * from the in-memory catalog rather than from the file-system;
+     * consequently, this method then waits until the catalog is ready.
      * 
      * @param consumer
      *            The consumer of file-based data-specifications.
@@ -2936,7 +3784,18 @@ final class Archive {
      */
     void walkArchive(final FilePieceSpecSetConsumer consumer,
             final Filter filter) throws IOException, InterruptedException {
-        walkDirectory(rootDir, consumer, filter);
+        for (final PartialFileIndex.Entry entry : partialFileIndex
+                .getEntries()) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            if (entry.getPieceCount() > 0
+                    && filter.matches(entry.getFileInfo().getPath())) {
+                consumer.consume(entry.getPieceSpecs());
+            }
+        }
+        catalog.awaitReady();
+        catalog.scan(filter, consumer);
     }
 
     /**
@@ -2984,7 +3843,9 @@ final class Archive {
     }
 
     /**
-     * Closes this instance. Closes all open files and stops the file-deleter.
+     * Closes this instance. Checkpoints the catalog, closes all open files,
+     * stops the file-deleter, and closes the index of incomplete files, which
+     * is marked as cleanly closed only if all open files were closed.
      * 
      * @throws IOException
      *             if an I/O error occurs.
@@ -2993,10 +3854,25 @@ final class Archive {
      */
     void close() throws IOException, InterruptedException {
         try {
-            delayedPathActionQueue.stop();
+            catalogCheckpointer.cancel(false);
+            catalogReconciler.interrupt();
+            catalogReconciler.join();
+            catalog.checkpoint();
         }
         finally {
-            archiveFileManager.closeAll();
+            try {
+                delayedPathActionQueue.stop();
+            }
+            finally {
+                try {
+                    archiveFileManager.closeAll();
+                    // The data of every indexed piece is now in storage
+                    partialFileIndex.markClean();
+                }
+                finally {
+                    partialFileIndex.close();
+                }
+            }
         }
     }
 
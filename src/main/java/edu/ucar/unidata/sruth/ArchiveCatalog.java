@@ -0,0 +1,411 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+/**
+ * An in-memory catalog of the complete files of an archive, which is
+ * checkpointed to disk. Entries are ordered by archive-pathname so that the
+ * files that match a {@link Filter} with a literal leading component can be
+ * visited without visiting the others.
+ * <p>
+ * The catalog is "ready" once it reflects the archive: either after a
+ * checkpoint has been read or after the archive has been walked.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class ArchiveCatalog {
+    /**
+     * The logger for this package.
+     */
+    private static final Logger                         logger  = Util.getLogger();
+    /**
+     * The version of the checkpoint format.
+     */
+    private static final int                            VERSION = 1;
+    /**
+     * The file-informations of complete files indexed by archive-pathname.
+     */
+    private final ConcurrentSkipListMap<String, FileInfo> entries = new ConcurrentSkipListMap<String, FileInfo>();
+    /**
+     * The pathname of the checkpoint file.
+     */
+    private final Path                                  path;
+    /**
+     * Whether or not the catalog has changed since the last checkpoint.
+     */
+    private final AtomicBoolean                         dirty   = new AtomicBoolean();
+    /**
+     * Released when the catalog is ready.
+     */
+    private final CountDownLatch                        ready   = new CountDownLatch(
+                                                                        1);
+
+    /**
+     * Constructs. If the checkpoint file exists and is valid, then the catalog
+     * is initialized from it and is ready.
+     *
+     * @param path
+     *            The pathname of the checkpoint file.
+     */
+    ArchiveCatalog(final Path path) {
+        this.path = path;
+        try {
+            read();
+            ready.countDown();
+            logger.debug("Read {} entries from {}", entries.size(), path);
+        }
+        catch (final NoSuchFileException e) {
+            logger.debug("No checkpoint: {}", path);
+        }
+        catch (final IOException e) {
+            logger.warn("Ignoring invalid checkpoint {}: {}", path,
+                    e.toString());
+            entries.clear();
+        }
+    }
+
+    /**
+     * Reads the checkpoint file.
+     *
+     * @throws NoSuchFileException
+     *             if the checkpoint file doesn't exist.
+     * @throws IOException
+     *             if an I/O error occurs or the file is invalid.
+     */
+    private void read() throws NoSuchFileException, IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(path)));
+        try {
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Invalid version: " + version);
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final ArchivePath archivePath = new ArchivePath(in.readUTF());
+                final ArchiveTime time = ArchiveTime.fromMillis(in.readLong());
+                final long size = in.readLong();
+                final int pieceSize = in.readInt();
+                final int timeToLive = in.readInt();
+                final FileInfo fileInfo = new FileInfo(new FileId(archivePath,
+                        time), size, pieceSize, timeToLive);
+                entries.put(archivePath.toString(), fileInfo);
+            }
+        }
+        catch (final EOFException e) {
+            throw (IOException) new IOException("Truncated checkpoint")
+                    .initCause(e);
+        }
+        catch (final IllegalArgumentException e) {
+            throw (IOException) new IOException("Invalid entry").initCause(e);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Indicates if the catalog is ready.
+     *
+     * @return {@code true} if and only if the catalog is ready.
+     */
+    boolean isReady() {
+        return ready.getCount() == 0;
+    }
+
+    /**
+     * Waits until the catalog is ready.
+     *
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    void awaitReady() throws InterruptedException {
+        ready.await();
+    }
+
+    /**
+     * Adds a complete file. An entry for a newer version of the file is kept.
+     *
+     * @param fileInfo
+     *            The file-information of the file.
+     */
+    void put(final FileInfo fileInfo) {
+        final String key = fileInfo.getPath().toString();
+        for (;;) {
+            final FileInfo prev = entries.putIfAbsent(key, fileInfo);
+            if (prev == null) {
+                break;
+            }
+            if (prev.getTime().compareTo(fileInfo.getTime()) > 0) {
+                return;
+            }
+            if (entries.replace(key, prev, fileInfo)) {
+                break;
+            }
+        }
+        dirty.set(true);
+    }
+
+    /**
+     * Removes a file.
+     *
+     * @param archivePath
+     *            The archive-pathname of the file.
+     */
+    void remove(final ArchivePath archivePath) {
+        if (entries.remove(archivePath.toString()) != null) {
+            dirty.set(true);
+        }
+    }
+
+    /**
+     * Removes a file or the files of a directory.
+     *
+     * @param archivePath
+     *            The archive-pathname of the file or directory.
+     */
+    void removeTree(final ArchivePath archivePath) {
+        remove(archivePath);
+        final String prefix = archivePath.toString();
+        final Map<String, FileInfo> subtree = subtree(prefix);
+        if (!subtree.isEmpty()) {
+            subtree.clear();
+            dirty.set(true);
+        }
+    }
+
+    /**
+     * Returns the entries of the files in a directory.
+     *
+     * @param prefix
+     *            The archive-pathname of the directory.
+     * @return A view of the entries of the files in the directory.
+     */
+    private NavigableMap<String, FileInfo> subtree(final String prefix) {
+        // '0' follows the separator, '/', in collation order
+        return entries.subMap(prefix + ArchivePath.SEPARATOR_CHAR, true,
+                prefix + (char) (ArchivePath.SEPARATOR_CHAR + 1), false);
+    }
+
+    /**
+     * Returns the leading components of a filter that don't contain a
+     * wildcard as an archive-pathname prefix.
+     *
+     * @param filter
+     *            The filter.
+     * @return The literal prefix of the filter or {@code null} if the first
+     *         component is a wildcard.
+     */
+    private static String getLiteralPrefix(final Filter filter) {
+        final StringBuilder buf = new StringBuilder();
+        final int count = filter.getComponentCount();
+        for (int i = 0; i < count; i++) {
+            final String component = filter.getComponent(i);
+            if (component.equals(Filter.WILDCARD)) {
+                break;
+            }
+            if (i > 0) {
+                buf.append(ArchivePath.SEPARATOR_CHAR);
+            }
+            buf.append(component);
+        }
+        return buf.length() == 0
+                ? null
+                : buf.toString();
+    }
+
+    /**
+     * Visits the files that match a filter. Only the entries whose
+     * archive-pathnames start with the literal prefix of the filter are
+     * examined. The catalog may be modified during the visitation.
+     *
+     * @param filter
+     *            The selection criteria.
+     * @param consumer
+     *            The consumer of file-based data-specifications.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    void scan(final Filter filter, final FilePieceSpecSetConsumer consumer)
+            throws InterruptedException {
+        if (filter == Filter.NOTHING) {
+            return;
+        }
+        final String prefix = getLiteralPrefix(filter);
+        if (prefix != null) {
+            final FileInfo fileInfo = entries.get(prefix);
+            if (fileInfo != null) {
+                consume(fileInfo, filter, consumer);
+            }
+        }
+        final Iterable<FileInfo> candidates = prefix == null
+                ? entries.values()
+                : subtree(prefix).values();
+        for (final FileInfo fileInfo : candidates) {
+            consume(fileInfo, filter, consumer);
+        }
+    }
+
+    /**
+     * Passes a file to a consumer if it matches a filter.
+     *
+     * @param fileInfo
+     *            The file-information of the file.
+     * @param filter
+     *            The selection criteria.
+     * @param consumer
+     *            The consumer of file-based data-specifications.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    private static void consume(final FileInfo fileInfo, final Filter filter,
+            final FilePieceSpecSetConsumer consumer)
+            throws InterruptedException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedException();
+        }
+        if (filter.matches(fileInfo.getPath())) {
+            consumer.consume(FilePieceSpecSet.newInstance(fileInfo, true));
+        }
+    }
+
+    /**
+     * Reconciles the catalog with the result of a walk of the archive and makes
+     * the catalog ready. Files found by the walk are added unless they've been
+     * deleted since. Entries for files that weren't found by the walk are
+     * removed if the file doesn't exist.
+     *
+     * @param found
+     *            The file-informations found by the walk indexed by
+     *            archive-pathname.
+     * @param rootDir
+     *            The root directory of the archive.
+     */
+    void reconcile(final Map<String, FileInfo> found, final Path rootDir) {
+        for (final FileInfo fileInfo : found.values()) {
+            put(fileInfo);
+            /*
+             * The file might have been deleted -- and its entry removed --
+             * after the walk found it. Checking after the put means that the
+             * entry is removed either here or by the deletion.
+             */
+            if (!Files.exists(fileInfo.getAbsolutePath(rootDir))) {
+                entries.remove(fileInfo.getPath().toString(), fileInfo);
+            }
+        }
+        int removed = 0;
+        for (final Iterator<Map.Entry<String, FileInfo>> iter = entries
+                .entrySet().iterator(); iter.hasNext();) {
+            final Map.Entry<String, FileInfo> entry = iter.next();
+            if (!found.containsKey(entry.getKey())
+                    && !Files.exists(entry.getValue().getAbsolutePath(rootDir))) {
+                if (entries.remove(entry.getKey(), entry.getValue())) {
+                    removed++;
+                }
+            }
+        }
+        if (removed > 0) {
+            dirty.set(true);
+        }
+        logger.debug("Reconciled catalog: entries={}, removed={}",
+                entries.size(), removed);
+        ready.countDown();
+    }
+
+    /**
+     * Returns the number of files in the catalog.
+     *
+     * @return The number of files in the catalog.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the catalog to the checkpoint file if the catalog is ready and
+     * has changed since the last checkpoint. The file is replaced atomically.
+     *
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    synchronized void checkpoint() throws IOException {
+        if (!isReady() || !dirty.getAndSet(false)) {
+            return;
+        }
+        boolean success = false;
+        try {
+            final Path tmpPath = path.resolveSibling(path.getFileName()
+                    + ".tmp");
+            /*
+             * The number of entries is written first; hence, a snapshot is
+             * taken.
+             */
+            final FileInfo[] snapshot = entries.values().toArray(
+                    new FileInfo[0]);
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmpPath)));
+            try {
+                out.writeInt(VERSION);
+                out.writeInt(snapshot.length);
+                for (final FileInfo fileInfo : snapshot) {
+                    out.writeUTF(fileInfo.getPath().toString());
+                    out.writeLong(fileInfo.getTime().toMillis());
+                    out.writeLong(fileInfo.getSize());
+                    out.writeInt(fileInfo.getPieceSize());
+                    out.writeInt(fileInfo.getTimeToLive());
+                }
+            }
+            finally {
+                out.close();
+            }
+            Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            success = true;
+            logger.trace("Checkpointed {} entries to {}", snapshot.length,
+                    path);
+        }
+        finally {
+            if (!success) {
+                dirty.set(true);
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "ArchiveCatalog [path=" + path + ", size=" + entries.size()
+                + ", ready=" + isReady() + "]";
+    }
+}
@@ -40,6 +40,11 @@ public final class ArchivePath implements Comparable<ArchivePath>, Serializable
      * !path.isAbsolute()
      */
     private volatile transient Path path;
+    /**
+     * The interned name components of the pathname or {@code null} if they
+     * haven't been computed.
+     */
+    private volatile transient String[] names;
 
     /**
      * Constructs from the absolute pathname of the file or category and the
@@ -136,6 +141,25 @@ public final class ArchivePath implements Comparable<ArchivePath>, Serializable
         return path.getName(i);
     }
 
+    /**
+     * Returns the name components as interned strings. They're computed once
+     * so that matching this instance against filters doesn't allocate.
+     * 
+     * @return The name components. NB: Not copied: mustn't be modified.
+     */
+    String[] getNames() {
+        String[] names = this.names;
+        if (names == null) {
+            final Path path = this.path;
+            names = new String[path.getNameCount()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = path.getName(i).toString().intern();
+            }
+            this.names = names;
+        }
+        return names;
+    }
+
     /**
      * Equal to {@code getPath().compareTo(that.getPath())}.
      * 
@@ -99,6 +99,38 @@ final class ArchiveTime implements Serializable, Comparable<ArchiveTime> {
         this(attributes.lastModifiedTime());
     }
 
+    /**
+     * Constructs from a time that already has the temporal resolution of this
+     * class.
+     *
+     * @param time
+     *            The time in milliseconds since the epoch.
+     */
+    private ArchiveTime(final Long time) {
+        this.time = time;
+    }
+
+    /**
+     * Returns an instance corresponding to the value returned by
+     * {@link #toMillis()}. The time is used as-is (i.e., it isn't rounded).
+     *
+     * @param millis
+     *            The time in milliseconds since the epoch.
+     * @return The corresponding instance.
+     */
+    static ArchiveTime fromMillis(final long millis) {
+        return new ArchiveTime(Long.valueOf(millis));
+    }
+
+    /**
+     * Returns the time of this instance in milliseconds since the epoch.
+     *
+     * @return The time of this instance in milliseconds since the epoch.
+     */
+    long toMillis() {
+        return time;
+    }
+
     /**
      * Rounds a given time to the temporal resolution of this class.
      * 
@@ -127,6 +159,27 @@ final class ArchiveTime implements Serializable, Comparable<ArchiveTime> {
         Files.setAttribute(path, "lastModifiedTime", fileTime);
     }
 
+    /**
+     * Sets the time associated with an existing file to that of this instance
+     * unless the file already has that time, in which case the file's metadata
+     * isn't written.
+     * 
+     * @param path
+     *            The pathname of the file.
+     * @param attributes
+     *            The attributes of the file. It is the client's responsibility
+     *            to ensure that these attributes are those of the file.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    void setTime(final Path path, final BasicFileAttributes attributes)
+            throws IOException {
+        final FileTime fileTime = FileTime.fromMillis(time);
+        if (!fileTime.equals(attributes.lastModifiedTime())) {
+            Files.setAttribute(path, "lastModifiedTime", fileTime);
+        }
+    }
+
     /**
      * Adjusts the time of an existing file to be consonant with the temporal
      * resolution of this class.
@@ -147,7 +200,7 @@ final class ArchiveTime implements Serializable, Comparable<ArchiveTime> {
             throw new IllegalArgumentException();
         }
         final ArchiveTime archiveTime = new ArchiveTime(attributes);
-        archiveTime.setTime(path);
+        archiveTime.setTime(path, attributes);
     }
 
     /**
@@ -165,8 +218,10 @@ final class ArchiveTime implements Serializable, Comparable<ArchiveTime> {
         if (!path.isAbsolute()) {
             throw new IllegalArgumentException();
         }
-        final ArchiveTime archiveTime = new ArchiveTime(path);
-        archiveTime.setTime(path);
+        final BasicFileAttributes attributes = Files.readAttributes(path,
+                BasicFileAttributes.class);
+        final ArchiveTime archiveTime = new ArchiveTime(attributes);
+        archiveTime.setTime(path, attributes);
     }
 
     @Override
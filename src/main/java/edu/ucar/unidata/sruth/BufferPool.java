@@ -0,0 +1,200 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * A pool of direct byte-buffers of the same capacity. Reusing buffers avoids
+ * the allocation of a short-lived array for every piece of data that passes
+ * through the local node.
+ * <p>
+ * A buffer obtained from {@link #acquire(int)} should be returned via
+ * {@link #release(ByteBuffer)} when it's no longer used; a buffer that isn't
+ * returned is reclaimed by the garbage collector as usual. A buffer mustn't be
+ * used after it's been returned.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class BufferPool {
+    /**
+     * The capacity of each pooled buffer in bytes.
+     */
+    private final int               capacity;
+    /**
+     * The maximum number of idle buffers retained by the pool.
+     */
+    private final int               maxIdle;
+    /**
+     * The idle buffers.
+     */
+    private final Queue<ByteBuffer> idle           = new ConcurrentLinkedQueue<ByteBuffer>();
+    /**
+     * The number of idle buffers. Maintained separately because
+     * {@link ConcurrentLinkedQueue#size()} isn't a constant-time operation.
+     */
+    private final AtomicInteger     idleCount      = new AtomicInteger();
+    /**
+     * The number of buffers acquired.
+     */
+    private final AtomicLong        acquired       = new AtomicLong();
+    /**
+     * The number of buffers that had to be allocated.
+     */
+    private final AtomicLong        allocated      = new AtomicLong();
+    /**
+     * The number of bytes that had to be allocated.
+     */
+    private final AtomicLong        allocatedBytes = new AtomicLong();
+    /**
+     * The number of buffers returned to the pool.
+     */
+    private final AtomicLong        released       = new AtomicLong();
+
+    /**
+     * Constructs from the capacity of the buffers and the maximum number of
+     * idle buffers to retain.
+     *
+     * @param capacity
+     *            The capacity of each buffer in bytes.
+     * @param maxIdle
+     *            The maximum number of idle buffers to retain.
+     * @throws IllegalArgumentException
+     *             if {@code capacity <= 0 || maxIdle < 0}.
+     */
+    BufferPool(final int capacity, final int maxIdle) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("Invalid maximum: " + maxIdle);
+        }
+        this.capacity = capacity;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Returns a buffer whose position is zero and whose limit is the given
+     * size. The buffer is from the pool if possible. A size greater than the
+     * capacity of the pool's buffers results in a non-pooled, heap buffer.
+     *
+     * @param size
+     *            The number of bytes the buffer must hold.
+     * @return A buffer for the given number of bytes.
+     * @throws IllegalArgumentException
+     *             if {@code size < 0}.
+     */
+    ByteBuffer acquire(final int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Invalid size: " + size);
+        }
+        acquired.incrementAndGet();
+        if (size > capacity) {
+            allocated.incrementAndGet();
+            allocatedBytes.addAndGet(size);
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buf = idle.poll();
+        if (buf == null) {
+            allocated.incrementAndGet();
+            allocatedBytes.addAndGet(capacity);
+            buf = ByteBuffer.allocateDirect(capacity);
+        }
+        else {
+            idleCount.decrementAndGet();
+            buf.clear();
+        }
+        buf.limit(size);
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers that weren't obtained from this
+     * pool and buffers in excess of the maximum number of idle buffers are
+     * left to the garbage collector.
+     *
+     * @param buf
+     *            The buffer. Mustn't be used by the caller afterwards.
+     */
+    void release(final ByteBuffer buf) {
+        if (buf.isDirect() && buf.capacity() == capacity) {
+            released.incrementAndGet();
+            if (idleCount.incrementAndGet() <= maxIdle) {
+                idle.add(buf);
+            }
+            else {
+                idleCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns the capacity of the pooled buffers.
+     *
+     * @return The capacity of the pooled buffers in bytes.
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of buffers acquired from this instance.
+     *
+     * @return The number of buffers acquired.
+     */
+    long getAcquiredCount() {
+        return acquired.get();
+    }
+
+    /**
+     * Returns the number of buffers that this instance had to allocate.
+     *
+     * @return The number of allocated buffers.
+     */
+    long getAllocatedCount() {
+        return allocated.get();
+    }
+
+    /**
+     * Returns the number of bytes that this instance had to allocate.
+     *
+     * @return The number of allocated bytes.
+     */
+    long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * Returns the number of buffers returned to this instance.
+     *
+     * @return The number of released buffers.
+     */
+    long getReleasedCount() {
+        return released.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [capacity=" + capacity
+                + ", idle=" + idleCount.get() + ", acquired=" + acquired.get()
+                + ", allocated=" + allocated.get() + ", released="
+                + released.get() + "]";
+    }
+}
@@ -10,14 +10,19 @@ import java.io.IOError;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicLong;
 
 import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
 import net.jcip.annotations.ThreadSafe;
 
 import org.slf4j.Logger;
@@ -74,6 +79,60 @@ final class ClearingHouse {
         }
     }
 
+    /**
+     * A snapshot of the peers using a {@link ClearingHouse}. The peers are
+     * indexed by a trie of their remote filters so that a new piece of data
+     * reaches only the peers whose remote filter matches it and the matching
+     * filters are found in one walk down the pathname of the data.
+     * <p>
+     * Instances are immutable.
+     * 
+     * @author Steven R. Emmerson
+     */
+    @Immutable
+    private static final class PeerRegistry {
+        /**
+         * The empty registry.
+         */
+        static final PeerRegistry EMPTY = new PeerRegistry(
+                                                Collections.<Peer> emptySet());
+        /**
+         * All the peers.
+         */
+        final List<Peer>          peers;
+        /**
+         * The peers indexed by their remote filter.
+         */
+        final FilterTrie<Peer[]>  remotePeers;
+
+        /**
+         * Constructs from the peers.
+         * 
+         * @param peers
+         *            The peers. Copied.
+         */
+        PeerRegistry(final Collection<Peer> peers) {
+            this.peers = Collections.unmodifiableList(new ArrayList<Peer>(
+                    peers));
+            final Map<Filter, List<Peer>> index = new TreeMap<Filter, List<Peer>>();
+            for (final Peer peer : peers) {
+                final Filter filter = peer.getRemoteFilter();
+                List<Peer> list = index.get(filter);
+                if (list == null) {
+                    list = new ArrayList<Peer>(1);
+                    index.put(filter, list);
+                }
+                list.add(peer);
+            }
+            final Map<Filter, Peer[]> entries = new TreeMap<Filter, Peer[]>();
+            for (final Map.Entry<Filter, List<Peer>> entry : index.entrySet()) {
+                entries.put(entry.getKey(), entry.getValue().toArray(
+                        new Peer[entry.getValue().size()]));
+            }
+            remotePeers = new FilterTrie<Peer[]>(entries);
+        }
+    }
+
     /**
      * The logger for this class.
      */
@@ -87,11 +146,17 @@ final class ClearingHouse {
      */
     private final Predicate       predicate;
     /**
-     * All the peers using this instance.
+     * All the peers using this instance. Only modified; read via
+     * {@link #registry}.
      */
     @GuardedBy("itself")
     private final SortedSet<Peer> peers             = new TreeSet<Peer>(
                                                             PeerComparator.INSTANCE);
+    /**
+     * The current snapshot of {@link #peers}. Replaced whenever a peer is
+     * added or removed so that the peers can be read without locking.
+     */
+    private volatile PeerRegistry registry          = PeerRegistry.EMPTY;
     /**
      * The number of completely received files.
      */
@@ -163,9 +228,8 @@ final class ClearingHouse {
     }
 
     /**
-     * Adds a peer. Makes the peer's
-     * {@link Peer#notifyRemoteIfDesired(PieceSpec)} method eligible for
-     * calling. A peer will not be added if it equals one that has already been
+     * Adds a peer. Makes the peer's {@link Peer#notifyRemote(PieceSpec)}
+     * method eligible for calling. A peer will not be added if it equals one that has already been
      * added. Peers are considered equal if they receive the same data from the
      * same remote node.
      * 
@@ -176,19 +240,41 @@ final class ClearingHouse {
      */
     boolean add(final Peer peer) {
         synchronized (peers) {
-            return peers.add(peer);
+            if (!peers.add(peer)) {
+                return false;
+            }
+            registry = new PeerRegistry(peers);
+            return true;
         }
     }
 
     /**
-     * Removes a peer that was added via {@link #add(Peer)}.
+     * Removes a peer that was added via {@link #add(Peer)}. The pending
+     * requests of the peer are released so that the data can be requested
+     * from other peers.
      * 
      * @param peer
      *            The peer to be removed.
      */
     void remove(final Peer peer) {
         synchronized (peers) {
-            peers.remove(peer);
+            if (peers.remove(peer)) {
+                registry = new PeerRegistry(peers);
+            }
+        }
+        release(peer.getPendingRequests().getSet());
+    }
+
+    /**
+     * Releases pending requests for data-pieces so that the data-pieces can be
+     * requested again -- possibly from a different peer.
+     * 
+     * @param specs
+     *            Specifications of the data-pieces.
+     */
+    void release(final PieceSpecSetIface specs) {
+        for (final PieceSpec spec : specs) {
+            pendingRequests.remove(spec);
         }
     }
 
@@ -201,12 +287,10 @@ final class ClearingHouse {
      * @return The set of peers exchanging at least the specified data.
      */
     Collection<Peer> getPeers(final Filter filter) {
-        final LinkedList<Peer> relevantPeers = new LinkedList<Peer>();
-        synchronized (peers) {
-            for (final Peer peer : peers) {
-                if (peer.getLocalFilter().includes(filter)) {
-                    relevantPeers.add(peer);
-                }
+        final List<Peer> relevantPeers = new ArrayList<Peer>();
+        for (final Peer peer : registry.peers) {
+            if (peer.getLocalFilter().includes(filter)) {
+                relevantPeers.add(peer);
             }
         }
         return relevantPeers;
@@ -245,7 +329,8 @@ final class ClearingHouse {
      *            The local peer that received the piece of data.
      * @param piece
      *            The piece of data that was received by the local peer.
-     * @return {@code true} if and only if the given data-piece was used.
+     * @return {@code true} if and only if the given data-piece was used, i.e.,
+     *         it was wanted and the archive didn't already have it.
      * @throws FileInfoMismatchException
      *             if the file-information of the given piece doesn't match that
      *             of the extant file except for the {@link FileId}.
@@ -264,30 +349,52 @@ final class ClearingHouse {
         }
         else {
             try {
-                if (archive.putPiece(piece)) {
+                final Archive.PutStatus status = archive.putPiece(piece);
+                if (status == Archive.PutStatus.COMPLETED) {
                     predicate.removeIfPossible(piece.getFileInfo());
                     receivedFileCount.incrementAndGet();
                 }
-                final PieceSpec pieceSpec = piece.getInfo();
-                synchronized (peers) {
-                    for (final Peer otherPeer : peers) {
-                        if (PeerComparator.INSTANCE.compare(peer, otherPeer) != 0) {
-                            otherPeer.notifyRemoteIfDesired(pieceSpec);
-                        }
-                    }
+                wasUsed = status != Archive.PutStatus.UNUSED;
+                if (wasUsed) {
+                    notifyPeers(peer, piece.getInfo());
                 }
             }
             catch (final FileNotFoundException e) {
                 // The file has been deleted
                 logger.debug("Can't add data to removed file \"{}\"",
                         piece.getArchivePath());
+                wasUsed = true; // not the peer's fault
             }
-            wasUsed = true;
         }
         pendingRequests.remove(piece.getInfo());
         return wasUsed;
     }
 
+    /**
+     * Notifies the remote ends of the peers whose remote filter matches a new
+     * piece of data. Doesn't lock anything shared.
+     * 
+     * @param source
+     *            The local peer that received the piece of data. Isn't
+     *            notified.
+     * @param pieceSpec
+     *            Specification of the piece of data.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    private void notifyPeers(final Peer source, final PieceSpec pieceSpec)
+            throws InterruptedException {
+        final List<Peer[]> matches = new ArrayList<Peer[]>(2);
+        registry.remotePeers.getMatches(pieceSpec.getArchivePath(), matches);
+        for (final Peer[] otherPeers : matches) {
+            for (final Peer otherPeer : otherPeers) {
+                if (PeerComparator.INSTANCE.compare(source, otherPeer) != 0) {
+                    otherPeer.notifyRemote(pieceSpec);
+                }
+            }
+        }
+    }
+
     /**
      * Indicates if all data has been received.
      * 
@@ -315,6 +422,28 @@ final class ClearingHouse {
         return archive.getPiece(pieceSpec);
     }
 
+    /**
+     * Returns a piece of data. A piece of a complete file can reference the
+     * file rather than contain the data.
+     * 
+     * @param pieceSpec
+     *            Information on the piece of data.
+     * @param byReference
+     *            Whether or not a piece of a complete file should reference
+     *            the file (see {@link Piece#getFile()}).
+     * @return The piece of data or {@code null} if a newer version of the file
+     *         exists.
+     * @throws FileInfoMismatchException
+     *             if the file-information of the archive-file is inconsistent
+     *             with that of the given piece specification
+     * @throws IOException
+     *             if an I/O error occurred.
+     */
+    Piece getPiece(final PieceSpec pieceSpec, final boolean byReference)
+            throws FileInfoMismatchException, IOException {
+        return archive.getPiece(pieceSpec, byReference);
+    }
+
     /**
      * Walks the files in the data archive. Returns only when all files have
      * been visited.
@@ -350,9 +479,7 @@ final class ClearingHouse {
      * @return The current number of contributing peers.
      */
     int getPeerCount() {
-        synchronized (peers) {
-            return peers.size();
-        }
+        return registry.peers.size();
     }
 
     /**
@@ -382,7 +509,7 @@ final class ClearingHouse {
     @Override
     public String toString() {
         return getClass().getSimpleName() + "[archive=" + archive + ", peers=("
-                + peers.size() + "), pending request=("
+                + registry.peers.size() + "), pending request=("
                 + pendingRequests.size() + ")]";
     }
 }
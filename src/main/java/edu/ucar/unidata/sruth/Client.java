@@ -53,6 +53,14 @@ final class Client extends UninterruptibleTask<Boolean> {
      * The underlying connection to the server.
      */
     private final AtomicReference<ConnectionToServer> connectionRef = new AtomicReference<ConnectionToServer>();
+    /**
+     * The manager of this instance or {@code null}.
+     */
+    private final ClientManager                       clientManager;
+    /**
+     * When this instance was created.
+     */
+    private final long                                startTime     = System.nanoTime();
 
     /**
      * Constructs from the address of the local server, the address of a remote
@@ -79,6 +87,37 @@ final class Client extends UninterruptibleTask<Boolean> {
     Client(final InetSocketAddress localServer,
             final InetSocketAddress remoteServer, final Filter filter,
             final ClearingHouse clearingHouse) {
+        this(localServer, remoteServer, filter, clearingHouse, null);
+    }
+
+    /**
+     * Constructs from the address of the local server, the address of a remote
+     * server, the data-selection filter, the data-exchange clearing house to
+     * be used, and the manager of the client. Requests for data that stall are
+     * redistributed by the manager to its other clients.
+     * 
+     * @param localServer
+     *            Address of the local server.
+     * @param remoteServer
+     *            Address of a remote server.
+     * @param filter
+     *            The data-selection filter.
+     * @param clearingHouse
+     *            The clearing-house to use.
+     * @param clientManager
+     *            The manager of the client or {@code null}.
+     * @throws NullPointerException
+     *             if {@code localServer == null}.
+     * @throws NullPointerException
+     *             if {@code remoteServer == null}.
+     * @throws NullPointerException
+     *             if {@code filter == null}.
+     * @throws NullPointerException
+     *             if {@code clearingHouse == null}.
+     */
+    Client(final InetSocketAddress localServer,
+            final InetSocketAddress remoteServer, final Filter filter,
+            final ClearingHouse clearingHouse, final ClientManager clientManager) {
         if (null == localServer || null == clearingHouse || null == filter
                 || null == remoteServer) {
             throw new NullPointerException();
@@ -87,6 +126,7 @@ final class Client extends UninterruptibleTask<Boolean> {
         this.remoteServer = remoteServer;
         this.filter = filter;
         this.clearingHouse = clearingHouse;
+        this.clientManager = clientManager;
         connectionFactory = new ConnectionFactory(localServer);
     }
 
@@ -150,11 +190,33 @@ final class Client extends UninterruptibleTask<Boolean> {
                 }
 
                 final Filter serverFilter;
+                int wireVersion = WireProtocol.SERIALIZATION;
                 try {
-                    serverFilter = (Filter) requestStream
+                    /*
+                     * A server that predates the binary wire protocol replies
+                     * with a bare filter.
+                     */
+                    final Object reply = requestStream
                             .receiveObject(Connection.SO_TIMEOUT);
+                    if (reply instanceof WireProtocol.Hello) {
+                        final WireProtocol.Hello hello = (WireProtocol.Hello) reply;
+                        serverFilter = hello.getFilter();
+                        wireVersion = hello.getVersion();
+                    }
+                    else {
+                        serverFilter = (Filter) reply;
+                    }
                 }
                 catch (final IOException e) {
+                    if (connection.isMultiplexed()
+                            && (e instanceof EOFException
+                                    || e instanceof SocketTimeoutException)) {
+                        /*
+                         * The server predates multiplexing (it's waiting for
+                         * the other sockets) or refused the connection.
+                         */
+                        ConnectionFactory.multiplexingFailed(remoteServer);
+                    }
                     throw (ConnectException) new ConnectException(
                             "Couldn't receive filter on " + connection)
                             .initCause(e);
@@ -170,10 +232,26 @@ final class Client extends UninterruptibleTask<Boolean> {
                             .initCause(e);
                 }
 
+                if (wireVersion > WireProtocol.LOCAL_VERSION) {
+                    throw new IOException(
+                            "Unsupported wire-protocol version on "
+                                    + connection + ": " + wireVersion);
+                }
+                connection.useWireProtocol(wireVersion);
+
                 synchronized (this) {
                     peer = new Peer(clearingHouse, connection, filter,
                             serverFilter);
                 }
+                if (clientManager != null) {
+                    peer.setStallListener(new Peer.StallListener() {
+                        @Override
+                        public void stalled(final SpecSet specs) {
+                            clientManager.redistributeRequests(Client.this,
+                                    specs);
+                        }
+                    });
+                }
                 final Boolean isValid = peer.call();
                 if (!isValid) {
                     logger.debug("Invalid server: {}", this);
@@ -210,20 +288,25 @@ final class Client extends UninterruptibleTask<Boolean> {
     }
 
     /**
-     * Returns the number of octets downloaded from the server since the most
-     * recent call to {@link #call()} or {@link #restartCounter()}.
+     * Returns the time at which this instance was created.
      * 
-     * @return The number of downloaded octets.
+     * @return The creation time in nanoseconds as returned by
+     *         {@link System#nanoTime()}.
      */
-    long getCounter() {
-        return peer.getCounter();
+    long getStartTime() {
+        return startTime;
     }
 
     /**
-     * Resets and restarts the counter.
+     * Returns the performance metrics of the data received from the server.
+     * 
+     * @return The performance metrics or {@code null} if this instance hasn't
+     *         connected to the server.
      */
-    void restartCounter() {
-        peer.restartCounter();
+    synchronized PeerMetrics getMetrics() {
+        return (peer == null)
+                ? null
+                : peer.getMetrics();
     }
 
     /**
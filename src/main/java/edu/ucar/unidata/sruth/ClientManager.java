@@ -12,9 +12,16 @@ import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.Callable;
@@ -29,6 +36,7 @@ import java.util.prefs.Preferences;
 
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.Immutable;
+import net.jcip.annotations.NotThreadSafe;
 import net.jcip.annotations.ThreadSafe;
 
 import org.slf4j.Logger;
@@ -90,7 +98,9 @@ final class ClientManager implements Callable<Void> {
             for (boolean registered = false; !registered
                     && !Thread.currentThread().isInterrupted();) {
                 try {
+                    final ServerLoad load = getServerLoad();
                     filteredProxy.register();
+                    reportedLoad = load;
                     registered = true;
                 }
                 catch (final SocketTimeoutException e) {
@@ -115,10 +125,10 @@ final class ClientManager implements Callable<Void> {
                 while (!Thread.currentThread().isInterrupted()) {
                     if (enoughClients()) {
                         rankClients();
-                        do {
-                            removeWorstClient();
-                        } while (!Thread.currentThread().isInterrupted()
-                                && enoughClients());
+                        while (!Thread.currentThread().isInterrupted()
+                                && enoughClients() && removeWorstClient()) {
+                            // Remove clearly worse clients while enough remain
+                        }
                     }
                     while (!Thread.currentThread().isInterrupted()
                             && !enoughClients()) {
@@ -138,7 +148,9 @@ final class ClientManager implements Callable<Void> {
                         }
                     }
                     if (!Thread.currentThread().isInterrupted()) {
-                        restartClientCounters();
+                        reportLoad();
+                    }
+                    if (!Thread.currentThread().isInterrupted()) {
                         timeout = waitUntilDoneOrTimeout(true,
                                 REPLACEMENT_PERIOD);
                     }
@@ -150,6 +162,33 @@ final class ClientManager implements Callable<Void> {
             return null;
         }
 
+        /**
+         * Re-registers with the tracker if the load on the local server has
+         * changed materially since it was last reported so that other nodes
+         * can choose their servers accordingly.
+         * <p>
+         * This method is potentially slow and uninterruptible.
+         */
+        private void reportLoad() {
+            final ServerLoad load = getServerLoad();
+            if (!load.isSimilar(reportedLoad)) {
+                try {
+                    filteredProxy.register();
+                    reportedLoad = load;
+                    logger.debug("Reported load: {}", load);
+                }
+                catch (final IOException e) {
+                    logger.debug("Couldn't report load to tracker {}: {}",
+                            trackerProxy.getAddress(), e.toString());
+                }
+                catch (final InvalidMessageException e) {
+                    logger.debug(
+                            "Invalid communication with tracker {}: {}",
+                            trackerProxy.getAddress(), e.toString());
+                }
+            }
+        }
+
         /**
          * Waits until this instance is running.
          * <p>
@@ -180,24 +219,54 @@ final class ClientManager implements Callable<Void> {
          * Ranks the clients from worst-performing to best-performing.
          */
         private synchronized void rankClients() {
+            final long now = System.nanoTime();
             rankedClients.clear();
             for (final Client client : clients) {
-                final RankedClient rankedClient = new RankedClient(client);
+                final RankedClient rankedClient = new RankedClient(client, now);
                 rankedClients.add(rankedClient);
+                recordRoundTripTime(client);
             }
+            Collections.sort(rankedClients);
+            logger.debug("Ranked clients: {}", rankedClients);
         }
 
         /**
-         * Removes the worst-performing client.
+         * Removes the worst-performing client if it's clearly worse than the
+         * others. Only clients that have been measured for at least one
+         * replacement period are candidates. The candidate is removed only if
+         * its score is less than the mean score of the other ranked clients by
+         * more than the hysteresis fraction so that clients of similar
+         * performance aren't replaced back and forth.
+         * 
+         * @return {@code true} if and only if a client was removed.
          */
-        private synchronized void removeWorstClient() {
-            if (!rankedClients.isEmpty()) {
-                final RankedClient rankedClient = rankedClients.first();
-                rankedClients.remove(rankedClient);
-                final Client client = rankedClient.client;
-                client.cancel();
-                clients.remove(client);
+        private synchronized boolean removeWorstClient() {
+            RankedClient worst = null;
+            for (final RankedClient rankedClient : rankedClients) {
+                if (rankedClient.isEligible) {
+                    worst = rankedClient;
+                    break;
+                }
+            }
+            if (worst == null || rankedClients.size() < 2) {
+                return false;
             }
+            double sum = 0;
+            for (final RankedClient rankedClient : rankedClients) {
+                if (rankedClient != worst) {
+                    sum += rankedClient.score;
+                }
+            }
+            final double mean = sum / (rankedClients.size() - 1);
+            if (worst.score >= (1 - REPLACEMENT_HYSTERESIS) * mean) {
+                return false;
+            }
+            logger.debug("Removing worst client: {}", worst);
+            rankedClients.remove(worst);
+            final Client client = worst.client;
+            client.cancel();
+            clients.remove(client);
+            return true;
         }
 
         /**
@@ -222,10 +291,16 @@ final class ClientManager implements Callable<Void> {
 
             if (remoteServer != null) {
                 final Client client = new Client(localServer, remoteServer,
-                        filter, clearingHouse);
+                        filter, clearingHouse, ClientManager.this);
                 synchronized (this) {
                     clients.add(client);
                 }
+                final ServerLoad remoteLoad = topology.getLoad(remoteServer);
+                if (remoteLoad.isDepthKnown()) {
+                    synchronized (ClientManager.this) {
+                        upstreamDepths.put(remoteServer, remoteLoad.getDepth());
+                    }
+                }
                 clientCompletionService.submit(new ClientWrapper(client));
                 clientAdded = true;
             }
@@ -257,7 +332,8 @@ final class ClientManager implements Callable<Void> {
                 }
             }
             topology.remove(localServer);
-            final InetSocketAddress bestServer = topology.getBestServer(filter);
+            final InetSocketAddress bestServer = topology.getBestServer(filter,
+                    getRoundTripTimes());
             logger.debug("Best server is {}", bestServer);
             return bestServer;
         }
@@ -291,15 +367,6 @@ final class ClientManager implements Callable<Void> {
                     ? 0
                     : Math.min(Math.max(2 * timeout, 1), REPLACEMENT_PERIOD);
         }
-
-        /**
-         * Restarts the client counters.
-         */
-        private synchronized void restartClientCounters() {
-            for (final Client client : clients) {
-                client.restartCounter();
-            }
-        }
     }
 
     /**
@@ -376,31 +443,80 @@ final class ClientManager implements Callable<Void> {
         /**
          * The client in question.
          */
-        private final Client client;
+        private final Client      client;
+        /**
+         * The score of the client (see {@link PeerMetrics#getScore(long)}).
+         * Zero if the client hasn't connected.
+         */
+        private final double      score;
         /**
-         * The ranking.
+         * Whether or not the client has been measured long enough to be
+         * removed.
          */
-        private final long   rank;
+        private final boolean     isEligible;
+        /**
+         * The metrics of the client or {@code null}.
+         */
+        private final PeerMetrics metrics;
 
         /**
          * Constructs from a client.
          * 
          * @param client
          *            The client.
+         * @param now
+         *            The current time in nanoseconds.
          */
-        RankedClient(final Client client) {
+        RankedClient(final Client client, final long now) {
             this.client = client;
-            // TODO: implement and use Client.getRate();
-            this.rank = client.getCounter();
+            metrics = client.getMetrics();
+            score = metrics == null
+                    ? 0
+                    : metrics.getScore(now);
+            isEligible = now - client.getStartTime() >= TimeUnit.SECONDS
+                    .toNanos(REPLACEMENT_PERIOD);
         }
 
         @Override
         public int compareTo(final RankedClient that) {
-            return rank < that.rank
-                    ? -1
-                    : rank == that.rank
-                            ? 0
-                            : 1;
+            return Double.compare(score, that.score);
+        }
+
+        @Override
+        public String toString() {
+            return "RankedClient [server=" + client.getServerAddress()
+                    + ", score=" + (long) score + ", eligible=" + isEligible
+                    + ", metrics=" + metrics + "]";
+        }
+    }
+
+    /**
+     * The round-trip times of the most-recently used servers.
+     * <p>
+     * Instances are not thread-safe.
+     * 
+     * @author Steven R. Emmerson
+     */
+    @NotThreadSafe
+    private static final class RoundTripTimes extends
+            LinkedHashMap<InetSocketAddress, Long> {
+        /**
+         * The serial version identifier.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructs an empty instance whose iteration order is the order of
+         * access.
+         */
+        RoundTripTimes() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(
+                final Map.Entry<InetSocketAddress, Long> eldest) {
+            return size() > MAX_ROUND_TRIP_TIMES;
         }
     }
 
@@ -493,6 +609,7 @@ final class ClientManager implements Callable<Void> {
                     }
                 }
                 synchronized (ClientManager.this) {
+                    recordRoundTripTime(client);
                     final SpecSet specs = client.getPendingRequests();
                     clients.remove(client);
                     redistributeRequests(specs);
@@ -530,12 +647,23 @@ final class ClientManager implements Callable<Void> {
     private static final int                   REPLACEMENT_PERIOD;
     private static final String                REPLACEMENT_PERIOD_KEY                       = "client replacement period in seconds";
     private static final int                   REPLACEMENT_PERIOD_DEFAULT                   = 60;
+    /**
+     * The fraction by which the score of the worst client must be less than
+     * the mean score of the other clients for the worst client to be replaced.
+     */
+    private static final double                REPLACEMENT_HYSTERESIS;
+    private static final String                REPLACEMENT_HYSTERESIS_KEY                   = "client replacement hysteresis";
+    private static final double                REPLACEMENT_HYSTERESIS_DEFAULT               = 0.25;
     /**
      * The keep-alive time, in seconds, for client threads.
      */
     private static final int                   CLIENT_THREAD_KEEP_ALIVE_TIME;
     private static final String                CLIENT_THREAD_KEEP_ALIVE_TIME_KEY            = "client thread keep-alive time in seconds";
     private static final int                   CLIENT_THREAD_KEEP_ALIVE_TIME_DEFAULT        = 60;
+    /**
+     * The maximum number of servers whose round-trip times are remembered.
+     */
+    private static final int                   MAX_ROUND_TRIP_TIMES                         = 256;
 
     static {
         final Preferences prefs = Preferences
@@ -554,6 +682,13 @@ final class ClientManager implements Callable<Void> {
             throw new IllegalArgumentException("Invalid preference: \""
                     + REPLACEMENT_PERIOD_KEY + "\"=" + REPLACEMENT_PERIOD);
         }
+        REPLACEMENT_HYSTERESIS = prefs.getDouble(REPLACEMENT_HYSTERESIS_KEY,
+                REPLACEMENT_HYSTERESIS_DEFAULT);
+        if (REPLACEMENT_HYSTERESIS < 0 || REPLACEMENT_HYSTERESIS >= 1) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + REPLACEMENT_HYSTERESIS_KEY + "\"="
+                    + REPLACEMENT_HYSTERESIS);
+        }
         CLIENT_THREAD_KEEP_ALIVE_TIME = prefs.getInt(
                 CLIENT_THREAD_KEEP_ALIVE_TIME_KEY,
                 CLIENT_THREAD_KEEP_ALIVE_TIME_DEFAULT);
@@ -599,10 +734,27 @@ final class ClientManager implements Callable<Void> {
     private final SortedSet<InetSocketAddress> invalidServers                               = new TreeSet<InetSocketAddress>(
                                                                                                     AddressComparator.INSTANCE);
     /**
-     * The set of ranked clients.
+     * The ranked clients from worst-performing to best-performing.
      */
     @GuardedBy("this")
-    private final SortedSet<RankedClient>      rankedClients                                = new TreeSet<RankedClient>();
+    private final List<RankedClient>           rankedClients                                = new ArrayList<RankedClient>();
+    /**
+     * The measured round-trip times, in nanoseconds, of recently-used servers.
+     * Kept after a client terminates so that the server can be judged when
+     * the next server is chosen.
+     */
+    @GuardedBy("this")
+    private final Map<InetSocketAddress, Long> roundTripTimes                               = new RoundTripTimes();
+    /**
+     * The depths, in the distribution tree, of the servers of the clients.
+     */
+    @GuardedBy("this")
+    private final Map<InetSocketAddress, Integer> upstreamDepths                            = new HashMap<InetSocketAddress, Integer>();
+    /**
+     * The load on the local server that was last reported to the tracker or
+     * {@code null}.
+     */
+    private volatile ServerLoad                reportedLoad;
     /**
      * The data clearing-house.
      */
@@ -615,6 +767,10 @@ final class ClientManager implements Callable<Void> {
      * Address of the local server.
      */
     private final InetSocketAddress            localServer;
+    /**
+     * The local server.
+     */
+    private final Server                       server;
     /**
      * The creator of new clients
      */
@@ -629,11 +785,9 @@ final class ClientManager implements Callable<Void> {
      * the filter to use, and the address of the tracker.
      * 
      * @param localServer
-     *            The node identifier.
+     *            The local server.
      * @param clearingHouse
      *            The data clearing house.
-     * @param comparableInetSocketAddress
-     *            The address of the local server.
      * @param filter
      *            The data filter to use.
      * @param trackerProxy
@@ -649,7 +803,7 @@ final class ClientManager implements Callable<Void> {
      * @throws NullPointerException
      *             if {@code trackerProxy == null}.
      */
-    ClientManager(final InetSocketAddress localServer,
+    ClientManager(final Server localServer,
             final ClearingHouse clearingHouse, final Filter filter,
             final TrackerProxy trackerProxy) throws IOException {
         if (localServer == null) {
@@ -662,7 +816,8 @@ final class ClientManager implements Callable<Void> {
             throw new NullPointerException();
         }
         this.trackerProxy = trackerProxy;
-        this.localServer = localServer;
+        this.server = localServer;
+        this.localServer = localServer.getSocketAddress();
         this.filter = filter;
         this.clearingHouse = clearingHouse;
         this.clientCreator = new ClientCreator();
@@ -788,6 +943,55 @@ final class ClientManager implements Callable<Void> {
         return clients.size();
     }
 
+    /**
+     * Returns the load on the local server. The depth of the local server is
+     * one more than the least depth of the servers of the clients.
+     * 
+     * @return The load on the local server.
+     */
+    synchronized ServerLoad getServerLoad() {
+        final Set<InetSocketAddress> upstreamServers = new HashSet<InetSocketAddress>();
+        for (final Client client : clients) {
+            upstreamServers.add(client.getServerAddress());
+        }
+        upstreamDepths.keySet().retainAll(upstreamServers);
+        int depth = ServerLoad.UNKNOWN_DEPTH;
+        for (final int upstreamDepth : upstreamDepths.values()) {
+            if (depth == ServerLoad.UNKNOWN_DEPTH || upstreamDepth + 1 < depth) {
+                depth = upstreamDepth + 1;
+            }
+        }
+        return new ServerLoad(server.getServletCount(),
+                server.getServletCapacity(), depth);
+    }
+
+    /**
+     * Records the measured round-trip time of the server of a client.
+     * 
+     * @param client
+     *            The client.
+     */
+    private synchronized void recordRoundTripTime(final Client client) {
+        final PeerMetrics metrics = client.getMetrics();
+        if (metrics != null) {
+            final long rtt = (long) metrics.getRoundTripTime();
+            if (rtt > 0) {
+                roundTripTimes.put(client.getServerAddress(), rtt);
+            }
+        }
+    }
+
+    /**
+     * Returns the measured round-trip times of recently-used servers. The
+     * returned map is not backed by this instance.
+     * 
+     * @return The measured round-trip times, in nanoseconds, of
+     *         recently-used servers.
+     */
+    private synchronized Map<InetSocketAddress, Long> getRoundTripTimes() {
+        return new HashMap<InetSocketAddress, Long>(roundTripTimes);
+    }
+
     /**
      * Redistributes a set of data requests to the set of extant clients.
      * 
@@ -795,8 +999,25 @@ final class ClientManager implements Callable<Void> {
      *            The set of data requests to be redistributed.
      */
     synchronized void redistributeRequests(final SpecSet specs) {
+        redistributeRequests(null, specs);
+    }
+
+    /**
+     * Redistributes a set of data requests to the set of extant clients except
+     * one.
+     * 
+     * @param source
+     *            The client from which the data requests are taken or
+     *            {@code null}. Won't be given the data requests.
+     * @param specs
+     *            The set of data requests to be redistributed.
+     */
+    synchronized void redistributeRequests(final Client source,
+            final SpecSet specs) {
         for (final Client client : clients) {
-            client.getIfAppropriate(specs);
+            if (client != source) {
+                client.getIfAppropriate(specs);
+            }
         }
     }
 
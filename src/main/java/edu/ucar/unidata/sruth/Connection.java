@@ -1,14 +1,21 @@
 package edu.ucar.unidata.sruth;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.io.StreamCorruptedException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -57,6 +64,22 @@ abstract class Connection implements Comparable<Connection> {
          * @serial
          */
         private final long              index;
+        /**
+         * The highest version of the {@link WireProtocol} supported by the
+         * client. Absent (i.e., {@link WireProtocol#SERIALIZATION}) if the
+         * client predates the binary protocol.
+         * 
+         * @serial
+         */
+        private final int               wireVersion;
+        /**
+         * Whether or not all the streams of the connection are multiplexed
+         * over a single socket. Absent (i.e., {@code false}) if the client
+         * predates multiplexing.
+         * 
+         * @serial
+         */
+        private final boolean           multiplexed;
         /**
          * The connection counter.
          */
@@ -67,13 +90,41 @@ abstract class Connection implements Comparable<Connection> {
          * 
          * @param serverSocketAddress
          *            The address of a server.
+         * @param multiplexed
+         *            Whether or not all the streams of the connection are
+         *            multiplexed over a single socket.
          * @throws NullPointerException
          *             if {@code serverSocketAddress == null}.
          */
-        ConnectionId(final InetSocketAddress serverSocketAddress) {
+        ConnectionId(final InetSocketAddress serverSocketAddress,
+                final boolean multiplexed) {
             // TODO: Get the connection ID from the server
             this.serverSocketAddress = serverSocketAddress;
             index = connectionCounter.getAndIncrement();
+            wireVersion = WireProtocol.LOCAL_VERSION;
+            this.multiplexed = multiplexed;
+        }
+
+        /**
+         * Indicates if all the streams of the connection are multiplexed over
+         * a single socket.
+         * 
+         * @return {@code true} if and only if the streams of the connection
+         *         are multiplexed over a single socket.
+         */
+        boolean isMultiplexed() {
+            return multiplexed;
+        }
+
+        /**
+         * Returns the highest version of the {@link WireProtocol} supported by
+         * the client.
+         * 
+         * @return the highest version of the wire protocol supported by the
+         *         client.
+         */
+        int getWireVersion() {
+            return wireVersion;
         }
 
         /**
@@ -135,7 +186,8 @@ abstract class Connection implements Comparable<Connection> {
         @Override
         public String toString() {
             return "ConnectionId [serverSocketAddress=" + serverSocketAddress
-                    + ", index=" + index + "]";
+                    + ", index=" + index + ", wireVersion=" + wireVersion
+                    + ", multiplexed=" + multiplexed + "]";
         }
     }
 
@@ -166,7 +218,12 @@ abstract class Connection implements Comparable<Connection> {
             /**
              * The underlying object output stream.
              */
-            private final ObjectOutputStream objectOutputStream;
+            private final ObjectOutputStream       objectOutputStream;
+            /**
+             * The encoder of the binary wire protocol or {@code null} if Java
+             * serialization is being used.
+             */
+            private volatile WireProtocol.Encoder encoder;
             /**
              * Whether or not this instance is closed.
              */
@@ -200,9 +257,42 @@ abstract class Connection implements Comparable<Connection> {
              */
             void send(final Message obj) throws IOException {
                 logger.trace("Sending {}", obj);
-                objectOutputStream.writeObject(obj);
-                objectOutputStream.reset();
-                objectOutputStream.flush();
+                final WireProtocol.Encoder enc = encoder;
+                if (enc != null) {
+                    enc.write(obj);
+                }
+                else {
+                    objectOutputStream.writeObject(obj);
+                    objectOutputStream.reset();
+                    objectOutputStream.flush();
+                }
+            }
+
+            /**
+             * Switches this instance from Java serialization to the binary
+             * wire protocol. Objects sent after this method returns will use
+             * the binary protocol.
+             * 
+             * @throws IOException
+             *             if an I/O error occurs.
+             */
+            void useWireProtocol() throws IOException {
+                encoder = new WireProtocol.Encoder(outputStream,
+                        WireProtocol.SEND_FILES
+                                ? socket.getChannel()
+                                : null);
+            }
+
+            /**
+             * Indicates if this instance can send the data of a {@link Piece}
+             * directly from the piece's file (see {@link Piece#getFile()}).
+             * 
+             * @return {@code true} if and only if this instance can send data
+             *         directly from files.
+             */
+            boolean canSendFiles() {
+                final WireProtocol.Encoder enc = encoder;
+                return enc != null && enc.canSendFiles();
             }
 
             /**
@@ -215,6 +305,10 @@ abstract class Connection implements Comparable<Connection> {
                  * rather than just half of it. Consequently, it is not used.
                  */
                 if (isShutdown.compareAndSet(false, true)) {
+                    final WireProtocol.Encoder enc = encoder;
+                    if (enc != null) {
+                        enc.close();
+                    }
                     if (input.isShutdown()) {
                         try {
                             socket.close();
@@ -250,7 +344,17 @@ abstract class Connection implements Comparable<Connection> {
             /**
              * The underlying object input stream.
              */
-            private final ObjectInputStream objectInputStream;
+            private final ObjectInputStream       objectInputStream;
+            /**
+             * The decoder of the binary wire protocol or {@code null} if Java
+             * serialization is being used.
+             */
+            private volatile WireProtocol.Decoder decoder;
+            /**
+             * Whether or not an object has been received using Java
+             * serialization.
+             */
+            private volatile boolean              objectReceived;
             /**
              * Whether or not this instance has been shutdown.
              */
@@ -299,11 +403,44 @@ abstract class Connection implements Comparable<Connection> {
                     throw new IllegalArgumentException();
                 }
                 socket.setSoTimeout(timeout);
-                final Object obj = objectInputStream.readUnshared();
+                final WireProtocol.Decoder dec = decoder;
+                final Object obj;
+                if (dec != null) {
+                    obj = dec.read();
+                }
+                else {
+                    obj = objectInputStream.readUnshared();
+                    objectReceived = true;
+                }
                 logger.trace("Received {}", obj);
                 return obj;
             }
 
+            /**
+             * Switches this instance from Java serialization to the binary
+             * wire protocol. Objects received after this method returns will
+             * be decoded using the binary protocol. NB: The object input
+             * stream doesn't read ahead of the last object, so nothing is
+             * lost; however, the reset that {@link Output#send(Message)}
+             * appends to every object remains unread and is consumed here.
+             * 
+             * @throws IOException
+             *             if an I/O error occurs.
+             * @throws StreamCorruptedException
+             *             if the reset isn't there.
+             */
+            void useWireProtocol() throws IOException {
+                final InputStream in = socket.getInputStream();
+                if (objectReceived) {
+                    final int b = in.read();
+                    if (b != ObjectStreamConstants.TC_RESET) {
+                        throw new StreamCorruptedException(
+                                "Expected reset but got " + b);
+                    }
+                }
+                decoder = new WireProtocol.Decoder(in);
+            }
+
             /**
              * Closes this instance. Idempotent.
              */
@@ -338,10 +475,61 @@ abstract class Connection implements Comparable<Connection> {
             }
         }
 
+        /**
+         * An output stream that writes directly to a socket channel. Unlike
+         * the output stream of a channel's socket, a write doesn't wait for a
+         * concurrent, blocking read of the socket to complete.
+         * <p>
+         * Instances are thread-compatible.
+         * 
+         * @author Steven R. Emmerson
+         */
+        private static final class ChannelOutputStream extends OutputStream {
+            /**
+             * The socket channel.
+             */
+            private final SocketChannel channel;
+
+            /**
+             * Constructs from a socket channel.
+             * 
+             * @param channel
+             *            The socket channel. Must be in blocking mode.
+             */
+            ChannelOutputStream(final SocketChannel channel) {
+                this.channel = channel;
+            }
+
+            @Override
+            public void write(final int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len)
+                    throws IOException {
+                final ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+                try {
+                    while (buf.hasRemaining()) {
+                        channel.write(buf);
+                    }
+                }
+                catch (final ClosedChannelException e) {
+                    // Same as the output stream of an ordinary socket
+                    throw (SocketException) new SocketException(
+                            "Socket closed").initCause(e);
+                }
+            }
+        }
+
         /**
          * The underlying socket.
          */
         private final Socket        socket;
+        /**
+         * The output stream of the underlying socket.
+         */
+        private final OutputStream  outputStream;
         /**
          * The address of the client's socket.
          */
@@ -378,6 +566,19 @@ abstract class Connection implements Comparable<Connection> {
                 throw new NullPointerException();
             }
             this.socket = socket;
+            final SocketChannel channel = socket.getChannel();
+            outputStream = (channel == null)
+                    ? socket.getOutputStream()
+                    : new ChannelOutputStream(channel);
+        }
+
+        /**
+         * Returns the output stream of the underlying socket.
+         * 
+         * @return The output stream of the underlying socket.
+         */
+        protected OutputStream getSocketOutputStream() {
+            return outputStream;
         }
 
         /**
@@ -485,6 +686,19 @@ abstract class Connection implements Comparable<Connection> {
             return getInput().receiveObject(timeout);
         }
 
+        /**
+         * Switches this instance from Java serialization to the binary wire
+         * protocol.
+         * 
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        @GuardedBy("this")
+        synchronized void useWireProtocol() throws IOException {
+            output.useWireProtocol();
+            input.useWireProtocol();
+        }
+
         /**
          * Closes this instance, releasing all resources. NB: Closes the
          * underlying socket. Idempotent.
@@ -594,9 +808,9 @@ abstract class Connection implements Comparable<Connection> {
     /**
      * The various streams.
      */
-    private static final int        NOTICE             = 0;
-    private static final int        REQUEST            = 1;
-    private static final int        DATA               = 2;
+    static final int                NOTICE             = 0;
+    static final int                REQUEST            = 1;
+    static final int                DATA               = 2;
     static final int                STREAM_COUNT       = 3;
     /**
      * The list of {@link Stream}s that constitute a {@link Connection}.
@@ -608,6 +822,16 @@ abstract class Connection implements Comparable<Connection> {
      * The address of the local server's socket.
      */
     private final InetSocketAddress localServerSocketAddress;
+    /**
+     * The version of the {@link WireProtocol} in use.
+     */
+    @GuardedBy("this")
+    private int                     wireVersion        = WireProtocol.SERIALIZATION;
+    /**
+     * Whether or not all the streams are multiplexed over a single socket.
+     */
+    @GuardedBy("this")
+    private boolean                 multiplexed;
     /**
      * The socket timeout in milliseconds.
      */
@@ -620,6 +844,19 @@ abstract class Connection implements Comparable<Connection> {
      * The default value for the socket-timeout user-preference ({@value} ).
      */
     static final int                SO_TIMEOUT_DEFAULT = 30000;
+    /**
+     * Whether or not connections to servers should multiplex all streams over
+     * a single socket.
+     */
+    static final boolean            MULTIPLEXED;
+    /**
+     * The name of the multiplexing user-preference ({@value} ).
+     */
+    static final String             MULTIPLEXED_KEY    = "multiplexed connections";
+    /**
+     * The default value for the multiplexing user-preference ({@value} ).
+     */
+    static final boolean            MULTIPLEXED_DEFAULT = true;
 
     static {
         final Preferences prefs = Preferences
@@ -630,6 +867,7 @@ abstract class Connection implements Comparable<Connection> {
             throw new IllegalArgumentException("Invalid preference: \""
                     + SO_TIMEOUT_KEY + "\"=" + SO_TIMEOUT);
         }
+        MULTIPLEXED = prefs.getBoolean(MULTIPLEXED_KEY, MULTIPLEXED_DEFAULT);
     }
 
     /**
@@ -647,6 +885,22 @@ abstract class Connection implements Comparable<Connection> {
         this.localServerSocketAddress = localServerSocketAddress;
     }
 
+    /**
+     * Returns a new, unconnected socket. The socket will have a channel if
+     * possible so that data can be sent directly from files.
+     * 
+     * @return A new, unconnected socket.
+     */
+    static Socket newSocket() {
+        try {
+            return SocketChannel.open().socket();
+        }
+        catch (final IOException e) {
+            logger.debug("Couldn't open socket channel: {}", e.toString());
+            return new Socket();
+        }
+    }
+
     /**
      * Vets a {@link Connection#Stream}. Ensures that it connects to the same
      * remote site and that the client-side port number is distinct.
@@ -702,7 +956,7 @@ abstract class Connection implements Comparable<Connection> {
      */
     @GuardedBy("this")
     protected synchronized void add(final Stream stream) {
-        if (streams.size() >= STREAM_COUNT) {
+        if (streams.size() >= getSocketCount()) {
             throw new IndexOutOfBoundsException();
         }
 
@@ -714,6 +968,50 @@ abstract class Connection implements Comparable<Connection> {
         }
     }
 
+    /**
+     * Sets whether or not all the streams of this instance are multiplexed
+     * over a single socket. Must be called before a stream is added.
+     * 
+     * @param multiplexed
+     *            Whether or not all the streams are multiplexed over a single
+     *            socket.
+     * @throws IllegalStateException
+     *             if a stream has been added.
+     */
+    @GuardedBy("this")
+    protected synchronized void setMultiplexed(final boolean multiplexed) {
+        if (!streams.isEmpty()) {
+            throw new IllegalStateException();
+        }
+        this.multiplexed = multiplexed;
+    }
+
+    /**
+     * Indicates if all the streams of this instance are multiplexed over a
+     * single socket. If so, then the request, notice, and data streams are
+     * the same {@link Stream} and must be distinguished by the transport (see
+     * {@link NioTransport}).
+     * 
+     * @return {@code true} if and only if all the streams of this instance
+     *         are multiplexed over a single socket.
+     */
+    @GuardedBy("this")
+    synchronized boolean isMultiplexed() {
+        return multiplexed;
+    }
+
+    /**
+     * Returns the number of sockets of this instance when it's ready.
+     * 
+     * @return The number of sockets of this instance when it's ready.
+     */
+    @GuardedBy("this")
+    synchronized int getSocketCount() {
+        return multiplexed
+                ? 1
+                : STREAM_COUNT;
+    }
+
     /**
      * Returns the current number of {@link Connection#Stream}s.
      * 
@@ -731,11 +1029,12 @@ abstract class Connection implements Comparable<Connection> {
      */
     @GuardedBy("this")
     protected synchronized boolean isReady() {
-        return streams.size() == STREAM_COUNT;
+        return streams.size() == getSocketCount();
     }
 
     /**
-     * Returns the i-th stream.
+     * Returns the i-th stream. If this instance is multiplexed, then the same
+     * stream is returned for every index.
      * 
      * @param index
      *            The index of the stream to be returned.
@@ -743,7 +1042,9 @@ abstract class Connection implements Comparable<Connection> {
      */
     @GuardedBy("this")
     protected synchronized Connection.Stream getStream(final int index) {
-        return streams.get(index);
+        return streams.get(multiplexed
+                ? 0
+                : index);
     }
 
     /**
@@ -827,6 +1128,61 @@ abstract class Connection implements Comparable<Connection> {
         return streams.get(0).remoteServerSocketAddress;
     }
 
+    /**
+     * Returns the highest version of the {@link WireProtocol} advertised by
+     * the remote end during connection setup. This implementation returns
+     * {@link WireProtocol#SERIALIZATION}.
+     * 
+     * @return the highest version of the wire protocol supported by the remote
+     *         end.
+     */
+    int getRemoteWireVersion() {
+        return WireProtocol.SERIALIZATION;
+    }
+
+    /**
+     * Switches all streams from Java serialization to a given version of the
+     * binary {@link WireProtocol}. Must only be called while no messages are
+     * being exchanged (i.e., at the end of connection setup). Does nothing if
+     * {@code version == }{@link WireProtocol#SERIALIZATION}.
+     * 
+     * @param version
+     *            The negotiated version of the wire protocol.
+     * @throws IllegalArgumentException
+     *             if {@code version} isn't supported.
+     * @throws IllegalStateException
+     *             if this instance isn't ready.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    synchronized void useWireProtocol(final int version) throws IOException {
+        if (version < WireProtocol.SERIALIZATION
+                || version > WireProtocol.VERSION) {
+            throw new IllegalArgumentException("Unsupported version: "
+                    + version);
+        }
+        if (!isReady()) {
+            throw new IllegalStateException();
+        }
+        if (version != WireProtocol.SERIALIZATION) {
+            for (final Stream stream : streams) {
+                stream.useWireProtocol();
+            }
+        }
+        wireVersion = version;
+    }
+
+    /**
+     * Returns the version of the {@link WireProtocol} in use.
+     * 
+     * @return the version of the wire protocol in use.
+     */
+    @GuardedBy("this")
+    synchronized int getWireVersion() {
+        return wireVersion;
+    }
+
     /**
      * Closes all streams.
      */
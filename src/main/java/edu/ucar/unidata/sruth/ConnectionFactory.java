@@ -8,11 +8,15 @@ package edu.ucar.unidata.sruth;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.Collections;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import net.jcip.annotations.ThreadSafe;
 
+import org.slf4j.Logger;
+
 /**
  * Factory for creating {@link Connection}s.
  * 
@@ -22,10 +26,20 @@ import net.jcip.annotations.ThreadSafe;
  */
 @ThreadSafe
 final class ConnectionFactory {
+    /**
+     * The logging service.
+     */
+    private static final Logger                     logger                 = Util.getLogger();
     /**
      * The set of incomplete, not-yet-ready connections.
      */
-    final ConcurrentMap<Object, ConnectionToClient> connections = new ConcurrentHashMap<Object, ConnectionToClient>();
+    final ConcurrentMap<Object, ConnectionToClient> connections            = new ConcurrentHashMap<Object, ConnectionToClient>();
+    /**
+     * The addresses of remote servers that didn't accept a multiplexed
+     * connection.
+     */
+    private static final Set<InetSocketAddress>     nonMultiplexingServers = Collections
+                                                                                   .newSetFromMap(new ConcurrentHashMap<InetSocketAddress, Boolean>());
 
     /**
      * The address of the local server.
@@ -50,7 +64,10 @@ final class ConnectionFactory {
     }
 
     /**
-     * Returns a {@link ConnectionToServer}.
+     * Returns a {@link ConnectionToServer}. The streams of the connection are
+     * multiplexed over a single socket if that's enabled by the user-preference
+     * {@value Connection#MULTIPLEXED_KEY} and the remote server hasn't
+     * previously refused a multiplexed connection.
      * <p>
      * This method is potentially lengthy.
      * 
@@ -63,7 +80,24 @@ final class ConnectionFactory {
      */
     ConnectionToServer getInstance(final InetSocketAddress remoteServer)
             throws IOException {
-        return new ConnectionToServer(localServer, remoteServer);
+        final boolean multiplexed = Connection.MULTIPLEXED
+                && NioTransport.ENABLED
+                && WireProtocol.LOCAL_VERSION > WireProtocol.SERIALIZATION
+                && !nonMultiplexingServers.contains(remoteServer);
+        return new ConnectionToServer(localServer, remoteServer, multiplexed);
+    }
+
+    /**
+     * Records that a remote server didn't accept a multiplexed connection.
+     * Subsequent connections to the server will use a socket per stream.
+     * 
+     * @param remoteServer
+     *            The address of the remote server.
+     */
+    static void multiplexingFailed(final InetSocketAddress remoteServer) {
+        if (nonMultiplexingServers.add(remoteServer)) {
+            logger.info("Not multiplexing connections to {}", remoteServer);
+        }
     }
 
     /**
@@ -91,6 +125,21 @@ final class ConnectionFactory {
 
         ConnectionToClient connection = new ConnectionToClient(socket);
 
+        if (connection.isMultiplexed()) {
+            /*
+             * A multiplexed connection needs the binary wire protocol and is
+             * serviced by the non-blocking transport.
+             */
+            if (WireProtocol.LOCAL_VERSION == WireProtocol.SERIALIZATION
+                    || connection.getRemoteWireVersion() == WireProtocol.SERIALIZATION
+                    || socket.getChannel() == null) {
+                logger.debug("Refusing multiplexed connection: {}", connection);
+                connection.close();
+                return null;
+            }
+            return connection;
+        }
+
         final ConnectionToClient prevConnection = connections.putIfAbsent(
                 connection.getConnectionId(), connection);
 
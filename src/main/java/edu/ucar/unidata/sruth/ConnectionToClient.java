@@ -68,7 +68,7 @@ final class ConnectionToClient extends Connection {
                             .receiveObject(SO_TIMEOUT);
                     remoteServerSocketAddress = connectionId.getServerAddress();
                     output = new Stream.Output(new ObjectOutputStream(
-                            socket.getOutputStream()));
+                            getSocketOutputStream()));
                 }
                 catch (final ClassNotFoundException e) {
                     input.close();
@@ -101,7 +101,8 @@ final class ConnectionToClient extends Connection {
      */
     ConnectionToClient(final Socket socket) throws IOException {
         super((InetSocketAddress) socket.getLocalSocketAddress());
-        final Stream stream = new ServerSideStream(socket);
+        final ServerSideStream stream = new ServerSideStream(socket);
+        setMultiplexed(stream.connectionId.isMultiplexed());
         add(stream);
     }
 
@@ -116,6 +117,11 @@ final class ConnectionToClient extends Connection {
         return ((ServerSideStream) getStream(0)).connectionId;
     }
 
+    @Override
+    int getRemoteWireVersion() {
+        return ((ServerSideStream) getStream(0)).connectionId.getWireVersion();
+    }
+
     /**
      * Adds the single {@link ServerSideStream} of another instance to this
      * instance.
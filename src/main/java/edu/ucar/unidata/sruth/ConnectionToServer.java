@@ -57,7 +57,7 @@ final class ConnectionToServer extends Connection {
                  * stream first, then the object input stream.
                  */
                 output = new Stream.Output(new ObjectOutputStream(
-                        socket.getOutputStream()));
+                        getSocketOutputStream()));
                 try {
                     /*
                      * Write to the socket the object that uniquely identifies
@@ -86,7 +86,10 @@ final class ConnectionToServer extends Connection {
      * The address of the remote server.
      */
     private final SocketAddress remoteServer;
-    private final Socket[]      sockets = new Socket[STREAM_COUNT];
+    /**
+     * The sockets of this instance.
+     */
+    private final Socket[]      sockets;
 
     /**
      * Constructs from the address of the local server and the address of a
@@ -96,21 +99,26 @@ final class ConnectionToServer extends Connection {
      *            Address of the local server.
      * @param remoteServer
      *            Address of the remote server.
+     * @param multiplexed
+     *            Whether or not all streams should be multiplexed over a
+     *            single socket.
      * @throws NullPointerException
      *             if {@code localServer == null}.
      * @throws NullPointerException
      *             if {@code remoteServer == null}.
      */
     ConnectionToServer(final InetSocketAddress localServer,
-            final InetSocketAddress remoteServer) {
+            final InetSocketAddress remoteServer, final boolean multiplexed) {
         super(localServer);
         if (remoteServer == null) {
             throw new NullPointerException();
         }
         this.remoteServer = remoteServer;
-        connectionId = new ConnectionId(localServer);
-        for (int i = 0; i < STREAM_COUNT; i++) {
-            sockets[i] = new Socket();
+        connectionId = new ConnectionId(localServer, multiplexed);
+        setMultiplexed(multiplexed);
+        sockets = new Socket[getSocketCount()];
+        for (int i = 0; i < sockets.length; i++) {
+            sockets[i] = newSocket();
         }
     }
 
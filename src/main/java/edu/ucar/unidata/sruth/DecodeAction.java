@@ -29,11 +29,15 @@ public final class DecodeAction extends Action {
     /**
      * The logger for this class.
      */
-    private static Logger  logger = Util.getLogger();
+    private static Logger    logger = Util.getLogger();
     /**
      * The decoder command.
      */
-    private final String[] command;
+    private final String[]   command;
+    /**
+     * The arguments of the decoder command as templates.
+     */
+    private final Template[] templates;
 
     /**
      * Constructs from the decoder command.
@@ -48,6 +52,7 @@ public final class DecodeAction extends Action {
      */
     public DecodeAction(final String[] command) {
         this.command = command.clone();
+        templates = compile(this.command);
     }
 
     /**
@@ -63,16 +68,33 @@ public final class DecodeAction extends Action {
      */
     public DecodeAction(final List<String> command) {
         this.command = command.toArray(new String[command.size()]);
+        templates = compile(this.command);
+    }
+
+    /**
+     * Compiles the arguments of a command into templates.
+     * 
+     * @param command
+     *            The arguments of the command.
+     * @return The corresponding templates.
+     * @throws NullPointerException
+     *             if an argument is {@code null}.
+     */
+    private static Template[] compile(final String[] command) {
+        final Template[] templates = new Template[command.length];
+        for (int i = 0; i < command.length; i++) {
+            templates[i] = new Template(command[i]);
+        }
+        return templates;
     }
 
     @Override
     protected void execute(final Matcher matcher, final DataProduct dataProduct)
             throws IOException, InterruptedException {
         assert dataProduct.matches(matcher.pattern());
-        final Replacer replacer = getReplacer(matcher);
-        final String[] cmd = command.clone();
+        final String[] cmd = new String[templates.length];
         for (int argIndex = 0; argIndex < cmd.length; argIndex++) {
-            cmd[argIndex] = replacer.replace(cmd[argIndex]);
+            cmd[argIndex] = templates[argIndex].expand(matcher);
         }
         decode(dataProduct, cmd);
     }
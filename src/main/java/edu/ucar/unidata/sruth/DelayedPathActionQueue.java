@@ -7,7 +7,16 @@ package edu.ucar.unidata.sruth;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.prefs.Preferences;
 
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
@@ -43,10 +52,22 @@ final class DelayedPathActionQueue {
      * The logger for this class.
      */
     private static Logger                       logger         = Util.getLogger();
+    /**
+     * The name of the worker-count user-preference ({@value} ).
+     */
+    private static final String                 WORKER_COUNT_KEY     = "expiry worker count";
+    /**
+     * The default value of the worker-count user-preference ({@value} ).
+     */
+    private static final int                    WORKER_COUNT_DEFAULT = 4;
+    /**
+     * The number of threads that act upon a batch of due pathnames.
+     */
+    static final int                            WORKER_COUNT;
     /**
      * The pathname/time-delay queue.
      */
-    private final PathDelayQueue                queue;
+    private final TimedPathQueue                queue;
     /**
      * The root-directory.
      */
@@ -78,10 +99,26 @@ final class DelayedPathActionQueue {
      */
     @GuardedBy("this")
     private long                                actedUponCount = 0;
+    /**
+     * The threads that act upon a batch of due pathnames.
+     */
+    private final ExecutorService               workers;
+
+    static {
+        final Preferences prefs = Preferences
+                .userNodeForPackage(DelayedPathActionQueue.class);
+        WORKER_COUNT = prefs.getInt(WORKER_COUNT_KEY, WORKER_COUNT_DEFAULT);
+        if (WORKER_COUNT <= 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + WORKER_COUNT_KEY + "\"=" + WORKER_COUNT);
+        }
+    }
 
     /**
      * Constructs from the root-directory and the pathname/time-delay queue.
-     * Starts running in a new thread.
+     * Starts running in a new thread. Due pathnames are acted upon by
+     * {@value #WORKER_COUNT_KEY} (default {@value #WORKER_COUNT_DEFAULT})
+     * threads.
      * 
      * @param rootDir
      *            The root-directory.
@@ -93,7 +130,7 @@ final class DelayedPathActionQueue {
      *             if {@code rootDir == null || queue == null || action == null}
      *             .
      */
-    DelayedPathActionQueue(final Path rootDir, final PathDelayQueue queue,
+    DelayedPathActionQueue(final Path rootDir, final TimedPathQueue queue,
             final DelayedPathActionQueue.Action action) {
         if (rootDir == null || queue == null || action == null) {
             throw new NullPointerException();
@@ -101,8 +138,22 @@ final class DelayedPathActionQueue {
         this.rootDir = rootDir;
         this.queue = queue;
         this.action = action;
-        thread = new Thread("DelayedPathActionQueue-"
-                + threadIndex.getAndIncrement()) {
+        final String name = "DelayedPathActionQueue-"
+                + threadIndex.getAndIncrement();
+        workers = Executors.newFixedThreadPool(WORKER_COUNT,
+                new ThreadFactory() {
+                    private int index;
+
+                    @Override
+                    public synchronized Thread newThread(
+                            final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, name
+                                + "-worker-" + index++);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        thread = new Thread(name) {
             @Override
             public void run() {
                 try {
@@ -119,6 +170,7 @@ final class DelayedPathActionQueue {
                     }
                 }
                 finally {
+                    workers.shutdownNow();
                     try {
                         queue.close();
                     }
@@ -138,11 +190,11 @@ final class DelayedPathActionQueue {
 
     /**
      * Executes this instance. Doesn't return. The following actions are
-     * repeatedly executed: 1) the head of the queue is retrieved (but not
-     * removed); 2) the associated pathname is acted upon; and 3) the associated
-     * entry is removed from the queue. Thus, the queue might contain an already
-     * acted-upon entry if, for example, it is implemented using a persistent
-     * file and a power failure occurs.
+     * repeatedly executed: 1) the next batch of due pathnames is retrieved (but
+     * not removed) from the queue; 2) the pathnames are acted upon in parallel;
+     * and 3) the batch is removed from the queue. Thus, the queue might contain
+     * an already acted-upon entry if, for example, it is implemented using a
+     * persistent file and a power failure occurs.
      * <p>
      * The ancestor directories of an acted-upon pathname are deleted when they
      * become empty.
@@ -154,16 +206,65 @@ final class DelayedPathActionQueue {
      */
     private void run() throws InterruptedException, IOException {
         for (;;) {
-            final Path path = queue.take();
-            action.act(path);
+            final List<Path> paths = queue.awaitDue();
+            if (paths.size() == 1) {
+                action.act(paths.get(0));
+            }
+            else {
+                actUpon(paths);
+            }
+            queue.removeDue();
             synchronized (this) {
-                actedUponCount++;
-                pendingCount--;
+                actedUponCount += paths.size();
+                pendingCount -= paths.size();
                 notifyAll();
             }
         }
     }
 
+    /**
+     * Acts upon pathnames in parallel.
+     * 
+     * @param paths
+     *            The pathnames to be acted upon.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private void actUpon(final List<Path> paths) throws InterruptedException,
+            IOException {
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(
+                paths.size());
+        for (final Path path : paths) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    action.act(path);
+                    return null;
+                }
+            });
+        }
+        IOException exception = null;
+        for (final Future<Void> future : workers.invokeAll(tasks)) {
+            try {
+                future.get();
+            }
+            catch (final ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (!(cause instanceof IOException)) {
+                    throw Util.launderThrowable(cause);
+                }
+                if (exception == null) {
+                    exception = (IOException) cause;
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
     /**
      * Accepts a pathname for acting upon after a time-delay. If the appropriate
      * time is not in the future, then the file is immediately acted-upon.
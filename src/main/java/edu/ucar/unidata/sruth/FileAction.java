@@ -5,42 +5,133 @@
  */
 package edu.ucar.unidata.sruth;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
 
 import org.slf4j.Logger;
 
 /**
  * Files a data-product.
- * 
- * Instances are thread-compatible but not thread-safe.
- * 
+ * <p>
+ * By default, the data-product is copied into the destination file. A
+ * data-product can instead be hard-linked or -- on file-systems that support
+ * it -- reflinked (i.e., cloned copy-on-write) into the destination, which
+ * avoids writing the data a second time. If the link or clone can't be made
+ * (e.g., because the destination is on a different file-system), the
+ * data-product is copied. A hard-linked destination shares its contents with
+ * the archive and mustn't be modified in place.
+ * <p>
+ * Optionally, the destination is created atomically: the data-product is
+ * filed under a temporary name in the destination's directory and then renamed
+ * so that consumers never see a partial file.
+ * <p>
+ * Instances are thread-safe.
+ *
  * @author Steven R. Emmerson
  */
-@NotThreadSafe
+@ThreadSafe
 public final class FileAction extends Action {
+    /**
+     * How a data-product is filed.
+     *
+     * @author Steven R. Emmerson
+     */
+    public enum Mode {
+        /**
+         * Copy the data-product.
+         */
+        COPY,
+        /**
+         * Hard-link the data-product, copying it if that's not possible.
+         */
+        LINK,
+        /**
+         * Clone the data-product copy-on-write, copying it if that's not
+         * possible.
+         */
+        REFLINK
+    }
+
+    /**
+     * The outcome of an attempt to clone a file.
+     *
+     * @author Steven R. Emmerson
+     */
+    private enum CloneStatus {
+        /**
+         * The file was cloned.
+         */
+        CLONED,
+        /**
+         * The destination file-system can't clone the file (e.g., the
+         * operation isn't supported or the file is on a different device).
+         * Further attempts would also fail.
+         */
+        UNSUPPORTED,
+        /**
+         * The file wasn't cloned for some other reason (e.g., a missing file
+         * or a transient error). Further attempts might succeed.
+         */
+        FAILED
+    }
+
     /**
      * Pathname of the destination file. May contain references to capturing
      * groups.
      */
-    private final String        path;
+    private final Template                path;
+    /**
+     * How data-products are filed.
+     */
+    private final Mode                    mode;
+    /**
+     * Whether or not destination files are created atomically.
+     */
+    private final boolean                 atomic;
     /**
      * The logger.
      */
-    private static final Logger logger = Util.getLogger();
+    private static final Logger           logger        = Util.getLogger();
+    /**
+     * The messages of {@code cp(1)} that indicate that the destination
+     * file-system can't clone files.
+     */
+    private static final String[]         UNSUPPORTED_MESSAGES = {
+            "Operation not supported", "Invalid cross-device link",
+            "Inappropriate ioctl for device", "unrecognized option",
+            "illegal option", "invalid option"                };
+    /**
+     * The file-systems on which reflinking isn't possible.
+     */
+    private static final Set<FileStore>   noReflink     = Collections
+                                                                .newSetFromMap(new ConcurrentHashMap<FileStore, Boolean>());
+    /**
+     * The number of temporary files created. Used to make their names unique.
+     */
+    private static final AtomicLong       tempCount     = new AtomicLong();
 
     /**
-     * Constructs from the pathname of the destination file.
-     * 
+     * Constructs from the pathname of the destination file. Data-products will
+     * be copied non-atomically.
+     *
      * @param path
      *            Pathname of the destination file. May contain references to
      *            the subsequences of capturing groups matched by
@@ -50,39 +141,190 @@ public final class FileAction extends Action {
      *             if {@code path == null}.
      */
     public FileAction(final String path) {
-        if (path == null) {
+        this(path, Mode.COPY, false);
+    }
+
+    /**
+     * Constructs.
+     *
+     * @param path
+     *            Pathname of the destination file. May contain references to
+     *            the subsequences of capturing groups matched by
+     *            {@link DataProduct#matcher(Pattern)} of the form "$i", where
+     *            "i" is the i-th capturing group.
+     * @param mode
+     *            How data-products are filed.
+     * @param atomic
+     *            Whether or not destination files are created atomically.
+     * @throws NullPointerException
+     *             if {@code path == null || mode == null}.
+     */
+    public FileAction(final String path, final Mode mode, final boolean atomic) {
+        if (mode == null) {
             throw new NullPointerException();
         }
-        this.path = path;
+        this.path = new Template(path);
+        this.mode = mode;
+        this.atomic = atomic;
     }
 
     @Override
     protected void execute(final Matcher matcher, final DataProduct dataProduct)
-            throws IOException {
+            throws IOException, InterruptedException {
         assert dataProduct.matches(matcher.pattern());
-        final Replacer replacer = getReplacer(matcher);
-        final String pathname = replacer.replace(path);
-        final Path destPath = Paths.get(pathname);
+        final Path destPath = Paths.get(path.expand(matcher));
+        Files.createDirectories(destPath.getParent());
+        if (!atomic) {
+            file(dataProduct, destPath);
+        }
+        else {
+            final Path tmpPath = destPath.resolveSibling("."
+                    + destPath.getFileName() + "."
+                    + tempCount.incrementAndGet() + ".tmp");
+            file(dataProduct, tmpPath);
+            try {
+                try {
+                    Files.move(tmpPath, destPath,
+                            StandardCopyOption.ATOMIC_MOVE,
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+                catch (final AtomicMoveNotSupportedException e) {
+                    Files.move(tmpPath, destPath,
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            catch (final IOException e) {
+                Files.deleteIfExists(tmpPath);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Files a data-product according to the mode of this instance.
+     *
+     * @param dataProduct
+     *            The data-product to be filed.
+     * @param destPath
+     *            The pathname of the destination file. An existing file is
+     *            replaced.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     * @throws IOException
+     *             if an I/O error occurs. The destination file will be deleted
+     *             if possible.
+     */
+    private void file(final DataProduct dataProduct, final Path destPath)
+            throws IOException, InterruptedException {
+        final Path srcPath = dataProduct.getAbsolutePath().toPath();
+        if (mode == Mode.LINK) {
+            Files.deleteIfExists(destPath);
+            try {
+                Files.createLink(destPath, srcPath);
+                logger.info("Linked {}", destPath);
+                return;
+            }
+            catch (final UnsupportedOperationException e) {
+                logger.debug("Can't link {}: {}", destPath, e.toString());
+            }
+            catch (final FileSystemException e) {
+                // e.g., "Invalid cross-device link"
+                logger.debug("Can't link {}: {}", destPath, e.toString());
+            }
+        }
+        else if (mode == Mode.REFLINK) {
+            final FileStore store = Files.getFileStore(destPath.getParent());
+            if (!noReflink.contains(store)) {
+                final CloneStatus status = reflink(srcPath, destPath);
+                if (status == CloneStatus.CLONED) {
+                    logger.info("Cloned {}", destPath);
+                    return;
+                }
+                if (status == CloneStatus.UNSUPPORTED) {
+                    noReflink.add(store);
+                    logger.debug("Can't clone files on {}", store);
+                }
+            }
+        }
         write(dataProduct, destPath);
     }
 
+    /**
+     * Clones a file copy-on-write. The JDK has no interface for this, so the
+     * {@code cp(1)} utility is used. A failure is deemed to be a limitation of
+     * the file-system only if the utility can't be executed or its diagnostic
+     * says so.
+     *
+     * @param srcPath
+     *            The pathname of the file to be cloned.
+     * @param destPath
+     *            The pathname of the clone. An existing file is replaced.
+     * @return The outcome of the attempt.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    private static CloneStatus reflink(final Path srcPath, final Path destPath)
+            throws InterruptedException {
+        final ProcessBuilder builder = new ProcessBuilder("cp",
+                "--reflink=always", srcPath.toString(), destPath.toString());
+        builder.environment().put("LC_ALL", "C");
+        builder.redirectErrorStream(true);
+        final Process process;
+        try {
+            process = builder.start();
+        }
+        catch (final IOException e) {
+            logger.debug("Couldn't execute cp(1): {}", e.toString());
+            return CloneStatus.UNSUPPORTED;
+        }
+        try {
+            process.getOutputStream().close();
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final byte[] buf = new byte[512];
+            for (int n; (n = process.getInputStream().read(buf)) >= 0;) {
+                if (output.size() < 4096) {
+                    output.write(buf, 0, n);
+                }
+            }
+            if (process.waitFor() == 0) {
+                return CloneStatus.CLONED;
+            }
+            final String message = output.toString().trim();
+            logger.debug("Couldn't clone {}: {}", destPath, message);
+            for (final String unsupported : UNSUPPORTED_MESSAGES) {
+                if (message.contains(unsupported)) {
+                    return CloneStatus.UNSUPPORTED;
+                }
+            }
+            return CloneStatus.FAILED;
+        }
+        catch (final IOException e) {
+            logger.debug("Couldn't clone {}: {}", destPath, e.toString());
+            return CloneStatus.FAILED;
+        }
+        finally {
+            process.destroy();
+        }
+    }
+
     /**
      * Writes a data-product to a file.
-     * 
+     *
      * @param dataProduct
      *            The data-product to be written to a file.
      * @param destPath
      *            The pathname of the file into which to write the data-product.
+     *            An existing file is replaced.
      * @throws IOException
      *             if an I/O error occurs. The destination file will be deleted
      *             if possible.
      */
     private void write(final DataProduct dataProduct, final Path destPath)
             throws IOException {
-        Files.createDirectories(destPath.getParent());
         try {
             final FileChannel outChannel = FileChannel.open(destPath,
-                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
             try {
                 final SeekableByteChannel inChannel = dataProduct
                         .getReadonlyChannel();
@@ -110,11 +352,12 @@ public final class FileAction extends Action {
 
     /*
      * (non-Javadoc)
-     * 
+     *
      * @see java.lang.Object#toString()
      */
     @Override
     public String toString() {
-        return "FileAction [path=" + path + "]";
+        return "FileAction [path=" + path + ", mode=" + mode + ", atomic="
+                + atomic + "]";
     }
 }
@@ -61,6 +61,31 @@ final class FilePieceSpecs extends FilePieceSpecSet {
         }
     }
 
+    /**
+     * Constructs from information on a file and the indexes of the specified
+     * pieces. The bit-set is not copied.
+     *
+     * @param fileInfo
+     *            Information on the file.
+     * @param indexes
+     *            The indexes of the specified pieces.
+     * @throws IllegalArgumentException
+     *             if the size of the bit-set isn't the number of pieces in the
+     *             file.
+     * @throws NullPointerException
+     *             if {@code fileInfo == null}.
+     */
+    FilePieceSpecs(final FileInfo fileInfo, final FiniteBitSet indexes) {
+        super(fileInfo);
+        if (indexes.getSize() != fileInfo.getPieceCount()) {
+            throw new IllegalArgumentException("fileInfo=" + fileInfo
+                    + ", indexes=" + indexes);
+        }
+        synchronized (this) {
+            this.indexes = indexes;
+        }
+    }
+
     @Override
     public PieceSpecSetIface merge(final PieceSpecSetIface specs) {
         return specs.merge(this);
@@ -155,7 +180,7 @@ final class FilePieceSpecs extends FilePieceSpecSet {
     @Override
     public synchronized PieceSpecSetIface remove(final PieceSpec spec) {
         if (fileInfo.equals(spec.fileInfo)) {
-            indexes.clearBit(spec.getIndex());
+            indexes = indexes.clearBit(spec.getIndex());
         }
         return this;
     }
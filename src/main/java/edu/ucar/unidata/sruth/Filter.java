@@ -30,6 +30,10 @@ public class Filter implements Comparable<Filter>, Message {
      * The serial version ID.
      */
     private static final long        serialVersionUID = 1L;
+    /**
+     * The wildcard component, which matches any name.
+     */
+    static final String              WILDCARD         = "*";
     /**
      * The filter that matches everything.
      */
@@ -225,6 +229,7 @@ public class Filter implements Comparable<Filter>, Message {
                     buf.append(ArchivePath.SEPARATOR);
                 }
                 buf.append(component);
+                components[i] = component.intern();
             }
             this.containsMeta = containsMeta;
             this.glob = buf.toString();
@@ -242,12 +247,13 @@ public class Filter implements Comparable<Filter>, Message {
      *             if {@code path == null}.
      */
     boolean matches(final ArchivePath archivePath) {
-        if (archivePath.getNameCount() < components.length) {
+        final String[] names = archivePath.getNames();
+        if (names.length < components.length) {
             return false;
         }
         for (int i = 0; i < components.length; i++) {
-            if (!components[i].equals("*")
-                    && !components[i].equals(archivePath.getName(i).toString())) {
+            // The strings are interned
+            if (components[i] != WILDCARD && components[i] != names[i]) {
                 return false;
             }
         }
@@ -266,17 +272,45 @@ public class Filter implements Comparable<Filter>, Message {
         if (containsMeta) {
             return false;
         }
-        if (archivePath.getNameCount() != components.length) {
+        final String[] names = archivePath.getNames();
+        if (names.length != components.length) {
             return false;
         }
         for (int i = 0; i < components.length; i++) {
-            if (!components[i].equals(archivePath.getName(i).toString())) {
+            // The strings are interned
+            if (components[i] != names[i]) {
                 return false;
             }
         }
         return true;
     }
 
+    /**
+     * Returns the number of components of the glob pattern.
+     * 
+     * @return The number of components of the glob pattern.
+     * @throws NullPointerException
+     *             if this instance is {@link #NOTHING}.
+     */
+    int getComponentCount() {
+        return components.length;
+    }
+
+    /**
+     * Returns a component of the glob pattern.
+     * 
+     * @param i
+     *            The index of the component.
+     * @return The component. Either a name or {@link #WILDCARD}.
+     * @throws IndexOutOfBoundsException
+     *             if {@code i} is invalid.
+     * @throws NullPointerException
+     *             if this instance is {@link #NOTHING}.
+     */
+    String getComponent(final int i) {
+        return components[i];
+    }
+
     /**
      * Indicates if this instance includes another instance. Instance A includes
      * instance B if {@code B.matches(path)} implies {@code A.matches(path)} for
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * A compiled matcher for a set of filters. The filters are merged into a trie
+ * of their name components so that the filters that match a pathname are
+ * found in one walk down the pathname -- rather than by testing every filter
+ * -- without allocating objects or acquiring a lock. A wildcard component
+ * ("*") is a separate branch at its level.
+ * <p>
+ * Each filter has an associated value, which is returned by
+ * {@link #getMatches(ArchivePath, Collection)} when the filter matches.
+ * <p>
+ * Instances are immutable.
+ *
+ * @param <T>
+ *            The type of the values associated with the filters.
+ * @author Steven R. Emmerson
+ */
+@Immutable
+final class FilterTrie<T> {
+    /**
+     * A node of the trie.
+     * <p>
+     * Instances are effectively immutable once the trie has been constructed.
+     *
+     * @param <T>
+     *            The type of the values associated with the filters.
+     * @author Steven R. Emmerson
+     */
+    private static final class Node<T> {
+        /**
+         * The child nodes of literal name components.
+         */
+        final Map<String, Node<T>> children = new HashMap<String, Node<T>>(4);
+        /**
+         * The child node of the wildcard component or {@code null}.
+         */
+        Node<T>                    wildcard;
+        /**
+         * The values of the filters that end at this node.
+         */
+        final List<T>              values   = new ArrayList<T>(1);
+
+        /**
+         * Returns the child node for a component of a filter, creating it if
+         * necessary.
+         *
+         * @param component
+         *            The component.
+         * @return The child node.
+         */
+        Node<T> getChild(final String component) {
+            if (Filter.WILDCARD.equals(component)) {
+                if (wildcard == null) {
+                    wildcard = new Node<T>();
+                }
+                return wildcard;
+            }
+            Node<T> child = children.get(component);
+            if (child == null) {
+                child = new Node<T>();
+                children.put(component, child);
+            }
+            return child;
+        }
+
+        /**
+         * Indicates if a filter that ends at or below this node matches the
+         * remaining names of a pathname.
+         *
+         * @param names
+         *            The names of the pathname.
+         * @param depth
+         *            The index of the name that corresponds to this node.
+         * @return {@code true} if and only if a filter matches.
+         */
+        boolean matches(final String[] names, final int depth) {
+            if (!values.isEmpty()) {
+                return true;
+            }
+            if (depth == names.length) {
+                return false;
+            }
+            final Node<T> child = children.get(names[depth]);
+            if (child != null && child.matches(names, depth + 1)) {
+                return true;
+            }
+            return wildcard != null && wildcard.matches(names, depth + 1);
+        }
+
+        /**
+         * Adds the values of the filters that end at or below this node and
+         * that match the remaining names of a pathname.
+         *
+         * @param names
+         *            The names of the pathname.
+         * @param depth
+         *            The index of the name that corresponds to this node.
+         * @param matches
+         *            The values of the matching filters.
+         */
+        void getMatches(final String[] names, final int depth,
+                final Collection<? super T> matches) {
+            matches.addAll(values);
+            if (depth < names.length) {
+                final Node<T> child = children.get(names[depth]);
+                if (child != null) {
+                    child.getMatches(names, depth + 1, matches);
+                }
+                if (wildcard != null) {
+                    wildcard.getMatches(names, depth + 1, matches);
+                }
+            }
+        }
+    }
+
+    /**
+     * The root of the trie.
+     */
+    private final Node<T> root = new Node<T>();
+    /**
+     * Whether or not this instance contains no filters.
+     */
+    private final boolean isEmpty;
+
+    /**
+     * Constructs from filters and their associated values.
+     * {@link Filter#NOTHING} is ignored.
+     *
+     * @param entries
+     *            The filters and their associated values.
+     * @throws NullPointerException
+     *             if {@code entries == null}.
+     */
+    FilterTrie(final Map<Filter, ? extends T> entries) {
+        boolean isEmpty = true;
+        for (final Map.Entry<Filter, ? extends T> entry : entries.entrySet()) {
+            final Filter filter = entry.getKey();
+            if (filter.equals(Filter.NOTHING)) {
+                continue;
+            }
+            Node<T> node = root;
+            for (int i = 0; i < filter.getComponentCount(); i++) {
+                node = node.getChild(filter.getComponent(i));
+            }
+            node.values.add(entry.getValue());
+            isEmpty = false;
+        }
+        this.isEmpty = isEmpty;
+    }
+
+    /**
+     * Indicates if this instance contains no filters, in which case it matches
+     * nothing.
+     *
+     * @return {@code true} if and only if this instance contains no filters.
+     */
+    boolean isEmpty() {
+        return isEmpty;
+    }
+
+    /**
+     * Indicates if any filter of this instance matches a pathname.
+     *
+     * @param archivePath
+     *            The pathname.
+     * @return {@code true} if and only if a filter matches the pathname.
+     * @throws NullPointerException
+     *             if {@code archivePath == null}.
+     */
+    boolean matches(final ArchivePath archivePath) {
+        return root.matches(archivePath.getNames(), 0);
+    }
+
+    /**
+     * Adds the values of the filters that match a pathname to a collection.
+     *
+     * @param archivePath
+     *            The pathname.
+     * @param matches
+     *            The collection to which to add the values of the matching
+     *            filters.
+     * @throws NullPointerException
+     *             if {@code archivePath == null || matches == null}.
+     */
+    void getMatches(final ArchivePath archivePath,
+            final Collection<? super T> matches) {
+        root.getMatches(archivePath.getNames(), 0, matches);
+    }
+}
@@ -18,6 +18,13 @@ final class InvalidMessageException extends Exception {
      */
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Constructs from a message-string.
+     */
+    InvalidMessageException(final String msg) {
+        super(msg);
+    }
+
     /**
      * Constructs from a message-string and an underlying cause.
      */
@@ -6,6 +6,7 @@
 package edu.ucar.unidata.sruth;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
@@ -13,19 +14,44 @@ import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.FileLock;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.Immutable;
 import net.jcip.annotations.ThreadSafe;
 
+import org.slf4j.Logger;
+
 /**
  * A file that implements a persistent minimum-heap (i.e., elements are stored
  * in order of increasing value).
  * <p>
+ * By default, every modification of the heap is forced to the file before the
+ * modifying method returns. In group-commit mode, the heap is kept in memory
+ * and modifications are appended to a write-ahead log (the file with the
+ * additional extension ".log"), which is forced to disk when a given number of
+ * modifications have accumulated or a given amount of time has passed since
+ * the first unforced modification -- whichever comes first. From time to time,
+ * and when the instance is closed, the heap is written to a new file that
+ * atomically replaces the old one and the log is emptied. When the heap-file is
+ * opened in group-commit mode, the log is replayed. Consequently, a power
+ * failure can lose, at most, the modifications of the last commit-interval.
+ * <p>
  * Instances are thread-safe.
  * 
  * @author Steven R. Emmerson
@@ -453,7 +479,7 @@ final class MinHeapFile<E extends MinHeapFile.Element> implements Iterable<E> {
             final FileLock lock = ioHandler.lock(offsetToElement(index),
                     header.getEltSize(), true);
             try {
-                final E instance = type.newInstance();
+                final E instance = newInstance(type);
                 instance.read(getEltBuffer(index));
                 return instance;
             }
@@ -552,31 +578,119 @@ final class MinHeapFile<E extends MinHeapFile.Element> implements Iterable<E> {
         public abstract void read(ByteBuffer in) throws IOException;
     }
 
+    /**
+     * The logger for this package.
+     */
+    private static final Logger                   logger             = Util.getLogger();
+    /**
+     * The type of a log-record that adds an element.
+     */
+    private static final byte                     ADD                = 1;
+    /**
+     * The type of a log-record that removes an element.
+     */
+    private static final byte                     REMOVE             = 2;
+    /**
+     * The size of the header of a log-record: the type (1 byte) and the CRC-32
+     * checksum of the element (4 bytes).
+     */
+    private static final int                      RECORD_HEADER_SIZE = 5;
+    /**
+     * The minimum number of log-records before the heap is written to the
+     * heap-file.
+     */
+    private static final int                      CHECKPOINT_MIN     = 4096;
+    /**
+     * The executor that commits the logs of instances in group-commit mode.
+     */
+    private static final ScheduledExecutorService committer;
+
+    static {
+        committer = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "MinHeapFile-committer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
     /**
      * The type of an element.
      */
-    private final Class<E>  type;
+    private final Class<E>                        type;
     /**
-     * The header of the heap-file.
+     * The size of an element in bytes.
+     */
+    private final int                             eltSize;
+    /**
+     * The header of the heap-file. {@code null} in group-commit mode.
      */
-    private final Header    header;
+    private final Header                          header;
     /**
-     * The I/O handler for the file.
+     * The I/O handler for the file. {@code null} in group-commit mode.
      */
-    private final IoHandler ioHandler;
+    private final IoHandler                       ioHandler;
     /**
-     * The heap of elements.
+     * The heap of elements. {@code null} in group-commit mode.
      */
-    private final Heap<E>   elements;
+    private final Heap<E>                         elements;
     /**
      * The capacity of this instance in elements.
      */
     @GuardedBy("this")
-    private int             capacity;
+    private int                                   capacity;
+    /**
+     * The pathname of the heap-file.
+     */
+    private final Path                            path;
+    /**
+     * The in-memory heap. {@code null} unless in group-commit mode.
+     */
+    @GuardedBy("this")
+    private final PriorityQueue<E>                queue;
+    /**
+     * The channel to the write-ahead log. {@code null} unless in group-commit
+     * mode.
+     */
+    @GuardedBy("this")
+    private final FileChannel                     logChannel;
+    /**
+     * The log-records that haven't been written to the log.
+     */
+    @GuardedBy("this")
+    private final ByteBuffer                      logBuf;
+    /**
+     * The maximum time, in milliseconds, that a modification can remain
+     * uncommitted.
+     */
+    private final long                            commitInterval;
+    /**
+     * The maximum number of uncommitted modifications.
+     */
+    private final int                             commitCount;
+    /**
+     * The number of uncommitted modifications.
+     */
+    @GuardedBy("this")
+    private int                                   pendingCount;
+    /**
+     * The number of records in the log.
+     */
+    @GuardedBy("this")
+    private int                                   logCount;
+    /**
+     * The scheduled commit or {@code null}.
+     */
+    @GuardedBy("this")
+    private ScheduledFuture<?>                    commitFuture;
 
     /**
      * Constructs from the pathname of the file. The file is created if it
-     * doesn't exist.
+     * doesn't exist. Every modification is forced to the file.
      * 
      * @param path
      *            The pathname of the file.
@@ -597,6 +711,44 @@ final class MinHeapFile<E extends MinHeapFile.Element> implements Iterable<E> {
      */
     MinHeapFile(final Path path, final int eltSize, final Class<E> type)
             throws IOException {
+        this(path, eltSize, type, 0, 1);
+    }
+
+    /**
+     * Constructs from the pathname of the file and the group-commit
+     * parameters. The file is created if it doesn't exist.
+     * 
+     * @param path
+     *            The pathname of the file.
+     * @param eltSize
+     *            The size, in bytes, of an element in the heap-file.
+     * @param type
+     *            The element class. Must have an accessible, nullary
+     *            constructor.
+     * @param commitInterval
+     *            The maximum time, in milliseconds, that a modification can
+     *            remain uncommitted. If non-positive, then every modification
+     *            is forced to the heap-file and {@code commitCount} is
+     *            ignored.
+     * @param commitCount
+     *            The maximum number of uncommitted modifications.
+     * @throws IllegalArgumentException
+     *             if the file exists but was created with a different
+     *             {@code eltSize}.
+     * @throws IllegalArgumentException
+     *             if {@code eltSize <= 0}.
+     * @throws IllegalArgumentException
+     *             if {@code commitInterval > 0 && commitCount <= 0}.
+     * @throws IllegalArgumentException
+     *             if an element can't be created.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws NullPointerException
+     *             if {@code type == null}.
+     */
+    MinHeapFile(final Path path, final int eltSize, final Class<E> type,
+            final long commitInterval, final int commitCount)
+            throws IOException {
         if (eltSize <= 0) {
             throw new IllegalArgumentException(
                     "Non-positive maximum element size: " + eltSize);
@@ -604,16 +756,346 @@ final class MinHeapFile<E extends MinHeapFile.Element> implements Iterable<E> {
         if (type == null) {
             throw new NullPointerException();
         }
+        if (commitInterval > 0 && commitCount <= 0) {
+            throw new IllegalArgumentException("Invalid commit count: "
+                    + commitCount);
+        }
         this.type = type;
-        ioHandler = new IoHandler(path);
-        header = new Header(ioHandler, 0, eltSize);
-        elements = new Heap<E>(ioHandler, header, header.getSize(), type);
-        synchronized (this) {
-            capacity = (ioHandler.size() - header.getSize())
-                    / header.getEltSize();
+        this.eltSize = eltSize;
+        this.path = path;
+        this.commitInterval = commitInterval;
+        this.commitCount = commitCount;
+        final IoHandler io = new IoHandler(path);
+        final Header head = new Header(io, 0, eltSize);
+        final Heap<E> heap = new Heap<E>(io, head, head.getSize(), type);
+        if (commitInterval <= 0) {
+            ioHandler = io;
+            header = head;
+            elements = heap;
+            queue = null;
+            logChannel = null;
+            logBuf = null;
+            synchronized (this) {
+                capacity = (ioHandler.size() - header.getSize())
+                        / header.getEltSize();
+            }
+        }
+        else {
+            final TreeSet<E> set = new TreeSet<E>();
+            try {
+                for (int i = 0; i < head.getEltCount(); i++) {
+                    set.add(heap.getElt(i));
+                }
+            }
+            catch (final InstantiationException e) {
+                throw new IllegalArgumentException("Can't create element: "
+                        + type, e);
+            }
+            catch (final IllegalAccessException e) {
+                throw new IllegalArgumentException("Can't create element: "
+                        + type, e);
+            }
+            finally {
+                io.close();
+            }
+            ioHandler = null;
+            header = null;
+            elements = null;
+            logChannel = FileChannel.open(getLogPath(path),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            logBuf = ByteBuffer.allocate(commitCount
+                    * (RECORD_HEADER_SIZE + eltSize));
+            synchronized (this) {
+                replay(set);
+                queue = new PriorityQueue<E>(Math.max(1, set.size()), null);
+                queue.addAll(set);
+                checkpoint();
+            }
+        }
+    }
+
+    /**
+     * Returns the pathname of the write-ahead log of a heap-file.
+     * 
+     * @param path
+     *            The pathname of the heap-file.
+     * @return The pathname of the write-ahead log of the heap-file.
+     */
+    static Path getLogPath(final Path path) {
+        return path.resolveSibling(path.getFileName() + ".log");
+    }
+
+    /**
+     * Applies the records of the write-ahead log to a set of elements. Because
+     * the log might contain records that are already reflected in the
+     * heap-file, an element is only added if it's absent and only removed if
+     * it's present. Reading stops at the first incomplete or corrupt record.
+     * 
+     * @param set
+     *            The set of elements.
+     * @throws IllegalArgumentException
+     *             if an element can't be created.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void replay(final TreeSet<E> set) throws IOException {
+        final long size = logChannel.size();
+        if (size == 0) {
+            return;
+        }
+        final ByteBuffer buf = ByteBuffer.allocate((int) size);
+        logChannel.read(buf, 0);
+        buf.flip();
+        final byte[] bytes = buf.array();
+        final CRC32 crc = new CRC32();
+        int count = 0;
+        while (buf.remaining() >= RECORD_HEADER_SIZE + eltSize) {
+            final byte recordType = buf.get();
+            final int checksum = buf.getInt();
+            final int start = buf.position();
+            crc.reset();
+            crc.update(bytes, start, eltSize);
+            if ((recordType != ADD && recordType != REMOVE)
+                    || checksum != (int) crc.getValue()) {
+                break;
+            }
+            final ByteBuffer eltBuf = buf.slice();
+            eltBuf.limit(eltSize);
+            final E elt = newElement();
+            elt.read(eltBuf);
+            if (recordType == ADD) {
+                set.add(elt);
+            }
+            else {
+                set.remove(elt);
+            }
+            buf.position(start + eltSize);
+            count++;
+        }
+        logger.debug("Replayed {} records from {}", count, getLogPath(path));
+    }
+
+    /**
+     * Creates an element by means of its class's no-argument constructor.
+     * 
+     * @param type
+     *            The class of the element.
+     * @return A new, uninitialized element.
+     * @throws IllegalAccessException
+     *             if the constructor is inaccessible.
+     * @throws InstantiationException
+     *             if the class has no no-argument constructor, can't be
+     *             instantiated, or its constructor fails.
+     */
+    private static <T> T newInstance(final Class<T> type)
+            throws InstantiationException, IllegalAccessException {
+        try {
+            return type.getDeclaredConstructor().newInstance();
+        }
+        catch (final NoSuchMethodException e) {
+            throw (InstantiationException) new InstantiationException(
+                    type.getName()).initCause(e);
+        }
+        catch (final InvocationTargetException e) {
+            throw (InstantiationException) new InstantiationException(
+                    type.getName()).initCause(e.getCause());
+        }
+    }
+
+    /**
+     * Returns a new, uninitialized element.
+     * 
+     * @return A new, uninitialized element.
+     * @throws IllegalArgumentException
+     *             if an element can't be created.
+     */
+    private E newElement() {
+        try {
+            return newInstance(type);
+        }
+        catch (final InstantiationException e) {
+            throw new IllegalArgumentException("Can't create element: " + type,
+                    e);
+        }
+        catch (final IllegalAccessException e) {
+            throw new IllegalArgumentException("Can't create element: " + type,
+                    e);
+        }
+    }
+
+    /**
+     * Appends a record to the write-ahead log and commits the log if enough
+     * records have accumulated; otherwise, ensures that a commit is scheduled.
+     * 
+     * @param recordType
+     *            The type of the record.
+     * @param elt
+     *            The element.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void log(final byte recordType, final E elt) throws IOException {
+        if (logBuf.remaining() < RECORD_HEADER_SIZE + eltSize) {
+            commit(); // the previous commit failed
+        }
+        final int start = logBuf.position();
+        final byte[] bytes = logBuf.array();
+        logBuf.put(recordType);
+        logBuf.putInt(0);
+        final int eltStart = logBuf.position();
+        Arrays.fill(bytes, eltStart, eltStart + eltSize, (byte) 0);
+        final ByteBuffer eltBuf = logBuf.slice();
+        eltBuf.limit(eltSize);
+        elt.write(eltBuf);
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, eltStart, eltSize);
+        logBuf.putInt(start + 1, (int) crc.getValue());
+        logBuf.position(eltStart + eltSize);
+        if (++pendingCount >= commitCount) {
+            commit();
+        }
+        else if (commitFuture == null) {
+            commitFuture = committer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (MinHeapFile.this) {
+                        commitFuture = null;
+                        if (pendingCount > 0 && logChannel.isOpen()) {
+                            try {
+                                commit();
+                            }
+                            catch (final IOException e) {
+                                logger.error("Couldn't commit " + path, e);
+                            }
+                        }
+                    }
+                }
+            }, commitInterval, TimeUnit.MILLISECONDS);
         }
     }
 
+    /**
+     * Writes the accumulated log-records to the write-ahead log and forces it
+     * to disk. Writes the heap to the heap-file if the log has become large
+     * enough. If the records can't be committed, then they're kept for the
+     * next commit and the log is truncated to its previous size so that a
+     * partially-written record doesn't precede them.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void commit() throws IOException {
+        final int end = logBuf.position();
+        final long logSize = logChannel.position();
+        logBuf.flip();
+        try {
+            while (logBuf.hasRemaining()) {
+                logChannel.write(logBuf);
+            }
+            logChannel.force(false);
+        }
+        catch (final IOException e) {
+            logBuf.limit(logBuf.capacity());
+            logBuf.position(end);
+            try {
+                logChannel.truncate(logSize);
+            }
+            catch (final IOException ignored) {
+            }
+            throw e;
+        }
+        logBuf.clear();
+        logCount += pendingCount;
+        pendingCount = 0;
+        if (logCount >= Math.max(CHECKPOINT_MIN, queue.size())) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Writes the heap to a new heap-file that atomically replaces the old one
+     * and then empties the write-ahead log. The elements are written in sorted
+     * order, which satisfies the heap property.
+     * 
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @SuppressWarnings("unchecked")
+    @GuardedBy("this")
+    private void checkpoint() throws IOException {
+        final Object[] elts = queue.toArray();
+        Arrays.sort(elts);
+        final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        final FileChannel channel = FileChannel.open(tmpPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            final ByteBuffer buf = ByteBuffer.allocate(Header.HEADER_SIZE
+                    + 256 * eltSize);
+            buf.putInt(Header.VERSION);
+            buf.putInt(eltSize);
+            buf.putInt(elts.length);
+            for (final Object elt : elts) {
+                if (buf.remaining() < eltSize) {
+                    write(channel, buf);
+                }
+                final ByteBuffer eltBuf = buf.slice();
+                eltBuf.limit(eltSize);
+                ((E) elt).write(eltBuf);
+                buf.position(buf.position() + eltSize);
+            }
+            write(channel, buf);
+            channel.force(true);
+        }
+        finally {
+            channel.close();
+        }
+        Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        try {
+            // Make the rename durable
+            final FileChannel dir = FileChannel.open(path.toAbsolutePath()
+                    .getParent(), StandardOpenOption.READ);
+            try {
+                dir.force(true);
+            }
+            finally {
+                dir.close();
+            }
+        }
+        catch (final IOException ignored) {
+            // Not supported on all platforms
+        }
+        logChannel.truncate(0);
+        logChannel.position(0);
+        logChannel.force(true);
+        logCount = 0;
+    }
+
+    /**
+     * Writes the contents of a buffer to a channel and clears the buffer.
+     * 
+     * @param channel
+     *            The channel.
+     * @param buf
+     *            The buffer.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static void write(final FileChannel channel, final ByteBuffer buf)
+            throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+        Arrays.fill(buf.array(), (byte) 0);
+    }
+
     /**
      * Adds an element. Does so in a way that a power failure might cause the
      * heap to contain an extra element.
@@ -629,20 +1111,82 @@ final class MinHeapFile<E extends MinHeapFile.Element> implements Iterable<E> {
      */
     synchronized void add(final E elt) throws IOException,
             InstantiationException, IllegalAccessException {
-        int childIndex;
-        int parentIndex;
+        if (queue != null) {
+            queue.add(elt);
+            log(ADD, elt);
+            return;
+        }
         final int eltCount = header.getEltCount();
         ensureCapacity(header.getEltCount() + 1);
-        for (childIndex = eltCount; childIndex > 0; childIndex = parentIndex) {
-            parentIndex = (childIndex - 1) / 2;
+        siftUp(eltCount, elt);
+        header.setEltCount(eltCount + 1);
+    }
+
+    /**
+     * Moves an element from a vacant position towards the root of the heap
+     * until the heap is ordered.
+     * 
+     * @param index
+     *            The index of the vacant position.
+     * @param elt
+     *            The element to be placed.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws IllegalAccessException
+     *             if an element can't be created.
+     * @throws InstantiationException
+     *             if an element can't be created.
+     */
+    private void siftUp(int index, final E elt) throws IOException,
+            InstantiationException, IllegalAccessException {
+        while (index > 0) {
+            final int parentIndex = (index - 1) / 2;
             final E parent = elements.getElt(parentIndex);
             if (parent.compareTo(elt) <= 0) {
                 break;
             }
-            elements.setElt(childIndex, parent);
+            elements.setElt(index, parent);
+            index = parentIndex;
         }
-        elements.setElt(childIndex, elt);
-        header.setEltCount(eltCount + 1);
+        elements.setElt(index, elt);
+    }
+
+    /**
+     * Moves an element from a vacant position towards the leaves of the heap
+     * until the heap is ordered.
+     * 
+     * @param index
+     *            The index of the vacant position.
+     * @param elt
+     *            The element to be placed.
+     * @param eltCount
+     *            The number of elements in the heap, excluding the element to
+     *            be placed.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws IllegalAccessException
+     *             if an element can't be created.
+     * @throws InstantiationException
+     *             if an element can't be created.
+     */
+    private void siftDown(int index, final E elt, final int eltCount)
+            throws IOException, InstantiationException, IllegalAccessException {
+        for (int childIndex = 2 * index + 1; childIndex < eltCount; childIndex = 2 * index + 1) {
+            E child = elements.getElt(childIndex);
+            if ((childIndex + 1 < eltCount)) {
+                final E otherChild = elements.getElt(childIndex + 1);
+                if (child.compareTo(otherChild) > 0) {
+                    child = otherChild;
+                    childIndex++;
+                }
+            }
+            if (child.compareTo(elt) >= 0) {
+                break;
+            }
+            elements.setElt(index, child);
+            index = childIndex;
+        }
+        elements.setElt(index, elt);
     }
 
     /**
@@ -682,6 +1226,9 @@ final class MinHeapFile<E extends MinHeapFile.Element> implements Iterable<E> {
      */
     synchronized E peek() throws ClosedByInterruptException,
             InstantiationException, IllegalAccessException, IOException {
+        if (queue != null) {
+            return queue.peek();
+        }
         return (header.getEltCount() > 0)
                 ? elements.getElt(0)
                 : null;
@@ -705,6 +1252,13 @@ final class MinHeapFile<E extends MinHeapFile.Element> implements Iterable<E> {
      */
     synchronized E remove() throws ClosedChannelException, IOException,
             InstantiationException, IllegalAccessException {
+        if (queue != null) {
+            final E firstElt = queue.poll();
+            if (firstElt != null) {
+                log(REMOVE, firstElt);
+            }
+            return firstElt;
+        }
         E firstElt;
         int eltCount = header.getEltCount();
         if (eltCount <= 0) {
@@ -713,26 +1267,56 @@ final class MinHeapFile<E extends MinHeapFile.Element> implements Iterable<E> {
         else {
             firstElt = elements.getElt(0);
             final E elt = elements.getElt(--eltCount);
-            int parentIndex = 0;
-            for (int childIndex = 1; childIndex < eltCount; childIndex = 2 * parentIndex + 1) {
-                E child = elements.getElt(childIndex);
-                if ((childIndex + 1 < eltCount)) {
-                    final E otherChild = elements.getElt(childIndex + 1);
-                    if (child.compareTo(otherChild) > 0) {
-                        child = otherChild;
-                        childIndex++;
+            siftDown(0, elt, eltCount);
+            header.setEltCount(eltCount);
+        }
+        return firstElt;
+    }
+
+    /**
+     * Removes an arbitrary element, as determined by its {@code equals()}
+     * method. Outside of group-commit mode, the element is found by a linear
+     * search of the file and a power failure might cause the heap to contain a
+     * duplicate element, as with {@link #remove()}.
+     * 
+     * @param elt
+     *            The element to be removed.
+     * @return {@code true} if and only if the element was in the heap.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws IllegalAccessException
+     *             if an element can't be created.
+     * @throws InstantiationException
+     *             if an element can't be created.
+     */
+    synchronized boolean remove(final E elt) throws IOException,
+            InstantiationException, IllegalAccessException {
+        if (queue != null) {
+            if (!queue.remove(elt)) {
+                return false;
+            }
+            log(REMOVE, elt);
+            return true;
+        }
+        int eltCount = header.getEltCount();
+        for (int index = 0; index < eltCount; index++) {
+            if (elements.getElt(index).equals(elt)) {
+                final E last = elements.getElt(--eltCount);
+                if (index < eltCount) {
+                    if (index > 0
+                            && elements.getElt((index - 1) / 2)
+                                    .compareTo(last) > 0) {
+                        siftUp(index, last);
+                    }
+                    else {
+                        siftDown(index, last, eltCount);
                     }
                 }
-                if (child.compareTo(elt) >= 0) {
-                    break;
-                }
-                elements.setElt(parentIndex, child);
-                parentIndex = childIndex;
+                header.setEltCount(eltCount);
+                return true;
             }
-            elements.setElt(parentIndex, elt);
-            header.setEltCount(eltCount);
         }
-        return firstElt;
+        return false;
     }
 
     /**
@@ -741,6 +1325,11 @@ final class MinHeapFile<E extends MinHeapFile.Element> implements Iterable<E> {
      * @return The number of elements in this instance.
      */
     int size() {
+        if (queue != null) {
+            synchronized (this) {
+                return queue.size();
+            }
+        }
         return header.getEltCount();
     }
 
@@ -752,11 +1341,41 @@ final class MinHeapFile<E extends MinHeapFile.Element> implements Iterable<E> {
      *             if an I/O error occurs.
      */
     void close() throws IOException {
-        ioHandler.close();
+        if (queue == null) {
+            ioHandler.close();
+            return;
+        }
+        synchronized (this) {
+            if (logChannel.isOpen()) {
+                if (commitFuture != null) {
+                    commitFuture.cancel(false);
+                    commitFuture = null;
+                }
+                try {
+                    if (pendingCount > 0) {
+                        commit();
+                    }
+                    checkpoint();
+                }
+                finally {
+                    logChannel.close();
+                }
+            }
+        }
     }
 
+    /**
+     * Returns an iterator over the elements of this instance in no particular
+     * order. In group-commit mode, the iterator is over a copy of the elements
+     * at the time this method is called.
+     */
     @Override
     public Iterator<E> iterator() {
+        if (queue != null) {
+            synchronized (this) {
+                return new ArrayList<E>(queue).iterator();
+            }
+        }
         return new Iterator<E>() {
             private int index = 0;
 
@@ -794,6 +1413,7 @@ final class MinHeapFile<E extends MinHeapFile.Element> implements Iterable<E> {
     @Override
     public synchronized String toString() {
         return "MinHeapFile [eltCount=" + size() + ", type=" + type
-                + ", eltSize=" + header.getEltSize() + "]";
+                + ", eltSize=" + eltSize + ", commitInterval="
+                + commitInterval + "]";
     }
 }
@@ -0,0 +1,1751 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.prefs.Preferences;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+import edu.ucar.unidata.sruth.Connection.Message;
+
+/**
+ * An event-driven transport for the streams of a {@link Connection} that uses
+ * the binary {@link WireProtocol}. A small, fixed number of I/O threads
+ * multiplex the sockets of all connections by means of {@link Selector}s, and
+ * received messages are processed by a shared, bounded pool of worker
+ * threads. Consequently, the number of threads doesn't grow with the number of
+ * peers.
+ * <p>
+ * Messages are sent from a {@link Source} whenever the socket can accept more
+ * data and received messages are passed to a {@link Sink}. The messages of a
+ * stream are processed one at a time and in order. If the processing of
+ * received messages falls behind, then reading from the socket is suspended.
+ * <p>
+ * If the connection is multiplexed (see {@link Connection#isMultiplexed()}),
+ * then all its streams share one socket and requests and notices are sent
+ * ahead of pieces of data. Each stream of a multiplexed socket is
+ * flow-controlled separately: the receiver grants the sender credit for a
+ * window of bytes and returns credit as it decodes them. A stream whose
+ * receiver falls behind therefore stops only itself, and the socket is
+ * always read so that the other streams -- in particular, requests and
+ * notices -- keep flowing.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class NioTransport {
+    /**
+     * A non-blocking source of messages to be sent.
+     * <p>
+     * Implementations must be thread-safe.
+     */
+    interface Source {
+        /**
+         * Returns the next message to be sent without waiting.
+         *
+         * @return The next message to be sent or {@code null} if there's
+         *         nothing to send at the moment.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        Message poll() throws IOException;
+    }
+
+    /**
+     * A processor of received messages.
+     * <p>
+     * Implementations must be thread-safe.
+     */
+    interface Sink {
+        /**
+         * Processes a received message.
+         *
+         * @param msg
+         *            The received message.
+         * @return {@code true} if and only if all the expected messages have
+         *         been received.
+         * @throws IOException
+         *             if an I/O error occurs.
+         * @throws InterruptedException
+         *             if the current thread is interrupted.
+         */
+        boolean process(Message msg) throws IOException, InterruptedException;
+    }
+
+    /**
+     * The logging service.
+     */
+    private static final Logger       logger                  = Util.getLogger();
+    /**
+     * The name of the transport-mode user-preference ({@value} ).
+     */
+    static final String               MODE_KEY                = "transport mode";
+    /**
+     * The value of the transport-mode user-preference that selects this
+     * transport ({@value} ).
+     */
+    static final String               NIO_MODE                = "nio";
+    /**
+     * The value of the transport-mode user-preference that selects a pair of
+     * threads per stream ({@value} ).
+     */
+    static final String               BLOCKING_MODE           = "blocking";
+    /**
+     * The default value of the transport-mode user-preference ({@value} ).
+     */
+    static final String               MODE_DEFAULT            = NIO_MODE;
+    /**
+     * Whether or not this transport is enabled.
+     */
+    static final boolean              ENABLED;
+    /**
+     * The name of the I/O-thread-count user-preference ({@value} ).
+     */
+    static final String               IO_THREAD_COUNT_KEY     = "number of I/O threads";
+    /**
+     * The default value of the I/O-thread-count user-preference ({@value} ).
+     */
+    static final int                  IO_THREAD_COUNT_DEFAULT = 2;
+    /**
+     * The number of I/O threads.
+     */
+    private static final int          IO_THREAD_COUNT;
+    /**
+     * The name of the worker-thread-count user-preference ({@value} ).
+     */
+    static final String               WORKER_COUNT_KEY        = "number of transport worker threads";
+    /**
+     * The default value of the worker-thread-count user-preference ({@value}
+     * ).
+     */
+    static final int                  WORKER_COUNT_DEFAULT    = 16;
+    /**
+     * The maximum number of worker threads. Streams whose received messages
+     * can't be processed immediately wait for a worker; because each stream
+     * awaits at most one worker, the wait is bounded.
+     */
+    private static final int          WORKER_COUNT;
+    /**
+     * The time, in seconds, after which an idle worker thread terminates.
+     */
+    private static final long         WORKER_KEEP_ALIVE       = 60;
+    /**
+     * The maximum number of received but unprocessed messages per stream.
+     */
+    private static final int          MAX_PENDING_MESSAGES    = 4;
+    /**
+     * The name of the stream-window user-preference ({@value} ).
+     */
+    static final String               STREAM_WINDOW_KEY       = "multiplexed stream window in bytes";
+    /**
+     * The default value of the stream-window user-preference ({@value} ).
+     */
+    static final int                  STREAM_WINDOW_DEFAULT   = 1024 * 1024;
+    /**
+     * The maximum number of received but undecoded bytes of a stream of a
+     * multiplexed socket (i.e., the credit that the receiver grants the
+     * sender). Such bytes are set aside while the stream's receiver is
+     * suspended so that the socket can still be read for the other streams.
+     * Bounds the throughput of a stream to one window per round-trip time.
+     */
+    private static final int          STREAM_WINDOW;
+    /**
+     * The initial size, in bytes, of the buffer for the set-aside bytes of a
+     * stream.
+     */
+    private static final int          INITIAL_BACKLOG_SIZE    = 64 * 1024;
+    /**
+     * The maximum size, in bytes, of the frame array that a stream keeps for
+     * reuse. Accommodates a canonical piece of data and its header.
+     */
+    private static final int          MAX_REUSED_FRAME_SIZE   = FileInfo
+                                                                      .getDefaultPieceSize() + 4096;
+    /**
+     * The maximum number of reads per socket per readiness event, so that one
+     * busy socket can't starve the others.
+     */
+    private static final int          MAX_READS_PER_EVENT     = 16;
+    /**
+     * The maximum number of frames or chunks to write per socket per readiness
+     * event, so that one busy socket can't starve the others.
+     */
+    private static final int          MAX_CHUNKS_PER_EVENT    = 16;
+    /**
+     * The maximum number of bytes of a stream in one chunk of a multiplexed
+     * socket. Bounds the time that a high-priority stream waits for a
+     * low-priority one.
+     */
+    private static final int          CHUNK_SIZE              = 16 * 1024;
+    /**
+     * The size of the header of a chunk of a multiplexed socket: the index of
+     * the stream and the length of the chunk.
+     */
+    private static final int          CHUNK_HEADER_SIZE       = 5;
+    /**
+     * The flag in the stream-index of the header of a chunk that marks the
+     * chunk as a window update: a grant of credit for the stream whose length
+     * field is the number of bytes granted and which has no body.
+     */
+    private static final int          WINDOW_UPDATE           = 0x80;
+    /**
+     * The minimum number of bytes of credit returned by a window update, so
+     * that window updates don't swamp the socket.
+     */
+    private static final int          WINDOW_UPDATE_THRESHOLD = CHUNK_SIZE;
+    /**
+     * The indexes of the streams of a multiplexed socket in order of
+     * decreasing priority for sending.
+     */
+    private static final int[]        PRIORITIES              = {
+            Connection.REQUEST, Connection.NOTICE, Connection.DATA };
+    /**
+     * The size of the per-socket receive buffer in bytes.
+     */
+    private static final int          READ_BUFFER_SIZE        = 16 * 1024;
+    /**
+     * The marker for the end of a received stream.
+     */
+    private static final Object       END_OF_STREAM           = new Object();
+    /**
+     * The singleton instance.
+     */
+    @GuardedBy("NioTransport.class")
+    private static NioTransport       instance;
+
+    static {
+        final Preferences prefs = Preferences
+                .userNodeForPackage(NioTransport.class);
+        final String mode = prefs.get(MODE_KEY, MODE_DEFAULT);
+        if (NIO_MODE.equals(mode)) {
+            ENABLED = true;
+        }
+        else if (BLOCKING_MODE.equals(mode)) {
+            ENABLED = false;
+        }
+        else {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + MODE_KEY + "\"=\"" + mode + "\"");
+        }
+        IO_THREAD_COUNT = prefs.getInt(IO_THREAD_COUNT_KEY,
+                IO_THREAD_COUNT_DEFAULT);
+        if (IO_THREAD_COUNT <= 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + IO_THREAD_COUNT_KEY + "\"=" + IO_THREAD_COUNT);
+        }
+        WORKER_COUNT = prefs.getInt(WORKER_COUNT_KEY, WORKER_COUNT_DEFAULT);
+        if (WORKER_COUNT <= 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + WORKER_COUNT_KEY + "\"=" + WORKER_COUNT);
+        }
+        STREAM_WINDOW = prefs.getInt(STREAM_WINDOW_KEY, STREAM_WINDOW_DEFAULT);
+        if (STREAM_WINDOW < WINDOW_UPDATE_THRESHOLD) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + STREAM_WINDOW_KEY + "\"=" + STREAM_WINDOW);
+        }
+    }
+
+    /**
+     * The I/O threads.
+     */
+    private final IoThread[]          ioThreads;
+    /**
+     * The index of the I/O thread to be assigned the next socket.
+     */
+    private final AtomicInteger       nextIoThread            = new AtomicInteger();
+    /**
+     * The worker threads that process received messages.
+     */
+    private final ThreadPoolExecutor  workers;
+
+    /**
+     * Constructs.
+     *
+     * @param ioThreadCount
+     *            The number of I/O threads.
+     * @param workerCount
+     *            The maximum number of worker threads.
+     * @throws IOException
+     *             if a selector can't be opened.
+     */
+    NioTransport(final int ioThreadCount, final int workerCount)
+            throws IOException {
+        ioThreads = new IoThread[ioThreadCount];
+        for (int i = 0; i < ioThreadCount; i++) {
+            ioThreads[i] = new IoThread("NioTransport-io-" + i);
+        }
+        for (final IoThread ioThread : ioThreads) {
+            ioThread.start();
+        }
+        final AtomicInteger workerIndex = new AtomicInteger();
+        workers = new ThreadPoolExecutor(workerCount, workerCount,
+                WORKER_KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "NioTransport-worker-"
+                                        + workerIndex.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the singleton instance, creating it if necessary.
+     *
+     * @return The singleton instance.
+     * @throws IOException
+     *             if the instance can't be created.
+     */
+    static synchronized NioTransport getInstance() throws IOException {
+        if (instance == null) {
+            instance = new NioTransport(IO_THREAD_COUNT, WORKER_COUNT);
+        }
+        return instance;
+    }
+
+    /**
+     * Indicates if this transport can be used for a connection. It can if it's
+     * enabled or the connection is multiplexed, the connection uses the binary
+     * {@link WireProtocol}, and all the sockets of the connection have
+     * channels.
+     *
+     * @param connection
+     *            The connection.
+     * @return {@code true} if and only if this transport can be used for the
+     *         connection.
+     */
+    static boolean canUse(final Connection connection) {
+        if (!(ENABLED || connection.isMultiplexed())
+                || connection.getWireVersion() == WireProtocol.SERIALIZATION) {
+            return false;
+        }
+        for (int i = 0; i < connection.size(); i++) {
+            if (connection.getSocket(i).getChannel() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a new session.
+     *
+     * @param name
+     *            The name of the session for logging.
+     * @param connection
+     *            The connection whose streams are to be serviced.
+     * @return A new session.
+     */
+    Session newSession(final String name, final Connection connection) {
+        return new Session(name, connection);
+    }
+
+    /**
+     * The streams of one peer that are serviced by this transport. The streams
+     * are added, then the session is started, and then the session is awaited.
+     * <p>
+     * Instances are thread-safe.
+     *
+     * @author Steven R. Emmerson
+     */
+    @ThreadSafe
+    final class Session {
+        /**
+         * The name of this instance.
+         */
+        private final String                     name;
+        /**
+         * The connection whose streams are serviced.
+         */
+        private final Connection                 connection;
+        /**
+         * The endpoints of this instance.
+         */
+        @GuardedBy("this")
+        private final Map<Socket, Endpoint>      endpoints   = new LinkedHashMap<Socket, Endpoint>();
+        /**
+         * Whether or not this instance has been started.
+         */
+        @GuardedBy("this")
+        private boolean                          started;
+        /**
+         * Signals that this instance is done.
+         */
+        private final CountDownLatch             doneLatch   = new CountDownLatch(
+                                                                     1);
+        /**
+         * The cause of failure or {@code null}.
+         */
+        private final AtomicReference<Throwable> failure     = new AtomicReference<Throwable>();
+        /**
+         * The number of received messages that are being processed.
+         */
+        @GuardedBy("this")
+        private int                              activeCount;
+
+        /**
+         * Constructs.
+         *
+         * @param name
+         *            The name of this instance.
+         * @param connection
+         *            The connection whose streams are to be serviced.
+         */
+        private Session(final String name, final Connection connection) {
+            this.name = name;
+            this.connection = connection;
+        }
+
+        /**
+         * Returns the endpoint of a stream, creating it if necessary.
+         *
+         * @param index
+         *            The index of the stream (e.g., {@link Connection#DATA}).
+         * @return The endpoint of the stream.
+         * @throws IllegalStateException
+         *             if this instance has been started.
+         */
+        @GuardedBy("this")
+        private Endpoint getEndpoint(final int index) {
+            if (started) {
+                throw new IllegalStateException();
+            }
+            final Socket socket = connection.getStream(index).getSocket();
+            Endpoint endpoint = endpoints.get(socket);
+            if (endpoint == null) {
+                final int i = Math.abs(nextIoThread.getAndIncrement()
+                        % ioThreads.length);
+                endpoint = new Endpoint(this, socket.getChannel(),
+                        ioThreads[i], connection.isMultiplexed());
+                endpoints.put(socket, endpoint);
+            }
+            return endpoint;
+        }
+
+        /**
+         * Adds the sending of messages on a stream.
+         *
+         * @param index
+         *            The index of the stream (e.g., {@link Connection#DATA}).
+         * @param source
+         *            The source of messages to be sent.
+         * @return The task to be executed whenever the source might have
+         *         become non-empty. May be executed by any thread.
+         * @throws IllegalStateException
+         *             if this instance has been started.
+         */
+        synchronized Runnable addOutput(final int index, final Source source) {
+            final Endpoint endpoint = getEndpoint(index);
+            endpoint.outlets[index] = endpoint.new Outlet(index, source);
+            return endpoint.writeNotifier;
+        }
+
+        /**
+         * Adds the receiving of messages on a stream.
+         *
+         * @param index
+         *            The index of the stream (e.g., {@link Connection#DATA}).
+         * @param sink
+         *            The processor of received messages.
+         * @throws IllegalStateException
+         *             if this instance has been started.
+         */
+        synchronized void addInput(final int index, final Sink sink) {
+            final Endpoint endpoint = getEndpoint(index);
+            endpoint.inlets[index] = endpoint.new Inlet(sink);
+        }
+
+        /**
+         * Starts servicing the streams of this instance.
+         *
+         * @throws IOException
+         *             if an I/O error occurs.
+         * @throws IllegalStateException
+         *             if this instance has already been started.
+         */
+        synchronized void start() throws IOException {
+            if (started) {
+                throw new IllegalStateException();
+            }
+            started = true;
+            for (final Endpoint endpoint : endpoints.values()) {
+                endpoint.channel.configureBlocking(false);
+            }
+            for (final Endpoint endpoint : endpoints.values()) {
+                endpoint.ioThread.execute(endpoint.register);
+            }
+        }
+
+        /**
+         * Waits a given amount of time for this instance to be done.
+         *
+         * @param timeout
+         *            The maximum amount of time to wait.
+         * @param unit
+         *            The unit of {@code timeout}.
+         * @return {@code true} if and only if this instance completed
+         *         successfully.
+         * @throws ExecutionException
+         *             if this instance failed. The cause is the reason.
+         * @throws InterruptedException
+         *             if the current thread is interrupted.
+         */
+        boolean await(final long timeout, final TimeUnit unit)
+                throws ExecutionException, InterruptedException {
+            if (!doneLatch.await(timeout, unit)) {
+                /*
+                 * A socket that's closed by another thread doesn't
+                 * necessarily cause a readiness event.
+                 */
+                synchronized (this) {
+                    for (final Endpoint endpoint : endpoints.values()) {
+                        if (!endpoint.channel.isOpen()) {
+                            fail(new SocketException("Socket closed"));
+                            break;
+                        }
+                    }
+                }
+                if (!isDone()) {
+                    return false;
+                }
+            }
+            final Throwable cause = failure.get();
+            if (cause != null) {
+                throw new ExecutionException(cause);
+            }
+            return true;
+        }
+
+        /**
+         * Indicates if this instance is done.
+         *
+         * @return {@code true} if and only if this instance is done.
+         */
+        boolean isDone() {
+            return doneLatch.getCount() == 0;
+        }
+
+        /**
+         * Marks this instance as successfully done. Does nothing if this
+         * instance is already done.
+         */
+        void complete() {
+            doneLatch.countDown();
+        }
+
+        /**
+         * Marks this instance as failed. Does nothing if this instance is
+         * already done.
+         *
+         * @param cause
+         *            The reason for the failure.
+         */
+        void fail(final Throwable cause) {
+            if (!isDone() && failure.compareAndSet(null, cause)) {
+                doneLatch.countDown();
+            }
+        }
+
+        /**
+         * Stops servicing the streams of this instance and waits for the
+         * processing of any received message to finish. Sockets are not
+         * closed. Idempotent.
+         *
+         * @throws InterruptedException
+         *             if the current thread is interrupted.
+         */
+        void close() throws InterruptedException {
+            complete();
+            synchronized (this) {
+                for (final Endpoint endpoint : endpoints.values()) {
+                    endpoint.ioThread.execute(endpoint.release);
+                }
+                while (activeCount > 0) {
+                    wait();
+                }
+            }
+        }
+
+        /**
+         * Indicates that the processing of a received message is about to
+         * start.
+         *
+         * @return {@code true} if and only if the message should be processed.
+         */
+        private synchronized boolean beginProcessing() {
+            if (isDone()) {
+                return false;
+            }
+            activeCount++;
+            return true;
+        }
+
+        /**
+         * Indicates that the processing of a received message has finished.
+         */
+        private synchronized void endProcessing() {
+            if (--activeCount == 0) {
+                notifyAll();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Session [" + name + "]";
+        }
+    }
+
+    /**
+     * The state of one socket of a {@link Session}. A socket carries either
+     * one stream of a connection or, if the connection is multiplexed, all of
+     * them. In the latter case, the bytes of each stream are sent as chunks
+     * that are prefixed by the index of the stream and the length of the
+     * chunk, and the chunks of the streams are interleaved by priority so that
+     * requests and notices aren't stuck behind pieces of data. A stream is
+     * only sent as far as the receiver has granted credit by means of window
+     * updates. Except where noted, the fields are only accessed by the I/O
+     * thread of the instance.
+     * <p>
+     * Instances are not thread-safe.
+     *
+     * @author Steven R. Emmerson
+     */
+    @NotThreadSafe
+    private final class Endpoint {
+        /**
+         * The associated session.
+         */
+        private final Session       session;
+        /**
+         * The socket channel.
+         */
+        private final SocketChannel channel;
+        /**
+         * The I/O thread that services the socket.
+         */
+        private final IoThread      ioThread;
+        /**
+         * Whether or not the streams are multiplexed over the socket.
+         */
+        private final boolean       multiplexed;
+        /**
+         * The senders of the streams, indexed by stream. Set before the
+         * session is started.
+         */
+        private final Outlet[]      outlets       = new Outlet[Connection.STREAM_COUNT];
+        /**
+         * The receivers of the streams, indexed by stream. Set before the
+         * session is started.
+         */
+        private final Inlet[]       inlets        = new Inlet[Connection.STREAM_COUNT];
+        /**
+         * The selection key or {@code null}.
+         */
+        private SelectionKey        key;
+        /**
+         * Whether or not a source might be non-empty.
+         */
+        private boolean             writeWanted;
+        /**
+         * Whether or not a notification of the I/O thread about the sources is
+         * pending. Accessed by any thread.
+         */
+        private final AtomicBoolean notifyPending = new AtomicBoolean();
+        /**
+         * The header of the current outgoing chunk. Kept in "drain" mode.
+         */
+        private final ByteBuffer    chunkHeader   = ByteBuffer
+                                                          .allocate(CHUNK_HEADER_SIZE);
+        /**
+         * The sender of the current outgoing chunk or {@code null}.
+         */
+        private Outlet              outlet;
+        /**
+         * The number of bytes of the current outgoing chunk that remain to be
+         * sent.
+         */
+        private long                outRemaining;
+        /**
+         * The buffer of received bytes. Kept in "fill" mode.
+         */
+        private final ByteBuffer    readBuffer    = ByteBuffer
+                                                          .allocate(READ_BUFFER_SIZE);
+        /**
+         * The receiver of the current incoming chunk or {@code null}. The
+         * receiver of the only stream if the socket isn't multiplexed.
+         */
+        private Inlet               inlet;
+        /**
+         * The number of bytes of the current incoming chunk that remain to be
+         * received.
+         */
+        private int                 inRemaining;
+        /**
+         * Whether or not reading from the socket is suspended. Only set when
+         * the receiver of the only stream of a socket that isn't multiplexed
+         * is suspended.
+         */
+        private boolean             readPaused;
+        /**
+         * Whether or not the end of the received stream has been reached.
+         */
+        private boolean             eof;
+        /**
+         * Whether or not the end of the received stream has been passed to the
+         * receivers.
+         */
+        private boolean             eofQueued;
+        /**
+         * Registers the channel with the selector of the I/O thread.
+         */
+        private final Runnable      register;
+        /**
+         * Resumes writing because a source might be non-empty.
+         */
+        private final Runnable      wantWrite;
+        /**
+         * Notifies the I/O thread that a source might be non-empty. Executed
+         * by any thread.
+         */
+        private final Runnable      writeNotifier;
+        /**
+         * Stops servicing the socket and releases resources.
+         */
+        private final Runnable      release;
+
+        /**
+         * Constructs.
+         *
+         * @param session
+         *            The associated session.
+         * @param channel
+         *            The socket channel.
+         * @param ioThread
+         *            The I/O thread that services the socket.
+         * @param multiplexed
+         *            Whether or not the streams are multiplexed over the
+         *            socket.
+         */
+        Endpoint(final Session session, final SocketChannel channel,
+                final IoThread ioThread, final boolean multiplexed) {
+            this.session = session;
+            this.channel = channel;
+            this.ioThread = ioThread;
+            this.multiplexed = multiplexed;
+            chunkHeader.flip();
+            register = new Runnable() {
+                @Override
+                public void run() {
+                    register();
+                }
+            };
+            wantWrite = new Runnable() {
+                @Override
+                public void run() {
+                    notifyPending.set(false);
+                    if (key != null && !writeWanted) {
+                        writeWanted = true;
+                        updateInterest();
+                    }
+                }
+            };
+            writeNotifier = new Runnable() {
+                @Override
+                public void run() {
+                    if (notifyPending.compareAndSet(false, true)) {
+                        Endpoint.this.ioThread.execute(wantWrite);
+                    }
+                }
+            };
+            release = new Runnable() {
+                @Override
+                public void run() {
+                    if (key != null) {
+                        key.cancel();
+                    }
+                    for (final Outlet outlet : outlets) {
+                        if (outlet != null) {
+                            outlet.pieceFiles.close();
+                        }
+                    }
+                }
+            };
+        }
+
+        /**
+         * Registers the channel with the selector of the I/O thread.
+         */
+        private void register() {
+            if (!multiplexed) {
+                for (final Inlet in : inlets) {
+                    if (in != null) {
+                        inlet = in;
+                    }
+                }
+            }
+            else {
+                for (final Inlet in : inlets) {
+                    if (in != null) {
+                        in.unacknowledged = STREAM_WINDOW; // initial credit
+                    }
+                }
+            }
+            try {
+                key = channel.register(ioThread.selector, 0, this);
+                writeWanted = true;
+                updateInterest();
+            }
+            catch (final ClosedChannelException e) {
+                session.fail(new SocketException("Socket closed"));
+            }
+        }
+
+        /**
+         * Indicates if this instance has a receiver.
+         *
+         * @return {@code true} if and only if this instance has a receiver.
+         */
+        private boolean hasInlet() {
+            for (final Inlet in : inlets) {
+                if (in != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Indicates if this instance has a sender.
+         *
+         * @return {@code true} if and only if this instance has a sender.
+         */
+        private boolean hasOutlet() {
+            for (final Outlet out : outlets) {
+                if (out != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Indicates if this instance should send a window update.
+         *
+         * @return {@code true} if and only if a receiver has decoded enough
+         *         bytes to return their credit to the sender.
+         */
+        private boolean hasWindowUpdate() {
+            if (multiplexed) {
+                for (final Inlet in : inlets) {
+                    if (in != null
+                            && in.unacknowledged >= WINDOW_UPDATE_THRESHOLD) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Sets the header of the next outgoing chunk to a window update if one
+         * should be sent.
+         *
+         * @return {@code true} if and only if the header was set.
+         */
+        private boolean nextWindowUpdate() {
+            if (multiplexed) {
+                for (int index = 0; index < inlets.length; index++) {
+                    final Inlet in = inlets[index];
+                    if (in != null
+                            && in.unacknowledged >= WINDOW_UPDATE_THRESHOLD) {
+                        chunkHeader.clear();
+                        chunkHeader.put((byte) (WINDOW_UPDATE | index));
+                        chunkHeader.putInt(in.unacknowledged);
+                        chunkHeader.flip();
+                        in.unacknowledged = 0;
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Grants credit to the sender of a stream.
+         *
+         * @param index
+         *            The index of the stream.
+         * @param credit
+         *            The number of bytes of credit.
+         * @throws StreamCorruptedException
+         *             if the stream doesn't have a sender or the credit is
+         *             invalid.
+         */
+        private void grant(final int index, final int credit)
+                throws StreamCorruptedException {
+            final Outlet out = (index < outlets.length)
+                    ? outlets[index]
+                    : null;
+            if (out == null || credit <= 0
+                    || out.credit + credit > Integer.MAX_VALUE) {
+                throw new StreamCorruptedException("Invalid window update: "
+                        + "stream=" + index + ", credit=" + credit);
+            }
+            out.credit += credit;
+            writeWanted = true;
+        }
+
+        /**
+         * Sets the interest-set of the selection key from the current state.
+         */
+        private void updateInterest() {
+            if (key != null && key.isValid()) {
+                int ops = 0;
+                // The sender of a multiplexed stream reads window updates
+                if (!readPaused && !eof
+                        && (hasInlet() || (multiplexed && hasOutlet()))) {
+                    ops |= SelectionKey.OP_READ;
+                }
+                if ((writeWanted && hasOutlet()) || hasWindowUpdate()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                key.interestOps(ops);
+            }
+        }
+
+        /**
+         * Handles a readiness event.
+         */
+        void handle() {
+            try {
+                if (session.isDone()) {
+                    key.cancel();
+                    return;
+                }
+                if (key.isReadable()) {
+                    read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    write();
+                }
+            }
+            catch (final CancelledKeyException e) {
+                abort(new SocketException("Socket closed"));
+            }
+            catch (final Throwable t) {
+                abort(t);
+            }
+        }
+
+        /**
+         * Fails the session and stops servicing the socket.
+         *
+         * @param cause
+         *            The reason.
+         */
+        private void abort(final Throwable cause) {
+            session.fail(cause);
+            if (key != null) {
+                key.cancel();
+            }
+        }
+
+        /**
+         * Returns the sender with the highest priority that has something to
+         * send.
+         *
+         * @return The sender with the highest priority that has something to
+         *         send or {@code null} if there's nothing to send.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        private Outlet nextOutlet() throws IOException {
+            for (final int index : PRIORITIES) {
+                final Outlet out = outlets[index];
+                if (out != null && (!multiplexed || out.credit > 0)
+                        && (out.remaining() > 0 || out.next())) {
+                    return out;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Writes to the socket until the sources are empty or lack credit, the
+         * socket can't accept more data, or the per-event limit is reached.
+         * Window updates are sent ahead of the chunks of the streams.
+         *
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        private void write() throws IOException {
+            for (int i = 0; i < MAX_CHUNKS_PER_EVENT; i++) {
+                if (outRemaining == 0 && !chunkHeader.hasRemaining()
+                        && !nextWindowUpdate()) {
+                    outlet = nextOutlet();
+                    if (outlet == null) {
+                        writeWanted = false;
+                        updateInterest();
+                        return;
+                    }
+                    if (multiplexed) {
+                        outRemaining = Math.min(Math.min(CHUNK_SIZE,
+                                outlet.remaining()), outlet.credit);
+                        outlet.credit -= outRemaining;
+                        chunkHeader.clear();
+                        chunkHeader.put((byte) outlet.index);
+                        chunkHeader.putInt((int) outRemaining);
+                        chunkHeader.flip();
+                    }
+                    else {
+                        outRemaining = outlet.remaining();
+                    }
+                }
+                if (chunkHeader.hasRemaining()) {
+                    channel.write(chunkHeader);
+                    if (chunkHeader.hasRemaining()) {
+                        return;
+                    }
+                }
+                if (outRemaining > 0) {
+                    outRemaining -= outlet.write(outRemaining);
+                    if (outRemaining > 0) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads from the socket and passes the received bytes to the receivers
+         * until the socket has no more data, reading is suspended, or the
+         * per-event limit is reached.
+         *
+         * @throws IOException
+         *             if an I/O error occurs.
+         * @throws ClassNotFoundException
+         *             if a Java-serialized message of unknown type is received.
+         */
+        private void read() throws IOException, ClassNotFoundException {
+            for (int i = 0; i < MAX_READS_PER_EVENT && !readPaused && !eof; i++) {
+                final int n = channel.read(readBuffer);
+                if (n < 0) {
+                    eof = true;
+                }
+                consume();
+                if (n == 0) {
+                    break;
+                }
+            }
+            if (eof && !readPaused && !eofQueued) {
+                eofQueued = true;
+                for (final Inlet in : inlets) {
+                    if (in != null) {
+                        in.endOfStream();
+                    }
+                }
+            }
+            updateInterest();
+        }
+
+        /**
+         * Resumes a suspended receiver and, if it was suspended, reading from
+         * the socket.
+         *
+         * @param in
+         *            The receiver.
+         */
+        private void resumeRead(final Inlet in) {
+            if (in.paused && key != null && key.isValid()) {
+                in.paused = false;
+                try {
+                    in.drainBacklog();
+                    if (readPaused) {
+                        readPaused = false;
+                        consume();
+                        read();
+                    }
+                    else {
+                        updateInterest(); // for a window update
+                    }
+                }
+                catch (final Throwable t) {
+                    abort(t);
+                }
+            }
+        }
+
+        /**
+         * Passes the bytes in the receive buffer to the receivers. Stops if
+         * reading from the socket becomes suspended. The chunks of a
+         * multiplexed stream whose receiver is suspended are set aside so that
+         * the chunks of the other streams -- in particular, requests and
+         * notices while pieces of data are being processed -- are still
+         * received. Because the sender of a stream doesn't exceed the
+         * stream's window, the set-aside bytes are bounded and reading from a
+         * multiplexed socket is never suspended.
+         *
+         * @throws IOException
+         *             if an I/O error occurs.
+         * @throws ClassNotFoundException
+         *             if a Java-serialized message of unknown type is received.
+         */
+        private void consume() throws IOException, ClassNotFoundException {
+            readBuffer.flip();
+            try {
+                while (!readPaused && readBuffer.hasRemaining()) {
+                    if (!multiplexed) {
+                        inlet.accept(readBuffer, readBuffer.remaining());
+                        readPaused = inlet.paused;
+                    }
+                    else {
+                        if (inRemaining == 0) {
+                            if (readBuffer.remaining() < CHUNK_HEADER_SIZE) {
+                                break;
+                            }
+                            final int index = readBuffer.get() & 0xff;
+                            inRemaining = readBuffer.getInt();
+                            if ((index & WINDOW_UPDATE) != 0) {
+                                grant(index & ~WINDOW_UPDATE, inRemaining);
+                                inRemaining = 0;
+                                continue;
+                            }
+                            if (index >= inlets.length
+                                    || inlets[index] == null
+                                    || inRemaining <= 0
+                                    || inRemaining > CHUNK_SIZE) {
+                                throw new StreamCorruptedException(
+                                        "Invalid chunk: stream=" + index
+                                                + ", length=" + inRemaining);
+                            }
+                            inlet = inlets[index];
+                        }
+                        final int max = Math.min(inRemaining,
+                                readBuffer.remaining());
+                        inlet.receive(readBuffer, max);
+                        inRemaining -= max;
+                    }
+                }
+            }
+            finally {
+                readBuffer.compact();
+            }
+        }
+
+        /**
+         * The sender of one stream.
+         * <p>
+         * Instances are not thread-safe.
+         *
+         * @author Steven R. Emmerson
+         */
+        @NotThreadSafe
+        private final class Outlet {
+            /**
+             * The index of the stream.
+             */
+            private final int                     index;
+            /**
+             * The source of messages to be sent.
+             */
+            private final Source                  source;
+            /**
+             * The encoder of frames.
+             */
+            private final WireProtocol.FrameBuffer frameBuffer = new WireProtocol.FrameBuffer();
+            /**
+             * The files of pieces that are sent directly from their files.
+             */
+            private final WireProtocol.PieceFiles pieceFiles  = new WireProtocol.PieceFiles();
+            /**
+             * The unsent part of the current frame or {@code null}.
+             */
+            private ByteBuffer[]                  buffers;
+            /**
+             * The limits of {@link #buffers}.
+             */
+            private final int[]                   limits      = new int[2];
+            /**
+             * The piece whose data is being sent from its file or
+             * {@code null}.
+             */
+            private Piece                         filePiece;
+            /**
+             * The piece whose data is being sent from memory or {@code null}.
+             * Released when its frame has been sent.
+             */
+            private Piece                         memoryPiece;
+            /**
+             * The position in the file of the next byte to be sent.
+             */
+            private long                          filePosition;
+            /**
+             * The number of bytes of the file that remain to be sent.
+             */
+            private long                          fileRemaining;
+            /**
+             * The number of bytes that the receiver of a multiplexed stream
+             * has granted but that haven't been sent.
+             */
+            private long                          credit;
+
+            /**
+             * Constructs.
+             *
+             * @param index
+             *            The index of the stream.
+             * @param source
+             *            The source of messages to be sent.
+             */
+            Outlet(final int index, final Source source) {
+                this.index = index;
+                this.source = source;
+            }
+
+            /**
+             * Returns the number of bytes of the current frame that remain to
+             * be sent.
+             *
+             * @return The number of bytes of the current frame that remain to
+             *         be sent.
+             */
+            long remaining() {
+                long n = fileRemaining;
+                if (buffers != null) {
+                    for (final ByteBuffer buffer : buffers) {
+                        n += buffer.remaining();
+                    }
+                }
+                return n;
+            }
+
+            /**
+             * Obtains the next frame to be sent from the source.
+             *
+             * @return {@code true} if and only if a frame was obtained.
+             * @throws IOException
+             *             if an I/O error occurs.
+             */
+            boolean next() throws IOException {
+                for (;;) {
+                    final Message msg = source.poll();
+                    if (msg == null) {
+                        return false;
+                    }
+                    if (msg instanceof Piece) {
+                        final Piece piece = (Piece) msg;
+                        if (piece.getFile() != null) {
+                            if (pieceFiles.open(piece) == null) {
+                                logger.debug(
+                                        "Not sending piece of changed file: {}",
+                                        piece);
+                                continue;
+                            }
+                            buffers = new ByteBuffer[] { frameBuffer
+                                    .encode(piece) };
+                            filePiece = piece;
+                            filePosition = piece.getOffset();
+                            fileRemaining = piece.getSize();
+                        }
+                        else {
+                            buffers = new ByteBuffer[] {
+                                    frameBuffer.encode(piece),
+                                    piece.getBuffer() };
+                            memoryPiece = piece;
+                        }
+                    }
+                    else {
+                        buffers = new ByteBuffer[] { frameBuffer.encode(msg) };
+                    }
+                    return true;
+                }
+            }
+
+            /**
+             * Writes some of the current frame to the socket.
+             *
+             * @param max
+             *            The maximum number of bytes to write.
+             * @return The number of bytes written.
+             * @throws IOException
+             *             if an I/O error occurs.
+             */
+            long write(final long max) throws IOException {
+                long written = 0;
+                if (buffers != null) {
+                    long budget = max;
+                    for (int i = 0; i < buffers.length; i++) {
+                        final ByteBuffer buffer = buffers[i];
+                        limits[i] = buffer.limit();
+                        final int n = (int) Math.min(buffer.remaining(), budget);
+                        buffer.limit(buffer.position() + n);
+                        budget -= n;
+                    }
+                    try {
+                        written = channel.write(buffers);
+                    }
+                    finally {
+                        for (int i = 0; i < buffers.length; i++) {
+                            buffers[i].limit(limits[i]);
+                        }
+                    }
+                    if (buffers[buffers.length - 1].hasRemaining()) {
+                        return written;
+                    }
+                    buffers = null;
+                    if (memoryPiece != null) {
+                        memoryPiece.release();
+                        memoryPiece = null;
+                    }
+                }
+                if (filePiece != null && written < max) {
+                    final long n = pieceFiles.transfer(filePiece, filePosition,
+                            Math.min(fileRemaining, max - written), channel);
+                    filePosition += n;
+                    fileRemaining -= n;
+                    written += n;
+                    if (fileRemaining == 0) {
+                        pieceFiles.done(filePiece);
+                        filePiece = null;
+                    }
+                }
+                return written;
+            }
+        }
+
+        /**
+         * The receiver of one stream. Decodes frames from the received bytes
+         * and processes the messages in order on a worker thread.
+         * <p>
+         * Instances are thread-safe.
+         *
+         * @author Steven R. Emmerson
+         */
+        @ThreadSafe
+        private final class Inlet implements Runnable {
+            /**
+             * The processor of received messages.
+             */
+            private final Sink          sink;
+            /**
+             * Whether or not decoding is suspended because received messages
+             * haven't been processed. Accessed by the I/O thread.
+             */
+            private boolean             paused;
+            /**
+             * The received bytes that were set aside while decoding was
+             * suspended or {@code null}. Kept in "fill" mode. Accessed by the
+             * I/O thread.
+             */
+            private ByteBuffer          backlog;
+            /**
+             * Whether or not the end of the stream was reached while the
+             * backlog was non-empty. Accessed by the I/O thread.
+             */
+            private boolean             eofPending;
+            /**
+             * The number of bytes that have been decoded but whose credit
+             * hasn't been returned to the sender of a multiplexed stream.
+             * Accessed by the I/O thread.
+             */
+            private int                 unacknowledged;
+            /**
+             * Resumes decoding because received messages have been processed.
+             */
+            private final Runnable      resumer       = new Runnable() {
+                                                          @Override
+                                                          public void run() {
+                                                              resumeRead(Inlet.this);
+                                                          }
+                                                      };
+            /**
+             * The length of the current frame. Accessed by the I/O thread.
+             */
+            private final ByteBuffer    length        = ByteBuffer.allocate(4);
+            /**
+             * The array for the current frame. Reused for frames that fit.
+             * Accessed by the I/O thread.
+             */
+            private byte[]              frame         = new byte[MAX_REUSED_FRAME_SIZE];
+            /**
+             * The length of the current frame or {@code -1} if the length
+             * hasn't been received. Accessed by the I/O thread.
+             */
+            private int                 frameLength   = -1;
+            /**
+             * The number of bytes of the current frame that have been received.
+             * Accessed by the I/O thread.
+             */
+            private int                 framePosition;
+            /**
+             * The buffer for copying the data of a piece. Accessed by the I/O
+             * thread.
+             */
+            private final byte[]        scratch       = new byte[WireProtocol.BUFFER_SIZE];
+            /**
+             * Received but unprocessed messages.
+             */
+            @GuardedBy("itself")
+            private final Queue<Object> inbox         = new ArrayDeque<Object>();
+            /**
+             * Whether or not a worker is processing the inbox.
+             */
+            @GuardedBy("inbox")
+            private boolean             draining;
+
+            /**
+             * Constructs.
+             *
+             * @param sink
+             *            The processor of received messages.
+             */
+            Inlet(final Sink sink) {
+                this.sink = sink;
+            }
+
+            /**
+             * Indicates if this instance has set aside received bytes.
+             *
+             * @return {@code true} if and only if the backlog is non-empty.
+             */
+            private boolean hasBacklog() {
+                return backlog != null && backlog.position() > 0;
+            }
+
+            /**
+             * Receives bytes of the stream from a multiplexed socket. The bytes
+             * are decoded unless decoding is suspended or there's a backlog,
+             * in which case they're added to the backlog.
+             *
+             * @param buffer
+             *            The received bytes.
+             * @param max
+             *            The number of bytes to receive.
+             * @throws IOException
+             *             if an I/O error occurs.
+             * @throws ClassNotFoundException
+             *             if a Java-serialized message of unknown type is
+             *             received.
+             * @throws StreamCorruptedException
+             *             if the sender exceeded the window of the stream.
+             */
+            void receive(final ByteBuffer buffer, final int max)
+                    throws IOException, ClassNotFoundException {
+                int n = 0;
+                if (!paused && !hasBacklog()) {
+                    n = accept(buffer, max);
+                    unacknowledged += n;
+                }
+                if (n < max) {
+                    final int m = max - n;
+                    reserve(m);
+                    final int limit = buffer.limit();
+                    buffer.limit(buffer.position() + m);
+                    backlog.put(buffer);
+                    buffer.limit(limit);
+                }
+            }
+
+            /**
+             * Ensures that the backlog has room for additional bytes, growing
+             * it as necessary up to the window of the stream.
+             *
+             * @param count
+             *            The number of additional bytes.
+             * @throws StreamCorruptedException
+             *             if the backlog would exceed the window of the
+             *             stream.
+             */
+            private void reserve(final int count)
+                    throws StreamCorruptedException {
+                final int used = (backlog == null)
+                        ? 0
+                        : backlog.position();
+                if (used + unacknowledged + count > STREAM_WINDOW) {
+                    throw new StreamCorruptedException(
+                            "Stream window exceeded: " + channel);
+                }
+                if (backlog == null || backlog.remaining() < count) {
+                    final int size = Math.min(STREAM_WINDOW, Math.max(
+                            used + count, Math.max(INITIAL_BACKLOG_SIZE,
+                                    2 * used)));
+                    final ByteBuffer buf = ByteBuffer.allocate(size);
+                    if (backlog != null) {
+                        backlog.flip();
+                        buf.put(backlog);
+                    }
+                    backlog = buf;
+                }
+            }
+
+            /**
+             * Decodes the backlog until it's empty or decoding becomes
+             * suspended. Passes on a pending end of the stream if the backlog
+             * becomes empty.
+             *
+             * @throws IOException
+             *             if an I/O error occurs.
+             * @throws ClassNotFoundException
+             *             if a Java-serialized message of unknown type is
+             *             received.
+             */
+            void drainBacklog() throws IOException, ClassNotFoundException {
+                if (hasBacklog()) {
+                    backlog.flip();
+                    try {
+                        unacknowledged += accept(backlog, backlog.remaining());
+                    }
+                    finally {
+                        backlog.compact();
+                    }
+                    if (!hasBacklog()
+                            && backlog.capacity() > INITIAL_BACKLOG_SIZE) {
+                        backlog = null; // releases a grown backlog
+                    }
+                }
+                if (eofPending && !hasBacklog()) {
+                    eofPending = false;
+                    enqueue(END_OF_STREAM);
+                }
+            }
+
+            /**
+             * Handles the end of the stream. The end is passed on after the
+             * backlog has been decoded.
+             */
+            void endOfStream() {
+                if (hasBacklog()) {
+                    eofPending = true;
+                }
+                else {
+                    enqueue(END_OF_STREAM);
+                }
+            }
+
+            /**
+             * Decodes and queues the frames in some received bytes. Stops if
+             * decoding becomes suspended.
+             *
+             * @param buffer
+             *            The received bytes.
+             * @param max
+             *            The maximum number of bytes to consume.
+             * @return The number of bytes consumed.
+             * @throws IOException
+             *             if an I/O error occurs.
+             * @throws ClassNotFoundException
+             *             if a Java-serialized message of unknown type is
+             *             received.
+             */
+            int accept(final ByteBuffer buffer, final int max)
+                    throws IOException, ClassNotFoundException {
+                int consumed = 0;
+                while (consumed < max && !paused) {
+                    if (frameLength < 0) {
+                        while (length.hasRemaining() && consumed < max) {
+                            length.put(buffer.get());
+                            consumed++;
+                        }
+                        if (length.hasRemaining()) {
+                            break;
+                        }
+                        final int n = length.getInt(0);
+                        length.clear();
+                        WireProtocol.vetFrameLength(n);
+                        if (n > frame.length) {
+                            frame = new byte[n];
+                        }
+                        frameLength = n;
+                        framePosition = 0;
+                    }
+                    final int n = Math.min(max - consumed, frameLength
+                            - framePosition);
+                    buffer.get(frame, framePosition, n);
+                    framePosition += n;
+                    consumed += n;
+                    if (framePosition == frameLength) {
+                        final Message msg = WireProtocol.decode(frame,
+                                frameLength, scratch);
+                        if (frame.length > MAX_REUSED_FRAME_SIZE) {
+                            frame = new byte[MAX_REUSED_FRAME_SIZE];
+                        }
+                        frameLength = -1;
+                        enqueue(msg);
+                    }
+                }
+                return consumed;
+            }
+
+            /**
+             * Adds a received message to the inbox and ensures that the inbox
+             * is being processed. Suspends decoding if the inbox is full.
+             * Executed by the I/O thread.
+             *
+             * @param msg
+             *            The received message or {@link #END_OF_STREAM}.
+             */
+            void enqueue(final Object msg) {
+                synchronized (inbox) {
+                    inbox.add(msg);
+                    if (inbox.size() >= MAX_PENDING_MESSAGES) {
+                        paused = true;
+                    }
+                    if (!draining) {
+                        draining = true;
+                        workers.execute(this);
+                    }
+                }
+            }
+
+            /**
+             * Processes the messages in the inbox in order. Executed by a
+             * worker thread.
+             */
+            @Override
+            public void run() {
+                for (;;) {
+                    final Object msg;
+                    final boolean resume;
+                    synchronized (inbox) {
+                        msg = inbox.poll();
+                        if (msg == null) {
+                            draining = false;
+                            return;
+                        }
+                        resume = inbox.size() == MAX_PENDING_MESSAGES - 1;
+                    }
+                    if (resume) {
+                        ioThread.execute(resumer);
+                    }
+                    if (session.beginProcessing()) {
+                        try {
+                            if (msg == END_OF_STREAM) {
+                                throw new EOFException("Connection closed: "
+                                        + channel);
+                            }
+                            if (sink.process((Message) msg)) {
+                                session.complete();
+                            }
+                        }
+                        catch (final Throwable t) {
+                            session.fail(t);
+                        }
+                        finally {
+                            session.endProcessing();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A thread that services the sockets registered with its selector.
+     *
+     * @author Steven R. Emmerson
+     */
+    private static final class IoThread extends Thread {
+        /**
+         * The selector.
+         */
+        private final Selector        selector;
+        /**
+         * Tasks to be executed by this thread.
+         */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        /**
+         * Constructs.
+         *
+         * @param name
+         *            The name of the thread.
+         * @throws IOException
+         *             if the selector can't be opened.
+         */
+        IoThread(final String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        /**
+         * Executes a task on this thread. May be called by any thread.
+         *
+         * @param task
+         *            The task.
+         */
+        void execute(final Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            for (;;) {
+                try {
+                    selector.select();
+                    for (Runnable task = tasks.poll(); task != null; task = tasks
+                            .poll()) {
+                        try {
+                            task.run();
+                        }
+                        catch (final RuntimeException e) {
+                            logger.error("Unexpected error", e);
+                        }
+                    }
+                    final Iterator<SelectionKey> iter = selector
+                            .selectedKeys().iterator();
+                    while (iter.hasNext()) {
+                        final SelectionKey key = iter.next();
+                        iter.remove();
+                        ((Endpoint) key.attachment()).handle();
+                    }
+                }
+                catch (final IOException e) {
+                    logger.error("Selector failure", e);
+                }
+                catch (final RuntimeException e) {
+                    logger.error("Unexpected error", e);
+                }
+            }
+        }
+    }
+}
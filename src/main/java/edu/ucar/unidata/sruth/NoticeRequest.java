@@ -43,6 +43,15 @@ final class NoticeRequest implements Request {
         this.specs = specs;
     }
 
+    /**
+     * Returns the set of data-piece specifications to consider for notices.
+     * 
+     * @return The set of data-piece specifications to consider for notices.
+     */
+    PieceSpecSetIface getSpecs() {
+        return specs;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -0,0 +1,226 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamConstants;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * The datagram by which a node reports an offline server to the tracker. The
+ * format is compact and independent of Java serialization:
+ *
+ * <pre>
+ * version      1 byte  ({@link #VERSION})
+ * length       1 byte  (4 for IPv4, 16 for IPv6)
+ * address      length bytes
+ * port         2 bytes (big-endian, unsigned)
+ * </pre>
+ * <p>
+ * For compatibility with nodes that predate this format, a datagram that's a
+ * Java-serialized {@link InetSocketAddress} can also be accepted. Such a
+ * datagram is recognized by the magic number of a serialization stream, whose
+ * first byte can't be a version of this format. Because the datagram comes
+ * from an untrusted source, it's only deserialized if it's small enough and
+ * only the classes of an {@link InetSocketAddress} are resolved.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class OfflineReport {
+    /**
+     * An input stream that only deserializes an {@link InetSocketAddress}.
+     */
+    private static final class LegacyInputStream extends ObjectInputStream {
+        /**
+         * The names of the classes that may be resolved.
+         */
+        private static final Set<String> CLASS_NAMES = new HashSet<String>();
+
+        static {
+            CLASS_NAMES.add(SocketAddress.class.getName());
+            CLASS_NAMES.add(InetSocketAddress.class.getName());
+            CLASS_NAMES.add(InetAddress.class.getName());
+            CLASS_NAMES.add(Inet4Address.class.getName());
+            CLASS_NAMES.add(Inet6Address.class.getName());
+            CLASS_NAMES.add(byte[].class.getName());
+        }
+
+        /**
+         * Constructs from the bytes of a legacy datagram.
+         *
+         * @param bytes
+         *            The bytes of the datagram.
+         * @throws IOException
+         *             if the stream header is invalid.
+         */
+        LegacyInputStream(final ByteArrayInputStream bytes) throws IOException {
+            super(bytes);
+        }
+
+        @Override
+        protected Class<?> resolveClass(final ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException {
+            if (!CLASS_NAMES.contains(desc.getName())) {
+                throw new InvalidClassException(desc.getName(),
+                        "Not allowed in an offline report");
+            }
+            return super.resolveClass(desc);
+        }
+
+        @Override
+        protected Class<?> resolveProxyClass(final String[] interfaces)
+                throws IOException {
+            throw new InvalidClassException("Proxy classes not allowed in an "
+                    + "offline report");
+        }
+    }
+
+    /**
+     * The version of the datagram format.
+     */
+    private static final byte VERSION         = 1;
+    /**
+     * The maximum size of a datagram in bytes.
+     */
+    static final int          MAX_SIZE        = 1 + 1 + 16 + 2;
+    /**
+     * The maximum size of a legacy, Java-serialized, datagram in bytes.
+     */
+    static final int          MAX_LEGACY_SIZE = 2048;
+
+    /**
+     * Prevents instantiation.
+     */
+    private OfflineReport() {
+    }
+
+    /**
+     * Encodes the address of an offline server.
+     *
+     * @param server
+     *            The address of the server.
+     * @return The datagram.
+     * @throws IllegalArgumentException
+     *             if the address of the server is unresolved.
+     * @throws NullPointerException
+     *             if {@code server == null}.
+     */
+    static byte[] encode(final InetSocketAddress server) {
+        final InetAddress inetAddress = server.getAddress();
+        if (inetAddress == null) {
+            throw new IllegalArgumentException("Unresolved address: " + server);
+        }
+        final byte[] addr = inetAddress.getAddress();
+        final ByteBuffer buf = ByteBuffer.allocate(1 + 1 + addr.length + 2);
+        buf.put(VERSION);
+        buf.put((byte) addr.length);
+        buf.put(addr);
+        buf.putShort((short) server.getPort());
+        return buf.array();
+    }
+
+    /**
+     * Decodes the address of an offline server.
+     *
+     * @param buf
+     *            The datagram. Its position will be advanced past the
+     *            datagram.
+     * @param acceptLegacy
+     *            Whether or not to accept a legacy, Java-serialized, datagram.
+     * @return The address of the server.
+     * @throws InvalidMessageException
+     *             if the datagram is invalid.
+     */
+    static InetSocketAddress decode(final ByteBuffer buf,
+            final boolean acceptLegacy) throws InvalidMessageException {
+        if (buf.remaining() < 2) {
+            throw new InvalidMessageException("Datagram too short: "
+                    + buf.remaining());
+        }
+        if (buf.getShort(buf.position()) == ObjectStreamConstants.STREAM_MAGIC) {
+            if (!acceptLegacy) {
+                throw new InvalidMessageException(
+                        "Legacy datagrams not accepted");
+            }
+            return decodeLegacy(buf);
+        }
+        final byte version = buf.get();
+        if (version != VERSION) {
+            throw new InvalidMessageException("Unknown datagram version: "
+                    + version);
+        }
+        final int length = buf.get();
+        if ((length != 4 && length != 16) || buf.remaining() != length + 2) {
+            throw new InvalidMessageException("Invalid datagram: length="
+                    + length + ", remaining=" + buf.remaining());
+        }
+        final byte[] addr = new byte[length];
+        buf.get(addr);
+        final int port = buf.getShort() & 0xffff;
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(addr), port);
+        }
+        catch (final UnknownHostException e) {
+            throw new InvalidMessageException("Invalid address", e);
+        }
+    }
+
+    /**
+     * Decodes the address of an offline server from a legacy datagram: a
+     * Java-serialized {@link InetSocketAddress}.
+     *
+     * @param buf
+     *            The datagram. Its position will be advanced past the
+     *            datagram.
+     * @return The address of the server.
+     * @throws InvalidMessageException
+     *             if the datagram is too long or invalid.
+     */
+    private static InetSocketAddress decodeLegacy(final ByteBuffer buf)
+            throws InvalidMessageException {
+        if (buf.remaining() > MAX_LEGACY_SIZE) {
+            throw new InvalidMessageException("Legacy datagram too long: "
+                    + buf.remaining());
+        }
+        final Object obj;
+        try {
+            final ObjectInputStream ois = new LegacyInputStream(
+                    new ByteArrayInputStream(buf.array(), buf.arrayOffset()
+                            + buf.position(), buf.remaining()));
+            obj = ois.readObject();
+        }
+        catch (final IOException e) {
+            throw new InvalidMessageException("Invalid legacy datagram", e);
+        }
+        catch (final ClassNotFoundException e) {
+            throw new InvalidMessageException("Invalid legacy datagram", e);
+        }
+        buf.position(buf.limit());
+        if (!(obj instanceof InetSocketAddress)
+                || ((InetSocketAddress) obj).isUnresolved()) {
+            throw new InvalidMessageException("Invalid legacy datagram: "
+                    + obj);
+        }
+        return (InetSocketAddress) obj;
+    }
+}
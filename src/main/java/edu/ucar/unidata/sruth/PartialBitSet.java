@@ -61,7 +61,8 @@ final class PartialBitSet extends FiniteBitSet {
         super(size);
         synchronized (this) {
             bitSet = new BitSet(size);
-            bitSet.set(0, size - 1);
+            bitSet.set(0, size);
+            bitSet.clear(index);
             setCount = size - 1;
         }
     }
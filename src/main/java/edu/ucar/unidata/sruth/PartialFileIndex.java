@@ -0,0 +1,685 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+/**
+ * A persistent index of the incomplete (i.e., hidden) files of an archive. The
+ * index is a memory-mapped file of records that contain the file-information
+ * of an incomplete file and a bit-set of the pieces that it holds. Setting a
+ * bit is a single store into the mapping; consequently, the incomplete files
+ * can be resumed without reading anything from them.
+ * <p>
+ * Because a bit can reach storage before the data of its piece, the header
+ * records whether the previous session ended cleanly. If it didn't, then the
+ * pieces of the recovered files are discarded and only the records are kept.
+ * <p>
+ * A record is appended when an incomplete file is created and is marked as
+ * obsolete when the file is completed or deleted. The index is compacted when
+ * it's opened and when obsolete records dominate.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class PartialFileIndex {
+    /**
+     * A snapshot of an incomplete file.
+     * <p>
+     * Instances are not thread-safe.
+     *
+     * @author Steven R. Emmerson
+     */
+    @NotThreadSafe
+    static final class Entry {
+        /**
+         * Information on the file.
+         */
+        private final FileInfo     fileInfo;
+        /**
+         * The pieces that the file holds.
+         */
+        private final FiniteBitSet indexes;
+
+        private Entry(final FileInfo fileInfo, final FiniteBitSet indexes) {
+            this.fileInfo = fileInfo;
+            this.indexes = indexes;
+        }
+
+        /**
+         * Returns information on the file.
+         *
+         * @return Information on the file.
+         */
+        FileInfo getFileInfo() {
+            return fileInfo;
+        }
+
+        /**
+         * Returns the pieces that the file holds.
+         *
+         * @return The bit-set of the pieces that the file holds.
+         */
+        FiniteBitSet getIndexes() {
+            return indexes;
+        }
+
+        /**
+         * Returns the number of pieces that the file holds.
+         *
+         * @return The number of pieces that the file holds.
+         */
+        int getPieceCount() {
+            return indexes.getSetCount();
+        }
+
+        /**
+         * Returns the minimum length of the file: the end of the last piece
+         * that it holds.
+         *
+         * @return The minimum length of the file in bytes.
+         */
+        long getMinimumLength() {
+            int last = -1;
+            for (int i = indexes.nextSetBit(0); i >= 0; i = indexes
+                    .nextSetBit(i + 1)) {
+                last = i;
+            }
+            return last < 0
+                    ? 0
+                    : fileInfo.getOffset(last) + fileInfo.getSize(last);
+        }
+
+        /**
+         * Returns the specification of the pieces that the file holds.
+         *
+         * @return The specification of the pieces that the file holds.
+         */
+        FilePieceSpecSet getPieceSpecs() {
+            return new FilePieceSpecs(fileInfo, indexes);
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [fileInfo=" + fileInfo + ", indexes=" + indexes + "]";
+        }
+    }
+
+    /**
+     * The location of a record in the mapped file.
+     *
+     * @author Steven R. Emmerson
+     */
+    private static final class Record {
+        /**
+         * Information on the file.
+         */
+        final FileInfo fileInfo;
+        /**
+         * The number of bytes in the encoded archive-pathname.
+         */
+        final int      pathLength;
+        /**
+         * The offset of the record in the mapped file.
+         */
+        int            offset;
+
+        Record(final FileInfo fileInfo, final int pathLength) {
+            this.fileInfo = fileInfo;
+            this.pathLength = pathLength;
+        }
+
+        /**
+         * Returns the length of the record in bytes.
+         *
+         * @return The length of the record in bytes.
+         */
+        int getLength() {
+            return FIXED_SIZE + pathLength + getBitsLength(fileInfo);
+        }
+
+        /**
+         * Returns the offset of the bit-set of the record in the mapped file.
+         *
+         * @return The offset of the bit-set of the record.
+         */
+        int getBitsOffset() {
+            return offset + FIXED_SIZE + pathLength;
+        }
+    }
+
+    /**
+     * The logger for this package.
+     */
+    private static final Logger       logger            = Util.getLogger();
+    /**
+     * The version of the file format.
+     */
+    private static final int          VERSION           = 2;
+    /**
+     * The size of the header in bytes: the version, the end of the last
+     * record, and the shutdown state.
+     */
+    private static final int          HEADER_SIZE       = 12;
+    /**
+     * The offset of the end of the last record in the header.
+     */
+    private static final int          END_OFFSET        = 4;
+    /**
+     * The offset of the shutdown state in the header.
+     */
+    private static final int          SHUTDOWN_OFFSET   = 8;
+    /**
+     * The shutdown state of an index whose pieces are all in storage.
+     */
+    private static final int          CLEAN             = 1;
+    /**
+     * The shutdown state of an index that's in use or that wasn't closed
+     * cleanly.
+     */
+    private static final int          DIRTY             = 0;
+    /**
+     * The size of the fixed part of a record in bytes: length, state, time,
+     * size, piece-size, time-to-live, and the length of the archive-pathname.
+     */
+    private static final int          FIXED_SIZE        = 4 + 1 + 8 + 8 + 4 + 4 + 2;
+    /**
+     * The offset of the state of a record.
+     */
+    private static final int          STATE_OFFSET      = 4;
+    /**
+     * The state of a current record.
+     */
+    private static final byte         LIVE              = 1;
+    /**
+     * The state of an obsolete record.
+     */
+    private static final byte         DEAD              = 0;
+    /**
+     * The minimum number of bytes in obsolete records before the index is
+     * compacted.
+     */
+    private static final int          COMPACTION_MINIMUM = 0x10000;
+    /**
+     * The minimum size of the mapping in bytes.
+     */
+    private static final int          MINIMUM_CAPACITY  = 0x10000;
+    /**
+     * The encoding of archive-pathnames.
+     */
+    private static final Charset      UTF8              = Charset
+                                                                .forName("UTF-8");
+    /**
+     * The pathname of the file.
+     */
+    private final Path                path;
+    /**
+     * The records of the incomplete files.
+     */
+    @GuardedBy("this")
+    private final Map<ArchivePath, Record> records      = new HashMap<ArchivePath, Record>();
+    /**
+     * The channel of the file.
+     */
+    @GuardedBy("this")
+    private FileChannel               channel;
+    /**
+     * The mapping of the file.
+     */
+    @GuardedBy("this")
+    private MappedByteBuffer          buf;
+    /**
+     * The offset of the end of the last record.
+     */
+    @GuardedBy("this")
+    private int                       end;
+    /**
+     * The number of bytes in obsolete records.
+     */
+    @GuardedBy("this")
+    private int                       deadBytes;
+
+    /**
+     * Constructs. The file is created if necessary. A corrupt file is
+     * truncated at the first invalid record. If the previous session didn't
+     * end cleanly, then the recovered files hold no pieces.
+     *
+     * @param path
+     *            The pathname of the file.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    PartialFileIndex(final Path path) throws IOException {
+        this.path = path;
+        ByteBuffer source;
+        try {
+            source = ByteBuffer.wrap(Files.readAllBytes(path));
+        }
+        catch (final NoSuchFileException e) {
+            source = ByteBuffer.allocate(0);
+        }
+        synchronized (this) {
+            read(source);
+            rewrite(source);
+        }
+        logger.debug("Read {} entries from {}", records.size(), path);
+    }
+
+    /**
+     * Returns the number of bytes in the bit-set of a file.
+     *
+     * @param fileInfo
+     *            Information on the file.
+     * @return The number of bytes in the bit-set of the file.
+     */
+    private static int getBitsLength(final FileInfo fileInfo) {
+        return (fileInfo.getPieceCount() + 7) / 8;
+    }
+
+    /**
+     * Reads the records of a previous session. Obsolete records are ignored.
+     * Reading stops at the first invalid record. The bit-sets are cleared if
+     * the session didn't end cleanly.
+     *
+     * @param source
+     *            The contents of the file. Modified.
+     */
+    @GuardedBy("this")
+    private void read(final ByteBuffer source) {
+        if (source.limit() < HEADER_SIZE) {
+            return;
+        }
+        final int version = source.getInt(0);
+        if (version != VERSION) {
+            logger.warn("Ignoring index {} with invalid version: {}", path,
+                    version);
+            return;
+        }
+        int limit = source.getInt(END_OFFSET);
+        if (limit < HEADER_SIZE) {
+            logger.warn("Ignoring index {} with invalid end: {}", path, limit);
+            return;
+        }
+        if (limit > source.limit()) {
+            logger.warn("Index {} is truncated: end={}, size={}", new Object[] {
+                    path, limit, source.limit() });
+            limit = source.limit();
+        }
+        final boolean clean = source.getInt(SHUTDOWN_OFFSET) == CLEAN;
+        if (!clean) {
+            logger.warn(
+                    "Index {} wasn't closed cleanly: discarding the pieces of its incomplete files",
+                    path);
+        }
+        for (int offset = HEADER_SIZE; offset < limit;) {
+            final int length = limit - offset < FIXED_SIZE
+                    ? -1
+                    : source.getInt(offset);
+            if (length < FIXED_SIZE || length > limit - offset) {
+                logger.warn("Truncating index {} at invalid record: offset={}",
+                        path, offset);
+                return;
+            }
+            if (source.get(offset + STATE_OFFSET) == LIVE) {
+                final Record record = decode(source, offset);
+                if (record == null || record.getLength() != length) {
+                    logger.warn(
+                            "Truncating index {} at invalid record: offset={}",
+                            path, offset);
+                    return;
+                }
+                if (!clean) {
+                    final int bitsOffset = record.getBitsOffset();
+                    for (int i = getBitsLength(record.fileInfo); --i >= 0;) {
+                        source.put(bitsOffset + i, (byte) 0);
+                    }
+                }
+                records.put(record.fileInfo.getPath(), record);
+            }
+            offset += length;
+        }
+    }
+
+    /**
+     * Decodes the fixed part and archive-pathname of a record.
+     *
+     * @param source
+     *            The contents of the file.
+     * @param offset
+     *            The offset of the record.
+     * @return The record or {@code null} if the record is invalid.
+     */
+    private static Record decode(final ByteBuffer source, final int offset) {
+        final ByteBuffer dup = source.duplicate();
+        dup.position(offset + STATE_OFFSET + 1);
+        final long time = dup.getLong();
+        final long size = dup.getLong();
+        final int pieceSize = dup.getInt();
+        final int timeToLive = dup.getInt();
+        final int pathLength = dup.getShort() & 0xFFFF;
+        if (pathLength > dup.remaining()) {
+            return null;
+        }
+        final byte[] bytes = new byte[pathLength];
+        dup.get(bytes);
+        try {
+            final ArchivePath archivePath = new ArchivePath(new String(bytes,
+                    UTF8));
+            final FileInfo fileInfo = new FileInfo(new FileId(archivePath,
+                    ArchiveTime.fromMillis(time)), size, pieceSize, timeToLive);
+            final Record record = new Record(fileInfo, pathLength);
+            record.offset = offset;
+            return record;
+        }
+        catch (final IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the file with one that contains only the current records and
+     * maps the new file. The file is replaced atomically and is marked as in
+     * use.
+     *
+     * @param source
+     *            The contents of the file that the current records reference.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void rewrite(final ByteBuffer source) throws IOException {
+        int size = HEADER_SIZE;
+        for (final Record record : records.values()) {
+            size += record.getLength();
+        }
+        final ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(VERSION);
+        out.putInt(size);
+        out.putInt(DIRTY);
+        for (final Record record : records.values()) {
+            final ByteBuffer dup = source.duplicate();
+            dup.limit(record.offset + record.getLength());
+            dup.position(record.offset);
+            record.offset = out.position();
+            out.put(dup);
+        }
+        out.flip();
+        final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        final FileChannel tmpChannel = FileChannel.open(tmpPath,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        try {
+            while (out.hasRemaining()) {
+                tmpChannel.write(out);
+            }
+            tmpChannel.force(true);
+        }
+        finally {
+            tmpChannel.close();
+        }
+        Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        buf = null;
+        ensureCapacity(size);
+        end = size;
+        deadBytes = 0;
+    }
+
+    /**
+     * Ensures that the mapping can hold a given number of bytes. The mapping
+     * is at least doubled when it's extended.
+     *
+     * @param required
+     *            The required number of bytes.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void ensureCapacity(final long required) throws IOException {
+        final int capacity = buf == null
+                ? 0
+                : buf.capacity();
+        if (required > capacity) {
+            final long newCapacity = Math.max(MINIMUM_CAPACITY,
+                    Math.max(required, 2L * capacity));
+            if (newCapacity > Integer.MAX_VALUE) {
+                throw new IOException("Index too large: " + path);
+            }
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+        }
+    }
+
+    /**
+     * Adds an incomplete file. Replaces any previous entry for the same
+     * archive-pathname.
+     *
+     * @param fileInfo
+     *            Information on the file.
+     * @param indexes
+     *            The pieces that the file holds.
+     * @throws IllegalArgumentException
+     *             if the archive-pathname is too long.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    synchronized void add(final FileInfo fileInfo, final FiniteBitSet indexes)
+            throws IOException {
+        final ArchivePath archivePath = fileInfo.getPath();
+        final byte[] bytes = archivePath.toString().getBytes(UTF8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Pathname too long: "
+                    + archivePath);
+        }
+        remove(archivePath);
+        final Record record = new Record(fileInfo, bytes.length);
+        final int length = record.getLength();
+        ensureCapacity((long) end + length);
+        record.offset = end;
+        final ByteBuffer dup = buf.duplicate();
+        dup.position(end);
+        dup.putInt(length);
+        dup.put(LIVE);
+        dup.putLong(fileInfo.getTime().toMillis());
+        dup.putLong(fileInfo.getSize());
+        dup.putInt(fileInfo.getPieceSize());
+        dup.putInt(fileInfo.getTimeToLive());
+        dup.putShort((short) bytes.length);
+        dup.put(bytes);
+        dup.put(new byte[getBitsLength(fileInfo)]);
+        records.put(archivePath, record);
+        for (int i = indexes.nextSetBit(0); i >= 0; i = indexes
+                .nextSetBit(i + 1)) {
+            setBit(record, i);
+        }
+        // The record becomes visible to a subsequent session only now
+        end += length;
+        buf.putInt(END_OFFSET, end);
+    }
+
+    /**
+     * Sets a bit in the bit-set of a record.
+     *
+     * @param record
+     *            The record.
+     * @param index
+     *            The index of the bit.
+     */
+    @GuardedBy("this")
+    private void setBit(final Record record, final int index) {
+        final int pos = record.getBitsOffset() + (index >>> 3);
+        buf.put(pos, (byte) (buf.get(pos) | (1 << (index & 7))));
+    }
+
+    /**
+     * Records that an incomplete file holds a piece. Does nothing if the file
+     * isn't in the index.
+     *
+     * @param archivePath
+     *            The archive-pathname of the file.
+     * @param index
+     *            The index of the piece.
+     * @throws IllegalArgumentException
+     *             if the index is outside the valid range of indexes.
+     */
+    synchronized void setPiece(final ArchivePath archivePath, final int index) {
+        final Record record = records.get(archivePath);
+        if (record != null) {
+            if (index < 0 || index >= record.fileInfo.getPieceCount()) {
+                throw new IllegalArgumentException("Invalid index: " + index);
+            }
+            setBit(record, index);
+        }
+    }
+
+    /**
+     * Returns the entry of an incomplete file.
+     *
+     * @param archivePath
+     *            The archive-pathname of the file.
+     * @return The entry of the file or {@code null} if the file isn't in the
+     *         index.
+     */
+    synchronized Entry get(final ArchivePath archivePath) {
+        final Record record = records.get(archivePath);
+        return record == null
+                ? null
+                : newEntry(record);
+    }
+
+    /**
+     * Returns the entry of a record.
+     *
+     * @param record
+     *            The record.
+     * @return The entry of the record.
+     */
+    @GuardedBy("this")
+    private Entry newEntry(final Record record) {
+        final int count = record.fileInfo.getPieceCount();
+        final int offset = record.getBitsOffset();
+        FiniteBitSet indexes = FiniteBitSet.newInstance(count);
+        for (int i = 0; i < count; i++) {
+            if ((buf.get(offset + (i >>> 3)) & (1 << (i & 7))) != 0) {
+                indexes = indexes.setBit(i);
+            }
+        }
+        return new Entry(record.fileInfo, indexes);
+    }
+
+    /**
+     * Returns the entries of all incomplete files.
+     *
+     * @return The entries of all incomplete files.
+     */
+    synchronized List<Entry> getEntries() {
+        final List<Entry> entries = new ArrayList<Entry>(records.size());
+        for (final Record record : records.values()) {
+            entries.add(newEntry(record));
+        }
+        return entries;
+    }
+
+    /**
+     * Removes an incomplete file. Compacts the index if obsolete records
+     * dominate.
+     *
+     * @param archivePath
+     *            The archive-pathname of the file.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    synchronized void remove(final ArchivePath archivePath)
+            throws IOException {
+        final Record record = records.remove(archivePath);
+        if (record != null) {
+            buf.put(record.offset + STATE_OFFSET, DEAD);
+            deadBytes += record.getLength();
+            if (deadBytes >= Math.max(COMPACTION_MINIMUM, end - HEADER_SIZE
+                    - deadBytes)) {
+                rewrite(buf);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of incomplete files.
+     *
+     * @return The number of incomplete files.
+     */
+    synchronized int size() {
+        return records.size();
+    }
+
+    /**
+     * Marks this instance as cleanly closed: the next session will keep the
+     * pieces of the incomplete files. The caller must ensure that the data of
+     * every piece in the index is in storage and that the index isn't
+     * modified afterwards.
+     *
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    synchronized void markClean() throws IOException {
+        if (channel != null) {
+            // The bit-sets must be in storage before the state
+            buf.force();
+            buf.putInt(SHUTDOWN_OFFSET, CLEAN);
+            buf.force();
+        }
+    }
+
+    /**
+     * Closes this instance. Forces the mapping to storage. The index remains
+     * marked as in use unless {@link #markClean()} was called.
+     *
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    synchronized void close() throws IOException {
+        if (channel != null) {
+            buf.force();
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        return "PartialFileIndex [path=" + path + ", size=" + records.size()
+                + "]";
+    }
+}
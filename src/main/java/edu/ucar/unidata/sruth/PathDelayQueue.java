@@ -9,11 +9,19 @@ import java.io.IOException;
 import java.io.InvalidObjectException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.prefs.Preferences;
 
 import net.jcip.annotations.NotThreadSafe;
 import net.jcip.annotations.ThreadSafe;
@@ -25,14 +33,20 @@ import edu.ucar.unidata.sruth.MinHeapFile.Element;
 /**
  * Priority queue of pathnames to become available based on their delay-times.
  * <p>
+ * The heap contains only fixed-size entries of a time and a pathname
+ * identifier; the pathnames are kept in a separate {@link PathDictionary}.
+ * Consequently, the length of a pathname is unlimited and sifting the heap
+ * moves little data.
+ * <p>
  * Instances are thread-safe.
  * 
  * @author Steven R. Emmerson
  */
 @ThreadSafe
-final class PathDelayQueue {
+final class PathDelayQueue implements TimedPathQueue {
     /**
-     * An entry in the min-heap file.
+     * An entry in the min-heap file: the identifier of a pathname in the
+     * dictionary and the time when the pathname should become available.
      * <p>
      * Instances are thread-compatible but not thread-safe.
      * 
@@ -40,16 +54,21 @@ final class PathDelayQueue {
      */
     @NotThreadSafe
     private static class Entry extends MinHeapFile.Element {
+        /**
+         * The size of an entry in bytes: the time (8 bytes) and the identifier
+         * (8 bytes).
+         */
+        static final int SIZE = 16;
         /**
          * Time when the associated pathname should become available in
          * milliseconds since the beginning of the epoch (1970-01-01 00:00:00
          * UTC).
          */
-        private long   time;
+        private long     time;
         /**
-         * Pathname of the associated file as an array of bytes.
+         * Identifier of the associated pathname in the dictionary.
          */
-        private byte[] path;
+        private long     id;
 
         /**
          * Constructs from nothing.
@@ -59,56 +78,27 @@ final class PathDelayQueue {
         }
 
         /**
-         * Constructs from the pathname of the file and the time when it should
-         * become available.
+         * Constructs from the identifier of the pathname and the time when it
+         * should become available.
          * 
-         * @param path
-         *            Pathname of the file to become available.
+         * @param id
+         *            Identifier of the pathname in the dictionary.
          * @param time
          *            Time when the file should be deleted in milliseconds since
          *            1970-01-01 00:00:00 UTC.
-         * @throws IllegalArgumentException
-         *             if {@code path.toString().getBytes().length > }
-         *             {@link PathDelayQueue#MAX_PATH_LEN}
-         * @throws NullPointerException
-         *             if {@code path == null || time == null}.
          */
-        Entry(final Path path, final Long time) {
-            this(path.toString().getBytes(), time);
-        }
-
-        /**
-         * Constructs from the pathname of the file as an array of bytes and the
-         * time when it should become available in milliseconds since the epoch.
-         * 
-         * @param path
-         *            The pathname of the file as a sequence of bytes.
-         * @param time
-         *            The time when the file should become available in
-         *            milliseconds since the beginning of the epoch (1970-01-01
-         *            00:00:00 UTC).
-         * @throws IllegalArgumentException
-         *             if {@code path.length > }
-         *             {@link PathDelayQueue#MAX_PATH_LEN}
-         * @throws NullPointerException
-         *             if {@code path == null}.
-         */
-        private Entry(final byte[] path, final long time) {
-            if (path.length > MAX_PATH_LEN) {
-                throw new IllegalArgumentException("Pathname too long: \""
-                        + new String(path) + "\"");
-            }
-            this.path = path;
+        Entry(final long id, final long time) {
+            this.id = id;
             this.time = time;
         }
 
         /**
-         * Returns the path attribute.
+         * Returns the identifier attribute.
          * 
-         * @return The path attribute.
+         * @return The identifier attribute.
          */
-        Path getPath() {
-            return Paths.get(new String(path));
+        long getId() {
+            return id;
         }
 
         /**
@@ -123,8 +113,7 @@ final class PathDelayQueue {
         @Override
         public void write(final ByteBuffer out) throws IOException {
             out.putLong(time);
-            out.putShort((short) path.length);
-            out.put(path);
+            out.putLong(id);
         }
 
         @Override
@@ -134,13 +123,10 @@ final class PathDelayQueue {
                 throw new InvalidObjectException("Invalid time: "
                         + new Date(time));
             }
-            final short len = in.getShort();
-            if (len <= 0 || len > MAX_PATH_LEN) {
-                throw new InvalidObjectException("Invalid pathname length: "
-                        + len);
+            id = in.getLong();
+            if (id < 0) {
+                throw new InvalidObjectException("Invalid identifier: " + id);
             }
-            path = new byte[len];
-            in.get(path);
         }
 
         @Override
@@ -150,46 +136,29 @@ final class PathDelayQueue {
                     ? -1
                     : time > that.time
                             ? 1
-                            : compare(path, that.path);
+                            : id < that.id
+                                    ? -1
+                                    : id > that.id
+                                            ? 1
+                                            : 0;
         }
 
-        /**
-         * Compares two byte arrays.
-         * 
-         * @param ba1
-         *            The first byte array.
-         * @param ba2
-         *            The second byte array.
-         * @return A value less than, equal to, or greater than zero as the
-         *         first argument is considered less than, equal to, or greater
-         *         than the second, respectively.
-         */
-        private int compare(final byte[] ba1, final byte[] ba2) {
-            final int minLen = ba1.length < ba2.length
-                    ? ba1.length
-                    : ba2.length;
-            for (int i = 0; i < minLen; i++) {
-                if (ba1[i] < ba2[i]) {
-                    return -1;
-                }
-                if (ba1[i] > ba2[i]) {
-                    return 1;
-                }
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
             }
-            return ba1.length < ba2.length
-                    ? -1
-                    : ba1.length == ba2.length
-                            ? 0
-                            : 1;
+            if (!(obj instanceof Entry)) {
+                return false;
+            }
+            final Entry that = (Entry) obj;
+            return time == that.time && id == that.id;
         }
 
-        /**
-         * Returns the maximum size of an entry in bytes.
-         * 
-         * @return The maximum size of an entry in bytes.
-         */
-        static int getMaxSize() {
-            return 8 + 2 + MAX_PATH_LEN; // long + short + string
+        @Override
+        public int hashCode() {
+            return (int) (time ^ (time >>> 32)) * 31
+                    + (int) (id ^ (id >>> 32));
         }
 
         @Override
@@ -200,22 +169,136 @@ final class PathDelayQueue {
             final Date date = calendar.getTime();
             final String timestamp = dateFormat.format(date);
             return getClass().getSimpleName() + "[when=" + timestamp
-                    + ", path=" + new String(path) + "]";
+                    + ", id=" + id + "]";
+        }
+    }
+
+    /**
+     * An entry in a min-heap file of the previous format, which contained the
+     * pathname. Only used to convert such a file.
+     * <p>
+     * Instances are thread-compatible but not thread-safe.
+     * 
+     * @author Steven R. Emmerson
+     */
+    @NotThreadSafe
+    private static class LegacyEntry extends MinHeapFile.Element {
+        /**
+         * The size of an entry in bytes: the time (8 bytes), the length of the
+         * pathname (2 bytes), and the pathname (up to 255 bytes).
+         */
+        static final int SIZE = 8 + 2 + 255;
+        /**
+         * Time when the associated pathname should become available.
+         */
+        private long     time;
+        /**
+         * Pathname of the associated file as an array of bytes.
+         */
+        private byte[]   path;
+
+        /**
+         * Constructs from nothing.
+         */
+        @SuppressWarnings("unused")
+        LegacyEntry() {
+        }
+
+        @Override
+        public void write(final ByteBuffer out) throws IOException {
+            out.putLong(time);
+            out.putShort((short) path.length);
+            out.put(path);
+        }
+
+        @Override
+        public void read(final ByteBuffer in) throws IOException {
+            time = in.getLong();
+            final short len = in.getShort();
+            if (len <= 0 || len > SIZE - 10) {
+                throw new InvalidObjectException("Invalid pathname length: "
+                        + len);
+            }
+            path = new byte[len];
+            in.get(path);
+        }
+
+        @Override
+        public int compareTo(final Element o) {
+            final LegacyEntry that = (LegacyEntry) o;
+            if (time != that.time) {
+                return time < that.time
+                        ? -1
+                        : 1;
+            }
+            final int minLen = Math.min(path.length, that.path.length);
+            for (int i = 0; i < minLen; i++) {
+                if (path[i] != that.path[i]) {
+                    return path[i] < that.path[i]
+                            ? -1
+                            : 1;
+                }
+            }
+            return path.length - that.path.length;
         }
     }
 
     /**
      * The logger for the package.
      */
-    private static Logger            logger       = Util.getLogger();
+    private static Logger            logger                  = Util.getLogger();
+    /**
+     * The maximum number of pathnames returned by {@link #awaitDue()}.
+     */
+    private static final int         MAX_BATCH_SIZE          = 1024;
+    /**
+     * The name of the commit-interval user-preference ({@value} ).
+     */
+    private static final String      COMMIT_INTERVAL_KEY     = "path delay queue commit interval";
+    /**
+     * The default value of the commit-interval user-preference in
+     * milliseconds ({@value} ).
+     */
+    private static final long        COMMIT_INTERVAL_DEFAULT = 100;
+    /**
+     * The maximum time, in milliseconds, that a modification of the queue can
+     * remain uncommitted. If non-positive, then every modification is forced
+     * to disk.
+     */
+    static final long                COMMIT_INTERVAL;
+    /**
+     * The name of the commit-count user-preference ({@value} ).
+     */
+    private static final String      COMMIT_COUNT_KEY        = "path delay queue commit count";
     /**
-     * The maximum length of a pathname in bytes ({@value} ).
+     * The default value of the commit-count user-preference ({@value} ).
      */
-    static final int                 MAX_PATH_LEN = 255;
+    private static final int         COMMIT_COUNT_DEFAULT    = 256;
+    /**
+     * The maximum number of uncommitted modifications of the queue.
+     */
+    static final int                 COMMIT_COUNT;
+
+    static {
+        final Preferences prefs = Preferences
+                .userNodeForPackage(PathDelayQueue.class);
+        COMMIT_INTERVAL = prefs.getLong(COMMIT_INTERVAL_KEY,
+                COMMIT_INTERVAL_DEFAULT);
+        COMMIT_COUNT = prefs.getInt(COMMIT_COUNT_KEY, COMMIT_COUNT_DEFAULT);
+        if (COMMIT_COUNT <= 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + COMMIT_COUNT_KEY + "\"=" + COMMIT_COUNT);
+        }
+    }
+
     /**
      * The min-heap file that implements the priority queue.
      */
     private final MinHeapFile<Entry> heap;
+    /**
+     * The pathnames of the entries in the min-heap file.
+     */
+    private final PathDictionary     dict;
 
     /**
      * Constructs from the pathname of the queue. If the queue exists, then it
@@ -229,7 +312,166 @@ final class PathDelayQueue {
      *             if an I/O error occurs.
      */
     PathDelayQueue(final Path path) throws IOException {
-        heap = new MinHeapFile<Entry>(path, Entry.getMaxSize(), Entry.class);
+        this(path, COMMIT_INTERVAL, COMMIT_COUNT);
+    }
+
+    /**
+     * Constructs from the pathname of the queue and the group-commit
+     * parameters. If the queue exists, then it will be opened; otherwise, it
+     * will be created.
+     * 
+     * @param path
+     *            The pathname of the queue.
+     * @param commitInterval
+     *            The maximum time, in milliseconds, that a modification of the
+     *            queue can remain uncommitted. If non-positive, then every
+     *            modification is forced to disk.
+     * @param commitCount
+     *            The maximum number of uncommitted modifications.
+     * @throws IllegalArgumentException
+     *             if {@code commitInterval > 0 && commitCount <= 0}.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    PathDelayQueue(final Path path, final long commitInterval,
+            final int commitCount) throws IOException {
+        convert(path);
+        dict = new PathDictionary(getDictionaryPath(path), commitInterval);
+        heap = new MinHeapFile<Entry>(path, Entry.SIZE, Entry.class,
+                commitInterval, commitCount);
+        /*
+         * A crash can leave a pathname in the dictionary whose entry never
+         * made it into the heap or was already removed from it.
+         */
+        final Set<Long> ids = new HashSet<Long>();
+        final List<Entry> unknown = new ArrayList<Entry>();
+        long maxId = -1;
+        for (final Entry entry : heap) {
+            ids.add(entry.getId());
+            maxId = Math.max(maxId, entry.getId());
+            if (dict.get(entry.getId()) == null) {
+                unknown.add(entry);
+            }
+        }
+        /*
+         * Conversely, the heap's log can be forced before the dictionary's,
+         * so a power failure can leave entries in the heap whose identifiers
+         * the dictionary never saved. Those identifiers mustn't be assigned
+         * again or an old entry would act on a new pathname. Without
+         * group-commit, a power failure while the head is removed can leave a
+         * duplicate of it, whose pathname is already gone.
+         */
+        dict.reserve(maxId);
+        if (!unknown.isEmpty()) {
+            try {
+                for (final Entry entry : unknown) {
+                    heap.remove(entry);
+                }
+            }
+            catch (final InstantiationException impossible) {
+                throw new AssertionError(impossible);
+            }
+            catch (final IllegalAccessException impossible) {
+                throw new AssertionError(impossible);
+            }
+            logger.warn("Removed {} entries with unknown pathnames from {}",
+                    unknown.size(), heap);
+        }
+        final int count = dict.retainAll(ids);
+        if (count > 0) {
+            logger.debug("Removed {} unreferenced pathnames from {}", count,
+                    dict);
+        }
+    }
+
+    /**
+     * Returns the pathname of the dictionary of a queue.
+     * 
+     * @param path
+     *            The pathname of the queue.
+     * @return The pathname of the dictionary of the queue.
+     */
+    private static Path getDictionaryPath(final Path path) {
+        return path.resolveSibling(path.getFileName() + ".paths");
+    }
+
+    /**
+     * Returns the pathnames of all the files of a queue.
+     * 
+     * @param path
+     *            The pathname of the queue.
+     * @return The pathnames of all the files of the queue.
+     */
+    static Path[] getPaths(final Path path) {
+        return new Path[] { path, MinHeapFile.getLogPath(path),
+                getDictionaryPath(path) };
+    }
+
+    /**
+     * Converts a queue whose entries contain their pathname into the current
+     * format. Does nothing if the queue doesn't exist or is already in the
+     * current format. If the conversion is interrupted, then it will be redone
+     * the next time.
+     * 
+     * @param path
+     *            The pathname of the queue.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static void convert(final Path path) throws IOException {
+        if (!Files.exists(path) || Files.size(path) < 8) {
+            return;
+        }
+        final FileChannel channel = FileChannel.open(path);
+        final ByteBuffer header = ByteBuffer.allocate(8);
+        try {
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+            }
+        }
+        finally {
+            channel.close();
+        }
+        if (header.getInt(4) != LegacyEntry.SIZE) {
+            return;
+        }
+        logger.info("Converting {} to the current format", path);
+        // Group-commit mode applies any write-ahead log
+        final MinHeapFile<LegacyEntry> legacy = new MinHeapFile<LegacyEntry>(
+                path, LegacyEntry.SIZE, LegacyEntry.class,
+                COMMIT_INTERVAL_DEFAULT, 1);
+        final Path newPath = path.resolveSibling(path.getFileName() + ".new");
+        Files.deleteIfExists(newPath);
+        Files.deleteIfExists(MinHeapFile.getLogPath(newPath));
+        final PathDictionary dict = new PathDictionary(
+                getDictionaryPath(path), COMMIT_INTERVAL_DEFAULT);
+        try {
+            final MinHeapFile<Entry> heap = new MinHeapFile<Entry>(newPath,
+                    Entry.SIZE, Entry.class, COMMIT_INTERVAL_DEFAULT,
+                    COMMIT_COUNT_DEFAULT);
+            try {
+                for (final LegacyEntry entry : legacy) {
+                    final long id = dict.put(Paths.get(new String(entry.path)));
+                    heap.add(new Entry(id, entry.time));
+                }
+            }
+            catch (final InstantiationException impossible) {
+                throw new AssertionError(impossible);
+            }
+            catch (final IllegalAccessException impossible) {
+                throw new AssertionError(impossible);
+            }
+            finally {
+                heap.close();
+            }
+        }
+        finally {
+            dict.close();
+            legacy.close();
+        }
+        Files.deleteIfExists(MinHeapFile.getLogPath(newPath));
+        Files.deleteIfExists(MinHeapFile.getLogPath(path));
+        Files.move(newPath, path, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
     }
 
     /**
@@ -242,13 +484,12 @@ final class PathDelayQueue {
      *            since 1970-01-01 00:00:00 UTC.
      * @throws IOException
      *             if an I/O error occurs.
-     * @throws IllegalArgumentException
-     *             if {@code path.toString().getBytes().length > }
-     *             {@link #MAX_PATH_LEN}
      */
-    synchronized void add(final Path path, final long time) throws IOException {
+    @Override
+    public synchronized void add(final Path path, final long time)
+            throws IOException {
         try {
-            heap.add(new Entry(path, time));
+            heap.add(new Entry(dict.put(path), time));
             notifyAll();
         }
         catch (final InstantiationException impossible) {
@@ -284,14 +525,20 @@ final class PathDelayQueue {
             while (heap.peek() == null) {
                 wait();
             }
-            long sleep;
-            while ((sleep = heap.peek().getTime() - System.currentTimeMillis()) > 0) {
-                wait(sleep);
+            for (;;) {
+                long sleep;
+                while ((sleep = heap.peek().getTime()
+                        - System.currentTimeMillis()) > 0) {
+                    wait(sleep);
+                }
+                final Path path = remove();
+                if (path != null) {
+                    return path;
+                }
+                while (heap.peek() == null) {
+                    wait();
+                }
             }
-            final Entry entry = heap.remove();
-            notifyAll();
-            logger.trace("Returned {}", entry);
-            return entry.getPath();
         }
         catch (final InstantiationException impossible) {
             throw new AssertionError(impossible);
@@ -305,6 +552,88 @@ final class PathDelayQueue {
         }
     }
 
+    /**
+     * Removes the head of the queue and returns its pathname.
+     * 
+     * @return The pathname of the removed head or {@code null} if the
+     *         dictionary doesn't contain the pathname, which can happen after
+     *         a crash.
+     * @throws InstantiationException
+     *             if an entry can't be created.
+     * @throws IllegalAccessException
+     *             if an entry can't be created.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private Path remove() throws InstantiationException,
+            IllegalAccessException, IOException {
+        final Entry entry = heap.remove();
+        notifyAll();
+        final Path path = dict.get(entry.getId());
+        if (path == null) {
+            logger.warn("Ignoring entry with unknown pathname: {}", entry);
+        }
+        else {
+            dict.remove(entry.getId());
+            logger.trace("Returned {}: {}", entry, path);
+        }
+        return path;
+    }
+
+    /**
+     * Removes and returns the pathnames whose time has arrived -- up to a
+     * limit. Blocks until the earliest availability-time has arrived. The
+     * pathnames are removed from the queue by this method.
+     * 
+     * @return The "ripe" pathnames.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @Override
+    public synchronized List<Path> awaitDue() throws InterruptedException,
+            IOException {
+        final List<Path> paths = new ArrayList<Path>();
+        paths.add(take());
+        try {
+            for (Entry entry = heap.peek(); entry != null
+                    && entry.getTime() <= System.currentTimeMillis()
+                    && paths.size() < MAX_BATCH_SIZE; entry = heap.peek()) {
+                final Path path = remove();
+                if (path != null) {
+                    paths.add(path);
+                }
+            }
+        }
+        catch (final InstantiationException impossible) {
+            throw new AssertionError(impossible);
+        }
+        catch (final IllegalAccessException impossible) {
+            throw new AssertionError(impossible);
+        }
+        return paths;
+    }
+
+    /**
+     * Does nothing because {@link #awaitDue()} removes the pathnames it
+     * returns.
+     */
+    @Override
+    public void removeDue() {
+    }
+
+    @Override
+    public synchronized void copyTo(final TimedPathQueue queue)
+            throws IOException {
+        for (final Entry entry : heap) {
+            final Path path = dict.get(entry.getId());
+            if (path != null) {
+                queue.add(path, entry.getTime());
+            }
+        }
+    }
+
     /**
      * Waits until the queue is empty.
      * 
@@ -323,8 +652,14 @@ final class PathDelayQueue {
      * @throws IOException
      *             if an I/O error occurs.
      */
-    synchronized void close() throws IOException {
-        heap.close();
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            heap.close();
+        }
+        finally {
+            dict.close();
+        }
     }
 
     /*
@@ -334,7 +669,7 @@ final class PathDelayQueue {
      */
     @Override
     public String toString() {
-        return "PathDelayQueue [heap=" + heap + "]";
+        return "PathDelayQueue [heap=" + heap + ", dict=" + dict + "]";
     }
 
     /**
@@ -414,11 +749,10 @@ final class PathDelayQueue {
 
         final PathDelayQueue queue = new PathDelayQueue(path);
 
-        final DateFormat dateFormat = DateFormat.getInstance();
-        final Calendar calendar = dateFormat.getCalendar();
-
         for (final Entry entry : queue.heap) {
-            System.out.println(entry.toString());
+            System.out.println(entry.toString() + " "
+                    + queue.dict.get(entry.getId()));
         }
+        queue.close();
     }
 }
@@ -0,0 +1,485 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+/**
+ * A persistent map from 64-bit identifiers to pathnames. Identifiers are
+ * assigned by this class and are never reused.
+ * <p>
+ * The map is an append-only file of CRC-checked records, each of which either
+ * adds or removes a pathname. The file is rewritten when it is opened and when
+ * most of its records have become obsolete. Appends are forced to disk once
+ * per commit-interval.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class PathDictionary {
+    /**
+     * The logger for this package.
+     */
+    private static final Logger                   logger        = Util.getLogger();
+    /**
+     * The version of the file-format.
+     */
+    private static final int                      VERSION       = 1;
+    /**
+     * The size of the file-header: the version (4 bytes) and the next
+     * identifier (8 bytes).
+     */
+    private static final int                      HEADER_SIZE   = 12;
+    /**
+     * The type of a record that adds a pathname.
+     */
+    private static final byte                     ADD           = 1;
+    /**
+     * The type of a record that removes a pathname.
+     */
+    private static final byte                     REMOVE        = 2;
+    /**
+     * The size of a record without its pathname: the type (1 byte), the
+     * identifier (8 bytes), the length of the pathname (4 bytes), and the
+     * CRC-32 checksum (4 bytes).
+     */
+    private static final int                      RECORD_SIZE   = 17;
+    /**
+     * The minimum number of obsolete records before the file is rewritten.
+     */
+    private static final int                      COMPACT_MIN   = 4096;
+    /**
+     * The executor that forces the files of instances to disk.
+     */
+    private static final ScheduledExecutorService committer;
+    /**
+     * The pathname of the file.
+     */
+    private final Path                            path;
+    /**
+     * The maximum time, in milliseconds, that an append can remain unforced.
+     */
+    private final long                            commitInterval;
+    /**
+     * The pathnames in UTF-8 indexed by their identifiers.
+     */
+    @GuardedBy("this")
+    private final Map<Long, byte[]>               paths         = new HashMap<Long, byte[]>();
+    /**
+     * The channel to the file.
+     */
+    @GuardedBy("this")
+    private FileChannel                           channel;
+    /**
+     * The next identifier.
+     */
+    @GuardedBy("this")
+    private long                                  nextId;
+    /**
+     * The number of records in the file.
+     */
+    @GuardedBy("this")
+    private int                                   recordCount;
+    /**
+     * Whether or not the file has unforced appends.
+     */
+    @GuardedBy("this")
+    private boolean                               dirty;
+    /**
+     * The scheduled force or {@code null}.
+     */
+    @GuardedBy("this")
+    private ScheduledFuture<?>                    commitFuture;
+
+    static {
+        committer = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "PathDictionary-committer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Constructs. If the file exists, then its pathnames are read; otherwise,
+     * it is created.
+     *
+     * @param path
+     *            The pathname of the file.
+     * @param commitInterval
+     *            The maximum time, in milliseconds, that an append can remain
+     *            unforced. If non-positive, then every append is forced.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    PathDictionary(final Path path, final long commitInterval)
+            throws IOException {
+        this.path = path;
+        this.commitInterval = commitInterval;
+        synchronized (this) {
+            read();
+            compact();
+        }
+    }
+
+    /**
+     * Reads the file. Reading stops at the first incomplete or corrupt record.
+     *
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void read() throws IOException {
+        final byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path);
+        }
+        catch (final NoSuchFileException e) {
+            return;
+        }
+        final ByteBuffer buf = ByteBuffer.wrap(bytes);
+        if (buf.remaining() < HEADER_SIZE) {
+            logger.warn("Ignoring truncated file {}", path);
+            return;
+        }
+        final int version = buf.getInt();
+        if (version != VERSION) {
+            throw new IOException("Invalid version (" + version + ") of "
+                    + path);
+        }
+        nextId = buf.getLong();
+        final CRC32 crc = new CRC32();
+        while (buf.remaining() >= RECORD_SIZE) {
+            final int start = buf.position();
+            final byte type = buf.get();
+            final long id = buf.getLong();
+            final int length = buf.getInt();
+            if (length < 0 || buf.remaining() < length + 4) {
+                break;
+            }
+            crc.reset();
+            crc.update(bytes, start, RECORD_SIZE - 4 + length);
+            buf.position(buf.position() + length);
+            if (buf.getInt() != (int) crc.getValue()) {
+                buf.position(start);
+                break;
+            }
+            if (type == ADD) {
+                final byte[] name = new byte[length];
+                System.arraycopy(bytes, start + RECORD_SIZE - 4, name, 0,
+                        length);
+                paths.put(id, name);
+                nextId = Math.max(nextId, id + 1);
+            }
+            else if (type == REMOVE) {
+                paths.remove(id);
+            }
+            else {
+                buf.position(start);
+                break;
+            }
+        }
+        if (buf.hasRemaining()) {
+            logger.warn("Ignoring {} bytes at the end of {}", buf.remaining(),
+                    path);
+        }
+    }
+
+    /**
+     * Rewrites the file so that it contains only the current pathnames.
+     *
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void compact() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        final FileChannel tmp = FileChannel.open(tmpPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(VERSION);
+            header.putLong(nextId);
+            header.flip();
+            write(tmp, header);
+            for (final Map.Entry<Long, byte[]> entry : paths.entrySet()) {
+                write(tmp, encode(ADD, entry.getKey(), entry.getValue()));
+            }
+            tmp.force(false);
+        }
+        finally {
+            tmp.close();
+        }
+        Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        channel = FileChannel.open(path, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        recordCount = paths.size();
+        dirty = false;
+    }
+
+    /**
+     * Returns a record.
+     *
+     * @param type
+     *            The type of the record.
+     * @param id
+     *            The identifier.
+     * @param name
+     *            The pathname in UTF-8.
+     * @return The record.
+     */
+    private static ByteBuffer encode(final byte type, final long id,
+            final byte[] name) {
+        final ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE + name.length);
+        buf.put(type);
+        buf.putLong(id);
+        buf.putInt(name.length);
+        buf.put(name);
+        final CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putInt((int) crc.getValue());
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Writes a buffer to a channel.
+     *
+     * @param channel
+     *            The channel.
+     * @param buf
+     *            The buffer.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static void write(final FileChannel channel, final ByteBuffer buf)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Appends a record to the file.
+     *
+     * @param record
+     *            The record.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void append(final ByteBuffer record) throws IOException {
+        if (channel == null) {
+            throw new IOException("Closed: " + this);
+        }
+        write(channel, record);
+        recordCount++;
+        if (commitInterval <= 0) {
+            channel.force(false);
+        }
+        else {
+            dirty = true;
+            if (commitFuture == null) {
+                commitFuture = committer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (PathDictionary.this) {
+                            commitFuture = null;
+                            try {
+                                force();
+                            }
+                            catch (final IOException e) {
+                                logger.error("Couldn't force " + path, e);
+                            }
+                        }
+                    }
+                }, commitInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Forces unforced appends to disk.
+     *
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void force() throws IOException {
+        if (dirty && channel != null) {
+            channel.force(false);
+            dirty = false;
+        }
+    }
+
+    /**
+     * Adds a pathname.
+     *
+     * @param name
+     *            The pathname.
+     * @return The identifier of the pathname.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    synchronized long put(final Path name) throws IOException {
+        final byte[] bytes = name.toString().getBytes(StandardCharsets.UTF_8);
+        final long id = nextId++;
+        append(encode(ADD, id, bytes));
+        paths.put(id, bytes);
+        return id;
+    }
+
+    /**
+     * Ensures that a given identifier, and every identifier before it, will
+     * never be assigned. Rewrites the file if the next identifier changes.
+     *
+     * @param id
+     *            The identifier.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    synchronized void reserve(final long id) throws IOException {
+        if (id >= nextId) {
+            nextId = id + 1;
+            compact();
+        }
+    }
+
+    /**
+     * Returns the pathname of an identifier.
+     *
+     * @param id
+     *            The identifier.
+     * @return The pathname of the identifier or {@code null} if there's no
+     *         such identifier.
+     */
+    synchronized Path get(final long id) {
+        final byte[] bytes = paths.get(id);
+        return bytes == null
+                ? null
+                : Paths.get(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Removes a pathname. Does nothing if the identifier doesn't exist.
+     *
+     * @param id
+     *            The identifier of the pathname.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    synchronized void remove(final long id) throws IOException {
+        if (paths.remove(id) != null) {
+            append(encode(REMOVE, id, new byte[0]));
+            if (recordCount - paths.size() >= Math.max(COMPACT_MIN,
+                    paths.size())) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Removes every pathname whose identifier isn't in a given set and rewrites
+     * the file.
+     *
+     * @param ids
+     *            The identifiers to retain.
+     * @return The number of removed pathnames.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    synchronized int retainAll(final Set<Long> ids) throws IOException {
+        int count = 0;
+        for (final Iterator<Long> iter = paths.keySet().iterator(); iter
+                .hasNext();) {
+            if (!ids.contains(iter.next())) {
+                iter.remove();
+                count++;
+            }
+        }
+        if (count > 0) {
+            compact();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of pathnames.
+     *
+     * @return The number of pathnames.
+     */
+    synchronized int size() {
+        return paths.size();
+    }
+
+    /**
+     * Closes this instance, forcing unforced appends to disk. Idempotent.
+     *
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    synchronized void close() throws IOException {
+        if (channel != null) {
+            if (commitFuture != null) {
+                commitFuture.cancel(false);
+                commitFuture = null;
+            }
+            try {
+                force();
+            }
+            finally {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        return "PathDictionary [path=" + path + ", size=" + paths.size() + "]";
+    }
+}
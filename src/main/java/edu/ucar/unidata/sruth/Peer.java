@@ -11,7 +11,10 @@ import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.file.FileSystemException;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
@@ -25,6 +28,8 @@ import net.jcip.annotations.ThreadSafe;
 
 import org.slf4j.Logger;
 
+import edu.ucar.unidata.sruth.Connection.Message;
+
 /**
  * Exchanges data with its remote counterpart.
  * <p>
@@ -34,6 +39,23 @@ import org.slf4j.Logger;
  */
 @ThreadSafe
 final class Peer implements Callable<Boolean> {
+    /**
+     * A listener for requests for data-pieces that have stalled, i.e., for
+     * which no data-piece has arrived from the remote peer for a while.
+     *
+     * @author Steven R. Emmerson
+     */
+    interface StallListener {
+        /**
+         * Handles stalled requests. The requests have been released by the
+         * peer so that the data-pieces can be obtained elsewhere.
+         *
+         * @param specs
+         *            Specifications of the stalled data-pieces.
+         */
+        void stalled(SpecSet specs);
+    }
+
     /**
      * The logging service.
      */
@@ -51,9 +73,12 @@ final class Peer implements Callable<Boolean> {
      */
     private final NoticeQueue          noticeQueue        = new NoticeQueue();
     /**
-     * Piece queue. Contains pieces of data to be sent to the remote peer.
+     * Send queue. Contains specifications of data-pieces to be sent to the
+     * remote peer. The pieces are obtained from the archive only when they can
+     * be sent so that a slow remote peer doesn't block the processing of its
+     * requests.
      */
-    private final BlockingQueue<Piece> pieceQueue         = new SynchronousQueue<Piece>();
+    private final DataSpecQueue        sendQueue          = new DataSpecQueue();
     /**
      * Specification of data desired by the local peer.
      */
@@ -72,6 +97,18 @@ final class Peer implements Callable<Boolean> {
      * the remote peer should send notices for those that it has.
      */
     private final DataSpecQueue        requestNoticeQueue = new DataSpecQueue();
+    /**
+     * The window of outstanding requests for data-pieces.
+     */
+    private final RequestWindow        requestWindow      = new RequestWindow();
+    /**
+     * The signal that a request might be sendable.
+     */
+    private final Signal               requestSignal      = new Signal();
+    /**
+     * The listener for stalled requests or {@code null}.
+     */
+    private volatile StallListener     stallListener;
     /**
      * The executor service for all the threads of a peer.
      */
@@ -82,13 +119,10 @@ final class Peer implements Callable<Boolean> {
                                                                   TimeUnit.SECONDS,
                                                                   new SynchronousQueue<Runnable>());
     /**
-     * A counter of the amount of downloaded data.
-     */
-    private volatile long              counter;
-    /**
-     * Whether or not the counter is stopped.
+     * The performance metrics of received data-pieces.
      */
-    private volatile boolean           counterStopped;
+    private final PeerMetrics          metrics            = new PeerMetrics(
+                                                                  System.nanoTime());
     /**
      * The set of pending data-piece requests (i.e., requests that have been at
      * least queued but whose referenced data-pieces have not yet arrived)
@@ -133,6 +167,17 @@ final class Peer implements Callable<Boolean> {
         this.remoteFilter = remoteFilter;
     }
 
+    /**
+     * Sets the listener for stalled requests for data-pieces. Stalled requests
+     * are released whether or not a listener exists.
+     *
+     * @param listener
+     *            The listener for stalled requests or {@code null}.
+     */
+    void setStallListener(final StallListener listener) {
+        stallListener = listener;
+    }
+
     /**
      * Returns this instance's {@link Connection}.
      * 
@@ -151,6 +196,15 @@ final class Peer implements Callable<Boolean> {
         return localFilter;
     }
 
+    /**
+     * Returns the filter for remotely-desired data.
+     * 
+     * @return the filter for remotely-desired data.
+     */
+    Filter getRemoteFilter() {
+        return remoteFilter;
+    }
+
     /**
      * Returns the address of the socket of the server associated with the
      * remote end.
@@ -182,6 +236,9 @@ final class Peer implements Callable<Boolean> {
     @Override
     public final Boolean call() throws EOFException, IOException,
             SocketException, InterruptedException {
+        if (NioTransport.canUse(connection)) {
+            return callNonBlocking();
+        }
         logger.trace("Starting up: {}", this);
         final String origName = Thread.currentThread().getName();
         Thread.currentThread().setName(toString());
@@ -219,6 +276,9 @@ final class Peer implements Callable<Boolean> {
                      * This instance wants data. Start the tasks in a particular
                      * order.
                      */
+                    requestQueue.setListener(requestSignal);
+                    requestNoticeQueue.setListener(requestSignal);
+                    requestWindow.setListener(requestSignal);
                     completionService.submit(new PieceReceiver(connection));
                     completionService.submit(new RequestSender(connection));
                     completionService.submit(new NoticeReceiver(connection));
@@ -237,28 +297,21 @@ final class Peer implements Callable<Boolean> {
                                     .submit(new FileScanner());
                         }
 
-                        for (Future<Void> future = completionService.take(); !future
-                                .isCancelled(); future = completionService
-                                .take()) {
+                        for (;;) {
+                            final Future<Void> future = completionService.poll(
+                                    1, TimeUnit.SECONDS);
+                            if (future == null) {
+                                checkForStall();
+                                continue;
+                            }
+                            if (future.isCancelled()) {
+                                break;
+                            }
                             try {
                                 future.get();
                             }
                             catch (final ExecutionException e) {
-                                final Throwable cause = e.getCause();
-                                logger.debug(cause.toString());
-                                if (cause instanceof EOFException) {
-                                    throw (EOFException) cause;
-                                }
-                                if (cause instanceof SocketTimeoutException) {
-                                    throw (SocketTimeoutException) cause;
-                                }
-                                if (cause instanceof SocketException) {
-                                    throw (SocketException) cause;
-                                }
-                                if (cause instanceof IOException) {
-                                    throw (IOException) cause;
-                                }
-                                throw Util.launderThrowable(cause);
+                                throw rethrow(e.getCause());
                             }
                             if (!future.equals(fileScannerFuture)) {
                                 // A Sender or Receiver completed
@@ -287,7 +340,161 @@ final class Peer implements Callable<Boolean> {
             logger.trace("Done: {}", this);
         }
 
-        return new Boolean(validPeer);
+        return Boolean.valueOf(validPeer);
+    }
+
+    /**
+     * Executes this instance using the {@link NioTransport}: the streams of
+     * the connection are serviced by the shared threads of the transport
+     * rather than by a pair of threads per stream. Upon completion, the
+     * connection is closed.
+     * 
+     * @return {@code false} if this instance duplicates a previously existing
+     *         one. {@code true} if all locally-desired data was received.
+     * @throws EOFException
+     *             if the connection was closed by the remote peer.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     * @throws IOException
+     *             if a serious I/O error occurs.
+     * @throws SocketException
+     *             if the connection was closed by the remote peer.
+     */
+    private Boolean callNonBlocking() throws EOFException, IOException,
+            SocketException, InterruptedException {
+        logger.trace("Starting up: {}", this);
+        final String origName = Thread.currentThread().getName();
+        Thread.currentThread().setName(toString());
+        boolean validPeer;
+
+        try {
+            final NioTransport.Session session = NioTransport.getInstance()
+                    .newSession(toString(), connection);
+            /*
+             * The streams of a multiplexed connection share one socket, so
+             * their halves can't be closed individually.
+             */
+            final boolean closeUnused = !connection.isMultiplexed();
+
+            try {
+                if (remoteFilter.equals(Filter.NOTHING)) {
+                    // The remote instance doesn't want data
+                    if (closeUnused) {
+                        connection.getNoticeStream().getOutput().close();
+                        connection.getRequestStream().getInput().close();
+                        connection.getDataStream().getOutput().close();
+                    }
+                }
+                else {
+                    sendQueue.setListener(session.addOutput(Connection.DATA,
+                            new PieceSource()));
+                    session.addInput(Connection.REQUEST,
+                            new MessageSink<Request>(Request.class));
+                    noticeQueue.setListener(session.addOutput(
+                            Connection.NOTICE, new NoticeSource()));
+                }
+
+                if (localFilter.equals(Filter.NOTHING)) {
+                    // This instance doesn't want data
+                    if (closeUnused) {
+                        connection.getNoticeStream().getInput().close();
+                        connection.getRequestStream().getOutput().close();
+                        connection.getDataStream().getInput().close();
+                    }
+                }
+                else {
+                    session.addInput(Connection.DATA, new MessageSink<Piece>(
+                            Piece.class));
+                    final Runnable requestListener = session.addOutput(
+                            Connection.REQUEST, new RequestSource());
+                    requestQueue.setListener(requestListener);
+                    requestNoticeQueue.setListener(requestListener);
+                    requestWindow.setListener(requestListener);
+                    session.addInput(Connection.NOTICE,
+                            new MessageSink<Notice>(Notice.class));
+                }
+
+                session.start();
+                validPeer = clearingHouse.add(this);
+                if (!validPeer) {
+                    logger.debug("Not a valid peer: {}", this);
+                }
+                else {
+                    try {
+                        Future<Void> fileScannerFuture = null;
+                        if (!remoteFilter.equals(Filter.NOTHING)) {
+                            // The remote instance wants data
+                            fileScannerFuture = cancellingExecutor
+                                    .submit(new FileScanner());
+                        }
+                        while (!session.await(1, TimeUnit.SECONDS)) {
+                            checkForStall();
+                            if (fileScannerFuture != null
+                                    && fileScannerFuture.isDone()) {
+                                fileScannerFuture.get();
+                                fileScannerFuture = null;
+                            }
+                        }
+                        logger.trace("Session completed: {}", this);
+                    }
+                    catch (final ExecutionException e) {
+                        throw rethrow(e.getCause());
+                    }
+                    finally {
+                        clearingHouse.remove(this);
+                    }
+                }
+            }
+            finally {
+                session.close();
+                cancellingExecutor.shutdownNow();
+                Thread.interrupted();
+                cancellingExecutor.awaitTermination(Long.MAX_VALUE,
+                        TimeUnit.DAYS);
+            }
+        }
+        finally {
+            connection.close();
+            Thread.currentThread().setName(origName);
+            logger.trace("Done: {}", this);
+        }
+
+        return Boolean.valueOf(validPeer);
+    }
+
+    /**
+     * Returns the cause of the failure of a task as an exception that's
+     * declared by {@link #call()}.
+     * 
+     * @param cause
+     *            The cause of the failure.
+     * @return Never.
+     * @throws EOFException
+     *             if {@code cause} is one.
+     * @throws SocketTimeoutException
+     *             if {@code cause} is one.
+     * @throws SocketException
+     *             if {@code cause} is one.
+     * @throws IOException
+     *             if {@code cause} is one.
+     */
+    private static RuntimeException rethrow(final Throwable cause)
+            throws EOFException, SocketTimeoutException, SocketException,
+            IOException {
+        logger.debug(cause.toString());
+        if (cause instanceof EOFException) {
+            throw (EOFException) cause;
+        }
+        if (cause instanceof SocketTimeoutException) {
+            throw (SocketTimeoutException) cause;
+        }
+        if (cause instanceof SocketException) {
+            throw (SocketException) cause;
+        }
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        throw Util.launderThrowable(cause);
     }
 
     /**
@@ -302,10 +509,23 @@ final class Peer implements Callable<Boolean> {
     void notifyRemoteIfDesired(final PieceSpec pieceSpec)
             throws InterruptedException {
         if (remoteFilter.matches(pieceSpec.getArchivePath())) {
-            noticeQueue.newData(pieceSpec);
+            notifyRemote(pieceSpec);
         }
     }
 
+    /**
+     * Queues a notice of new data for the remote peer without checking the
+     * remote filter, which the caller has already done.
+     * 
+     * @param pieceSpec
+     *            Specification of the new data.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    void notifyRemote(final PieceSpec pieceSpec) throws InterruptedException {
+        noticeQueue.newData(pieceSpec);
+    }
+
     /**
      * Queues a request for a data-piece to be made of the remote peer.
      * 
@@ -345,7 +565,8 @@ final class Peer implements Callable<Boolean> {
     }
 
     /**
-     * Removes a file.
+     * Removes a file. Outstanding requests for the data-pieces of the file are
+     * forgotten because the remote peer won't satisfy them.
      * 
      * @param archivePath
      *            Archive-pathname of the file.
@@ -355,6 +576,13 @@ final class Peer implements Callable<Boolean> {
      *             if {@code archivePath == null}.
      */
     void remove(final ArchivePath archivePath) throws IOException {
+        final PieceSpecSetIface specs = requestWindow.remove(archivePath);
+        if (specs != null) {
+            for (final PieceSpec spec : specs) {
+                pendingRequests.remove(spec);
+            }
+            clearingHouse.release(specs);
+        }
         clearingHouse.remove(archivePath);
     }
 
@@ -364,20 +592,9 @@ final class Peer implements Callable<Boolean> {
      * @param specs
      *            Specifications of the pieces of data to be queued for sending.
      */
-    void queueForSending(final PieceSpecSetIface specs)
-            throws InterruptedException, IOException {
-        for (final PieceSpec spec : specs) {
-            try {
-                final Piece piece = clearingHouse.getPiece(spec);
-                if (piece != null) {
-                    pieceQueue.put(piece);
-                }
-            }
-            catch (final FileInfoMismatchException e) {
-                logger.warn("Mismatched file-information: {}: {}",
-                        e.toString(), this);
-            }
-        }
+    void queueForSending(final PieceSpecSetIface specs) {
+        // The pieces are obtained when the data-stream can accept them
+        sendQueue.put(specs);
     }
 
     /**
@@ -403,7 +620,8 @@ final class Peer implements Callable<Boolean> {
     }
 
     /**
-     * Process a piece of data. May block.
+     * Process a piece of data. May block. Releases the piece (see
+     * {@link Piece#release()}).
      * 
      * @param piece
      *            The piece of data.
@@ -413,17 +631,70 @@ final class Peer implements Callable<Boolean> {
      *             if the current thread is interrupted
      */
     void process(final Piece piece) throws IOException, InterruptedException {
+        final int size = piece.getSize();
+        boolean wasUsed = false;
         try {
-            final boolean wasUsed = clearingHouse.process(Peer.this, piece);
-            if (!counterStopped && wasUsed) {
-                counter += piece.getSize();
-            }
+            wasUsed = clearingHouse.process(Peer.this, piece);
         }
         catch (final FileInfoMismatchException e) {
             logger.warn("Mismatched file-information: {}: {}", e.toString(),
                     this);
         }
+        finally {
+            piece.release();
+        }
         pendingRequests.remove(piece.getInfo());
+        final long now = System.nanoTime();
+        final long rtt = requestWindow.received(piece.getInfo(), now);
+        metrics.received(size, wasUsed, rtt, now);
+    }
+
+    /**
+     * Returns the next request to be sent to the remote peer if one can be
+     * sent. Requests for notices are always sendable; requests for data-pieces
+     * are sendable only while the request window isn't full.
+     *
+     * @return The next request or {@code null} if no request can be sent.
+     */
+    private Request nextRequest() {
+        final PieceSpecSetIface noticeSpecs = requestNoticeQueue.poll();
+        if (noticeSpecs != null) {
+            return new NoticeRequest(noticeSpecs);
+        }
+        final long available = requestWindow.available();
+        if (available <= 0) {
+            return null;
+        }
+        final PieceSpecSetIface specs = requestQueue.poll(available);
+        if (specs == null) {
+            return null;
+        }
+        requestWindow.sent(specs, System.nanoTime());
+        return new PieceRequest(specs);
+    }
+
+    /**
+     * Checks the request window for stalled requests. Stalled requests are
+     * released so that the data-pieces can be requested again and are handed
+     * to the stall listener, if it exists, so that the data-pieces can be
+     * obtained from a different peer.
+     */
+    private void checkForStall() {
+        final PieceSpecSetIface specs = requestWindow.removeStalled(System
+                .nanoTime());
+        if (specs != null) {
+            logger.info("Requests to remote peer stalled: {}", this);
+            final SpecSet stalled = new SpecSet();
+            for (final PieceSpec spec : specs) {
+                pendingRequests.remove(spec);
+                stalled.add(spec);
+            }
+            clearingHouse.release(specs);
+            final StallListener listener = stallListener;
+            if (listener != null) {
+                listener.stalled(stalled);
+            }
+        }
     }
 
     /**
@@ -453,28 +724,13 @@ final class Peer implements Callable<Boolean> {
     }
 
     /**
-     * Stops the counter of downloaded data.
-     */
-    void stopCounter() {
-        counterStopped = true;
-    }
-
-    /**
-     * Returns the amount of downloaded data since the most recent call to
-     * {@link #call()} or {@link #stopCounter()}.
+     * Returns the performance metrics of the data-pieces received from the
+     * remote peer.
      * 
-     * @return The amount of downloaded data in octets.
-     */
-    long getCounter() {
-        return counter;
-    }
-
-    /**
-     * Resets and restarts the counter.
+     * @return The performance metrics of received data-pieces.
      */
-    void restartCounter() {
-        counter = 0;
-        counterStopped = false;
+    PeerMetrics getMetrics() {
+        return metrics;
     }
 
     /**
@@ -802,7 +1058,12 @@ final class Peer implements Callable<Boolean> {
             try {
                 T message;
                 while ((message = nextMessage()) != null) {
-                    stream.send(message);
+                    try {
+                        stream.send(message);
+                    }
+                    finally {
+                        sent(message);
+                    }
                 }
             }
             catch (final SocketException e) {
@@ -826,8 +1087,21 @@ final class Peer implements Callable<Boolean> {
          * @return The next message to send.
          * @throws InterruptedException
          *             if the current thread is interrupted.
+         * @throws IOException
+         *             if an I/O error occurs.
          */
-        protected abstract T nextMessage() throws InterruptedException;
+        protected abstract T nextMessage() throws InterruptedException,
+                IOException;
+
+        /**
+         * Processes a message after an attempt to send it. This implementation
+         * does nothing.
+         * 
+         * @param message
+         *            The message.
+         */
+        protected void sent(final T message) {
+        }
 
         /**
          * Stops the thread executing this instance by closing the output
@@ -850,7 +1124,8 @@ final class Peer implements Callable<Boolean> {
     }
 
     /**
-     * Sends requests for data to the remote peer.
+     * Sends requests for data to the remote peer. Requests for data-pieces are
+     * sent only while the request window isn't full.
      * <p>
      * Instances are thread-safe.
      * 
@@ -871,8 +1146,14 @@ final class Peer implements Callable<Boolean> {
         }
 
         @Override
-        public PieceRequest nextMessage() throws InterruptedException {
-            return new PieceRequest(requestQueue.take());
+        public Request nextMessage() throws InterruptedException {
+            for (;;) {
+                final Request request = nextRequest();
+                if (request != null) {
+                    return request;
+                }
+                requestSignal.await();
+            }
         }
     }
 
@@ -913,6 +1194,18 @@ final class Peer implements Callable<Boolean> {
      */
     @ThreadSafe
     private final class PieceSender extends Sender<Piece> {
+        /**
+         * Whether or not pieces of complete files can be sent directly from
+         * the files.
+         */
+        private final boolean       byReference;
+        /**
+         * The specifications of the pieces to be sent.
+         */
+        @GuardedBy("this")
+        private Iterator<PieceSpec> iter = Collections
+                                                 .<PieceSpec> emptyIterator();
+
         /**
          * Constructs from a connection to the remote peer.
          * 
@@ -923,11 +1216,143 @@ final class Peer implements Callable<Boolean> {
          */
         PieceSender(final Connection connection) {
             super(connection.getDataStream());
+            byReference = connection.getDataStream().getOutput()
+                    .canSendFiles();
         }
 
         @Override
-        protected Piece nextMessage() throws InterruptedException {
-            return pieceQueue.take();
+        protected synchronized Piece nextMessage()
+                throws InterruptedException, IOException {
+            for (;;) {
+                while (!iter.hasNext()) {
+                    iter = sendQueue.take().iterator();
+                }
+                final PieceSpec spec = iter.next();
+                try {
+                    final Piece piece = clearingHouse.getPiece(spec,
+                            byReference);
+                    if (piece != null) {
+                        return piece;
+                    }
+                }
+                catch (final FileInfoMismatchException e) {
+                    logger.warn("Mismatched file-information: {}: {}",
+                            e.toString(), Peer.this);
+                }
+            }
+        }
+
+        @Override
+        protected void sent(final Piece piece) {
+            piece.release();
+        }
+    }
+
+    /**
+     * The source of pieces of data for the {@link NioTransport}. Pieces are
+     * obtained from the archive only when the data-stream can accept them.
+     * <p>
+     * Instances are thread-safe.
+     * 
+     * @author Steven R. Emmerson
+     */
+    @ThreadSafe
+    private final class PieceSource implements NioTransport.Source {
+        /**
+         * The specifications of the pieces to be sent.
+         */
+        @GuardedBy("this")
+        private Iterator<PieceSpec> iter = Collections
+                                                 .<PieceSpec> emptyIterator();
+
+        @Override
+        public synchronized Message poll() throws IOException {
+            for (;;) {
+                while (!iter.hasNext()) {
+                    final PieceSpecSetIface specs = sendQueue.poll();
+                    if (specs == null) {
+                        return null;
+                    }
+                    iter = specs.iterator();
+                }
+                final PieceSpec spec = iter.next();
+                try {
+                    final Piece piece = clearingHouse.getPiece(spec,
+                            WireProtocol.SEND_FILES);
+                    if (piece != null) {
+                        return piece;
+                    }
+                }
+                catch (final FileInfoMismatchException e) {
+                    logger.warn("Mismatched file-information: {}: {}",
+                            e.toString(), Peer.this);
+                }
+            }
+        }
+    }
+
+    /**
+     * The source of requests for data for the {@link NioTransport}. Requests
+     * for data-pieces are obtained only while the request window isn't full.
+     * <p>
+     * Instances are thread-safe.
+     * 
+     * @author Steven R. Emmerson
+     */
+    @ThreadSafe
+    private final class RequestSource implements NioTransport.Source {
+        @Override
+        public Message poll() {
+            return nextRequest();
+        }
+    }
+
+    /**
+     * The source of notices of data for the {@link NioTransport}.
+     * <p>
+     * Instances are thread-safe.
+     * 
+     * @author Steven R. Emmerson
+     */
+    @ThreadSafe
+    private final class NoticeSource implements NioTransport.Source {
+        @Override
+        public Message poll() {
+            return noticeQueue.poll();
+        }
+    }
+
+    /**
+     * Processes messages from the remote peer that are received by the
+     * {@link NioTransport}.
+     * <p>
+     * Instances are thread-safe.
+     * 
+     * @author Steven R. Emmerson
+     */
+    @ThreadSafe
+    private final class MessageSink<T extends PeerMessage> implements
+            NioTransport.Sink {
+        /**
+         * The type of the messages.
+         */
+        private final Class<T> type;
+
+        /**
+         * Constructs from the type of the messages.
+         * 
+         * @param type
+         *            The type of the messages.
+         */
+        MessageSink(final Class<T> type) {
+            this.type = type;
+        }
+
+        @Override
+        public boolean process(final Message msg) throws IOException,
+                InterruptedException {
+            type.cast(msg).processYourself(Peer.this);
+            return Piece.class.equals(type) && clearingHouse.allDataReceived();
         }
     }
 
@@ -945,6 +1370,31 @@ final class Peer implements Callable<Boolean> {
          */
         @GuardedBy("this")
         private PieceSpecSetIface pieceSpecSet = EmptyPieceSpecSet.INSTANCE;
+        /**
+         * The task to execute after an addition or {@code null}.
+         */
+        private volatile Runnable listener;
+
+        /**
+         * Sets the task to be executed after every addition.
+         * 
+         * @param listener
+         *            The task to execute after every addition or {@code null}.
+         *            Must not block.
+         */
+        void setListener(final Runnable listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Executes the listener if it exists.
+         */
+        private void signal() {
+            final Runnable task = listener;
+            if (task != null) {
+                task.run();
+            }
+        }
 
         /**
          * Adds a data-specification.
@@ -955,6 +1405,7 @@ final class Peer implements Callable<Boolean> {
         synchronized void put(final FilePieceSpecSet spec) {
             pieceSpecSet = pieceSpecSet.merge(spec);
             notify();
+            signal();
         }
 
         /**
@@ -967,6 +1418,7 @@ final class Peer implements Callable<Boolean> {
         synchronized void put(final PieceSpecSetIface specs) {
             pieceSpecSet = pieceSpecSet.merge(specs);
             notify();
+            signal();
         }
 
         /**
@@ -1006,6 +1458,42 @@ final class Peer implements Callable<Boolean> {
                     : removeAndReturn();
         }
 
+        /**
+         * Removes and returns data-specifications whose total size is at
+         * least a given number of bytes -- or all of them if their total size
+         * is less -- if any exist; otherwise, returns {@code null}.
+         *
+         * @param maxBytes
+         *            The number of bytes. The total size of the returned
+         *            specifications exceeds it by less than the size of one
+         *            data-piece.
+         * @return The removed data-specifications or {@code null}.
+         */
+        synchronized PieceSpecSetIface poll(final long maxBytes) {
+            if (isEmpty()) {
+                return null;
+            }
+            final List<PieceSpec> taken = new ArrayList<PieceSpec>();
+            long size = 0;
+            for (final PieceSpec spec : pieceSpecSet) {
+                if (size >= maxBytes) {
+                    break;
+                }
+                taken.add(spec);
+                size += spec.getSize();
+            }
+            if (size < maxBytes) {
+                return removeAndReturn();
+            }
+            PieceSpecSetIface specs = EmptyPieceSpecSet.INSTANCE;
+            for (final PieceSpec spec : taken) {
+                specs = specs.merge(spec);
+                pieceSpecSet = pieceSpecSet.remove(spec);
+            }
+            notify();
+            return specs;
+        }
+
         @GuardedBy("this")
         synchronized private PieceSpecSetIface removeAndReturn() {
             final PieceSpecSetIface specs = pieceSpecSet;
@@ -1015,6 +1503,42 @@ final class Peer implements Callable<Boolean> {
         }
     }
 
+    /**
+     * A signal that can be awaited. Signals that occur while no thread is
+     * waiting aren't lost.
+     * <p>
+     * Instances are thread-safe.
+     *
+     * @author Steven R. Emmerson
+     */
+    @ThreadSafe
+    private static final class Signal implements Runnable {
+        /**
+         * Whether or not a signal has occurred since the last wait.
+         */
+        @GuardedBy("this")
+        private boolean signaled;
+
+        @Override
+        public synchronized void run() {
+            signaled = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits until a signal has occurred since the last wait.
+         *
+         * @throws InterruptedException
+         *             if the current thread is interrupted.
+         */
+        synchronized void await() throws InterruptedException {
+            while (!signaled) {
+                wait();
+            }
+            signaled = false;
+        }
+    }
+
     /**
      * A queue of notices.
      * <p>
@@ -1038,6 +1562,31 @@ final class Peer implements Callable<Boolean> {
          */
         @GuardedBy("this")
         private ArchivePathSet      removals    = new ArchivePathSet();
+        /**
+         * The task to execute after an addition or {@code null}.
+         */
+        private volatile Runnable   listener;
+
+        /**
+         * Sets the task to be executed after every addition.
+         * 
+         * @param listener
+         *            The task to execute after every addition or {@code null}.
+         *            Must not block.
+         */
+        void setListener(final Runnable listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Executes the listener if it exists.
+         */
+        private void signal() {
+            final Runnable task = listener;
+            if (task != null) {
+                task.run();
+            }
+        }
 
         /**
          * Adds a notice about new data.
@@ -1052,6 +1601,7 @@ final class Peer implements Callable<Boolean> {
             additions.put(spec);
             logger.trace("New-data notice added: {}", spec);
             notify();
+            signal();
         }
 
         /**
@@ -1078,6 +1628,7 @@ final class Peer implements Callable<Boolean> {
             additions.put(spec);
             logger.trace("Old-data notice added: {}", spec);
             notify();
+            signal();
         }
 
         /**
@@ -1090,6 +1641,7 @@ final class Peer implements Callable<Boolean> {
             removals.add(archivePath);
             logger.trace("Removal notice added: {}", archivePath);
             notify();
+            signal();
         }
 
         /**
@@ -1100,10 +1652,33 @@ final class Peer implements Callable<Boolean> {
          *             if the current thread is interrupted.
          */
         synchronized Notice take() throws InterruptedException {
-            Notice notice;
             while (removals.isEmpty() && additions.isEmpty()) {
                 wait();
             }
+            return remove();
+        }
+
+        /**
+         * Removes and returns the next notice if one exists; otherwise,
+         * returns {@code null}.
+         * 
+         * @return The next notice or {@code null}.
+         */
+        synchronized Notice poll() {
+            return (removals.isEmpty() && additions.isEmpty())
+                    ? null
+                    : remove();
+        }
+
+        /**
+         * Removes and returns the next notice. Favors additions over removals
+         * but alternates between them when both exist.
+         * 
+         * @return The next notice.
+         */
+        @GuardedBy("this")
+        private Notice remove() {
+            Notice notice;
             if (additions.isEmpty() || (!removals.isEmpty() && wasAddition)) {
                 notice = (1 == removals.size())
                         ? new RemovedFileNotice(removals.iterator().next())
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.Preferences;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Performance metrics of the data-pieces received by a local peer: the
+ * throughput, the round-trip time of requested pieces, and the fraction of
+ * pieces that were duplicates (i.e., not used because they had already been
+ * received from another peer).
+ * <p>
+ * The metrics are exponentially-weighted moving averages (EWMA). The weight
+ * of a throughput sample depends on the length of its sampling period so that
+ * the throughput decays while nothing arrives and so that peers of different
+ * ages are compared on the same time-scale.
+ * <p>
+ * Times are in nanoseconds as returned by {@link System#nanoTime()}.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class PeerMetrics {
+    /**
+     * The name of the time-constant user-preference ({@value} ).
+     */
+    private static final String TIME_CONSTANT_KEY     = "peer metrics time constant in seconds";
+    /**
+     * The default value of the time-constant user-preference ({@value} ).
+     */
+    private static final int    TIME_CONSTANT_DEFAULT = 30;
+    /**
+     * The time-constant of the throughput in nanoseconds.
+     */
+    static final long           TIME_CONSTANT;
+    /**
+     * The weight of a new sample of the round-trip time.
+     */
+    private static final double RTT_WEIGHT            = 0.125;
+    /**
+     * The weight of a new sample of the duplicate-ratio.
+     */
+    private static final double DUPLICATE_WEIGHT      = 1.0 / 16;
+    /**
+     * The minimum time, in nanoseconds, over which the throughput is sampled.
+     */
+    private static final long   MINIMUM_SAMPLE_PERIOD = TimeUnit.MILLISECONDS
+                                                              .toNanos(100);
+
+    static {
+        final Preferences prefs = Preferences
+                .userNodeForPackage(PeerMetrics.class);
+        final int timeConstant = prefs.getInt(TIME_CONSTANT_KEY,
+                TIME_CONSTANT_DEFAULT);
+        if (timeConstant <= 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + TIME_CONSTANT_KEY + "\"=" + timeConstant);
+        }
+        TIME_CONSTANT = TimeUnit.SECONDS.toNanos(timeConstant);
+    }
+
+    /**
+     * When this instance was created.
+     */
+    private final long          start;
+    /**
+     * The throughput in bytes per second.
+     */
+    @GuardedBy("this")
+    private double              throughput;
+    /**
+     * The start of the current sampling period of the throughput.
+     */
+    @GuardedBy("this")
+    private long                sampleStart;
+    /**
+     * The number of bytes that have arrived during the current sampling
+     * period.
+     */
+    @GuardedBy("this")
+    private long                sampleBytes;
+    /**
+     * The smoothed round-trip time in nanoseconds or {@code 0} if unknown.
+     */
+    @GuardedBy("this")
+    private double              rtt;
+    /**
+     * The fraction of received pieces that were duplicates.
+     */
+    @GuardedBy("this")
+    private double              duplicateRatio;
+    /**
+     * The number of received pieces.
+     */
+    @GuardedBy("this")
+    private long                pieceCount;
+
+    /**
+     * Constructs.
+     *
+     * @param now
+     *            The current time.
+     */
+    PeerMetrics(final long now) {
+        start = now;
+        sampleStart = now;
+    }
+
+    /**
+     * Records the arrival of a data-piece.
+     *
+     * @param size
+     *            The size of the piece in bytes.
+     * @param wasUsed
+     *            Whether or not the piece was used (i.e., wasn't a duplicate).
+     * @param rtt
+     *            The round-trip time of the piece in nanoseconds or a negative
+     *            value if unknown (e.g., the piece wasn't requested).
+     * @param now
+     *            The current time.
+     */
+    synchronized void received(final int size, final boolean wasUsed,
+            final long rtt, final long now) {
+        sampleBytes += size;
+        update(now);
+        if (rtt >= 0) {
+            this.rtt = (this.rtt == 0)
+                    ? rtt
+                    : this.rtt + RTT_WEIGHT * (rtt - this.rtt);
+        }
+        final double sample = wasUsed
+                ? 0
+                : 1;
+        duplicateRatio = (pieceCount == 0)
+                ? sample
+                : duplicateRatio + DUPLICATE_WEIGHT * (sample - duplicateRatio);
+        pieceCount++;
+    }
+
+    /**
+     * Folds the current sampling period into the throughput if the period is
+     * long enough. The weight of the sample is {@code 1 - exp(-period/T)},
+     * where {@code T} is the time-constant.
+     *
+     * @param now
+     *            The current time.
+     */
+    @GuardedBy("this")
+    private void update(final long now) {
+        final long period = now - sampleStart;
+        if (period >= MINIMUM_SAMPLE_PERIOD) {
+            final double sample = sampleBytes
+                    / (period / (double) TimeUnit.SECONDS.toNanos(1));
+            final double weight = 1 - Math.exp(-(double) period
+                    / TIME_CONSTANT);
+            throughput += weight * (sample - throughput);
+            sampleStart = now;
+            sampleBytes = 0;
+        }
+    }
+
+    /**
+     * Returns the throughput, which decays while no data-pieces arrive.
+     *
+     * @param now
+     *            The current time.
+     * @return The throughput in bytes per second.
+     */
+    synchronized double getThroughput(final long now) {
+        update(now);
+        return throughput;
+    }
+
+    /**
+     * Returns the smoothed round-trip time of requested data-pieces.
+     *
+     * @return The round-trip time in nanoseconds or {@code 0} if unknown.
+     */
+    synchronized double getRoundTripTime() {
+        return rtt;
+    }
+
+    /**
+     * Returns the fraction of received data-pieces that were duplicates.
+     *
+     * @return The duplicate-ratio: a value in the range {@code [0,1]}.
+     */
+    synchronized double getDuplicateRatio() {
+        return duplicateRatio;
+    }
+
+    /**
+     * Returns the age of this instance.
+     *
+     * @param now
+     *            The current time.
+     * @return The age of this instance in nanoseconds.
+     */
+    long getAge(final long now) {
+        return now - start;
+    }
+
+    /**
+     * Returns the score of the peer: its useful throughput (i.e., the
+     * throughput times the fraction of non-duplicate pieces) discounted by its
+     * round-trip time. The discount is {@code 1/(1 + rtt)}, where {@code rtt}
+     * is in seconds, so that latency decides between peers of similar
+     * throughput.
+     *
+     * @param now
+     *            The current time.
+     * @return The score of the peer. Greater is better.
+     */
+    synchronized double getScore(final long now) {
+        final double useful = getThroughput(now) * (1 - duplicateRatio);
+        return useful / (1 + rtt / TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        return "PeerMetrics [throughput=" + (long) throughput + " B/s, rtt="
+                + TimeUnit.NANOSECONDS.toMillis((long) rtt)
+                + " ms, duplicateRatio=" + duplicateRatio + "]";
+    }
+}
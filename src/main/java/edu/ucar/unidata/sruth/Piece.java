@@ -7,28 +7,88 @@ package edu.ucar.unidata.sruth;
 
 import java.io.IOException;
 import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.prefs.Preferences;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
 
 /**
- * A piece of a file.
- * 
- * Instances are immutable.
+ * A piece of a file. The data is either in memory or, for a piece that's
+ * about to be sent from a complete file in the archive, in that file (see
+ * {@link #getFile()}). The latter allows the data to be sent without entering
+ * the Java heap.
+ * <p>
+ * Data in memory is either in an array or in a buffer from {@link #POOL}. The
+ * last user of a piece whose data is in a pooled buffer should call
+ * {@link #release()} so that the buffer can be reused by the next piece
+ * rather than becoming garbage.
+ * <p>
+ * Instances are thread-safe.
  * 
  * @author Steven R. Emmerson
  */
+@ThreadSafe
 final class Piece implements PeerMessage {
     /**
      * The serial version identifier.
      */
     private static final long serialVersionUID = 1L;
+    /**
+     * The name of the maximum-idle-buffers user-preference ({@value} ).
+     */
+    private static final String MAX_IDLE_BUFFERS_KEY     = "maximum idle piece buffers";
+    /**
+     * The default value of the maximum-idle-buffers user-preference ({@value}
+     * ).
+     */
+    private static final int    MAX_IDLE_BUFFERS_DEFAULT = 256;
+    /**
+     * The pool of buffers for the data of pieces.
+     */
+    static final BufferPool     POOL;
+
+    static {
+        final Preferences prefs = Preferences.userNodeForPackage(Piece.class);
+        final int maxIdle = prefs.getInt(MAX_IDLE_BUFFERS_KEY,
+                MAX_IDLE_BUFFERS_DEFAULT);
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + MAX_IDLE_BUFFERS_KEY + "\"=" + maxIdle);
+        }
+        POOL = new BufferPool(FileInfo.getDefaultPieceSize(), maxIdle);
+    }
+
     /**
      * Information on the piece.
      */
     private final PieceSpec   pieceSpec;
     /**
-     * The piece's data.
+     * The piece's data or {@code null} if the data is in a buffer or a file.
      */
     private final byte[]      data;
+    /**
+     * The pooled buffer that contains the piece's data or {@code null} if the
+     * data is in an array or a file or the buffer has been released. Never
+     * sent: a piece is always serialized with its data in an array.
+     */
+    @GuardedBy("this")
+    private transient ByteBuffer buffer;
+    /**
+     * Whether or not this instance's data is in a pooled buffer.
+     */
+    private final transient boolean isBuffered;
+    /**
+     * The absolute pathname of the complete file that contains the data or
+     * {@code null} if the data is in memory. Never sent: a piece is always
+     * received with its data in memory.
+     */
+    private final transient Path file;
 
     /**
      * Constructs from information on the piece and the piece's data.
@@ -49,6 +109,61 @@ final class Piece implements PeerMessage {
 
         this.pieceSpec = pieceSpec;
         this.data = data;
+        file = null;
+        isBuffered = false;
+    }
+
+    /**
+     * Constructs from information on the piece and a buffer from {@link #POOL}
+     * that contains the piece's data. The buffer becomes the responsibility
+     * of the new instance.
+     * 
+     * @param pieceSpec
+     *            Information on the piece.
+     * @param buffer
+     *            The piece's data between the buffer's position, which must be
+     *            zero, and its limit. NB: Not copied.
+     * @throws IllegalArgumentException
+     *             if {@code buffer} has the wrong number of bytes.
+     * @throws NullPointerException
+     *             if {@code pieceSpec == null}.
+     * @throws NullPointerException
+     *             if {@code buffer == null}.
+     */
+    Piece(final PieceSpec pieceSpec, final ByteBuffer buffer) {
+        if (buffer.position() != 0 || buffer.limit() != pieceSpec.getSize()) {
+            throw new IllegalArgumentException(
+                    "Invalid data-size.  Should have " + pieceSpec.getSize()
+                            + " bytes; has " + buffer.remaining());
+        }
+        this.pieceSpec = pieceSpec;
+        data = null;
+        this.buffer = buffer;
+        file = null;
+        isBuffered = true;
+    }
+
+    /**
+     * Constructs from information on the piece and the complete file that
+     * contains the piece's data. The data isn't read.
+     * 
+     * @param pieceSpec
+     *            Information on the piece.
+     * @param file
+     *            The absolute pathname of the complete file.
+     * @throws NullPointerException
+     *             if {@code pieceSpec == null}.
+     * @throws NullPointerException
+     *             if {@code file == null}.
+     */
+    Piece(final PieceSpec pieceSpec, final Path file) {
+        if (pieceSpec == null || file == null) {
+            throw new NullPointerException();
+        }
+        this.pieceSpec = pieceSpec;
+        data = null;
+        this.file = file;
+        isBuffered = false;
     }
 
     /**
@@ -79,12 +194,116 @@ final class Piece implements PeerMessage {
     }
 
     /**
-     * Returns this instance's data.
+     * Returns this instance's data as an array. Prefer {@link #getBuffer()}.
      * 
-     * @return This instance's data. NB: Not copied.
+     * @return This instance's data. NB: Not copied if the data is in an
+     *         array; otherwise, a copy of the data in the buffer.
+     * @throws IllegalStateException
+     *             if the data is in a file (see {@link #getFile()}).
+     * @throws IllegalStateException
+     *             if this instance has been released.
      */
     byte[] getData() {
-        return data;
+        if (data != null) {
+            return data;
+        }
+        final byte[] bytes = new byte[pieceSpec.getSize()];
+        getBuffer().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Returns this instance's data as a buffer.
+     * 
+     * @return A new view of this instance's data whose position is zero and
+     *         whose limit is the size of the data. NB: Not copied.
+     * @throws IllegalStateException
+     *             if the data is in a file (see {@link #getFile()}).
+     * @throws IllegalStateException
+     *             if this instance has been released.
+     */
+    ByteBuffer getBuffer() {
+        if (data != null) {
+            return ByteBuffer.wrap(data);
+        }
+        if (file != null) {
+            throw new IllegalStateException("Data is in file " + file);
+        }
+        synchronized (this) {
+            if (buffer == null) {
+                throw new IllegalStateException("Released: " + pieceSpec);
+            }
+            return buffer.duplicate();
+        }
+    }
+
+    /**
+     * Returns the buffer of this instance's data to {@link #POOL}. Does nothing
+     * if the data isn't in a pooled buffer. The data mustn't be accessed
+     * afterwards. Idempotent.
+     */
+    void release() {
+        if (isBuffered) {
+            final ByteBuffer buf;
+            synchronized (this) {
+                buf = buffer;
+                buffer = null;
+            }
+            if (buf != null) {
+                POOL.release(buf);
+            }
+        }
+    }
+
+    /**
+     * Returns the absolute pathname of the complete file that contains this
+     * instance's data.
+     * 
+     * @return The absolute pathname of the file that contains the data or
+     *         {@code null} if the data is in memory.
+     */
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * Returns an equivalent instance whose data is in memory. If the returned
+     * instance isn't this instance, then its data is in a pooled buffer and
+     * the caller should {@link #release()} it.
+     * 
+     * @return An equivalent instance whose data is in memory. Might be this
+     *         instance.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    Piece inMemory() throws IOException {
+        if (file == null) {
+            return this;
+        }
+        final ByteBuffer buf = POOL.acquire(pieceSpec.getSize());
+        try {
+            final FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.READ);
+            try {
+                long position = pieceSpec.getOffset();
+                while (buf.hasRemaining()) {
+                    final int n = channel.read(buf, position);
+                    if (n < 0) {
+                        throw new IOException("File truncated: " + file);
+                    }
+                    position += n;
+                }
+            }
+            finally {
+                channel.close();
+            }
+        }
+        catch (final IOException e) {
+            POOL.release(buf);
+            throw e;
+        }
+        buf.flip();
+        return new Piece(pieceSpec, buf);
     }
 
     /**
@@ -148,7 +367,9 @@ final class Piece implements PeerMessage {
     public int hashCode() {
         final int prime = 31;
         int result = 1;
-        result = prime * result + Arrays.hashCode(data);
+        result = prime * result + (file == null
+                ? getBuffer().hashCode()
+                : file.hashCode());
         result = prime * result + ((pieceSpec == null)
                 ? 0
                 : pieceSpec.hashCode());
@@ -172,7 +393,12 @@ final class Piece implements PeerMessage {
             return false;
         }
         final Piece other = (Piece) obj;
-        if (!Arrays.equals(data, other.data)) {
+        if (file == null) {
+            if (other.file != null || !getBuffer().equals(other.getBuffer())) {
+                return false;
+            }
+        }
+        else if (!file.equals(other.file)) {
             return false;
         }
         if (pieceSpec == null) {
@@ -188,11 +414,47 @@ final class Piece implements PeerMessage {
 
     @Override
     public String toString() {
+        if (file != null) {
+            return getClass().getSimpleName() + "[pieceSpec=" + pieceSpec
+                    + ", file=" + file + "]";
+        }
+        if (data == null) {
+            return getClass().getSimpleName() + "[pieceSpec=" + pieceSpec
+                    + ", buffered=true]";
+        }
         return getClass().getSimpleName() + "[pieceSpec=" + pieceSpec
                 + ", size=" + data.length + ", dataHash="
                 + Arrays.hashCode(data) + "]";
     }
 
+    /**
+     * Ensures that the data is serialized.
+     * 
+     * @return An equivalent instance whose data is in memory.
+     * @throws ObjectStreamException
+     *             if the data couldn't be read from its file.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        if (data != null) {
+            return this;
+        }
+        try {
+            final Piece piece = inMemory();
+            try {
+                return new Piece(pieceSpec, piece.getData());
+            }
+            finally {
+                if (piece != this) {
+                    piece.release();
+                }
+            }
+        }
+        catch (final IOException e) {
+            throw (InvalidObjectException) new InvalidObjectException(
+                    "Couldn't read data of " + this).initCause(e);
+        }
+    }
+
     private Object readResolve() throws InvalidObjectException {
         try {
             return new Piece(pieceSpec, data);
@@ -42,6 +42,15 @@ final class PieceRequest implements Request {
         this.set = set;
     }
 
+    /**
+     * Returns the set of data-piece specifications.
+     * 
+     * @return The set of data-piece specifications.
+     */
+    PieceSpecSetIface getSpecs() {
+        return set;
+    }
+
     @Override
     public void processYourself(final Peer peer) throws IOException,
             InterruptedException {
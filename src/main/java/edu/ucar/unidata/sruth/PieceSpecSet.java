@@ -104,13 +104,11 @@ final class PieceSpecSet implements PieceSpecSetIface, Serializable {
         final FilePieceSpecSet value = filePieceSpecSets.get(fileId);
         if (value != null) {
             final PieceSpecSetIface newValue = value.remove(spec);
-            if (newValue != value) {
-                if (newValue.isEmpty()) {
-                    filePieceSpecSets.remove(fileId);
-                }
-                else {
-                    filePieceSpecSets.put(fileId, (FilePieceSpecSet) newValue);
-                }
+            if (newValue.isEmpty()) {
+                filePieceSpecSets.remove(fileId);
+            }
+            else if (newValue != value) {
+                filePieceSpecSets.put(fileId, (FilePieceSpecSet) newValue);
             }
         }
         return this;
@@ -0,0 +1,721 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+/**
+ * Pipes data-products to a long-lived decoder process. Unlike
+ * {@link DecodeAction}, which starts a decoder for every data-product, this
+ * action writes data-products back-to-back to the standard input stream of a
+ * decoder that persists across data-products. Each data-product is framed
+ * either by a 4-byte, big-endian length prefix or by a trailing delimiter.
+ * <p>
+ * There's one decoder process for every distinct command that results from
+ * the substitution of capturing groups. A decoder that terminates is
+ * restarted when the next data-product arrives for it. Each decoder has a
+ * bounded backlog of data-products waiting to be written to it; when the
+ * backlog is full, {@link #execute(Matcher, DataProduct)} waits.
+ * <p>
+ * Like the decoders of the LDM's pqact(1), a decoder is closed -- after its
+ * backlog has been written -- when it has been idle for a while or when a
+ * decoder for a new command is needed and the maximum number of open
+ * decoders has been reached, in which case the least-recently-used decoder is
+ * closed.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+public final class PipeAction extends Action {
+    /**
+     * How data-products are separated on the decoder's standard input stream.
+     *
+     * @author Steven R. Emmerson
+     */
+    public enum Framing {
+        /**
+         * Each data-product is preceded by its length as a 4-byte, big-endian
+         * integer.
+         */
+        LENGTH,
+        /**
+         * Each data-product is followed by a delimiter.
+         */
+        DELIMITER
+    }
+
+    /**
+     * A decoder process and the thread that writes data-products to it.
+     * <p>
+     * Instances are thread-safe.
+     *
+     * @author Steven R. Emmerson
+     */
+    @ThreadSafe
+    private final class Decoder implements Runnable {
+        /**
+         * The decoder command.
+         */
+        private final List<String>               command;
+        /**
+         * The data-products waiting to be written to the decoder.
+         */
+        private final BlockingQueue<DataProduct> backlog;
+        /**
+         * The thread that writes data-products to the decoder.
+         */
+        private final Thread                     writer;
+        /**
+         * The buffer for copying data-products.
+         */
+        private final byte[]                     buf   = new byte[COPY_SIZE];
+        /**
+         * The decoder process or {@code null}.
+         */
+        @GuardedBy("this")
+        private Process                          process;
+        /**
+         * The standard input stream of the decoder process.
+         */
+        @GuardedBy("this")
+        private OutputStream                     stdin;
+        /**
+         * When the decoder process was last started in nanoseconds.
+         */
+        private long                             startTime;
+        /**
+         * The number of times the decoder process was started.
+         */
+        private int                              starts;
+        /**
+         * The number of threads that are adding a data-product to the backlog.
+         */
+        @GuardedBy("PipeAction.this")
+        private int                              users;
+        /**
+         * Whether or not this instance is no longer available for new
+         * data-products.
+         */
+        @GuardedBy("PipeAction.this")
+        private boolean                          retired;
+
+        /**
+         * Constructs. The decoder process isn't started until the first
+         * data-product arrives.
+         *
+         * @param command
+         *            The decoder command.
+         */
+        Decoder(final List<String> command) {
+            this.command = command;
+            backlog = new ArrayBlockingQueue<DataProduct>(backlogSize);
+            writer = new Thread(this, "PipeAction-"
+                    + Util.getCommand(command));
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /**
+         * Adds a data-product to the backlog of this instance. Waits if the
+         * backlog is full.
+         *
+         * @param dataProduct
+         *            The data-product.
+         * @throws InterruptedException
+         *             if the current thread is interrupted.
+         */
+        void put(final DataProduct dataProduct) throws InterruptedException {
+            backlog.put(dataProduct);
+        }
+
+        /**
+         * Writes data-products to the decoder until this instance is retired
+         * and its backlog is empty or until interrupted.
+         */
+        @Override
+        public void run() {
+            try {
+                final long pollInterval = Math.min(CHECK_INTERVAL, idleTimeout);
+                long idleSince = System.nanoTime();
+                for (;;) {
+                    final DataProduct dataProduct = backlog.poll(pollInterval,
+                            TimeUnit.MILLISECONDS);
+                    if (dataProduct == null) {
+                        if (retire(System.nanoTime() - idleSince)) {
+                            break;
+                        }
+                        continue;
+                    }
+                    idleSince = System.nanoTime();
+                    final SeekableByteChannel channel;
+                    try {
+                        channel = dataProduct.getReadonlyChannel();
+                    }
+                    catch (final IOException e) {
+                        logger.error("Couldn't open data-product: "
+                                + dataProduct, e);
+                        continue;
+                    }
+                    try {
+                        write(dataProduct, channel);
+                    }
+                    catch (final IOException e) {
+                        /*
+                         * The decoder probably terminated. Restart it and try
+                         * once more.
+                         */
+                        logger.warn("Couldn't pipe {} to decoder \"{}\": {}",
+                                new Object[] { dataProduct,
+                                        Util.getCommand(command), e.toString() });
+                        stop();
+                        try {
+                            channel.position(0);
+                            write(dataProduct, channel);
+                        }
+                        catch (final IOException e2) {
+                            logger.error("Couldn't pipe " + dataProduct
+                                    + " to decoder \""
+                                    + Util.getCommand(command) + "\"", e2);
+                            stop();
+                        }
+                    }
+                    finally {
+                        try {
+                            channel.close();
+                        }
+                        catch (final IOException ignored) {
+                        }
+                    }
+                }
+            }
+            catch (final InterruptedException ignored) {
+            }
+            finally {
+                stop();
+            }
+        }
+
+        /**
+         * Retires this instance if it's no longer needed: it has no backlog,
+         * no thread is adding to the backlog, and it either has already been
+         * retired or has been idle long enough.
+         *
+         * @param idle
+         *            The time, in nanoseconds, that this instance has been
+         *            idle.
+         * @return {@code true} if and only if this instance is retired and its
+         *         writer thread should terminate.
+         */
+        private boolean retire(final long idle) {
+            synchronized (PipeAction.this) {
+                if (users > 0 || !backlog.isEmpty()) {
+                    return false;
+                }
+                if (!retired) {
+                    if (idle < TimeUnit.MILLISECONDS.toNanos(idleTimeout)) {
+                        return false;
+                    }
+                    logger.debug("Closing idle decoder \"{}\"",
+                            Util.getCommand(command));
+                    retired = true;
+                    decoders.remove(command);
+                }
+                retiredDecoders.remove(this);
+                return true;
+            }
+        }
+
+        /**
+         * Writes a data-product to the decoder, starting the decoder if
+         * necessary.
+         *
+         * @param dataProduct
+         *            The data-product.
+         * @param channel
+         *            The channel from which to read the data-product.
+         * @throws InterruptedException
+         *             if the current thread is interrupted.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        private void write(final DataProduct dataProduct,
+                final SeekableByteChannel channel) throws IOException,
+                InterruptedException {
+            final long size = channel.size();
+            if (framing == Framing.LENGTH && size > Integer.MAX_VALUE) {
+                logger.error("Data-product too big to frame: {}", dataProduct);
+                return;
+            }
+            final OutputStream out = getStdin();
+            if (framing == Framing.LENGTH) {
+                out.write(ByteBuffer.allocate(4).putInt((int) size).array());
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(buf);
+            for (long remaining = size; remaining > 0;) {
+                buffer.limit((int) Math.min(buf.length, remaining));
+                final int n = channel.read(buffer);
+                if (n < 0) {
+                    throw new IOException("Data-product truncated: "
+                            + dataProduct);
+                }
+                out.write(buf, 0, buffer.position());
+                buffer.clear();
+                remaining -= n;
+            }
+            if (framing == Framing.DELIMITER) {
+                out.write(delimiter);
+            }
+            out.flush();
+        }
+
+        /**
+         * Returns the standard input stream of the decoder, starting the
+         * decoder if necessary. A decoder that terminates soon after being
+         * started isn't restarted immediately.
+         *
+         * @return The standard input stream of the decoder.
+         * @throws InterruptedException
+         *             if the current thread is interrupted.
+         * @throws IOException
+         *             if the decoder can't be started.
+         */
+        private synchronized OutputStream getStdin() throws IOException,
+                InterruptedException {
+            if (process != null && !isRunning(process)) {
+                logger.warn("Decoder \"{}\" terminated with status {}",
+                        Util.getCommand(command),
+                        Integer.valueOf(process.exitValue()));
+                stop();
+            }
+            if (process == null) {
+                if (starts > 0) {
+                    final long wait = RESTART_DELAY
+                            - TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+                                    - startTime);
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                    logger.info("Restarting decoder \"{}\"",
+                            Util.getCommand(command));
+                }
+                final ProcessBuilder builder = new ProcessBuilder(command);
+                builder.redirectOutput(Redirect.INHERIT);
+                final Process proc = builder.start();
+                startTime = System.nanoTime();
+                starts++;
+                logStderr(proc);
+                process = proc;
+                stdin = proc.getOutputStream();
+            }
+            return stdin;
+        }
+
+        /**
+         * Logs the standard error stream of a decoder process.
+         *
+         * @param proc
+         *            The decoder process.
+         */
+        private void logStderr(final Process proc) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final BufferedReader errorStream = new BufferedReader(
+                            new InputStreamReader(proc.getErrorStream()));
+                    try {
+                        for (String line = errorStream.readLine(); line != null; line = errorStream
+                                .readLine()) {
+                            logger.error(line);
+                        }
+                    }
+                    catch (final IOException ignored) {
+                    }
+                    finally {
+                        try {
+                            errorStream.close();
+                        }
+                        catch (final IOException ignored) {
+                        }
+                    }
+                }
+            }, writer.getName() + "-stderr");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Stops the decoder process, if it exists, by closing its standard
+         * input stream and, if it doesn't then terminate, destroying it.
+         */
+        private synchronized void stop() {
+            if (process != null) {
+                try {
+                    stdin.close();
+                }
+                catch (final IOException ignored) {
+                }
+                for (int i = 0; i < 50 && isRunning(process); i++) {
+                    try {
+                        Thread.sleep(100);
+                    }
+                    catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                process.destroy();
+                process = null;
+                stdin = null;
+            }
+        }
+
+        /**
+         * Stops the writer thread and the decoder process. Data-products in
+         * the backlog are discarded.
+         */
+        void close() {
+            writer.interrupt();
+        }
+
+        /**
+         * Returns the number of times the decoder process was started.
+         *
+         * @return The number of times the decoder process was started.
+         */
+        synchronized int getStartCount() {
+            return starts;
+        }
+    }
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger             logger          = Util.getLogger();
+    /**
+     * The default maximum number of data-products waiting for a decoder.
+     */
+    static final int                        BACKLOG_DEFAULT = 64;
+    /**
+     * The default maximum number of open decoders.
+     */
+    static final int                        MAX_DECODERS_DEFAULT = 32;
+    /**
+     * The default time, in milliseconds, after which an idle decoder is
+     * closed.
+     */
+    static final long                       IDLE_TIMEOUT_DEFAULT = 600000;
+    /**
+     * The maximum time, in milliseconds, between checks of whether a decoder
+     * should be closed.
+     */
+    private static final long               CHECK_INTERVAL  = 1000;
+    /**
+     * The minimum time between starts of a decoder in milliseconds.
+     */
+    private static final long               RESTART_DELAY   = 1000;
+    /**
+     * The size of the buffer for copying data-products.
+     */
+    private static final int                COPY_SIZE       = 65536;
+    /**
+     * The decoder command.
+     */
+    private final String[]                  command;
+    /**
+     * The arguments of the decoder command as templates.
+     */
+    private final Template[]                templates;
+    /**
+     * How data-products are separated.
+     */
+    private final Framing                   framing;
+    /**
+     * The bytes that follow each data-product if {@code framing ==
+     * DELIMITER}.
+     */
+    private final byte[]                    delimiter;
+    /**
+     * The maximum number of data-products waiting for a decoder.
+     */
+    private final int                       backlogSize;
+    /**
+     * The maximum number of open decoders.
+     */
+    private final int                       maxDecoders;
+    /**
+     * The time, in milliseconds, after which an idle decoder is closed.
+     */
+    private final long                      idleTimeout;
+    /**
+     * The open decoders, indexed by command, in order of least-recent use.
+     */
+    @GuardedBy("this")
+    private final Map<List<String>, Decoder> decoders       = new LinkedHashMap<List<String>, Decoder>(
+                                                                    16, 0.75f,
+                                                                    true);
+    /**
+     * The decoders that are being closed but still have a backlog.
+     */
+    @GuardedBy("this")
+    private final Set<Decoder>              retiredDecoders = new HashSet<Decoder>();
+    /**
+     * Whether or not this instance has been closed.
+     */
+    @GuardedBy("this")
+    private boolean                         closed;
+
+    /**
+     * Constructs. At most {@link #MAX_DECODERS_DEFAULT} decoders will be open
+     * and a decoder will be closed after being idle for
+     * {@link #IDLE_TIMEOUT_DEFAULT} milliseconds.
+     *
+     * @param command
+     *            The individual arguments of the decoder command. Each argument
+     *            may contain references to the subsequences of capturing groups
+     *            matched by {@link DataProduct#matcher(Pattern)} of the form
+     *            "$i", where "i" is the i-th capturing group.
+     * @param framing
+     *            How data-products are separated.
+     * @param delimiter
+     *            The bytes that follow each data-product. Ignored unless
+     *            {@code framing == DELIMITER}.
+     * @param backlogSize
+     *            The maximum number of data-products waiting for a decoder.
+     * @throws IllegalArgumentException
+     *             if {@code command} is empty or {@code backlogSize <= 0}.
+     * @throws NullPointerException
+     *             if {@code command == null || framing == null} or if
+     *             {@code framing == DELIMITER && delimiter == null}.
+     */
+    public PipeAction(final List<String> command, final Framing framing,
+            final byte[] delimiter, final int backlogSize) {
+        this(command, framing, delimiter, backlogSize, MAX_DECODERS_DEFAULT,
+                IDLE_TIMEOUT_DEFAULT);
+    }
+
+    /**
+     * Constructs.
+     *
+     * @param command
+     *            The individual arguments of the decoder command. Each argument
+     *            may contain references to the subsequences of capturing groups
+     *            matched by {@link DataProduct#matcher(Pattern)} of the form
+     *            "$i", where "i" is the i-th capturing group.
+     * @param framing
+     *            How data-products are separated.
+     * @param delimiter
+     *            The bytes that follow each data-product. Ignored unless
+     *            {@code framing == DELIMITER}.
+     * @param backlogSize
+     *            The maximum number of data-products waiting for a decoder.
+     * @param maxDecoders
+     *            The maximum number of open decoders.
+     * @param idleTimeout
+     *            The time, in milliseconds, after which an idle decoder is
+     *            closed.
+     * @throws IllegalArgumentException
+     *             if {@code command} is empty, {@code backlogSize <= 0},
+     *             {@code maxDecoders <= 0}, or {@code idleTimeout <= 0}.
+     * @throws NullPointerException
+     *             if {@code command == null || framing == null} or if
+     *             {@code framing == DELIMITER && delimiter == null}.
+     */
+    public PipeAction(final List<String> command, final Framing framing,
+            final byte[] delimiter, final int backlogSize,
+            final int maxDecoders, final long idleTimeout) {
+        if (command.isEmpty()) {
+            throw new IllegalArgumentException("Empty command");
+        }
+        if (framing == null) {
+            throw new NullPointerException();
+        }
+        if (backlogSize <= 0) {
+            throw new IllegalArgumentException("Invalid backlog: "
+                    + backlogSize);
+        }
+        if (maxDecoders <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid maximum number of decoders: " + maxDecoders);
+        }
+        if (idleTimeout <= 0) {
+            throw new IllegalArgumentException("Invalid idle timeout: "
+                    + idleTimeout);
+        }
+        this.command = command.toArray(new String[command.size()]);
+        templates = new Template[this.command.length];
+        for (int i = 0; i < templates.length; i++) {
+            templates[i] = new Template(this.command[i]);
+        }
+        this.framing = framing;
+        this.delimiter = framing == Framing.DELIMITER
+                ? delimiter.clone()
+                : new byte[0];
+        this.backlogSize = backlogSize;
+        this.maxDecoders = maxDecoders;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Indicates if a process is still running.
+     *
+     * @param process
+     *            The process.
+     * @return {@code true} if and only if the process hasn't terminated.
+     */
+    private static boolean isRunning(final Process process) {
+        try {
+            process.exitValue();
+            return false;
+        }
+        catch (final IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    @Override
+    void execute(final Matcher matcher, final DataProduct dataProduct)
+            throws IOException, InterruptedException {
+        assert dataProduct.matches(matcher.pattern());
+        final String[] cmd = new String[templates.length];
+        for (int argIndex = 0; argIndex < cmd.length; argIndex++) {
+            cmd[argIndex] = templates[argIndex].expand(matcher);
+        }
+        final Decoder decoder = acquireDecoder(Arrays.asList(cmd));
+        try {
+            decoder.put(dataProduct);
+        }
+        finally {
+            releaseDecoder(decoder);
+        }
+    }
+
+    /**
+     * Returns the decoder of a command, creating it if necessary. If the
+     * maximum number of decoders is open, then the least-recently-used one is
+     * retired: it's closed after its backlog has been written. The returned
+     * decoder won't be retired until {@link #releaseDecoder(Decoder)} is
+     * called.
+     *
+     * @param cmd
+     *            The decoder command.
+     * @return The decoder of the command.
+     * @throws IOException
+     *             if this instance has been closed.
+     */
+    private synchronized Decoder acquireDecoder(final List<String> cmd)
+            throws IOException {
+        if (closed) {
+            throw new IOException("Action closed: " + this);
+        }
+        Decoder decoder = decoders.get(cmd);
+        if (decoder == null) {
+            if (decoders.size() >= maxDecoders) {
+                final Iterator<Decoder> iter = decoders.values().iterator();
+                final Decoder eldest = iter.next();
+                iter.remove();
+                eldest.retired = true;
+                retiredDecoders.add(eldest);
+                logger.debug("Closing least-recently-used decoder \"{}\"",
+                        Util.getCommand(eldest.command));
+            }
+            decoder = new Decoder(cmd);
+            decoders.put(cmd, decoder);
+        }
+        decoder.users++;
+        return decoder;
+    }
+
+    /**
+     * Releases a decoder that was returned by {@link #acquireDecoder(List)}.
+     *
+     * @param decoder
+     *            The decoder.
+     */
+    private synchronized void releaseDecoder(final Decoder decoder) {
+        decoder.users--;
+    }
+
+    /**
+     * Returns the number of open decoders, including those that are being
+     * closed.
+     *
+     * @return The number of open decoders.
+     */
+    synchronized int getDecoderCount() {
+        return decoders.size() + retiredDecoders.size();
+    }
+
+    /**
+     * Returns the number of times decoder processes have been started.
+     *
+     * @return The number of times decoder processes have been started.
+     */
+    synchronized int getStartCount() {
+        int count = 0;
+        for (final Decoder decoder : decoders.values()) {
+            count += decoder.getStartCount();
+        }
+        for (final Decoder decoder : retiredDecoders) {
+            count += decoder.getStartCount();
+        }
+        return count;
+    }
+
+    /**
+     * Stops the decoders. Data-products that haven't been written to a decoder
+     * are discarded.
+     */
+    @Override
+    synchronized void close() {
+        closed = true;
+        for (final Decoder decoder : decoders.values()) {
+            decoder.close();
+        }
+        decoders.clear();
+        for (final Decoder decoder : retiredDecoders) {
+            decoder.close();
+        }
+        retiredDecoders.clear();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see edu.ucar.unidata.sruth.Action#toString()
+     */
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [command=\""
+                + Util.formatCommand(command) + "\", framing=" + framing
+                + ", backlog=" + backlogSize + ", maxDecoders=" + maxDecoders
+                + ", idleTimeout=" + idleTimeout + "]";
+    }
+}
@@ -8,13 +8,16 @@ package edu.ucar.unidata.sruth;
 import java.io.InvalidObjectException;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 import net.jcip.annotations.GuardedBy;
 import edu.ucar.unidata.sruth.Connection.Message;
 
 /**
- * A disjunction of filters for selecting files.
+ * A disjunction of filters for selecting files. Matching is done by a
+ * {@link FilterTrie} of the filters, which is rebuilt whenever the filters
+ * change, so that it doesn't lock the instance.
  * 
  * Instances are thread-safe.
  * 
@@ -42,7 +45,7 @@ public class Predicate implements Iterable<Filter>, Message {
                                                        }
 
                                                        @Override
-                                                       synchronized boolean matches(
+                                                       boolean matches(
                                                                final FileInfo fileInfo) {
                                                            return true;
                                                        }
@@ -53,7 +56,7 @@ public class Predicate implements Iterable<Filter>, Message {
                                                        }
 
                                                        @Override
-                                                       synchronized boolean matchesNothing() {
+                                                       boolean matchesNothing() {
                                                            return false;
                                                        }
 
@@ -89,7 +92,7 @@ public class Predicate implements Iterable<Filter>, Message {
                                                        }
 
                                                        @Override
-                                                       synchronized boolean matches(
+                                                       boolean matches(
                                                                final FileInfo fileInfo) {
                                                            return false;
                                                        }
@@ -100,7 +103,7 @@ public class Predicate implements Iterable<Filter>, Message {
                                                        }
 
                                                        @Override
-                                                       synchronized boolean matchesNothing() {
+                                                       boolean matchesNothing() {
                                                            return true;
                                                        }
 
@@ -120,11 +123,16 @@ public class Predicate implements Iterable<Filter>, Message {
      */
     @GuardedBy("this")
     private final Set<Filter>     filters          = new TreeSet<Filter>();
+    /**
+     * The matcher of the filters. Rebuilt whenever {@link #filters} changes.
+     */
+    private transient volatile FilterTrie<Filter> matcher;
 
     /**
      * Constructs from nothing. The predicate will be satisfied by nothing.
      */
     public Predicate() {
+        compile();
     }
 
     /**
@@ -140,6 +148,18 @@ public class Predicate implements Iterable<Filter>, Message {
             throw new NullPointerException();
         }
         filters.add(filter);
+        compile();
+    }
+
+    /**
+     * Rebuilds the matcher of the filters.
+     */
+    private synchronized void compile() {
+        final TreeMap<Filter, Filter> entries = new TreeMap<Filter, Filter>();
+        for (final Filter filter : filters) {
+            entries.put(filter, filter);
+        }
+        matcher = new FilterTrie<Filter>(entries);
     }
 
     /**
@@ -161,11 +181,13 @@ public class Predicate implements Iterable<Filter>, Message {
             }
             else {
                 if (extantFilter.includes(filter)) {
+                    compile();
                     return this;
                 }
             }
         }
         filters.add(filter);
+        compile();
         return this;
     }
 
@@ -178,13 +200,8 @@ public class Predicate implements Iterable<Filter>, Message {
      * @throws NullPointerException
      *             if {@code fileInfo == null}.
      */
-    synchronized boolean matches(final FileInfo fileInfo) {
-        for (final Filter filter : filters) {
-            if (filter.matches(fileInfo.getPath())) {
-                return true;
-            }
-        }
-        return false;
+    boolean matches(final FileInfo fileInfo) {
+        return matcher.matches(fileInfo.getPath());
     }
 
     /**
@@ -215,6 +232,7 @@ public class Predicate implements Iterable<Filter>, Message {
         for (final Iterator<Filter> iter = filters.iterator(); iter.hasNext();) {
             if (iter.next().matchesOnly(fileInfo.getPath())) {
                 iter.remove();
+                compile();
                 break;
             }
         }
@@ -225,8 +243,8 @@ public class Predicate implements Iterable<Filter>, Message {
      * 
      * @return {@code true} if and only if nothing can satisfy this instance.
      */
-    synchronized boolean matchesNothing() {
-        return filters.isEmpty();
+    boolean matchesNothing() {
+        return matcher.isEmpty();
     }
 
     /**
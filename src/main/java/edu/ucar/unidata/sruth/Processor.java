@@ -6,18 +6,28 @@
 package edu.ucar.unidata.sruth;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.prefs.Preferences;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 
 import org.slf4j.Logger;
@@ -25,34 +35,442 @@ import org.slf4j.Logger;
 /**
  * Processes data-products according to client instructions.
  * <p>
+ * Data-products are queued by {@link #put(DataProduct)} in a bounded queue
+ * whose {@link OverflowPolicy} determines what happens when it's full. While
+ * {@link #call()} executes, each queued data-product is matched against the
+ * patterns of the instance and, for each matching pattern, the pattern's
+ * actions are executed on the data-product by a pool of worker threads.
+ * Consequently, a slow action doesn't delay the reception of data.
+ * <p>
+ * The actions of a pattern are executed on a data-product in the order in
+ * which they were added. The actions of different patterns are executed
+ * independently. By default, a pattern's actions may be executed on several
+ * data-products concurrently; the concurrency of a pattern can be limited by
+ * {@link #setMaxConcurrency(Pattern, int)}. A limit of one means that the
+ * data-products of the pattern are processed one at a time in the order in
+ * which they were queued. Unless a pattern's concurrency is limited to one,
+ * its actions must tolerate concurrent execution.
+ * <p>
  * Instances are thread-safe.
- * 
+ *
  * @author Steven R. Emmerson
  */
 @ThreadSafe
 public final class Processor implements Callable<Void> {
+    /**
+     * What to do with a data-product that arrives when the queue is full.
+     *
+     * @author Steven R. Emmerson
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until there's room in the queue. Slows the reception of data.
+         */
+        BLOCK,
+        /**
+         * Discard the arriving data-product.
+         */
+        DROP_NEWEST,
+        /**
+         * Discard the oldest queued data-product.
+         */
+        DROP_OLDEST
+    }
+
+    /**
+     * The actions of a pattern and the data-products that are waiting for
+     * them.
+     * <p>
+     * Instances are thread-safe.
+     *
+     * @author Steven R. Emmerson
+     */
+    @ThreadSafe
+    private final class Entry implements Runnable {
+        /**
+         * The pattern that selects data-products.
+         */
+        private final Pattern      pattern;
+        /**
+         * The actions to execute on selected data-products.
+         */
+        private final List<Action> actions        = new CopyOnWriteArrayList<Action>();
+        /**
+         * The data-products that are waiting to be processed.
+         */
+        @GuardedBy("this")
+        private final Queue<Job>   pending        = new ArrayDeque<Job>();
+        /**
+         * The maximum number of data-products to process concurrently.
+         */
+        @GuardedBy("this")
+        private int                maxConcurrency = Integer.MAX_VALUE;
+        /**
+         * The number of workers processing data-products.
+         */
+        @GuardedBy("this")
+        private int                running;
+        /**
+         * The number of data-products processed.
+         */
+        private final AtomicLong   count          = new AtomicLong();
+        /**
+         * The total time spent processing data-products in nanoseconds.
+         */
+        private final AtomicLong   totalNanos     = new AtomicLong();
+        /**
+         * The longest time spent processing a data-product in nanoseconds.
+         */
+        private final AtomicLong   maxNanos       = new AtomicLong();
+
+        /**
+         * Constructs from a pattern.
+         *
+         * @param pattern
+         *            The pattern that selects data-products.
+         */
+        Entry(final Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        /**
+         * Sets the maximum number of data-products to process concurrently.
+         *
+         * @param maxConcurrency
+         *            The maximum number of data-products to process
+         *            concurrently.
+         */
+        synchronized void setMaxConcurrency(final int maxConcurrency) {
+            this.maxConcurrency = maxConcurrency;
+        }
+
+        /**
+         * Queues a data-product for processing by the workers.
+         *
+         * @param job
+         *            The processing of the data-product.
+         */
+        void submit(final Job job) {
+            synchronized (this) {
+                pending.add(job);
+                if (running >= maxConcurrency) {
+                    return;
+                }
+                running++;
+            }
+            workers.execute(this);
+        }
+
+        /**
+         * Processes pending data-products until there are none. Executed by a
+         * worker. The worker is accounted for even if the processing of a
+         * data-product throws an error, in which case the remaining
+         * data-products are processed by the next worker.
+         */
+        @Override
+        public void run() {
+            boolean idle = false;
+            try {
+                for (;;) {
+                    final Job job;
+                    synchronized (this) {
+                        job = Thread.currentThread().isInterrupted()
+                                ? null
+                                : pending.poll();
+                        if (job == null) {
+                            running--;
+                            idle = true;
+                            return;
+                        }
+                    }
+                    final long start = System.nanoTime();
+                    try {
+                        job.run();
+                    }
+                    finally {
+                        final long nanos = System.nanoTime() - start;
+                        count.incrementAndGet();
+                        totalNanos.addAndGet(nanos);
+                        for (long max = maxNanos.get(); nanos > max
+                                && !maxNanos.compareAndSet(max, nanos); max = maxNanos
+                                .get()) {
+                        }
+                    }
+                }
+            }
+            finally {
+                if (!idle) {
+                    synchronized (this) {
+                        running--;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the mean time spent processing a data-product.
+         *
+         * @return The mean processing time in milliseconds.
+         */
+        double getMeanLatency() {
+            final long n = count.get();
+            return n == 0
+                    ? 0
+                    : totalNanos.get() / 1e6 / n;
+        }
+
+        /**
+         * Returns the longest time spent processing a data-product.
+         *
+         * @return The longest processing time in milliseconds.
+         */
+        double getMaxLatency() {
+            return maxNanos.get() / 1e6;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "Entry [pattern=" + pattern + ", actions=" + actions
+                    + ", pending=" + pending.size() + ", running=" + running
+                    + ", count=" + count.get() + ", meanLatency="
+                    + getMeanLatency() + " ms, maxLatency=" + getMaxLatency()
+                    + " ms]";
+        }
+    }
+
+    /**
+     * The execution of the actions of one pattern on one data-product.
+     *
+     * @author Steven R. Emmerson
+     */
+    private final class Job {
+        /**
+         * The pattern and its actions.
+         */
+        private final Entry         entry;
+        /**
+         * The result of matching the data-product against the pattern.
+         */
+        private final Matcher       matcher;
+        /**
+         * The data-product.
+         */
+        private final DataProduct   dataProduct;
+        /**
+         * The number of jobs of the data-product that haven't completed.
+         */
+        private final AtomicInteger remaining;
+
+        /**
+         * Constructs.
+         *
+         * @param entry
+         *            The pattern and its actions.
+         * @param matcher
+         *            The result of matching the data-product against the
+         *            pattern.
+         * @param dataProduct
+         *            The data-product.
+         * @param remaining
+         *            The number of uncompleted jobs of the data-product.
+         *            Shared by the jobs of the data-product.
+         */
+        Job(final Entry entry, final Matcher matcher,
+                final DataProduct dataProduct, final AtomicInteger remaining) {
+            this.entry = entry;
+            this.matcher = matcher;
+            this.dataProduct = dataProduct;
+            this.remaining = remaining;
+        }
+
+        /**
+         * Executes the actions on the data-product.
+         */
+        void run() {
+            try {
+                for (final Action action : entry.actions) {
+                    action.execute(matcher, dataProduct);
+                }
+            }
+            catch (final IOException e) {
+                logger.error("Couldn't process data-product: " + dataProduct, e);
+            }
+            catch (final InterruptedException e) {
+                logger.debug("Interrupted processing data-product: {}",
+                        dataProduct);
+                Thread.currentThread().interrupt();
+            }
+            catch (final RuntimeException e) {
+                logger.error("Couldn't process data-product: " + dataProduct, e);
+            }
+            finally {
+                if (remaining.decrementAndGet() == 0) {
+                    completed();
+                }
+            }
+        }
+    }
+
     /**
      * The logger for this package
      */
-    private static final Logger                        logger          = Util.getLogger();
+    private static final Logger                  logger                  = Util.getLogger();
+    /**
+     * The name of the queue-capacity user-preference ({@value} ).
+     */
+    private static final String                  QUEUE_CAPACITY_KEY      = "processing queue capacity";
+    /**
+     * The default value of the queue-capacity user-preference ({@value} ).
+     */
+    private static final int                     QUEUE_CAPACITY_DEFAULT  = 256;
+    /**
+     * The default capacity of the queue of unprocessed data-products.
+     */
+    static final int                             QUEUE_CAPACITY;
+    /**
+     * The name of the overflow-policy user-preference ({@value} ).
+     */
+    private static final String                  OVERFLOW_POLICY_KEY     = "processing queue overflow policy";
+    /**
+     * The default value of the overflow-policy user-preference ({@value} ).
+     */
+    private static final String                  OVERFLOW_POLICY_DEFAULT = "BLOCK";
+    /**
+     * The default policy for a full queue.
+     */
+    static final OverflowPolicy                  OVERFLOW_POLICY;
+    /**
+     * The name of the worker-count user-preference ({@value} ).
+     */
+    private static final String                  WORKER_COUNT_KEY        = "processing worker count";
+    /**
+     * The default value of the worker-count user-preference ({@value} ).
+     */
+    private static final int                     WORKER_COUNT_DEFAULT    = 4;
+    /**
+     * The default number of workers.
+     */
+    static final int                             WORKER_COUNT;
+
+    static {
+        final Preferences prefs = Preferences
+                .userNodeForPackage(Processor.class);
+        QUEUE_CAPACITY = prefs.getInt(QUEUE_CAPACITY_KEY,
+                QUEUE_CAPACITY_DEFAULT);
+        if (QUEUE_CAPACITY <= 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + QUEUE_CAPACITY_KEY + "\"=" + QUEUE_CAPACITY);
+        }
+        final String policy = prefs.get(OVERFLOW_POLICY_KEY,
+                OVERFLOW_POLICY_DEFAULT);
+        try {
+            OVERFLOW_POLICY = OverflowPolicy.valueOf(policy);
+        }
+        catch (final IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + OVERFLOW_POLICY_KEY + "\"=" + policy);
+        }
+        WORKER_COUNT = prefs.getInt(WORKER_COUNT_KEY, WORKER_COUNT_DEFAULT);
+        if (WORKER_COUNT <= 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + WORKER_COUNT_KEY + "\"=" + WORKER_COUNT);
+        }
+    }
+
     /**
      * Map from filters to actions.
      */
-    private final ConcurrentMap<Pattern, List<Action>> actions         = new ConcurrentHashMap<Pattern, List<Action>>();
+    private final ConcurrentMap<Pattern, Entry>  entries                 = new ConcurrentHashMap<Pattern, Entry>();
+    /**
+     * The queue of unprocessed data-products.
+     */
+    private final BlockingQueue<DataProduct>     processingQueue;
+    /**
+     * The policy for a full queue.
+     */
+    private final OverflowPolicy                 overflowPolicy;
+    /**
+     * The number of workers.
+     */
+    private final int                            workerCount;
+    /**
+     * Bounds the number of data-products that have been taken from the queue
+     * but not completely processed.
+     */
+    private final Semaphore                      permits;
     /**
-     * The queue of unprocessed data-products. It's synchronous to prevent an
-     * out-of-memory error.
+     * The workers. Set by {@link #call()}.
      */
-    private final BlockingQueue<DataProduct>           processingQueue = new SynchronousQueue<DataProduct>();
+    private volatile ExecutorService             workers;
+    /**
+     * The number of data-products discarded because the queue was full.
+     */
+    private final AtomicLong                     droppedCount            = new AtomicLong();
+    /**
+     * The number of data-products completely processed.
+     */
+    private final AtomicLong                     processedCount          = new AtomicLong();
     /**
      * The "isRunning" latch.
      */
-    private final CountDownLatch                       isRunningLatch  = new CountDownLatch(
-                                                                               1);
+    private final CountDownLatch                 isRunningLatch          = new CountDownLatch(
+                                                                                 1);
+
+    /**
+     * Constructs from the user-preferences.
+     */
+    public Processor() {
+        this(QUEUE_CAPACITY, OVERFLOW_POLICY, WORKER_COUNT);
+    }
+
+    /**
+     * Constructs.
+     *
+     * @param queueCapacity
+     *            The capacity of the queue of unprocessed data-products.
+     * @param overflowPolicy
+     *            What to do with a data-product that arrives when the queue is
+     *            full.
+     * @param workerCount
+     *            The number of workers that execute actions.
+     * @throws IllegalArgumentException
+     *             if {@code queueCapacity <= 0 || workerCount <= 0}.
+     * @throws NullPointerException
+     *             if {@code overflowPolicy == null}.
+     */
+    public Processor(final int queueCapacity,
+            final OverflowPolicy overflowPolicy, final int workerCount) {
+        if (overflowPolicy == null) {
+            throw new NullPointerException();
+        }
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("Invalid number of workers: "
+                    + workerCount);
+        }
+        processingQueue = new ArrayBlockingQueue<DataProduct>(queueCapacity);
+        permits = new Semaphore(queueCapacity);
+        this.overflowPolicy = overflowPolicy;
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Returns the entry of a pattern, creating it if necessary.
+     *
+     * @param pattern
+     *            The pattern.
+     * @return The entry of the pattern.
+     */
+    private Entry getEntry(final Pattern pattern) {
+        final Entry newEntry = new Entry(pattern);
+        final Entry entry = entries.putIfAbsent(pattern, newEntry);
+        return entry == null
+                ? newEntry
+                : entry;
+    }
 
     /**
      * Adds a processing action to a data-product category.
-     * 
+     *
      * @param pattern
      *            The pattern that selects the relevant data-products.
      * @param action
@@ -60,35 +478,67 @@ public final class Processor implements Callable<Void> {
      *            filter.
      */
     public void add(final Pattern pattern, final Action action) {
-        final List<Action> newList = new LinkedList<Action>();
-        List<Action> list = actions.putIfAbsent(pattern, newList);
-        if (list == null) {
-            list = newList;
-        }
-        synchronized (list) {
-            list.add(action);
+        getEntry(pattern).actions.add(action);
+    }
+
+    /**
+     * Sets the maximum number of data-products of a data-product category that
+     * may be processed concurrently. A value of one causes the data-products
+     * to be processed one at a time in the order in which they were queued.
+     *
+     * @param pattern
+     *            The pattern that selects the relevant data-products.
+     * @param maxConcurrency
+     *            The maximum number of data-products to process concurrently.
+     * @throws IllegalArgumentException
+     *             if {@code maxConcurrency <= 0}.
+     */
+    public void setMaxConcurrency(final Pattern pattern,
+            final int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("Invalid concurrency: "
+                    + maxConcurrency);
         }
+        getEntry(pattern).setMaxConcurrency(maxConcurrency);
     }
 
     @Override
     public Void call() throws InterruptedException {
         logger.trace("Starting up: {}", this);
+        final AtomicInteger threadCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerCount,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "Processor-worker-"
+                                        + threadCount.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
         isRunningLatch.countDown();
         try {
             for (;;) {
-                /*
-                 * TODO: Handle interruption better when the queue is not empty
-                 */
-                final DataProduct product = processingQueue.take();
+                permits.acquire();
+                final DataProduct product;
                 try {
-                    matchAndProcess(product);
+                    product = processingQueue.take();
                 }
-                catch (final IOException e) {
-                    logger.error("Couldn't process data-product: " + product, e);
+                catch (final InterruptedException e) {
+                    permits.release();
+                    throw e;
                 }
+                dispatch(product);
             }
         }
         finally {
+            workers.shutdownNow();
+            for (final Entry entry : entries.values()) {
+                for (final Action action : entry.actions) {
+                    action.close();
+                }
+            }
             logger.trace("Done: {}", this);
         }
     }
@@ -97,7 +547,7 @@ public final class Processor implements Callable<Void> {
      * Waits until this instance is running.
      * <p>
      * This method is potentially slow.
-     * 
+     *
      * @throws InterruptedException
      *             if the current thread is interrupted
      */
@@ -106,54 +556,153 @@ public final class Processor implements Callable<Void> {
     }
 
     /**
-     * Queues a data-product for processing. Blocks until the data-product can
-     * be queued.
-     * 
+     * Queues a data-product for processing. If the queue is full, then the
+     * overflow policy of this instance determines whether this method blocks
+     * or a data-product is discarded.
+     *
      * @param dataProduct
      *            The data-product to be processed
      * @throws InterruptedException
      *             if the current thread is interrupted
      */
     void put(final DataProduct dataProduct) throws InterruptedException {
-        processingQueue.put(dataProduct);
+        switch (overflowPolicy) {
+        case BLOCK:
+            processingQueue.put(dataProduct);
+            break;
+        case DROP_NEWEST:
+            if (!processingQueue.offer(dataProduct)) {
+                dropped(dataProduct);
+            }
+            break;
+        case DROP_OLDEST:
+            while (!processingQueue.offer(dataProduct)) {
+                final DataProduct oldest = processingQueue.poll();
+                if (oldest != null) {
+                    dropped(oldest);
+                }
+            }
+            break;
+        }
+    }
+
+    /**
+     * Handles a data-product that was discarded because the queue was full.
+     *
+     * @param dataProduct
+     *            The discarded data-product.
+     */
+    private void dropped(final DataProduct dataProduct) {
+        droppedCount.incrementAndGet();
+        logger.warn("Processing queue full. Discarded {}", dataProduct);
     }
 
     /**
-     * Processes a data-product. A data-product will be acted upon by matching
-     * actions in the order in which the actions were added.
-     * 
+     * Submits a data-product to the entries whose pattern it matches. A
+     * data-product will be acted upon by the matching actions of an entry in
+     * the order in which the actions were added.
+     *
      * @param dataProduct
      *            The data-product to process.
-     * @return <code>true</code> if and only if the given data-product was
-     *         selected for processing.
-     * @throws InterruptedException
-     *             if the current thread is interrupted.
-     * @throws IOException
-     *             if an I/O error occurs.
-     */
-    private boolean matchAndProcess(final DataProduct dataProduct)
-            throws IOException, InterruptedException {
-        boolean processed = false;
-        for (final Map.Entry<Pattern, List<Action>> entry : actions.entrySet()) {
-            final Matcher matcher = dataProduct.matcher(entry.getKey());
+     */
+    private void dispatch(final DataProduct dataProduct) {
+        final AtomicInteger remaining = new AtomicInteger();
+        final List<Job> jobs = new ArrayList<Job>(1);
+        for (final Entry entry : entries.values()) {
+            final Matcher matcher = dataProduct.matcher(entry.pattern);
             if (matcher.matches()) {
-                for (final Action action : entry.getValue()) {
-                    // Foreign method. Don't call while synchronized
-                    action.execute(matcher, dataProduct);
-                    processed = true;
-                }
+                jobs.add(new Job(entry, matcher, dataProduct, remaining));
             }
         }
-        return processed;
+        if (jobs.isEmpty()) {
+            completed();
+            return;
+        }
+        remaining.set(jobs.size());
+        for (final Job job : jobs) {
+            job.entry.submit(job);
+        }
+    }
+
+    /**
+     * Handles the completion of the processing of a data-product.
+     */
+    private void completed() {
+        processedCount.incrementAndGet();
+        permits.release();
+    }
+
+    /**
+     * Returns the number of queued but unprocessed data-products.
+     *
+     * @return The number of data-products in the queue.
+     */
+    public int getQueueDepth() {
+        return processingQueue.size();
+    }
+
+    /**
+     * Returns the number of data-products discarded because the queue was
+     * full.
+     *
+     * @return The number of discarded data-products.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Returns the number of data-products that have been completely
+     * processed.
+     *
+     * @return The number of processed data-products.
+     */
+    public long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    /**
+     * Returns the mean time taken by the actions of a data-product category
+     * to process a data-product.
+     *
+     * @param pattern
+     *            The pattern that selects the relevant data-products.
+     * @return The mean processing time in milliseconds or {@code 0} if the
+     *         category is unknown or no data-product has been processed.
+     */
+    public double getMeanLatency(final Pattern pattern) {
+        final Entry entry = entries.get(pattern);
+        return entry == null
+                ? 0
+                : entry.getMeanLatency();
+    }
+
+    /**
+     * Returns the longest time taken by the actions of a data-product category
+     * to process a data-product.
+     *
+     * @param pattern
+     *            The pattern that selects the relevant data-products.
+     * @return The longest processing time in milliseconds or {@code 0} if the
+     *         category is unknown or no data-product has been processed.
+     */
+    public double getMaxLatency(final Pattern pattern) {
+        final Entry entry = entries.get(pattern);
+        return entry == null
+                ? 0
+                : entry.getMaxLatency();
     }
 
     /*
      * (non-Javadoc)
-     * 
+     *
      * @see java.lang.Object#toString()
      */
     @Override
-    public synchronized String toString() {
-        return getClass().getSimpleName() + " [" + actions.size() + " actions]";
+    public String toString() {
+        return getClass().getSimpleName() + " [" + entries.size()
+                + " patterns, queued=" + processingQueue.size()
+                + ", processed=" + processedCount.get() + ", dropped="
+                + droppedCount.get() + "]";
     }
 }
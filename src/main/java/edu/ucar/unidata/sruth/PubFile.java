@@ -90,5 +90,6 @@ final class PubFile {
         Files.createDirectories(newPath.getParent());
         Files.move(hiddenPath, newPath, StandardCopyOption.ATOMIC_MOVE,
                 StandardCopyOption.REPLACE_EXISTING);
+        archive.addToCatalog(newPath);
     }
 }
@@ -133,8 +133,7 @@ public final class Publisher implements Callable<Void> {
         sourceNode = new SourceNode(archive, serverSocketAddress);
         final InetSocketAddress trackerSocketAddress = new InetSocketAddress(
                 localHostAddress, trackerPort);
-        tracker = new Tracker(sourceNode.getServerSocketAddress(),
-                trackerSocketAddress);
+        tracker = new Tracker(sourceNode, trackerSocketAddress);
         distributedTrackerFiles = archive.getDistributedTrackerFiles(tracker
                 .getServerAddress());
         tracker.addNetworkTopologyChangeListener(new PropertyChangeListener() {
@@ -39,6 +39,15 @@ final class RemovedFileNotice implements RemovalNotice {
         this.archivePath = archivePath;
     }
 
+    /**
+     * Returns the archive-pathname of the removed file.
+     * 
+     * @return The archive-pathname of the removed file.
+     */
+    ArchivePath getArchivePath() {
+        return archivePath;
+    }
+
     @Override
     public void processYourself(final Peer peer) throws IOException {
         peer.remove(archivePath);
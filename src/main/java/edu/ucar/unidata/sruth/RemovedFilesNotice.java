@@ -42,6 +42,15 @@ final class RemovedFilesNotice implements RemovalNotice {
         this.archivePaths = archivePaths;
     }
 
+    /**
+     * Returns the archive-pathnames of the removed files.
+     * 
+     * @return The archive-pathnames of the removed files.
+     */
+    ArchivePathSet getArchivePaths() {
+        return archivePaths;
+    }
+
     @Override
     public void processYourself(final Peer peer) throws IOException {
         for (final ArchivePath archivePath : archivePaths) {
@@ -0,0 +1,384 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.Preferences;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * The window of outstanding requests for data-pieces of a local peer. The
+ * window limits the number of requested but not-yet-received bytes. Its size
+ * is twice the bandwidth-delay product of the connection, which is estimated
+ * from the rate at which requested pieces arrive and from the minimum time
+ * between the sending of a request and the arrival of the piece, so that a
+ * long, fat link is kept full while a slow link isn't flooded with requests
+ * that can't be satisfied in a timely manner.
+ * <p>
+ * A request stalls if its data-piece hasn't arrived for a while -- for
+ * example, because the remote peer skipped the piece of a changed or deleted
+ * file. Stalled requests are removed individually so that they don't hold on
+ * to the window.
+ * <p>
+ * Times are in nanoseconds as returned by {@link System#nanoTime()}.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class RequestWindow {
+    /**
+     * The name of the minimum-window-size user-preference ({@value} ).
+     */
+    private static final String              MINIMUM_SIZE_KEY          = "minimum request window in bytes";
+    /**
+     * The default value of the minimum-window-size user-preference ({@value} ).
+     */
+    private static final long                MINIMUM_SIZE_DEFAULT      = 4 * FileInfo
+                                                                               .getDefaultPieceSize();
+    /**
+     * The minimum size of the window in bytes.
+     */
+    static final long                        MINIMUM_SIZE;
+    /**
+     * The name of the maximum-window-size user-preference ({@value} ).
+     */
+    private static final String              MAXIMUM_SIZE_KEY          = "maximum request window in bytes";
+    /**
+     * The default value of the maximum-window-size user-preference ({@value} ).
+     */
+    private static final long                MAXIMUM_SIZE_DEFAULT      = 64 * 1024 * 1024;
+    /**
+     * The maximum size of the window in bytes.
+     */
+    static final long                        MAXIMUM_SIZE;
+    /**
+     * The name of the stall-timeout user-preference ({@value} ).
+     */
+    private static final String              STALL_TIMEOUT_KEY         = "request stall timeout in seconds";
+    /**
+     * The default value of the stall-timeout user-preference ({@value} ).
+     */
+    private static final int                 STALL_TIMEOUT_DEFAULT     = 30;
+    /**
+     * The time, in nanoseconds, after the sending of a request after which the
+     * request is stalled if its data-piece hasn't arrived.
+     */
+    static final long                        STALL_TIMEOUT;
+    /**
+     * The ratio of the window size to the bandwidth-delay product.
+     */
+    private static final double              GAIN                      = 2.0;
+    /**
+     * The weight of a new sample of the arrival rate.
+     */
+    private static final double              RATE_WEIGHT               = 0.25;
+    /**
+     * The minimum time, in nanoseconds, over which the arrival rate is
+     * sampled.
+     */
+    private static final long                MINIMUM_SAMPLE_PERIOD     = TimeUnit.MILLISECONDS
+                                                                               .toNanos(10);
+
+    static {
+        final Preferences prefs = Preferences
+                .userNodeForPackage(RequestWindow.class);
+        MINIMUM_SIZE = prefs.getLong(MINIMUM_SIZE_KEY, MINIMUM_SIZE_DEFAULT);
+        if (MINIMUM_SIZE <= 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + MINIMUM_SIZE_KEY + "\"=" + MINIMUM_SIZE);
+        }
+        MAXIMUM_SIZE = prefs.getLong(MAXIMUM_SIZE_KEY, MAXIMUM_SIZE_DEFAULT);
+        if (MAXIMUM_SIZE < MINIMUM_SIZE) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + MAXIMUM_SIZE_KEY + "\"=" + MAXIMUM_SIZE);
+        }
+        final int stallTimeout = prefs.getInt(STALL_TIMEOUT_KEY,
+                STALL_TIMEOUT_DEFAULT);
+        if (stallTimeout <= 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + STALL_TIMEOUT_KEY + "\"=" + stallTimeout);
+        }
+        STALL_TIMEOUT = TimeUnit.SECONDS.toNanos(stallTimeout);
+    }
+
+    /**
+     * The outstanding requests and the times at which they were sent in the
+     * order in which they were sent.
+     */
+    @GuardedBy("this")
+    private final Map<PieceSpec, Long>       outstanding               = new LinkedHashMap<PieceSpec, Long>();
+    /**
+     * The number of requested but not-yet-received bytes.
+     */
+    @GuardedBy("this")
+    private long                             inFlight;
+    /**
+     * The size of the window in bytes.
+     */
+    @GuardedBy("this")
+    private long                             size                      = MINIMUM_SIZE;
+    /**
+     * The minimum round-trip time in nanoseconds or {@code 0} if unknown. It's
+     * the minimum over the life of the window because later samples include
+     * the queuing delay caused by the window itself.
+     */
+    @GuardedBy("this")
+    private long                             minimumRtt;
+    /**
+     * The arrival rate in bytes per nanosecond.
+     */
+    @GuardedBy("this")
+    private double                           rate;
+    /**
+     * The start of the current sampling period of the arrival rate.
+     */
+    @GuardedBy("this")
+    private long                             sampleStart;
+    /**
+     * The number of bytes that have arrived during the current sampling
+     * period.
+     */
+    @GuardedBy("this")
+    private long                             sampleBytes;
+    /**
+     * The task to execute when the window opens or {@code null}.
+     */
+    private volatile Runnable                listener;
+
+    /**
+     * Sets the task to be executed whenever the window opens.
+     *
+     * @param listener
+     *            The task to execute whenever the window opens or {@code null}
+     *            . Must not block.
+     */
+    void setListener(final Runnable listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Executes the listener if it exists.
+     */
+    private void signal() {
+        final Runnable task = listener;
+        if (task != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Returns the number of bytes that may be requested.
+     *
+     * @return The number of bytes that may be requested. Non-positive if the
+     *         window is full.
+     */
+    synchronized long available() {
+        return size - inFlight;
+    }
+
+    /**
+     * Returns the size of the window.
+     *
+     * @return The size of the window in bytes.
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the number of requested but not-yet-received bytes.
+     *
+     * @return The number of outstanding bytes.
+     */
+    synchronized long getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Records the sending of requests.
+     *
+     * @param specs
+     *            Specifications of the requested data-pieces.
+     * @param now
+     *            The current time.
+     */
+    synchronized void sent(final PieceSpecSetIface specs, final long now) {
+        if (outstanding.isEmpty()) {
+            sampleStart = now;
+            sampleBytes = 0;
+        }
+        for (final PieceSpec spec : specs) {
+            // Keeps the map in the order of the sending times
+            if (outstanding.remove(spec) == null) {
+                inFlight += spec.getSize();
+            }
+            outstanding.put(spec, now);
+        }
+    }
+
+    /**
+     * Records the arrival of a data-piece and adjusts the size of the window.
+     * Does nothing if the data-piece wasn't requested via this instance.
+     *
+     * @param spec
+     *            Specification of the data-piece.
+     * @param now
+     *            The current time.
+     * @return The round-trip time of the data-piece in nanoseconds or
+     *         {@code -1} if the data-piece wasn't requested via this instance.
+     */
+    long received(final PieceSpec spec, final long now) {
+        boolean opened;
+        final long rtt;
+        synchronized (this) {
+            final Long sentTime = outstanding.remove(spec);
+            if (sentTime == null) {
+                return -1;
+            }
+            final boolean wasFull = inFlight >= size;
+            inFlight -= spec.getSize();
+
+            rtt = Math.max(1, now - sentTime);
+            if (minimumRtt == 0 || rtt < minimumRtt) {
+                minimumRtt = rtt;
+            }
+
+            sampleBytes += spec.getSize();
+            final long period = now - sampleStart;
+            if (period >= Math.max(minimumRtt, MINIMUM_SAMPLE_PERIOD)) {
+                final double sample = (double) sampleBytes / period;
+                rate = (rate == 0)
+                        ? sample
+                        : rate + RATE_WEIGHT * (sample - rate);
+                sampleStart = now;
+                sampleBytes = 0;
+                size = Math.min(MAXIMUM_SIZE, Math.max(MINIMUM_SIZE,
+                        (long) (GAIN * rate * minimumRtt)));
+            }
+            opened = wasFull && inFlight < size;
+            if (opened) {
+                notifyAll();
+            }
+        }
+        if (opened) {
+            signal();
+        }
+        return rtt;
+    }
+
+    /**
+     * Waits until the window isn't full.
+     *
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    synchronized void awaitRoom() throws InterruptedException {
+        while (inFlight >= size) {
+            wait();
+        }
+    }
+
+    /**
+     * Removes and returns the stalled requests (i.e., the requests that were
+     * sent more than {@link #STALL_TIMEOUT} ago). Because a stalled request
+     * indicates congestion or an unresponsive remote peer, the window is reset
+     * to its minimum size if any request stalled.
+     *
+     * @param now
+     *            The current time.
+     * @return The specifications of the stalled data-pieces or {@code null} if
+     *         no request has stalled.
+     */
+    PieceSpecSetIface removeStalled(final long now) {
+        PieceSpecSetIface specs = null;
+        synchronized (this) {
+            for (final Iterator<Map.Entry<PieceSpec, Long>> iter = outstanding
+                    .entrySet().iterator(); iter.hasNext();) {
+                final Map.Entry<PieceSpec, Long> entry = iter.next();
+                if (now - entry.getValue() <= STALL_TIMEOUT) {
+                    break;
+                }
+                final PieceSpec spec = entry.getKey();
+                specs = (specs == null)
+                        ? spec
+                        : specs.merge(spec);
+                inFlight -= spec.getSize();
+                iter.remove();
+            }
+            if (specs == null) {
+                return null;
+            }
+            size = MINIMUM_SIZE;
+            rate = 0;
+            minimumRtt = 0;
+            sampleStart = now;
+            sampleBytes = 0;
+            notifyAll();
+        }
+        signal();
+        return specs;
+    }
+
+    /**
+     * Removes and returns the outstanding requests for the data-pieces of a
+     * file. Called when the file is removed so that requests that the remote
+     * peer won't satisfy don't hold on to the window.
+     *
+     * @param archivePath
+     *            Archive-pathname of the file.
+     * @return The specifications of the removed requests or {@code null} if
+     *         there are no outstanding requests for the file.
+     * @throws NullPointerException
+     *             if {@code archivePath == null}.
+     */
+    PieceSpecSetIface remove(final ArchivePath archivePath) {
+        if (null == archivePath) {
+            throw new NullPointerException();
+        }
+        PieceSpecSetIface specs = null;
+        boolean opened;
+        synchronized (this) {
+            final boolean wasFull = inFlight >= size;
+            for (final Iterator<PieceSpec> iter = outstanding.keySet()
+                    .iterator(); iter.hasNext();) {
+                final PieceSpec spec = iter.next();
+                if (spec.getArchivePath().equals(archivePath)) {
+                    specs = (specs == null)
+                            ? spec
+                            : specs.merge(spec);
+                    inFlight -= spec.getSize();
+                    iter.remove();
+                }
+            }
+            opened = wasFull && inFlight < size;
+            if (opened) {
+                notifyAll();
+            }
+        }
+        if (opened) {
+            signal();
+        }
+        return specs;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        return "RequestWindow [size=" + size + ", inFlight=" + inFlight
+                + ", minimumRtt=" + minimumRtt + "]";
+    }
+}
@@ -12,6 +12,8 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
@@ -102,7 +104,22 @@ abstract class Server extends UninterruptibleTask<Void> {
                     try {
                         final Filter serverFilter = predicate
                                 .getIncludingFilter(filter);
-                        requestStream.send(serverFilter);
+                        /*
+                         * A client that predates the binary wire protocol
+                         * expects a bare filter.
+                         */
+                        final int remoteVersion = connection
+                                .getRemoteWireVersion();
+                        final int version = WireProtocol
+                                .negotiate(remoteVersion);
+                        if (remoteVersion == WireProtocol.SERIALIZATION) {
+                            requestStream.send(serverFilter);
+                        }
+                        else {
+                            requestStream.send(new WireProtocol.Hello(
+                                    serverFilter, version));
+                        }
+                        connection.useWireProtocol(version);
 
                         final Peer peer = new Peer(clearingHouse, connection,
                                 serverFilter, filter);
@@ -551,7 +568,11 @@ abstract class Server extends UninterruptibleTask<Void> {
             final InetSocketAddressSet inetSockAddrSet) throws IOException,
             SocketException {
         // TODO: Set limit on number of pending connections
-        serverSocket = new ServerSocket();
+        /*
+         * The server-socket has a channel so that accepted sockets have
+         * channels and data can be sent directly from files.
+         */
+        serverSocket = ServerSocketChannel.open().socket();
         try {
             adjustSocket(serverSocket);
             if (!inetSockAddrSet.bind(serverSocket)) {
@@ -637,6 +658,13 @@ abstract class Server extends UninterruptibleTask<Void> {
                 }
             }
         }
+        catch (final ClosedByInterruptException e) {
+            /*
+             * The server-socket has a channel; consequently, cancellation can
+             * interrupt the accept before this instance is marked cancelled.
+             */
+            logger.debug("Interrupted: {}", this);
+        }
         catch (final IOException e) {
             if (!isCancelled()) {
                 throw e;
@@ -700,6 +728,15 @@ abstract class Server extends UninterruptibleTask<Void> {
         return servletManager.size();
     }
 
+    /**
+     * Returns the maximum number of clients that can be serviced.
+     * 
+     * @return The maximum number of clients that can be serviced.
+     */
+    int getServletCapacity() {
+        return MAX_NUM_ACTIVE_SERVLETS;
+    }
+
     /**
      * Handles the creation of new local data by notifying the servlet manager.
      * 
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.InvalidObjectException;
+import java.io.Serializable;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * The load on a server as reported to the tracker: the number of clients the
+ * server is serving, the maximum number of clients it can serve, and its depth
+ * in the distribution tree (i.e., the number of hops between it and the
+ * source-server).
+ * <p>
+ * Instances are immutable.
+ *
+ * @author Steven R. Emmerson
+ */
+@Immutable
+final class ServerLoad implements Serializable {
+    /**
+     * The serial version identifier.
+     */
+    private static final long       serialVersionUID = 1L;
+    /**
+     * The depth of a server whose depth is unknown (e.g., a sink-node that
+     * isn't receiving data from any server).
+     */
+    static final int                UNKNOWN_DEPTH    = -1;
+    /**
+     * The load of a server about which nothing is known.
+     */
+    static final ServerLoad         UNKNOWN          = new ServerLoad(0, 0,
+                                                             UNKNOWN_DEPTH);
+    /**
+     * The amount by which the utilizations of two instances must differ for
+     * the instances to be dissimilar.
+     */
+    private static final double     SIMILARITY       = 0.25;
+    /**
+     * The number of clients being served.
+     *
+     * @serial
+     */
+    private final int               clientCount;
+    /**
+     * The maximum number of clients that can be served or {@code 0} if
+     * unknown.
+     *
+     * @serial
+     */
+    private final int               capacity;
+    /**
+     * The number of hops between the server and the source-server or
+     * {@link #UNKNOWN_DEPTH}.
+     *
+     * @serial
+     */
+    private final int               depth;
+
+    /**
+     * Constructs from the number of clients being served, the maximum number
+     * of clients that can be served, and the depth of the server.
+     *
+     * @param clientCount
+     *            The number of clients being served.
+     * @param capacity
+     *            The maximum number of clients that can be served or {@code 0}
+     *            if unknown.
+     * @param depth
+     *            The number of hops between the server and the source-server
+     *            or {@link #UNKNOWN_DEPTH}.
+     * @throws IllegalArgumentException
+     *             if {@code clientCount < 0 || capacity < 0 || depth < }
+     *             {@link #UNKNOWN_DEPTH}.
+     */
+    ServerLoad(final int clientCount, final int capacity, final int depth) {
+        if (clientCount < 0 || capacity < 0 || depth < UNKNOWN_DEPTH) {
+            throw new IllegalArgumentException("clientCount=" + clientCount
+                    + ", capacity=" + capacity + ", depth=" + depth);
+        }
+        this.clientCount = clientCount;
+        this.capacity = capacity;
+        this.depth = depth;
+    }
+
+    /**
+     * Returns the number of clients being served.
+     *
+     * @return The number of clients being served.
+     */
+    int getClientCount() {
+        return clientCount;
+    }
+
+    /**
+     * Returns the maximum number of clients that can be served.
+     *
+     * @return The maximum number of clients that can be served or {@code 0} if
+     *         unknown.
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the depth of the server in the distribution tree.
+     *
+     * @return The number of hops between the server and the source-server or
+     *         {@link #UNKNOWN_DEPTH}.
+     */
+    int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Indicates if the depth of the server is known.
+     *
+     * @return {@code true} if and only if the depth of the server is known.
+     */
+    boolean isDepthKnown() {
+        return depth != UNKNOWN_DEPTH;
+    }
+
+    /**
+     * Returns the utilization of the server.
+     *
+     * @return The fraction of the server's capacity that's being used: a value
+     *         in the range {@code [0,1]}. {@code 0} if the capacity is unknown.
+     */
+    double getUtilization() {
+        return capacity == 0
+                ? 0
+                : Math.min(1, clientCount / (double) capacity);
+    }
+
+    /**
+     * Indicates if this instance is similar to another: the depths are the
+     * same and the utilizations are close. Used to avoid re-reporting a load
+     * that hasn't changed materially.
+     *
+     * @param that
+     *            The other instance or {@code null}.
+     * @return {@code true} if and only if this instance is similar to the
+     *         other instance.
+     */
+    boolean isSimilar(final ServerLoad that) {
+        return that != null && depth == that.depth
+                && Math.abs(getUtilization() - that.getUtilization()) < SIMILARITY;
+    }
+
+    @Override
+    public int hashCode() {
+        return (31 * clientCount + capacity) * 31 + depth;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ServerLoad)) {
+            return false;
+        }
+        final ServerLoad that = (ServerLoad) obj;
+        return clientCount == that.clientCount && capacity == that.capacity
+                && depth == that.depth;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "ServerLoad [clientCount=" + clientCount + ", capacity="
+                + capacity + ", depth=" + depth + "]";
+    }
+
+    private Object readResolve() throws InvalidObjectException {
+        try {
+            return new ServerLoad(clientCount, capacity, depth);
+        }
+        catch (final IllegalArgumentException e) {
+            throw (InvalidObjectException) new InvalidObjectException(
+                    toString()).initCause(e);
+        }
+    }
+}
@@ -160,7 +160,7 @@ final class SinkNode extends AbstractNode {
         synchronized (this) {
             for (final Filter filter : getPredicate()) {
                 final ClientManager clientManager = new ClientManager(
-                        localServer.getSocketAddress(), clearingHouse, filter,
+                        localServer, clearingHouse, filter,
                         trackerProxy);
                 clientManagers.add(clientManager);
             }
@@ -292,6 +292,17 @@ final class SourceNode extends AbstractNode {
         return 0;
     }
 
+    /**
+     * Returns the load on the local server. The depth of the source-server is
+     * zero.
+     * 
+     * @return The load on the local server.
+     */
+    ServerLoad getServerLoad() {
+        return new ServerLoad(localServer.getServletCount(),
+                localServer.getServletCapacity(), 0);
+    }
+
     /*
      * (non-Javadoc)
      * 
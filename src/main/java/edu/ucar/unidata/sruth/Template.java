@@ -0,0 +1,153 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * A string that contains references to the subsequences of capturing groups of
+ * the form "$i", where "i" is the i-th capturing group. The string is parsed
+ * once into literal text and references so that expanding it for a
+ * data-product is a single pass of appends without any regular-expression
+ * work.
+ * <p>
+ * A reference must be followed by the end of the string or by a character
+ * that can't be part of a word; a reference to a non-existent capturing group
+ * is left as is.
+ * <p>
+ * Instances are immutable.
+ *
+ * @author Steven R. Emmerson
+ */
+@Immutable
+final class Template {
+    /**
+     * The literal text between references. {@code literals[i]} precedes
+     * {@code groups[i]}; the last element follows the last reference.
+     */
+    private final String[] literals;
+    /**
+     * The indexes of the referenced capturing groups.
+     */
+    private final int[]    groups;
+    /**
+     * The original string.
+     */
+    private final String   string;
+
+    /**
+     * Constructs from a string.
+     *
+     * @param string
+     *            The string. May contain references to the subsequences of
+     *            capturing groups of the form "$i", where "i" is the i-th
+     *            capturing group.
+     * @throws NullPointerException
+     *             if {@code string == null}.
+     */
+    Template(final String string) {
+        final List<String> literals = new ArrayList<String>();
+        final List<Integer> groups = new ArrayList<Integer>();
+        final int length = string.length();
+        int start = 0;
+        for (int i = string.indexOf('$'); i >= 0 && i < length; i = string
+                .indexOf('$', i + 1)) {
+            int end = i + 1;
+            while (end < length && isDigit(string.charAt(end))) {
+                end++;
+            }
+            if (end == i + 1 || string.charAt(i + 1) == '0'
+                    || (end < length && isWordChar(string.charAt(end)))) {
+                continue;
+            }
+            final int group;
+            try {
+                group = Integer.parseInt(string.substring(i + 1, end));
+            }
+            catch (final NumberFormatException e) {
+                continue; // too many digits to be a group
+            }
+            literals.add(string.substring(start, i));
+            groups.add(group);
+            start = end;
+            i = end - 1;
+        }
+        literals.add(string.substring(start));
+        this.literals = literals.toArray(new String[literals.size()]);
+        this.groups = new int[groups.size()];
+        for (int i = 0; i < this.groups.length; i++) {
+            this.groups[i] = groups.get(i);
+        }
+        this.string = string;
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isWordChar(final char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * Indicates if this instance contains any references.
+     *
+     * @return {@code true} if and only if this instance contains a reference.
+     */
+    boolean hasReferences() {
+        return groups.length > 0;
+    }
+
+    /**
+     * Returns this instance with its references replaced by the subsequences
+     * of the capturing groups of a match.
+     *
+     * @param matcher
+     *            The result of a successful match -- usually from
+     *            {@link DataProduct#matcher(java.util.regex.Pattern)}.
+     * @return This instance with its references replaced.
+     * @throws IllegalStateException
+     *             if {@code matcher} hasn't successfully matched.
+     * @throws NullPointerException
+     *             if {@code matcher == null}.
+     */
+    String expand(final Matcher matcher) {
+        if (groups.length == 0) {
+            return string;
+        }
+        final int groupCount = matcher.groupCount();
+        final StringBuilder buf = new StringBuilder(string.length() + 64);
+        for (int i = 0; i < groups.length; i++) {
+            buf.append(literals[i]);
+            final int group = groups[i];
+            if (group <= groupCount) {
+                final String value = matcher.group(group);
+                if (value != null) {
+                    buf.append(value);
+                }
+            }
+            else {
+                buf.append('$').append(group);
+            }
+        }
+        buf.append(literals[groups.length]);
+        return buf.toString();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return string;
+    }
+}
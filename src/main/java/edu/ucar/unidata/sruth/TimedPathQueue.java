@@ -0,0 +1,77 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * A persistent queue of pathnames that become available at given times.
+ * Pathnames are obtained in batches by a single consumer.
+ * <p>
+ * Implementations are thread-safe.
+ *
+ * @author Steven R. Emmerson
+ */
+interface TimedPathQueue {
+    /**
+     * Adds a pathname to the queue.
+     *
+     * @param path
+     *            The pathname.
+     * @param time
+     *            When the pathname should become available in milliseconds
+     *            since 1970-01-01 00:00:00 UTC.
+     * @throws IllegalArgumentException
+     *             if the pathname is too long.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    void add(Path path, long time) throws IOException;
+
+    /**
+     * Returns the next batch of pathnames whose time has arrived, waiting until
+     * there is one. Depending on the implementation, the pathnames remain in
+     * the queue until {@link #removeDue()} is called, so a pathname might be
+     * returned again after a crash.
+     *
+     * @return The next batch of available pathnames. Never empty.
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    List<Path> awaitDue() throws InterruptedException, IOException;
+
+    /**
+     * Removes the batch of pathnames returned by the previous
+     * {@link #awaitDue()} from the queue.
+     *
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    void removeDue() throws IOException;
+
+    /**
+     * Adds every pathname of this queue, whether due or not, to another queue.
+     * This queue is unchanged.
+     *
+     * @param queue
+     *            The other queue.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    void copyTo(TimedPathQueue queue) throws IOException;
+
+    /**
+     * Closes the queue.
+     *
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,646 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+/**
+ * A persistent, hierarchical timing-wheel of pathnames. Pathnames are
+ * appended to the file of a coarse time-bucket rather than being sorted
+ * individually, so adding a pathname costs one append regardless of the
+ * number of pending pathnames.
+ * <p>
+ * A bucket at level 0 spans the resolution of the wheel and becomes
+ * available when it ends. A bucket at level {@code k > 0} spans
+ * {@value #SLOTS}<sup>k</sup> times the resolution and holds pathnames whose
+ * time is too distant for level {@code k-1}; when the bucket begins, its
+ * pathnames are redistributed to finer buckets. Consequently, a pathname
+ * becomes available no earlier than its time and no later than its time plus
+ * the resolution.
+ * <p>
+ * Each bucket is an append-only file in the wheel's directory whose name
+ * comprises the level and the index of the bucket. Appends are forced to disk
+ * once per commit-interval. A bucket's file is deleted only after its
+ * pathnames have been redistributed or acted upon, so a crash can cause a
+ * pathname to be returned twice but not to be lost -- apart from the appends
+ * of the last commit-interval.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class TimingWheel implements TimedPathQueue {
+    /**
+     * A time-bucket.
+     * <p>
+     * Instances are immutable.
+     *
+     * @author Steven R. Emmerson
+     */
+    @Immutable
+    private final class Bucket implements Comparable<Bucket> {
+        /**
+         * The level of the bucket.
+         */
+        private final int  level;
+        /**
+         * The index of the bucket at its level.
+         */
+        private final long index;
+        /**
+         * When the bucket becomes due in milliseconds since the epoch.
+         */
+        private final long due;
+
+        /**
+         * Constructs.
+         *
+         * @param level
+         *            The level of the bucket.
+         * @param index
+         *            The index of the bucket at its level.
+         */
+        Bucket(final int level, final long index) {
+            this.level = level;
+            this.index = index;
+            final long span = spans[level];
+            due = level == 0
+                    ? (index + 1) * span
+                    : index * span;
+        }
+
+        /**
+         * Returns the pathname of the bucket's file.
+         *
+         * @return The pathname of the bucket's file.
+         */
+        Path getPath() {
+            return dir.resolve(level + "-" + index);
+        }
+
+        @Override
+        public int compareTo(final Bucket that) {
+            return due < that.due
+                    ? -1
+                    : due > that.due
+                            ? 1
+                            : level != that.level
+                                    ? that.level - level // cascade first
+                                    : index < that.index
+                                            ? -1
+                                            : index > that.index
+                                                    ? 1
+                                                    : 0;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Bucket)) {
+                return false;
+            }
+            final Bucket that = (Bucket) obj;
+            return level == that.level && index == that.index;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * level + (int) (index ^ (index >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return "Bucket [level=" + level + ", index=" + index + "]";
+        }
+    }
+
+    /**
+     * The logger for this package.
+     */
+    private static final Logger                   logger             = Util.getLogger();
+    /**
+     * The number of slots at each level of the wheel.
+     */
+    static final int                              SLOTS              = 64;
+    /**
+     * The number of levels of the wheel.
+     */
+    private static final int                      LEVELS             = 6;
+    /**
+     * The size of the header of a record: the CRC-32 checksum (4 bytes), the
+     * time (8 bytes), and the length of the pathname (2 bytes).
+     */
+    private static final int                      RECORD_HEADER_SIZE = 14;
+    /**
+     * The maximum number of open bucket-files.
+     */
+    private static final int                      MAX_OPEN_FILES     = 32;
+    /**
+     * The executor that forces bucket-files to disk.
+     */
+    private static final ScheduledExecutorService committer;
+    /**
+     * The directory that contains the bucket-files.
+     */
+    private final Path                            dir;
+    /**
+     * The time-span of a bucket at each level in milliseconds.
+     */
+    private final long[]                          spans              = new long[LEVELS];
+    /**
+     * The maximum time, in milliseconds, that an append can remain unforced.
+     */
+    private final long                            commitInterval;
+    /**
+     * The buckets that have files, in order of when they become due.
+     */
+    @GuardedBy("this")
+    private final TreeSet<Bucket>                 buckets            = new TreeSet<Bucket>();
+    /**
+     * The open bucket-files in order of access.
+     */
+    @GuardedBy("this")
+    private final Map<Bucket, FileChannel>        channels           = new LinkedHashMap<Bucket, FileChannel>(
+                                                                             16,
+                                                                             0.75f,
+                                                                             true);
+    /**
+     * The open bucket-files with unforced appends.
+     */
+    @GuardedBy("this")
+    private final List<FileChannel>               dirty              = new ArrayList<FileChannel>();
+    /**
+     * The scheduled force or {@code null}.
+     */
+    @GuardedBy("this")
+    private ScheduledFuture<?>                    commitFuture;
+    /**
+     * The bucket returned by the previous {@link #awaitDue()} or {@code null}.
+     */
+    @GuardedBy("this")
+    private Bucket                                current;
+    /**
+     * Whether or not this instance is closed.
+     */
+    @GuardedBy("this")
+    private boolean                               closed;
+
+    static {
+        committer = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "TimingWheel-committer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Constructs. If the directory contains the bucket-files of a previous
+     * session, then their pathnames are scheduled again.
+     *
+     * @param dir
+     *            The directory for the bucket-files. Created if necessary.
+     * @param resolution
+     *            The time-span of a bucket at the finest level in
+     *            milliseconds. Must not change between sessions.
+     * @param commitInterval
+     *            The maximum time, in milliseconds, that an append can remain
+     *            unforced. If non-positive, then every append is forced.
+     * @throws IllegalArgumentException
+     *             if {@code resolution <= 0}.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    TimingWheel(final Path dir, final long resolution,
+            final long commitInterval) throws IOException {
+        if (resolution <= 0) {
+            throw new IllegalArgumentException("Invalid resolution: "
+                    + resolution);
+        }
+        this.dir = dir;
+        this.commitInterval = commitInterval;
+        long span = resolution;
+        for (int level = 0; level < LEVELS; level++) {
+            spans[level] = span;
+            span *= SLOTS;
+        }
+        Files.createDirectories(dir);
+        final DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+        try {
+            synchronized (this) {
+                for (final Path path : stream) {
+                    final String name = path.getFileName().toString();
+                    final int i = name.indexOf('-');
+                    try {
+                        final int level = Integer.parseInt(name.substring(0,
+                                i));
+                        final long index = Long.parseLong(name
+                                .substring(i + 1));
+                        if (level >= 0 && level < LEVELS) {
+                            buckets.add(new Bucket(level, index));
+                            continue;
+                        }
+                    }
+                    catch (final RuntimeException e) {
+                    }
+                    logger.warn("Ignoring unknown file: {}", path);
+                }
+            }
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Returns the bucket for a time. The bucket being acted upon is never
+     * returned because its file will be deleted.
+     *
+     * @param time
+     *            The time in milliseconds since the epoch.
+     * @param now
+     *            The current time in milliseconds since the epoch.
+     * @return The bucket for the time.
+     */
+    @GuardedBy("this")
+    private Bucket getBucket(final long time, final long now) {
+        final long delay = time - now;
+        int level = 0;
+        while (level < LEVELS - 1 && delay >= spans[level + 1]) {
+            level++;
+        }
+        final Bucket bucket = new Bucket(level, Math.max(time, 0)
+                / spans[level]);
+        return bucket.equals(current)
+                ? new Bucket(0, current.index + 1)
+                : bucket;
+    }
+
+    @Override
+    public synchronized void add(final Path path, final long time)
+            throws IOException {
+        if (closed) {
+            throw new IOException("Closed: " + this);
+        }
+        final Bucket bucket = getBucket(time, System.currentTimeMillis());
+        append(bucket, encode(path, time));
+        schedule();
+        if (buckets.add(bucket) && bucket.equals(buckets.first())) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the record of a pathname.
+     *
+     * @param path
+     *            The pathname.
+     * @param time
+     *            When the pathname becomes available.
+     * @return The record of the pathname.
+     * @throws IllegalArgumentException
+     *             if the pathname is too long.
+     */
+    private static ByteBuffer encode(final Path path, final long time) {
+        final byte[] bytes = path.toString().getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Pathname too long: \"" + path
+                    + "\"");
+        }
+        final ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE
+                + bytes.length);
+        buf.putInt(0);
+        buf.putLong(time);
+        buf.putShort((short) bytes.length);
+        buf.put(bytes);
+        final CRC32 crc = new CRC32();
+        crc.update(buf.array(), 4, buf.capacity() - 4);
+        buf.putInt(0, (int) crc.getValue());
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Appends records to the file of a bucket.
+     *
+     * @param bucket
+     *            The bucket.
+     * @param records
+     *            The records.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void append(final Bucket bucket, final ByteBuffer records)
+            throws IOException {
+        FileChannel channel = channels.get(bucket);
+        if (channel == null) {
+            if (channels.size() >= MAX_OPEN_FILES) {
+                final Iterator<FileChannel> iter = channels.values()
+                        .iterator();
+                close(iter.next());
+                iter.remove();
+            }
+            channel = FileChannel.open(bucket.getPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            channels.put(bucket, channel);
+        }
+        while (records.hasRemaining()) {
+            channel.write(records);
+        }
+        if (commitInterval <= 0) {
+            channel.force(false);
+        }
+        else if (!dirty.contains(channel)) {
+            dirty.add(channel);
+        }
+    }
+
+    /**
+     * Closes a bucket-file, forcing it to disk if necessary.
+     *
+     * @param channel
+     *            The channel to the bucket-file.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void close(final FileChannel channel) throws IOException {
+        try {
+            if (dirty.remove(channel)) {
+                channel.force(false);
+            }
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Ensures that unforced appends will be forced within the commit-interval.
+     */
+    @GuardedBy("this")
+    private void schedule() {
+        if (commitInterval > 0 && commitFuture == null && !dirty.isEmpty()) {
+            commitFuture = committer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (TimingWheel.this) {
+                        commitFuture = null;
+                        try {
+                            force();
+                        }
+                        catch (final IOException e) {
+                            logger.error("Couldn't force bucket-files in "
+                                    + dir, e);
+                        }
+                    }
+                }
+            }, commitInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Forces all unforced appends to disk.
+     *
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void force() throws IOException {
+        for (final FileChannel channel : dirty) {
+            if (channel.isOpen()) {
+                channel.force(false);
+            }
+        }
+        dirty.clear();
+    }
+
+    /**
+     * Reads the records of a bucket. Reading stops at the first incomplete or
+     * corrupt record.
+     *
+     * @param bucket
+     *            The bucket.
+     * @param paths
+     *            The pathnames of the records.
+     * @param times
+     *            The times of the records.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void read(final Bucket bucket, final List<Path> paths,
+            final List<Long> times) throws IOException {
+        final FileChannel open = channels.remove(bucket);
+        if (open != null) {
+            close(open);
+        }
+        final byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(bucket.getPath());
+        }
+        catch (final NoSuchFileException e) {
+            return;
+        }
+        final ByteBuffer buf = ByteBuffer.wrap(bytes);
+        final CRC32 crc = new CRC32();
+        while (buf.remaining() >= RECORD_HEADER_SIZE) {
+            final int start = buf.position();
+            final int checksum = buf.getInt();
+            final long time = buf.getLong();
+            final int length = buf.getShort();
+            if (length < 0 || buf.remaining() < length) {
+                break;
+            }
+            crc.reset();
+            crc.update(bytes, start + 4, RECORD_HEADER_SIZE - 4 + length);
+            if (checksum != (int) crc.getValue()) {
+                break;
+            }
+            paths.add(Paths.get(new String(bytes, buf.position(), length,
+                    StandardCharsets.UTF_8)));
+            times.add(time);
+            buf.position(buf.position() + length);
+        }
+        if (buf.hasRemaining()) {
+            logger.warn("Ignoring {} bytes at the end of {}", buf.remaining(),
+                    bucket.getPath());
+        }
+    }
+
+    /**
+     * Deletes the file of a bucket and forgets the bucket.
+     *
+     * @param bucket
+     *            The bucket.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void delete(final Bucket bucket) throws IOException {
+        Files.deleteIfExists(bucket.getPath());
+        buckets.remove(bucket);
+    }
+
+    /**
+     * Redistributes the pathnames of a bucket to finer buckets.
+     *
+     * @param bucket
+     *            The bucket.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @GuardedBy("this")
+    private void cascade(final Bucket bucket) throws IOException {
+        final List<Path> paths = new ArrayList<Path>();
+        final List<Long> times = new ArrayList<Long>();
+        read(bucket, paths, times);
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < paths.size(); i++) {
+            final Bucket finer = getBucket(times.get(i), now);
+            append(finer, encode(paths.get(i), times.get(i)));
+            buckets.add(finer);
+        }
+        // The redistributed pathnames must be durable before the bucket goes
+        force();
+        delete(bucket);
+        logger.debug("Cascaded {} pathnames from {}", paths.size(), bucket);
+    }
+
+    /**
+     * Returns the pathnames of the next bucket at the finest level that has
+     * become due, waiting if necessary. The pathnames remain in the wheel
+     * until {@link #removeDue()} is called.
+     */
+    @Override
+    public synchronized List<Path> awaitDue() throws InterruptedException,
+            IOException {
+        for (;;) {
+            if (closed) {
+                throw new IOException("Closed: " + this);
+            }
+            if (buckets.isEmpty()) {
+                wait();
+                continue;
+            }
+            final Bucket bucket = buckets.first();
+            final long wait = bucket.due - System.currentTimeMillis();
+            if (wait > 0) {
+                wait(wait);
+                continue;
+            }
+            if (bucket.level > 0) {
+                cascade(bucket);
+                continue;
+            }
+            final List<Path> paths = new ArrayList<Path>();
+            read(bucket, paths, new ArrayList<Long>());
+            if (paths.isEmpty()) {
+                delete(bucket);
+                continue;
+            }
+            current = bucket;
+            return paths;
+        }
+    }
+
+    @Override
+    public synchronized void removeDue() throws IOException {
+        if (current != null) {
+            delete(current);
+            current = null;
+        }
+    }
+
+    @Override
+    public synchronized void copyTo(final TimedPathQueue queue)
+            throws IOException {
+        final List<Path> paths = new ArrayList<Path>();
+        final List<Long> times = new ArrayList<Long>();
+        for (final Bucket bucket : buckets) {
+            read(bucket, paths, times);
+        }
+        for (int i = 0; i < paths.size(); i++) {
+            queue.add(paths.get(i), times.get(i));
+        }
+    }
+
+    /**
+     * Returns the number of buckets that have files.
+     *
+     * @return The number of buckets that have files.
+     */
+    synchronized int getBucketCount() {
+        return buckets.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            if (commitFuture != null) {
+                commitFuture.cancel(false);
+                commitFuture = null;
+            }
+            try {
+                for (final FileChannel channel : channels.values()) {
+                    close(channel);
+                }
+            }
+            finally {
+                channels.clear();
+                notifyAll();
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public synchronized String toString() {
+        return "TimingWheel [dir=" + dir + ", resolution=" + spans[0]
+                + ", buckets=" + buckets.size() + "]";
+    }
+}
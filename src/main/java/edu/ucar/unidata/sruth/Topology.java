@@ -4,14 +4,21 @@ import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.Preferences;
 
 import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
@@ -22,6 +29,16 @@ import net.jcip.annotations.ThreadSafe;
  * will have at least one associated filter. A filter, however, may have no
  * associated servers.
  * <p>
+ * The load on each server (see {@link ServerLoad}) is also kept so that
+ * clients can prefer close, lightly-loaded servers.
+ * <p>
+ * Every modification increments the version of an instance so that the
+ * changes since a given version can be obtained as a {@link TopologyDelta}
+ * and applied to a copy of that version elsewhere (see
+ * {@link #getDelta(long, long)} and {@link #update(TopologyDelta)}). The
+ * epoch of an instance distinguishes it from other instances whose versions
+ * might coincide (e.g., that of a restarted tracker).
+ * <p>
  * Instances are thread-safe.
  * 
  * @author Steven R. Emmerson
@@ -32,6 +49,61 @@ final class Topology implements Serializable {
      * The serial version identifier.
      */
     private static final long                                  serialVersionUID = 1L;
+    /**
+     * The round-trip time, in nanoseconds, of a server relative to which the
+     * round-trip times of candidate servers are weighted.
+     */
+    private static final double                                RTT_SCALE        = 50e6;
+    /**
+     * The minimum weight of a fully-utilized server relative to an idle one
+     * so that such a server can still be selected if it's the only candidate.
+     */
+    private static final double                                MINIMUM_IDLENESS = 0.05;
+    /**
+     * The maximum number of removed servers that are remembered for computing
+     * deltas. Deltas from versions before the earliest forgotten removal
+     * can't be computed.
+     */
+    private static final int                                   MAX_REMOVALS     = 1024;
+    /**
+     * The name of the snapshot-period user-preference ({@value} ).
+     */
+    private static final String                                SNAPSHOT_PERIOD_KEY     = "topology snapshot period in seconds";
+    /**
+     * The default value of the snapshot-period user-preference ({@value} ).
+     */
+    private static final int                                   SNAPSHOT_PERIOD_DEFAULT = 600;
+    /**
+     * The maximum time, in nanoseconds, that a copy of an instance should be
+     * kept current by deltas alone before being replaced by a full snapshot.
+     */
+    static final long                                          SNAPSHOT_PERIOD;
+
+    static {
+        final Preferences prefs = Preferences
+                .userNodeForPackage(Topology.class);
+        final int snapshotPeriod = prefs.getInt(SNAPSHOT_PERIOD_KEY,
+                SNAPSHOT_PERIOD_DEFAULT);
+        if (snapshotPeriod <= 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + SNAPSHOT_PERIOD_KEY + "\"=" + snapshotPeriod);
+        }
+        SNAPSHOT_PERIOD = TimeUnit.SECONDS.toNanos(snapshotPeriod);
+    }
+
+    /**
+     * The identifier of this instance and of its copies.
+     * 
+     * @serial
+     */
+    private final long                                         epoch;
+    /**
+     * The version of this instance.
+     * 
+     * @serial
+     */
+    @GuardedBy("this")
+    private long                                               version;
     /**
      * The map from filters to servers.
      * 
@@ -46,11 +118,33 @@ final class Topology implements Serializable {
      */
     @GuardedBy("this")
     private final Map<InetSocketAddress, Set<Filter>>          filterSets       = new HashMap<InetSocketAddress, Set<Filter>>();
+    /**
+     * The map from servers to their loads.
+     * 
+     * @serial
+     */
+    @GuardedBy("this")
+    private final Map<InetSocketAddress, ServerLoad>           loads            = new HashMap<InetSocketAddress, ServerLoad>();
     /**
      * A pseudo-random number generator.
      */
     @GuardedBy("this")
     private final transient Random                             random           = new Random();
+    /**
+     * The version at which each server was last added or modified.
+     */
+    @GuardedBy("this")
+    private final transient Map<InetSocketAddress, Long>       modifications    = new HashMap<InetSocketAddress, Long>();
+    /**
+     * The version at which each server was removed in the order of removal.
+     */
+    @GuardedBy("this")
+    private final transient Map<InetSocketAddress, Long>       removals         = new LinkedHashMap<InetSocketAddress, Long>();
+    /**
+     * The earliest version from which a delta can be computed.
+     */
+    @GuardedBy("this")
+    private transient long                                     horizon;
 
     /**
      * Constructs from a set of data-selection filters.
@@ -59,6 +153,7 @@ final class Topology implements Serializable {
      *            The set of data-selection filters.
      */
     Topology(final Set<Filter> filters) {
+        this();
         for (final Filter filter : filters) {
             final Set<InetSocketAddress> servers = newServerSet();
             serverSets.put(filter, servers);
@@ -69,15 +164,28 @@ final class Topology implements Serializable {
      * Constructs an empty instance.
      */
     Topology() {
+        this(new Random().nextLong());
+    }
+
+    /**
+     * Constructs an empty instance with a given epoch.
+     * 
+     * @param epoch
+     *            The identifier of the instance.
+     */
+    private Topology(final long epoch) {
+        this.epoch = epoch;
     }
 
     /**
-     * Copy constructor.
+     * Copy constructor. The copy has the same epoch and version as the
+     * original and can compute the same deltas.
      * 
      * @param that
      *            The other instance.
      */
     Topology(final Topology that) {
+        epoch = that.epoch;
         Topology o1, o2;
         if (System.identityHashCode(this) < System.identityHashCode(that)) {
             o1 = this;
@@ -99,6 +207,12 @@ final class Topology implements Serializable {
                         .entrySet()) {
                     add(entry.getKey(), entry.getValue());
                 }
+                loads.putAll(that.loads);
+                version = that.version;
+                modifications.clear();
+                modifications.putAll(that.modifications);
+                removals.putAll(that.removals);
+                horizon = that.horizon;
             }
         }
     }
@@ -144,7 +258,9 @@ final class Topology implements Serializable {
             filters = newFilterSet();
             filterSets.put(server, filters);
         }
-        filters.add(filter);
+        if (filters.add(filter)) {
+            modified(server);
+        }
     }
 
     /**
@@ -171,7 +287,9 @@ final class Topology implements Serializable {
                 filters = newFilterSet();
                 filterSets.put(server, filters);
             }
-            filters.add(filter);
+            if (filters.add(filter)) {
+                modified(server);
+            }
         }
     }
 
@@ -191,7 +309,9 @@ final class Topology implements Serializable {
             entryFilters = newFilterSet();
             filterSets.put(server, entryFilters);
         }
-        entryFilters.addAll(filters);
+        if (entryFilters.addAll(filters)) {
+            modified(server);
+        }
 
         for (final Filter filter : filters) {
             Set<InetSocketAddress> entryServers = serverSets.get(filter);
@@ -234,6 +354,10 @@ final class Topology implements Serializable {
                     subset.add(filt, server);
                 }
             }
+            final ServerLoad load = loads.get(server);
+            if (load != null) {
+                subset.setLoad(server, load);
+            }
         }
         return subset;
     }
@@ -245,8 +369,10 @@ final class Topology implements Serializable {
      *            The address of the sink-node's server.
      */
     synchronized void remove(final InetSocketAddress server) {
+        loads.remove(server);
         final Set<Filter> filters = filterSets.remove(server);
         if (filters != null) {
+            removed(server);
             for (final Filter filter : filters) {
                 final Set<InetSocketAddress> servers = serverSets.get(filter);
                 if (servers != null) {
@@ -273,7 +399,43 @@ final class Topology implements Serializable {
     }
 
     /**
-     * Returns the best server to connect to for a given data-filter.
+     * Sets the load on a server. The load of an unknown server is ignored.
+     * 
+     * @param server
+     *            The address of the server.
+     * @param load
+     *            The load on the server.
+     * @throws NullPointerException
+     *             if {@code load == null}.
+     */
+    synchronized void setLoad(final InetSocketAddress server,
+            final ServerLoad load) {
+        if (load == null) {
+            throw new NullPointerException();
+        }
+        if (filterSets.containsKey(server) && !load.equals(loads.put(server, load))) {
+            modified(server);
+        }
+    }
+
+    /**
+     * Returns the load on a server.
+     * 
+     * @param server
+     *            The address of the server.
+     * @return The load on the server. Will be {@link ServerLoad#UNKNOWN} if
+     *         the load isn't known.
+     */
+    synchronized ServerLoad getLoad(final InetSocketAddress server) {
+        final ServerLoad load = loads.get(server);
+        return load == null
+                ? ServerLoad.UNKNOWN
+                : load;
+    }
+
+    /**
+     * Returns the best server to connect to for a given data-filter. No
+     * round-trip times are known.
      * 
      * @param filter
      *            The specification of desired-data.
@@ -281,8 +443,36 @@ final class Topology implements Serializable {
      *         exists.
      * @throws NullPointerException
      *             if {@code filter == null}.
+     * @see #getBestServer(Filter, Map)
      */
-    synchronized InetSocketAddress getBestServer(final Filter filter) {
+    InetSocketAddress getBestServer(final Filter filter) {
+        return getBestServer(filter,
+                Collections.<InetSocketAddress, Long> emptyMap());
+    }
+
+    /**
+     * Returns the best server to connect to for a given data-filter. The
+     * candidate servers are those that can just barely satisfy the
+     * data-filter. One of them is chosen at random with a probability that
+     * decreases with its depth in the distribution tree, its utilization, and
+     * its round-trip time so that clients prefer close, lightly-loaded servers
+     * near the source and the distribution tree stays shallow.
+     * 
+     * @param filter
+     *            The specification of desired-data.
+     * @param roundTripTimes
+     *            The measured round-trip times, in nanoseconds, of servers.
+     *            Servers that aren't in the map are assumed to have the mean
+     *            round-trip time of the candidate servers that are.
+     * @return The best server to connect to or {@code null} if no such server
+     *         exists.
+     * @throws NullPointerException
+     *             if {@code filter == null}.
+     * @throws NullPointerException
+     *             if {@code roundTripTimes == null}.
+     */
+    synchronized InetSocketAddress getBestServer(final Filter filter,
+            final Map<InetSocketAddress, Long> roundTripTimes) {
         /*
          * HEURISTIC: The best server to connect to is one that can just barely
          * satisfy the desired data.
@@ -312,14 +502,223 @@ final class Topology implements Serializable {
         }
 
         /*
-         * Pick a server at random from amongst the possible candidates.
+         * A server of unknown depth is assumed to be deeper than any server of
+         * known depth and a server of unknown round-trip time is assumed to be
+         * average.
          */
-        int i = random.nextInt(size);
-        final Iterator<InetSocketAddress> iter = candidates.iterator();
-        while (i-- > 0) {
-            iter.next();
+        int maxDepth = 0;
+        double rttSum = 0;
+        int rttCount = 0;
+        for (final InetSocketAddress server : candidates) {
+            maxDepth = Math.max(maxDepth, getLoad(server).getDepth());
+            final Long rtt = roundTripTimes.get(server);
+            if (rtt != null) {
+                rttSum += rtt;
+                rttCount++;
+            }
         }
-        return iter.next();
+        final double meanRtt = rttCount == 0
+                ? 0
+                : rttSum / rttCount;
+
+        /*
+         * Pick a server at random from amongst the candidates according to
+         * their weights.
+         */
+        final List<InetSocketAddress> choices = new ArrayList<InetSocketAddress>(
+                size);
+        final double[] cumulativeWeights = new double[size];
+        double totalWeight = 0;
+        for (final InetSocketAddress server : candidates) {
+            final ServerLoad load = getLoad(server);
+            final int depth = load.isDepthKnown()
+                    ? load.getDepth()
+                    : maxDepth + 1;
+            final Long rtt = roundTripTimes.get(server);
+            totalWeight += getWeight(load.getUtilization(), depth, rtt == null
+                    ? meanRtt
+                    : rtt);
+            cumulativeWeights[choices.size()] = totalWeight;
+            choices.add(server);
+        }
+        final double x = random.nextDouble() * totalWeight;
+        for (int i = 0; i < size - 1; i++) {
+            if (x < cumulativeWeights[i]) {
+                return choices.get(i);
+            }
+        }
+        return choices.get(size - 1);
+    }
+
+    /**
+     * Returns the weight of a candidate server.
+     * 
+     * @param utilization
+     *            The utilization of the server in the range {@code [0,1]}.
+     * @param depth
+     *            The depth of the server in the distribution tree.
+     * @param rtt
+     *            The round-trip time of the server in nanoseconds.
+     * @return The weight of the server. Greater is better.
+     */
+    private static double getWeight(final double utilization, final int depth,
+            final double rtt) {
+        return (1 - utilization + MINIMUM_IDLENESS) / (1 + depth)
+                / (1 + rtt / RTT_SCALE);
+    }
+
+    /**
+     * Records the addition or modification of a server.
+     * 
+     * @param server
+     *            The server.
+     */
+    @GuardedBy("this")
+    private void modified(final InetSocketAddress server) {
+        modifications.put(server, ++version);
+        removals.remove(server);
+    }
+
+    /**
+     * Records the removal of a server. Forgets the earliest removal if too
+     * many are remembered.
+     * 
+     * @param server
+     *            The server.
+     */
+    @GuardedBy("this")
+    private void removed(final InetSocketAddress server) {
+        modifications.remove(server);
+        removals.remove(server);
+        removals.put(server, ++version);
+        if (removals.size() > MAX_REMOVALS) {
+            final Iterator<Long> iter = removals.values().iterator();
+            horizon = iter.next();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Returns the identifier of this instance and of its copies.
+     * 
+     * @return The identifier of this instance.
+     */
+    long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the version of this instance.
+     * 
+     * @return The version of this instance.
+     */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the changes to this instance since a given version.
+     * 
+     * @param epoch
+     *            The epoch of the given version.
+     * @param sinceVersion
+     *            The given version.
+     * @return The changes since the given version or {@code null} if they
+     *         can't be computed because the epoch differs, the given version
+     *         is too old, or the given version is newer than this instance
+     *         (e.g., it's from a deserialized copy). The returned instance is
+     *         not backed by this instance.
+     */
+    synchronized TopologyDelta getDelta(final long epoch,
+            final long sinceVersion) {
+        if (epoch != this.epoch || sinceVersion < horizon
+                || sinceVersion > version) {
+            return null;
+        }
+        final Map<InetSocketAddress, Set<Filter>> changes = new HashMap<InetSocketAddress, Set<Filter>>();
+        final Map<InetSocketAddress, ServerLoad> changedLoads = new HashMap<InetSocketAddress, ServerLoad>();
+        for (final Map.Entry<InetSocketAddress, Long> entry : modifications
+                .entrySet()) {
+            if (entry.getValue() > sinceVersion) {
+                final InetSocketAddress server = entry.getKey();
+                final Set<Filter> filters = newFilterSet();
+                filters.addAll(filterSets.get(server));
+                changes.put(server, filters);
+                final ServerLoad load = loads.get(server);
+                if (load != null) {
+                    changedLoads.put(server, load);
+                }
+            }
+        }
+        final Set<InetSocketAddress> removed = new HashSet<InetSocketAddress>();
+        for (final Map.Entry<InetSocketAddress, Long> entry : removals
+                .entrySet()) {
+            if (entry.getValue() > sinceVersion) {
+                removed.add(entry.getKey());
+            }
+        }
+        return new TopologyDelta(epoch, sinceVersion, version, changes,
+                changedLoads, removed);
+    }
+
+    /**
+     * Returns the result of applying changes to this instance. This instance
+     * is not modified. The returned instance can't compute deltas from
+     * versions before its own.
+     * 
+     * @param delta
+     *            The changes to apply.
+     * @return The updated copy of this instance.
+     * @throws IllegalArgumentException
+     *             if the delta doesn't apply to this instance's epoch and
+     *             version.
+     */
+    synchronized Topology update(final TopologyDelta delta) {
+        if (delta.getEpoch() != epoch || delta.getFromVersion() != version) {
+            throw new IllegalArgumentException("delta=" + delta + ", epoch="
+                    + epoch + ", version=" + version);
+        }
+        final Topology result = new Topology(this);
+        synchronized (result) {
+            for (final InetSocketAddress server : delta.getRemovals()) {
+                result.remove(server);
+            }
+            for (final Map.Entry<InetSocketAddress, Set<Filter>> entry : delta
+                    .getFilterSets().entrySet()) {
+                final InetSocketAddress server = entry.getKey();
+                result.remove(server);
+                result.add(server, entry.getValue());
+                final ServerLoad load = delta.getLoad(server);
+                if (load != null) {
+                    result.setLoad(server, load);
+                }
+            }
+            result.version = delta.getToVersion();
+            result.modifications.clear();
+            result.removals.clear();
+            result.horizon = result.version;
+        }
+        return result;
+    }
+
+    /**
+     * Indicates if this instance contains a server.
+     * 
+     * @param server
+     *            The address of the server.
+     * @return {@code true} if and only if this instance contains the server.
+     */
+    synchronized boolean contains(final InetSocketAddress server) {
+        return filterSets.containsKey(server);
+    }
+
+    /**
+     * Returns the number of servers in this instance.
+     * 
+     * @return The number of servers in this instance.
+     */
+    synchronized int getServerCount() {
+        return filterSets.size();
     }
 
     /**
@@ -407,6 +806,10 @@ final class Topology implements Serializable {
     synchronized void clear() {
         serverSets.clear();
         filterSets.clear();
+        loads.clear();
+        modifications.clear();
+        removals.clear();
+        horizon = ++version;
     }
 
     /**
@@ -427,8 +830,9 @@ final class Topology implements Serializable {
      */
     @Override
     synchronized public String toString() {
-        return "Topology [serverSets=" + serverSets + ", filterSets="
-                + filterSets + "]";
+        return "Topology [epoch=" + epoch + ", version=" + version
+                + ", serverSets=" + serverSets + ", filterSets=" + filterSets
+                + ", loads=" + loads + "]";
     }
 
     /**
@@ -443,11 +847,29 @@ final class Topology implements Serializable {
     }
 
     private Object readResolve() {
-        final Topology instance = new Topology();
+        final Topology instance = new Topology(epoch);
         for (final Map.Entry<Filter, Set<InetSocketAddress>> entry : serverSets
                 .entrySet()) {
             instance.add(entry.getKey(), entry.getValue());
         }
+        /*
+         * Instances serialized before loads were kept don't have any.
+         */
+        if (loads != null) {
+            for (final Map.Entry<InetSocketAddress, ServerLoad> entry : loads
+                    .entrySet()) {
+                instance.setLoad(entry.getKey(), entry.getValue());
+            }
+        }
+        /*
+         * A deserialized instance can't compute deltas from earlier versions
+         * because the changes aren't serialized.
+         */
+        synchronized (instance) {
+            instance.version = version;
+            instance.modifications.clear();
+            instance.horizon = version;
+        }
         return instance;
     }
 }
\ No newline at end of file
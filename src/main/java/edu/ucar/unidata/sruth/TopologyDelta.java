@@ -0,0 +1,201 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.InvalidObjectException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * The changes to a {@link Topology} between two of its versions. For each
+ * server that was added or modified, the delta contains the server's current
+ * filters and load; for each server that was removed, the delta contains just
+ * the server. Applying a delta to a copy of the older version yields the newer
+ * version regardless of how many changes the server underwent in between.
+ * <p>
+ * Instances are immutable.
+ *
+ * @author Steven R. Emmerson
+ */
+@Immutable
+final class TopologyDelta implements Serializable {
+    /**
+     * The serial version identifier.
+     */
+    private static final long                             serialVersionUID = 1L;
+    /**
+     * The identifier of the topology to which this instance applies.
+     *
+     * @serial
+     */
+    private final long                                    epoch;
+    /**
+     * The version of the topology to which this instance applies.
+     *
+     * @serial
+     */
+    private final long                                    fromVersion;
+    /**
+     * The version of the topology that results from applying this instance.
+     *
+     * @serial
+     */
+    private final long                                    toVersion;
+    /**
+     * The filters of the added or modified servers.
+     *
+     * @serial
+     */
+    private final Map<InetSocketAddress, Set<Filter>>     filterSets;
+    /**
+     * The loads of the added or modified servers that have one.
+     *
+     * @serial
+     */
+    private final Map<InetSocketAddress, ServerLoad>      loads;
+    /**
+     * The removed servers.
+     *
+     * @serial
+     */
+    private final Set<InetSocketAddress>                  removals;
+
+    /**
+     * Constructs. The arguments are copied.
+     *
+     * @param epoch
+     *            The identifier of the topology.
+     * @param fromVersion
+     *            The version of the topology to which this instance applies.
+     * @param toVersion
+     *            The version of the topology that results from applying this
+     *            instance.
+     * @param filterSets
+     *            The filters of the added or modified servers.
+     * @param loads
+     *            The loads of the added or modified servers that have one.
+     * @param removals
+     *            The removed servers.
+     * @throws IllegalArgumentException
+     *             if {@code toVersion < fromVersion}.
+     * @throws NullPointerException
+     *             if {@code filterSets == null || loads == null ||
+     *             removals == null}.
+     */
+    TopologyDelta(final long epoch, final long fromVersion,
+            final long toVersion,
+            final Map<InetSocketAddress, Set<Filter>> filterSets,
+            final Map<InetSocketAddress, ServerLoad> loads,
+            final Set<InetSocketAddress> removals) {
+        if (toVersion < fromVersion) {
+            throw new IllegalArgumentException("fromVersion=" + fromVersion
+                    + ", toVersion=" + toVersion);
+        }
+        this.epoch = epoch;
+        this.fromVersion = fromVersion;
+        this.toVersion = toVersion;
+        this.filterSets = new HashMap<InetSocketAddress, Set<Filter>>(
+                filterSets);
+        this.loads = new HashMap<InetSocketAddress, ServerLoad>(loads);
+        this.removals = new HashSet<InetSocketAddress>(removals);
+    }
+
+    /**
+     * Returns the identifier of the topology to which this instance applies.
+     *
+     * @return The identifier of the topology.
+     */
+    long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the version of the topology to which this instance applies.
+     *
+     * @return The version of the topology to which this instance applies.
+     */
+    long getFromVersion() {
+        return fromVersion;
+    }
+
+    /**
+     * Returns the version of the topology that results from applying this
+     * instance.
+     *
+     * @return The version of the resulting topology.
+     */
+    long getToVersion() {
+        return toVersion;
+    }
+
+    /**
+     * Returns the filters of the added or modified servers.
+     *
+     * @return The filters of the added or modified servers.
+     */
+    Map<InetSocketAddress, Set<Filter>> getFilterSets() {
+        return Collections.unmodifiableMap(filterSets);
+    }
+
+    /**
+     * Returns the load of an added or modified server.
+     *
+     * @param server
+     *            The server.
+     * @return The load of the server or {@code null} if it has none.
+     */
+    ServerLoad getLoad(final InetSocketAddress server) {
+        return loads.get(server);
+    }
+
+    /**
+     * Returns the removed servers.
+     *
+     * @return The removed servers.
+     */
+    Set<InetSocketAddress> getRemovals() {
+        return Collections.unmodifiableSet(removals);
+    }
+
+    /**
+     * Returns the number of changed servers.
+     *
+     * @return The number of added, modified, and removed servers.
+     */
+    int size() {
+        return filterSets.size() + removals.size();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "TopologyDelta [epoch=" + epoch + ", fromVersion="
+                + fromVersion + ", toVersion=" + toVersion + ", changes="
+                + filterSets.size() + ", removals=" + removals.size() + "]";
+    }
+
+    private Object readResolve() throws InvalidObjectException {
+        try {
+            return new TopologyDelta(epoch, fromVersion, toVersion,
+                    filterSets, loads, removals);
+        }
+        catch (final RuntimeException e) {
+            throw (InvalidObjectException) new InvalidObjectException(
+                    toString()).initCause(e);
+        }
+    }
+}
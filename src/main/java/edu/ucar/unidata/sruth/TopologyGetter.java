@@ -8,9 +8,7 @@ package edu.ucar.unidata.sruth;
 import java.io.IOException;
 import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.ObjectStreamException;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
@@ -43,15 +41,44 @@ final class TopologyGetter extends TrackerTask {
      * @serial
      */
     private final Filter            filter;
+    /**
+     * The load on the server of the node that wants data.
+     * 
+     * @serial
+     */
+    private final ServerLoad        load;
+    /**
+     * The epoch of the topology that the node has.
+     * 
+     * @serial
+     */
+    private final long              epoch;
+    /**
+     * The version of the topology that the node has or {@code -1} if the node
+     * wants a full snapshot.
+     * 
+     * @serial
+     */
+    private final long              version;
+    /**
+     * The topology that the node has or {@code null}.
+     */
+    private final transient Topology base;
 
     /**
-     * Constructs from the data-filter to use and the address of the local
-     * server.
+     * Constructs from the data-filter to use and the address of and load on
+     * the local server.
      * 
      * @param filter
      *            Specification of locally-desired data
      * @param localServer
      *            The address of the local server.
+     * @param load
+     *            The load on the local server.
+     * @param base
+     *            The topology that the local node has and that the tracker
+     *            should send changes to or {@code null} if the tracker should
+     *            send a full snapshot.
      * @param trackerSocket
      *            The socket that's connected to the tracker
      * @throws SocketException
@@ -61,9 +88,50 @@ final class TopologyGetter extends TrackerTask {
      * @throws NullPointerException
      *             if {@code localServer == null}.
      * @throws NullPointerException
+     *             if {@code load == null}.
+     * @throws NullPointerException
      *             if {@code socket == null}.
      */
     TopologyGetter(final Filter filter, final InetSocketAddress localServer,
+            final ServerLoad load, final Topology base, final Socket socket)
+            throws SocketException {
+        this(filter, localServer, load, base, base == null
+                ? 0
+                : base.getEpoch(), base == null
+                ? -1
+                : base.getVersion(), socket);
+    }
+
+    /**
+     * Constructs from the data-filter to use, the address of and load on the
+     * local server, and the epoch and version of the local node's topology.
+     * 
+     * @param filter
+     *            Specification of locally-desired data
+     * @param localServer
+     *            The address of the local server.
+     * @param load
+     *            The load on the local server.
+     * @param base
+     *            The topology that the local node has or {@code null}.
+     * @param epoch
+     *            The epoch of the local node's topology.
+     * @param version
+     *            The version of the local node's topology or {@code -1}.
+     * @param trackerSocket
+     *            The socket that's connected to the tracker or {@code null}.
+     * @throws SocketException
+     *             if the socket can't be configured correctly
+     * @throws NullPointerException
+     *             if {@code filter == null}.
+     * @throws NullPointerException
+     *             if {@code localServer == null}.
+     * @throws NullPointerException
+     *             if {@code load == null}.
+     */
+    private TopologyGetter(final Filter filter,
+            final InetSocketAddress localServer, final ServerLoad load,
+            final Topology base, final long epoch, final long version,
             final Socket socket) throws SocketException {
         super(socket);
         if (filter == null) {
@@ -72,8 +140,15 @@ final class TopologyGetter extends TrackerTask {
         if (localServer == null) {
             throw new NullPointerException();
         }
+        if (load == null) {
+            throw new NullPointerException();
+        }
         this.filter = filter;
         this.localServer = localServer;
+        this.load = load;
+        this.base = base;
+        this.epoch = epoch;
+        this.version = version;
     }
 
     /**
@@ -86,6 +161,8 @@ final class TopologyGetter extends TrackerTask {
      *            Specification of locally-desired data
      * @param localServer
      *            Internet socket address of the local server
+     * @param load
+     *            The load on the local server
      * @param socket
      *            Socket to the tracker
      * @param trackerProxy
@@ -98,11 +175,11 @@ final class TopologyGetter extends TrackerTask {
      *             if an I/O error occurs
      */
     static void execute(final Filter filter,
-            final InetSocketAddress localServer, final Socket socket,
-            final TrackerProxy trackerProxy) throws InvalidMessageException,
-            IOException {
+            final InetSocketAddress localServer, final ServerLoad load,
+            final Socket socket, final TrackerProxy trackerProxy)
+            throws InvalidMessageException, IOException {
         final TopologyGetter topologyGetter = new TopologyGetter(filter,
-                localServer, socket);
+                localServer, load, trackerProxy.getUpdatableTopology(), socket);
         topologyGetter.getTopologyAndRegister(trackerProxy);
     }
 
@@ -133,7 +210,8 @@ final class TopologyGetter extends TrackerTask {
     }
 
     /**
-     * Processes the response from the tracker.
+     * Processes the response from the tracker, which is either the changes to
+     * the topology that the local node has or a full snapshot.
      * 
      * @param trackerProxy
      *            The proxy for the tracker
@@ -146,10 +224,26 @@ final class TopologyGetter extends TrackerTask {
             throws InvalidMessageException, IOException {
         final ObjectInputStream ois = new ObjectInputStream(
                 trackerSocket.getInputStream());
-        Topology topology;
         try {
-            topology = (Topology) ois.readObject();
-            trackerProxy.setRawTopology(topology);
+            final Object obj = ois.readObject();
+            if (obj instanceof TopologyDelta) {
+                if (base == null) {
+                    throw new InvalidMessageException(
+                            "Unrequested topology delta: " + obj);
+                }
+                try {
+                    trackerProxy.setRawTopology(
+                            base.update((TopologyDelta) obj), false);
+                }
+                catch (final IllegalArgumentException e) {
+                    trackerProxy.invalidateTopology();
+                    throw new InvalidMessageException(
+                            "Couldn't apply topology delta: " + this, e);
+                }
+            }
+            else {
+                trackerProxy.setRawTopology((Topology) obj, true);
+            }
             InetSocketAddress reportingAddress;
             reportingAddress = (InetSocketAddress) ois.readObject();
             trackerProxy.setReportingAddress(reportingAddress);
@@ -161,29 +255,33 @@ final class TopologyGetter extends TrackerTask {
     }
 
     /**
-     * Replies to the client. This method is executed by the tracker.
-     * <p>
-     * This method is uninterruptible and potentially slow.
+     * Returns the changes to the node's topology, if they're available, or the
+     * entire topology together with the address for reporting unavailable
+     * servers. This method is executed by the tracker.
      * 
      * @param tracker
      *            The tracker
-     * @param socket
-     *            The socket on which to reply.
+     * @return The serialized reply.
      * @throws IOException
      *             if an I/O error occurs.
-     * @throws NullPointerException
-     *             if {@code socket == null}.
      */
     @Override
-    public void process(final Tracker tracker, final Socket socket)
-            throws IOException {
-        final OutputStream outputStream = socket.getOutputStream();
-        final ObjectOutputStream oos = new ObjectOutputStream(outputStream);
-        final Topology network = tracker.getNetwork();
-        oos.writeObject(network);
-        oos.writeObject(tracker.getReportingAddress());
-        oos.flush();
-        tracker.register(localServer, filter);
+    byte[] reply(final Tracker tracker) throws IOException {
+        return tracker.getTopologyReply(epoch, version);
+    }
+
+    /**
+     * Registers the node's server with the tracker. This method is executed by
+     * the tracker.
+     * 
+     * @param tracker
+     *            The tracker
+     * @return {@code true}.
+     */
+    @Override
+    boolean apply(final Tracker tracker) {
+        tracker.register(localServer, filter, load);
+        return true;
     }
 
     /*
@@ -194,12 +292,17 @@ final class TopologyGetter extends TrackerTask {
     @Override
     public String toString() {
         return "FilteredProxy [filter=" + filter + ",localServer="
-                + localServer + "]";
+                + localServer + ",load=" + load + ",version=" + version + "]";
     }
 
     private Object readResolve() throws ObjectStreamException, SocketException {
         try {
-            return new TopologyGetter(filter, localServer, null);
+            /*
+             * Nodes that predate load-reporting don't send their load.
+             */
+            return new TopologyGetter(filter, localServer, load == null
+                    ? ServerLoad.UNKNOWN
+                    : load, null, epoch, version, null);
         }
         catch (final NullPointerException e) {
             throw (InvalidObjectException) new InvalidObjectException(
@@ -7,32 +7,29 @@ package edu.ucar.unidata.sruth;
 
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.net.BindException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.CompletionService;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.Future;
-import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.prefs.Preferences;
 
 import net.jcip.annotations.GuardedBy;
-import net.jcip.annotations.NotThreadSafe;
 import net.jcip.annotations.ThreadSafe;
 
 import org.slf4j.Logger;
@@ -48,443 +45,36 @@ import org.slf4j.Logger;
 @ThreadSafe
 final class Tracker implements Callable<Void> {
     /**
-     * Checks the status of servers.
-     * <p>
-     * Instances are thread-safe.
-     * 
-     * @author Steven R. Emmerson
-     */
-    private class ServerCheckerTask extends UninterruptibleTask<Void> {
-        /**
-         * Checks the status of a server (i.e., whether it's online or offline).
-         * <p>
-         * Instances are thread-safe.
-         * 
-         * @author Steven R. Emmerson
-         */
-        private class ServerChecker extends UninterruptibleTask<Void> {
-            /**
-             * The address of the server.
-             */
-            private final InetSocketAddress  serverAddress;
-            /**
-             * The connection to the server.
-             */
-            @GuardedBy("this")
-            private final ConnectionToServer connection;
-
-            /**
-             * Constructs from the address of the server.
-             * 
-             * @param serverAddress
-             *            The address of the server.
-             * @throws NullPointerException
-             *             if {@code serverAddress == null}.
-             */
-            ServerChecker(final InetSocketAddress serverAddress) {
-                if (serverAddress == null) {
-                    throw new NullPointerException();
-                }
-                this.serverAddress = serverAddress;
-                connection = new ConnectionToServer(sourceServer, serverAddress);
-            }
-
-            /**
-             * Checks whether the server is online or offline by attempting to
-             * connect to it. Removes the server from consideration by the
-             * tracker if the server is offline.
-             * 
-             * @see java.util.concurrent.Callable#call()
-             */
-            @Override
-            public Void call() {
-                logger.trace("Starting up: {}", this);
-                final String origThreadName = Thread.currentThread().getName();
-                Thread.currentThread().setName("Server-checker");
-                try {
-                    connection.open();
-                    logger.debug("Connection to server succeeded: {}",
-                            serverAddress);
-                    connection.close();
-                }
-                catch (final IOException e) {
-                    topology.remove(serverAddress);
-                    logger.debug("Removed server: {}", serverAddress);
-                }
-                finally {
-                    Thread.currentThread().setName(origThreadName);
-                    logger.trace("Done: {}", this);
-                }
-                return null;
-            }
-
-            @Override
-            protected void stop() {
-                connection.close();
-            }
-
-            /*
-             * (non-Javadoc)
-             * 
-             * @see java.lang.Object#toString()
-             */
-            @Override
-            public String toString() {
-                return "ServerChecker [serverAddress=" + serverAddress + "]";
-            }
-        }
-
-        /**
-         * The task execution service.
-         */
-        private final CancellingExecutor executor = new CancellingExecutor(
-                                                          0,
-                                                          MAX_NUM_SERVER_CHECKER_THREADS,
-                                                          SERVER_CHECKER_KEEPALIVE,
-                                                          TimeUnit.SECONDS,
-                                                          new SynchronousQueue<Runnable>());
-        /**
-         * The UDP socket on which this instance listens.
-         */
-        private final DatagramSocket     socket;
-
-        /**
-         * Constructs from nothing. Opens a UDP socket.
-         * 
-         * @throws SocketException
-         *             if a UDP socket couldn't be created.
-         */
-        ServerCheckerTask() throws SocketException {
-            /*
-             * Create an Internet socket address that uses the tracker's
-             * Internet address but an ephemeral port number.
-             */
-            final InetSocketAddress reportingAddress = new InetSocketAddress(
-                    getServerAddress().getAddress(), 0);
-            /*
-             * Create a UDP socket.
-             */
-            socket = new DatagramSocket(reportingAddress);
-        }
-
-        /**
-         * Returns the Internet socket address on which this instance listens.
-         * 
-         * @return The Internet socket address
-         */
-        InetSocketAddress getInetSocketAddress() {
-            return (InetSocketAddress) socket.getLocalSocketAddress();
-        }
-
-        @Override
-        public Void call() throws IOException {
-            logger.trace("Starting up: {}", this);
-            final String origThreadName = Thread.currentThread().getName();
-            Thread.currentThread().setName(this.toString());
-            final byte[] packetBuf = new byte[2048];
-            final DatagramPacket packet = new DatagramPacket(packetBuf,
-                    packetBuf.length);
-            try {
-                for (;;) {
-                    packet.setData(packetBuf);
-                    socket.receive(packet);
-                    final int length = packet.getLength();
-                    if (length > packetBuf.length) {
-                        logger.error("Incoming datagram from "
-                                + packet.getAddress() + " overan buffer: "
-                                + length + " > " + packetBuf.length);
-                    }
-                    else {
-                        try {
-                            final InetSocketAddress serverAddress = (InetSocketAddress) Util
-                                    .deserialize(packetBuf, 0, length);
-                            logger.debug("Server reported offline: {}",
-                                    serverAddress);
-                            final ServerChecker serverChecker = new ServerChecker(
-                                    serverAddress);
-                            try {
-                                executor.submit(serverChecker);
-                            }
-                            catch (final RejectedExecutionException e) {
-                                logger.debug(
-                                        "Couldn't submit server-checker: {}: {}",
-                                        serverAddress, e.toString());
-                            }
-                        }
-                        catch (final Exception e) {
-                            logger.warn("Invalid datagram from {}: {}",
-                                    packet.getSocketAddress(), e.toString());
-                        }
-                    }
-                }
-            }
-            catch (final IOException e) {
-                if (!isCancelled()) {
-                    throw e;
-                }
-            }
-            finally {
-                try {
-                    socket.close();
-                }
-                catch (final Exception ignored) {
-                }
-                Thread.currentThread().setName(origThreadName);
-                logger.trace("Done: {}", this);
-            }
-            return null;
-        }
-
-        @Override
-        protected void stop() {
-            socket.close();
-        }
-
-        /*
-         * (non-Javadoc)
-         * 
-         * @see java.lang.Object#toString()
-         */
-        @Override
-        public String toString() {
-            return "ServerCheckerTask []";
-        }
-    }
-
-    /**
-     * Accepts and handles connections on the tracker socket
-     * <p>
-     * Instances are thread-safe.
-     * 
-     * @author Steven R. Emmerson
-     */
-    private final class Accepter extends UninterruptibleTask<Void> {
-        /**
-         * Executes each task for a single sink-node.
-         */
-        private final CancellingExecutor trackerletExecutor = new CancellingExecutor(
-                                                                    0,
-                                                                    25,
-                                                                    60,
-                                                                    TimeUnit.SECONDS,
-                                                                    new SynchronousQueue<Runnable>());
-
-        @Override
-        public Void call() throws InterruptedException, IOException {
-            logger.trace("Starting up: {}", this);
-            try {
-                Thread.currentThread().setName("Tracker-accepter");
-                while (!trackerletExecutor.isShutdown()) {
-                    // TODO: limit number of outstanding trackerlets
-                    final Socket socket = trackerSocket.accept();
-                    final Trackerlet trackerlet = new Trackerlet(socket);
-                    try {
-                        trackerletExecutor.submit(trackerlet);
-                    }
-                    catch (final Throwable e) {
-                        try {
-                            socket.close();
-                        }
-                        catch (final IOException ignored) {
-                        }
-                        if (!trackerletExecutor.isShutdown()) {
-                            throw new RuntimeException("Unexpected error", e);
-                        }
-                    }
-                }
-            }
-            finally {
-                trackerletExecutor.shutdownNow();
-                Thread.interrupted();
-                trackerletExecutor.awaitTermination(Long.MAX_VALUE,
-                        TimeUnit.DAYS);
-                logger.trace("Done: {}", this);
-            }
-            return null;
-        }
-
-        @Override
-        protected void stop() {
-            trackerletExecutor.shutdownNow();
-            try {
-                trackerSocket.close();
-            }
-            catch (final IOException e) {
-                if (!trackerSocket.isClosed()) {
-                    logger.error("Couldn't close tracker's server-socket", e);
-                }
-            }
-        }
-
-        /*
-         * (non-Javadoc)
-         * 
-         * @see java.lang.Object#toString()
-         */
-        @Override
-        public String toString() {
-            return "Accepter []";
-        }
-    }
-
-    /**
-     * The maximum number of server-checker threads.
+     * The logger for this class.
      */
-    private static final int    MAX_NUM_SERVER_CHECKER_THREADS;
-    private static final String MAX_NUM_SERVER_CHECKER_THREADS_KEY     = "maximum number of server-checker threads";
-    private static final int    MAX_NUM_SERVER_CHECKER_THREADS_DEFAULT = 16;
+    private static final Logger         logger                         = Util.getLogger();
     /**
-     * The keepalive interval for all server-checker threads in milliseconds.
+     * The load on a source-server whose source-node is unknown. Its depth is
+     * zero; its utilization is unknown.
      */
-    private static final long   SERVER_CHECKER_KEEPALIVE;
-    private static final String SERVER_CHECKER_KEEPALIVE_KEY           = "server-checker thread keepalive-time in seconds";
-    private static final long   SERVER_CHECKER_KEEPALIVE_DEFAULT       = 60;
-
-    static {
-        final Preferences prefs = Preferences.userNodeForPackage(Tracker.class);
-        MAX_NUM_SERVER_CHECKER_THREADS = prefs.getInt(
-                MAX_NUM_SERVER_CHECKER_THREADS_KEY,
-                MAX_NUM_SERVER_CHECKER_THREADS_DEFAULT);
-        if (MAX_NUM_SERVER_CHECKER_THREADS <= 0) {
-            throw new IllegalArgumentException("Invalid user preference: \""
-                    + MAX_NUM_SERVER_CHECKER_THREADS_KEY + "\"="
-                    + MAX_NUM_SERVER_CHECKER_THREADS);
-        }
-        SERVER_CHECKER_KEEPALIVE = prefs.getLong(SERVER_CHECKER_KEEPALIVE_KEY,
-                SERVER_CHECKER_KEEPALIVE_DEFAULT);
-        if (SERVER_CHECKER_KEEPALIVE < 0) {
-            throw new IllegalArgumentException("Invalid user preference: \""
-                    + SERVER_CHECKER_KEEPALIVE_KEY + "\"="
-                    + SERVER_CHECKER_KEEPALIVE);
-        }
-    }
-
+    private static final ServerLoad     UNKNOWN_SOURCE_LOAD            = new ServerLoad(
+                                                                               0,
+                                                                               0,
+                                                                               0);
     /**
-     * Handles one and only one sink-node.
-     * 
-     * Instances are thread-compatible but not thread-safe.
-     */
-    @NotThreadSafe
-    class Trackerlet extends UninterruptibleTask<Void> {
-        /**
-         * The socket.
-         */
-        private final Socket socket;
-
-        /**
-         * Constructs from a socket.
-         * 
-         * @param socket
-         *            The socket.
-         * @throws NullPointerException
-         *             if {@code socket == null}.
-         */
-        Trackerlet(final Socket socket) {
-            if (null == socket) {
-                throw new NullPointerException();
-            }
-            this.socket = socket;
-        }
-
-        /**
-         * Executes this instance. If an error occurs (e.g., the object input
-         * stream couldn't be initialized), then that fact is logged. The
-         * connection is closed upon completion.
-         * <p>
-         * By agreement with {@link Tracker}, this method throws no checked
-         * exception: it handles all checked exceptions internally because it's
-         * easier that way.
-         */
-        @Override
-        public Void call() {
-            final String origThreadName = Thread.currentThread().getName();
-            Thread.currentThread().setName(toString());
-            try {
-                // socket.setSoTimeout(Connection.SO_TIMEOUT);
-                socket.setSoLinger(false, 0); // because flush() always called
-                socket.setTcpNoDelay(false); // because flush() called when
-                                             // appropriate
-                socket.setKeepAlive(true);
-
-                final InputStream inputStream = socket.getInputStream();
-                final ObjectInputStream ois = new ObjectInputStream(inputStream);
-                try {
-                    final TrackerTask trackerTask = (TrackerTask) ois
-                            .readObject();
-                    try {
-                        trackerTask.process(Tracker.this, socket);
-                    }
-                    catch (final IOException e) {
-                        if (!isCancelled()) {
-                            logger.error("Couldn't process client request: "
-                                    + trackerTask, e);
-                        }
-                    }
-                }
-                finally {
-                    try {
-                        ois.close();
-                    }
-                    catch (final IOException ignored) {
-                    }
-                }
-            }
-            catch (final IOException e) {
-                if (!isCancelled()) {
-                    logger.error("I/O error on {}: {}", socket, e.toString());
-                }
-            }
-            catch (final Throwable t) {
-                logger.error("Unexpected error on {}: {}", socket, t.toString());
-            }
-            finally {
-                Thread.currentThread().setName(origThreadName);
-                try {
-                    socket.close();
-                }
-                catch (final IOException ignored) {
-                }
-            }
-            return null;
-        }
-
-        @Override
-        protected void stop() {
-            try {
-                socket.close();
-            }
-            catch (final IOException e) {
-                if (!isCancelled()) {
-                    logger.error("Couldn't close trackerlet's server-socket", e);
-                }
-            }
-        }
-
-        /*
-         * (non-Javadoc)
-         * 
-         * @see java.lang.Object#toString()
-         */
-        @Override
-        public String toString() {
-            return "Trackerlet [socket=" + socket + "]";
-        }
-    }
-
+     * The name of the network topology property.
+     */
+    private static final String         NETWORK_TOPOLOGY_PROPERTY_NAME = "Network Topology";
     /**
-     * The logger for this class.
+     * The maximum number of cached replies to topology requests.
      */
-    private static final Logger         logger                         = Util.getLogger();
+    private static final int            MAX_CACHED_REPLIES             = 64;
     /**
-     * The name of the network topology property.
+     * The maximum number of connections awaiting acceptance. Large enough for
+     * many sink-nodes to register at once.
      */
-    private static final String         NETWORK_TOPOLOGY_PROPERTY_NAME = "Network Topology";
+    private static final int            BACKLOG                        = 1024;
     /**
      * The executor service
      */
     private final CancellingExecutor    executor                       = new CancellingExecutor(
-                                                                               2,
-                                                                               2,
+                                                                               1,
+                                                                               1,
                                                                                0,
                                                                                TimeUnit.SECONDS,
                                                                                new SynchronousQueue<Runnable>());
@@ -495,12 +85,15 @@ final class Tracker implements Callable<Void> {
     /**
      * The filter/servers map.
      */
-    @GuardedBy("this")
-    private final Topology       topology                = new Topology();
+    private final Topology              topology                       = new Topology();
     /**
      * Information on the source-server.
      */
     private final InetSocketAddress     sourceServer;
+    /**
+     * The source-node whose load is tracked or {@code null}.
+     */
+    private final SourceNode            sourceNode;
     /**
      * Property change support.
      */
@@ -511,9 +104,21 @@ final class Tracker implements Callable<Void> {
     private final CountDownLatch        isRunningLatch                 = new CountDownLatch(
                                                                                1);
     /**
-     * The task that checks whether a server is offline.
+     * The network front end.
+     */
+    private final TrackerFrontEnd       frontEnd;
+    /**
+     * The serialized replies to topology requests, indexed by the version of
+     * the requester's topology or {@code -1} for a full snapshot. All entries
+     * are for version {@link #cachedVersion} of the topology.
+     */
+    @GuardedBy("cachedReplies")
+    private final Map<Long, byte[]>     cachedReplies                  = new HashMap<Long, byte[]>();
+    /**
+     * The version of the topology to which the cached replies correspond.
      */
-    private final ServerCheckerTask     serverCheckerTask;
+    @GuardedBy("cachedReplies")
+    private long                        cachedVersion                  = -1;
 
     /**
      * The IANA-assigned port-number for the tracker
@@ -542,9 +147,31 @@ final class Tracker implements Callable<Void> {
                 IANA_PORT));
     }
 
+    /**
+     * Constructs from the source-node and the Internet socket address for the
+     * tracker. The load on the source-node's server is kept up-to-date in the
+     * network topology.
+     * 
+     * @param sourceNode
+     *            The source-node.
+     * @param trackerSocketAddress
+     *            The Internet socket address for the tracker.
+     * @throws IOException
+     *             if a socket for the tracker couldn't be created or bound
+     * @throws NullPointerException
+     *             if {@code sourceNode == null || trackerSocketAddress == null}
+     *             .
+     */
+    Tracker(final SourceNode sourceNode,
+            final InetSocketAddress trackerSocketAddress) throws IOException {
+        this(sourceNode.getServerSocketAddress(), sourceNode,
+                trackerSocketAddress);
+    }
+
     /**
      * Constructs from the Internet socket address of the source-server and the
-     * Internet socket address for the tracker.
+     * Internet socket address for the tracker. The load on the source-server
+     * is unknown.
      * 
      * @param sourceServer
      *            The Internet socket address of the source-server.
@@ -566,20 +193,48 @@ final class Tracker implements Callable<Void> {
     Tracker(final InetSocketAddress sourceServer,
             final InetSocketAddress trackerSocketAddress) throws BindException,
             SocketException, IOException {
+        this(sourceServer, null, trackerSocketAddress);
+    }
+
+    /**
+     * Constructs from the Internet socket address of the source-server, the
+     * source-node, and the Internet socket address for the tracker.
+     * 
+     * @param sourceServer
+     *            The Internet socket address of the source-server.
+     * @param sourceNode
+     *            The source-node whose load is tracked or {@code null}.
+     * @param trackerSocketAddress
+     *            The Internet socket address for the tracker.
+     * @throws IOException
+     *             if a socket for the tracker couldn't be created or bound
+     * @throws NullPointerException
+     *             if {@code sourceServer == null}.
+     * @throws NullPointerException
+     *             if {@code trackerSocketAddress == null}.
+     */
+    private Tracker(final InetSocketAddress sourceServer,
+            final SourceNode sourceNode,
+            final InetSocketAddress trackerSocketAddress) throws IOException {
         if (sourceServer == null) {
             throw new NullPointerException();
         }
         if (trackerSocketAddress == null) {
             throw new NullPointerException();
         }
-        trackerSocket = new ServerSocket();
+        final ServerSocketChannel trackerChannel = ServerSocketChannel.open();
+        trackerSocket = trackerChannel.socket();
         try {
             trackerSocket.setReuseAddress(true);
-            trackerSocket.bind(trackerSocketAddress);
+            trackerSocket.bind(trackerSocketAddress, BACKLOG);
             topology.add(Filter.EVERYTHING, sourceServer);
+            topology.setLoad(sourceServer, sourceNode == null
+                    ? UNKNOWN_SOURCE_LOAD
+                    : sourceNode.getServerLoad());
             this.sourceServer = sourceServer;
+            this.sourceNode = sourceNode;
             propertySupport = new PropertyChangeSupport(this);
-            serverCheckerTask = new ServerCheckerTask();
+            frontEnd = new TrackerFrontEnd(this, trackerChannel, sourceServer);
             return;
         }
         catch (final IOException e) {
@@ -610,7 +265,7 @@ final class Tracker implements Callable<Void> {
      * @return The Internet socket address for reporting unavailable servers.
      */
     InetSocketAddress getReportingAddress() {
-        return serverCheckerTask.getInetSocketAddress();
+        return frontEnd.getReportingAddress();
     }
 
     /**
@@ -627,32 +282,20 @@ final class Tracker implements Callable<Void> {
         final String origThreadName = Thread.currentThread().getName();
         Thread.currentThread().setName(toString());
         try {
-            final CompletionService<Void> completionService = new ExecutorCompletionService<Void>(
-                    executor);
-            final Future<Void> checkerFuture = completionService
-                    .submit(serverCheckerTask);
+            final Future<Void> future = executor.submit(frontEnd);
             try {
-                final Accepter accepterTask = new Accepter();
-                completionService.submit(accepterTask);
-
                 isRunningLatch.countDown();
 
-                final Future<Void> future = completionService.take();
-                if (!future.isCancelled()) {
-                    try {
-                        future.get();
-                    }
-                    catch (final ExecutionException e) {
-                        final Throwable cause = e.getCause();
-                        final Object task = future == checkerFuture
-                                ? serverCheckerTask
-                                : accepterTask;
-                        if (cause instanceof IOException) {
-                            throw new IOException("I/O error: " + task, cause);
-                        }
-                        throw new RuntimeException("Unexpected error: " + task,
-                                cause);
+                try {
+                    future.get();
+                }
+                catch (final ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw new IOException("I/O error: " + frontEnd, cause);
                     }
+                    throw new RuntimeException("Unexpected error: " + frontEnd,
+                            cause);
                 }
             }
             finally {
@@ -695,6 +338,117 @@ final class Tracker implements Callable<Void> {
     void awaitCompletion() throws InterruptedException {
         Thread.interrupted();
         executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        frontEnd.awaitCompletion();
+    }
+
+    /**
+     * Processes a batch of requests from sink-nodes. The replies to all the
+     * requests are computed before any request modifies this instance so that
+     * requests that want the same thing get the same, shared, reply. Listeners
+     * for network topology changes are notified at most once per batch. The
+     * load on the source-server is updated first if it has changed materially.
+     * 
+     * @param tasks
+     *            The requests to process.
+     * @return The replies to the requests in the same order. An element is
+     *         {@code null} if its request has no reply or the reply couldn't
+     *         be computed.
+     */
+    List<byte[]> process(final List<TrackerTask> tasks) {
+        boolean modified = updateSourceLoad();
+        final List<byte[]> replies = new ArrayList<byte[]>(tasks.size());
+        for (final TrackerTask task : tasks) {
+            byte[] reply;
+            try {
+                reply = task.reply(this);
+            }
+            catch (final IOException e) {
+                logger.error("Couldn't reply to request: " + task, e);
+                reply = null;
+            }
+            replies.add(reply);
+        }
+        for (final TrackerTask task : tasks) {
+            modified |= task.apply(this);
+        }
+        if (modified) {
+            propertySupport.firePropertyChange(NETWORK_TOPOLOGY_PROPERTY_NAME,
+                    null, new Topology(topology));
+        }
+        return replies;
+    }
+
+    /**
+     * Updates the load on the source-server from the source-node if the load
+     * has changed materially. Small changes are ignored so that cached
+     * replies remain valid.
+     * 
+     * @return {@code true} if and only if the network topology was modified.
+     * @see ServerLoad#isSimilar(ServerLoad)
+     */
+    private boolean updateSourceLoad() {
+        if (sourceNode == null) {
+            return false;
+        }
+        final ServerLoad load = sourceNode.getServerLoad();
+        if (!topology.contains(sourceServer)
+                || load.isSimilar(topology.getLoad(sourceServer))) {
+            return false;
+        }
+        topology.setLoad(sourceServer, load);
+        return true;
+    }
+
+    /**
+     * Returns the serialized reply to a request for the network topology: the
+     * changes since the requester's version of the topology, if they're
+     * available, or the entire topology, followed by the address for
+     * reporting unavailable servers. Replies are cached until the topology
+     * changes.
+     * 
+     * @param epoch
+     *            The identifier of the requester's topology.
+     * @param version
+     *            The version of the requester's topology or {@code -1} if the
+     *            requester has none.
+     * @return The serialized reply.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    byte[] getTopologyReply(final long epoch, final long version)
+            throws IOException {
+        synchronized (cachedReplies) {
+            synchronized (topology) {
+                final long currentVersion = topology.getVersion();
+                if (currentVersion != cachedVersion
+                        || cachedReplies.size() >= MAX_CACHED_REPLIES) {
+                    cachedReplies.clear();
+                    cachedVersion = currentVersion;
+                }
+                final TopologyDelta delta = version < 0
+                        ? null
+                        : topology.getDelta(epoch, version);
+                final Long key = delta == null
+                        ? -1
+                        : version;
+                byte[] reply = cachedReplies.get(key);
+                if (reply == null) {
+                    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    final ObjectOutputStream oos = new ObjectOutputStream(bytes);
+                    if (delta == null) {
+                        oos.writeObject(topology);
+                    }
+                    else {
+                        oos.writeObject(delta);
+                    }
+                    oos.writeObject(getReportingAddress());
+                    oos.close();
+                    reply = bytes.toByteArray();
+                    cachedReplies.put(key, reply);
+                }
+                return reply;
+            }
+        }
     }
 
     /**
@@ -704,16 +458,38 @@ final class Tracker implements Callable<Void> {
      *            Address of the sink-node's server.
      * @param filter
      *            The file-selection filter.
-     * @throws IOException
-     *             if an I/O error occurs.
+     * @param load
+     *            The load on the sink-node's server.
      * @throws NullPointerException
-     *             if {@code serverInfo == null || predicate == null}.
+     *             if {@code serverInfo == null || predicate == null || load == null}
+     *             .
+     * @see #process(List)
      */
-    void register(final InetSocketAddress server, final Filter filter)
-            throws IOException {
+    void register(final InetSocketAddress server, final Filter filter,
+            final ServerLoad load) {
         topology.add(filter, server);
-        propertySupport.firePropertyChange(NETWORK_TOPOLOGY_PROPERTY_NAME,
-                null, new Topology(topology));
+        topology.setLoad(server, load);
+    }
+
+    /**
+     * Indicates if a server is registered with this instance.
+     * 
+     * @param server
+     *            The address of the server.
+     * @return {@code true} if and only if the server is registered.
+     */
+    boolean isRegistered(final InetSocketAddress server) {
+        return topology.contains(server);
+    }
+
+    /**
+     * Removes a server that's offline.
+     * 
+     * @param server
+     *            The address of the server.
+     */
+    void removeServer(final InetSocketAddress server) {
+        topology.remove(server);
     }
 
     /**
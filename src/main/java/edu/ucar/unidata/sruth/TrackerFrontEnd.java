@@ -0,0 +1,1071 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamConstants;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.Preferences;
+
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+/**
+ * The network front end of a {@link Tracker}. A single I/O thread multiplexes,
+ * by means of a {@link Selector}, the connections from nodes, the datagrams
+ * that report offline servers, and the non-blocking connection attempts that
+ * check whether reported servers are offline. Requests are processed by a
+ * bounded pool of worker threads. Each worker takes all the requests that
+ * are pending, up to a limit, and processes them as a batch (see
+ * {@link Tracker#process(List)}) so that a flood of simultaneous
+ * registrations is answered with few computations of the reply. Consequently,
+ * the number of threads doesn't grow with the number of nodes.
+ * <p>
+ * Reports of offline servers (see {@link OfflineReport}) are likewise
+ * coalesced: a reported server becomes a suspect and all reports of it that
+ * arrive while it's a suspect or being checked are ignored. A suspect is
+ * checked once, after a short window, by a single connection attempt. A
+ * server that's found to be online isn't checked again for a while; one
+ * that's found to be offline is removed from the tracker, after which reports
+ * of it are ignored until it registers again.
+ * <p>
+ * Instances are thread-safe.
+ *
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class TrackerFrontEnd extends UninterruptibleTask<Void> {
+    /**
+     * An exchange of a request and a reply with a node. A request is a
+     * serialized {@link TrackerTask} that's optionally preceded by its length
+     * as a 4-byte, big-endian integer. A request without a length-prefix --
+     * which is what nodes send -- is recognized by its leading
+     * {@link ObjectStreamConstants#STREAM_MAGIC}; because its end isn't known
+     * in advance, a worker thread tries to deserialize it whenever more of it
+     * has been received. A length-prefixed request is only deserialized -- by
+     * a worker thread -- after it has been completely received.
+     * <p>
+     * Instances are not thread-safe. An instance is accessed by the I/O thread
+     * except while it's being processed by a worker thread.
+     */
+    @NotThreadSafe
+    private static final class Exchange {
+        /**
+         * The connection to the node.
+         */
+        private final SocketChannel channel;
+        /**
+         * When the exchange started in nanoseconds.
+         */
+        private final long          start;
+        /**
+         * The length-prefix of the request.
+         */
+        private final ByteBuffer    prefix  = ByteBuffer.allocate(4);
+        /**
+         * The bytes of the request or {@code null} if the length-prefix hasn't
+         * been completely received.
+         */
+        private byte[]              request;
+        /**
+         * The number of bytes in {@link #request}.
+         */
+        private int                 length;
+        /**
+         * Whether or not the request lacks a length-prefix.
+         */
+        private boolean             unframed;
+        /**
+         * Whether or not the request couldn't be decoded because it hasn't
+         * been completely received.
+         */
+        private boolean             incomplete;
+        /**
+         * The decoded request or {@code null}.
+         */
+        private TrackerTask         task;
+        /**
+         * The reply or {@code null}.
+         */
+        private ByteBuffer          reply;
+
+        /**
+         * Constructs from the connection to the node.
+         *
+         * @param channel
+         *            The connection to the node.
+         * @param now
+         *            The current time in nanoseconds.
+         */
+        Exchange(final SocketChannel channel, final long now) {
+            this.channel = channel;
+            start = now;
+        }
+
+        /**
+         * Appends received bytes to the request. Bytes beyond the end of a
+         * length-prefixed request are ignored.
+         *
+         * @param buf
+         *            The received bytes.
+         * @return {@code true} if and only if the request should be decoded:
+         *         a length-prefixed request has been completely received or
+         *         more of a request without a length-prefix has been received.
+         * @throws IOException
+         *             if the length-prefix is invalid or the request is too
+         *             long.
+         */
+        boolean append(final ByteBuffer buf) throws IOException {
+            if (request == null) {
+                while (prefix.hasRemaining() && buf.hasRemaining()) {
+                    prefix.put(buf.get());
+                }
+                if (prefix.position() >= 2
+                        && prefix.getShort(0) == ObjectStreamConstants.STREAM_MAGIC) {
+                    unframed = true;
+                    request = new byte[MAX_REQUEST_SIZE];
+                    length = prefix.position();
+                    System.arraycopy(prefix.array(), 0, request, 0, length);
+                }
+                else if (prefix.hasRemaining()) {
+                    return false;
+                }
+                else {
+                    final int size = prefix.getInt(0);
+                    if (size <= 0 || size > MAX_REQUEST_SIZE) {
+                        throw new IOException("Invalid request length ("
+                                + size + ") from " + channel);
+                    }
+                    request = new byte[size];
+                }
+            }
+            if (unframed) {
+                if (buf.remaining() > request.length - length) {
+                    throw new IOException("Request too long from " + channel);
+                }
+                final int n = buf.remaining();
+                buf.get(request, length, n);
+                length += n;
+                return true;
+            }
+            final int n = Math.min(buf.remaining(), request.length - length);
+            buf.get(request, length, n);
+            length += n;
+            return length == request.length;
+        }
+
+        /**
+         * Decodes the request. Called by a worker thread.
+         *
+         * @return The request or {@code null} if the request, which lacks a
+         *         length-prefix, hasn't been completely received.
+         * @throws IOException
+         *             if the request is invalid.
+         */
+        TrackerTask decode() throws IOException {
+            try {
+                final ObjectInputStream ois = new ObjectInputStream(
+                        new ByteArrayInputStream(request, 0, length));
+                task = (TrackerTask) ois.readObject();
+                incomplete = false;
+                return task;
+            }
+            catch (final EOFException e) {
+                if (!unframed || length == request.length) {
+                    throw e;
+                }
+                incomplete = true;
+                return null;
+            }
+            catch (final ClassNotFoundException e) {
+                throw new IOException("Invalid request from " + channel, e);
+            }
+            catch (final RuntimeException e) {
+                // E.g., ClassCastException
+                throw new IOException("Invalid request from " + channel, e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Exchange [channel=" + channel + ", task=" + task + "]";
+        }
+    }
+
+    /**
+     * A non-blocking check of whether a server is online.
+     * <p>
+     * Instances are not thread-safe. They are only accessed by the I/O thread.
+     */
+    @NotThreadSafe
+    private static final class Probe {
+        /**
+         * The address of the server.
+         */
+        private final InetSocketAddress server;
+        /**
+         * The connection to the server.
+         */
+        private final SocketChannel     channel;
+        /**
+         * When the connection attempt started in nanoseconds.
+         */
+        private final long              start;
+
+        /**
+         * Constructs.
+         *
+         * @param server
+         *            The address of the server.
+         * @param channel
+         *            The connection to the server.
+         * @param now
+         *            The current time in nanoseconds.
+         */
+        Probe(final InetSocketAddress server, final SocketChannel channel,
+                final long now) {
+            this.server = server;
+            this.channel = channel;
+            start = now;
+        }
+
+        @Override
+        public String toString() {
+            return "Probe [server=" + server + "]";
+        }
+    }
+
+    /**
+     * Decodes and processes batches of requests.
+     */
+    private final class Worker implements Callable<Void> {
+        @Override
+        public Void call() throws InterruptedException {
+            final List<Exchange> exchanges = new ArrayList<Exchange>(
+                    MAX_BATCH_SIZE);
+            final List<TrackerTask> tasks = new ArrayList<TrackerTask>(
+                    MAX_BATCH_SIZE);
+            for (;;) {
+                exchanges.add(pending.take());
+                pending.drainTo(exchanges, MAX_BATCH_SIZE - 1);
+                for (final Iterator<Exchange> iter = exchanges.iterator(); iter
+                        .hasNext();) {
+                    final Exchange exchange = iter.next();
+                    try {
+                        final TrackerTask task = exchange.decode();
+                        if (task == null) {
+                            iter.remove();
+                            replied.add(exchange); // resumes reading
+                        }
+                        else {
+                            tasks.add(task);
+                        }
+                    }
+                    catch (final IOException e) {
+                        logger.debug("Couldn't decode request: {}: {}",
+                                exchange, e.toString());
+                        iter.remove();
+                        replied.add(exchange); // no reply closes connection
+                    }
+                }
+                List<byte[]> replies;
+                try {
+                    replies = tracker.process(tasks);
+                }
+                catch (final RuntimeException e) {
+                    logger.error("Couldn't process requests: " + tasks, e);
+                    replies = null;
+                }
+                for (int i = 0; i < exchanges.size(); i++) {
+                    final Exchange exchange = exchanges.get(i);
+                    final byte[] reply = replies == null
+                            ? null
+                            : replies.get(i);
+                    if (reply != null) {
+                        exchange.reply = ByteBuffer.wrap(reply);
+                    }
+                    replied.add(exchange);
+                }
+                exchanges.clear();
+                tasks.clear();
+                selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger                          = Util.getLogger();
+    /**
+     * The maximum size of a request in bytes.
+     */
+    private static final int    MAX_REQUEST_SIZE                = 0x10000;
+    /**
+     * The interval between checks for timed-out exchanges and probes in
+     * milliseconds.
+     */
+    private static final long   SWEEP_INTERVAL                  = 1000;
+    /**
+     * The maximum number of suspected servers awaiting a check and of servers
+     * recently found to be online.
+     */
+    private static final int    MAX_SUSPECTS                    = 1024;
+    /**
+     * The number of worker threads.
+     */
+    private static final int    WORKER_COUNT;
+    private static final String WORKER_COUNT_KEY                = "number of tracker worker threads";
+    private static final int    WORKER_COUNT_DEFAULT            = 4;
+    /**
+     * The maximum number of requests awaiting processing.
+     */
+    private static final int    MAX_PENDING_REQUESTS;
+    private static final String MAX_PENDING_REQUESTS_KEY        = "maximum number of pending tracker requests";
+    private static final int    MAX_PENDING_REQUESTS_DEFAULT    = 4096;
+    /**
+     * The maximum number of requests processed as a batch.
+     */
+    private static final int    MAX_BATCH_SIZE;
+    private static final String MAX_BATCH_SIZE_KEY              = "maximum tracker batch size";
+    private static final int    MAX_BATCH_SIZE_DEFAULT          = 256;
+    /**
+     * The maximum number of servers being checked at once.
+     */
+    private static final int    MAX_CONCURRENT_PROBES;
+    private static final String MAX_CONCURRENT_PROBES_KEY       = "maximum number of concurrent server checks";
+    private static final int    MAX_CONCURRENT_PROBES_DEFAULT   = 16;
+    /**
+     * The time, in milliseconds, during which reports of a server are
+     * coalesced before the server is checked.
+     */
+    private static final long   REPORT_WINDOW;
+    private static final String REPORT_WINDOW_KEY               = "offline-report window in milliseconds";
+    private static final long   REPORT_WINDOW_DEFAULT           = 500;
+    /**
+     * The time, in nanoseconds, during which a server that was found to be
+     * online isn't checked again.
+     */
+    private static final long   ONLINE_TTL;
+    private static final String ONLINE_TTL_KEY                  = "online-server check lifetime in seconds";
+    private static final long   ONLINE_TTL_DEFAULT              = 30;
+    /**
+     * Whether or not reports of offline servers from nodes that predate
+     * {@link OfflineReport}'s format are accepted. Such reports are
+     * Java-serialized; consequently, accepting them is off by default.
+     */
+    private static final boolean ACCEPT_LEGACY_REPORTS;
+    private static final String ACCEPT_LEGACY_REPORTS_KEY       = "accept legacy offline-server reports";
+    private static final boolean ACCEPT_LEGACY_REPORTS_DEFAULT  = false;
+
+    static {
+        final Preferences prefs = Preferences
+                .userNodeForPackage(TrackerFrontEnd.class);
+        WORKER_COUNT = prefs.getInt(WORKER_COUNT_KEY, WORKER_COUNT_DEFAULT);
+        if (WORKER_COUNT <= 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + WORKER_COUNT_KEY + "\"=" + WORKER_COUNT);
+        }
+        MAX_PENDING_REQUESTS = prefs.getInt(MAX_PENDING_REQUESTS_KEY,
+                MAX_PENDING_REQUESTS_DEFAULT);
+        if (MAX_PENDING_REQUESTS <= 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + MAX_PENDING_REQUESTS_KEY + "\"=" + MAX_PENDING_REQUESTS);
+        }
+        MAX_BATCH_SIZE = prefs.getInt(MAX_BATCH_SIZE_KEY,
+                MAX_BATCH_SIZE_DEFAULT);
+        if (MAX_BATCH_SIZE <= 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + MAX_BATCH_SIZE_KEY + "\"=" + MAX_BATCH_SIZE);
+        }
+        MAX_CONCURRENT_PROBES = prefs.getInt(MAX_CONCURRENT_PROBES_KEY,
+                MAX_CONCURRENT_PROBES_DEFAULT);
+        if (MAX_CONCURRENT_PROBES <= 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + MAX_CONCURRENT_PROBES_KEY + "\"="
+                    + MAX_CONCURRENT_PROBES);
+        }
+        REPORT_WINDOW = prefs.getLong(REPORT_WINDOW_KEY,
+                REPORT_WINDOW_DEFAULT);
+        if (REPORT_WINDOW <= 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + REPORT_WINDOW_KEY + "\"=" + REPORT_WINDOW);
+        }
+        final long onlineTtl = prefs.getLong(ONLINE_TTL_KEY,
+                ONLINE_TTL_DEFAULT);
+        if (onlineTtl < 0) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + ONLINE_TTL_KEY + "\"=" + onlineTtl);
+        }
+        ONLINE_TTL = TimeUnit.SECONDS.toNanos(onlineTtl);
+        ACCEPT_LEGACY_REPORTS = prefs.getBoolean(ACCEPT_LEGACY_REPORTS_KEY,
+                ACCEPT_LEGACY_REPORTS_DEFAULT);
+    }
+
+    /**
+     * The associated tracker.
+     */
+    private final Tracker                   tracker;
+    /**
+     * The address of the source-server, from which probes are made.
+     */
+    private final InetSocketAddress         sourceServer;
+    /**
+     * The channel on which nodes connect.
+     */
+    private final ServerSocketChannel       serverChannel;
+    /**
+     * The channel on which offline servers are reported.
+     */
+    private final DatagramChannel           reportChannel;
+    /**
+     * The selector of the I/O thread.
+     */
+    private final Selector                  selector;
+    /**
+     * The requests awaiting processing by a worker.
+     */
+    private final BlockingQueue<Exchange>   pending;
+    /**
+     * The exchanges whose requests have been processed.
+     */
+    private final Queue<Exchange>           replied                         = new ConcurrentLinkedQueue<Exchange>();
+    /**
+     * The worker threads.
+     */
+    private final CancellingExecutor        workers                         = new CancellingExecutor(
+                                                                                    WORKER_COUNT,
+                                                                                    WORKER_COUNT,
+                                                                                    0,
+                                                                                    TimeUnit.SECONDS,
+                                                                                    new LinkedBlockingQueue<Runnable>());
+    /**
+     * The buffer for reading from sockets. Only accessed by the I/O thread.
+     */
+    private final ByteBuffer                readBuffer                      = ByteBuffer
+                                                                                    .allocate(8192);
+    /**
+     * The buffer for receiving datagrams. Only accessed by the I/O thread.
+     */
+    private final ByteBuffer                reportBuffer                    = ByteBuffer
+                                                                                    .allocate(OfflineReport.MAX_LEGACY_SIZE);
+    /**
+     * The suspected servers awaiting a check and the times, in nanoseconds,
+     * when they were first reported, in order of increasing time. Only
+     * accessed by the I/O thread.
+     */
+    private final Map<InetSocketAddress, Long>  suspects                    = new LinkedHashMap<InetSocketAddress, Long>();
+    /**
+     * The servers being checked. Only accessed by the I/O thread.
+     */
+    private final Map<InetSocketAddress, Probe> probes                      = new HashMap<InetSocketAddress, Probe>();
+    /**
+     * The servers recently found to be online and the times, in nanoseconds,
+     * when they were. Only accessed by the I/O thread.
+     */
+    @SuppressWarnings("serial")
+    private final Map<InetSocketAddress, Long>  onlineServers               = new LinkedHashMap<InetSocketAddress, Long>() {
+                                                                                @Override
+                                                                                protected boolean removeEldestEntry(
+                                                                                        final Map.Entry<InetSocketAddress, Long> eldest) {
+                                                                                    return size() > MAX_SUSPECTS;
+                                                                                }
+                                                                            };
+
+    /**
+     * Constructs. Opens the channels but doesn't service them until
+     * {@link #call()} is called.
+     *
+     * @param tracker
+     *            The associated tracker.
+     * @param serverChannel
+     *            The bound channel on which nodes connect.
+     * @param sourceServer
+     *            The address of the source-server.
+     * @throws IOException
+     *             if the reporting channel or the selector can't be opened.
+     * @throws NullPointerException
+     *             if {@code tracker == null || serverChannel == null ||
+     *             sourceServer == null}.
+     */
+    TrackerFrontEnd(final Tracker tracker,
+            final ServerSocketChannel serverChannel,
+            final InetSocketAddress sourceServer) throws IOException {
+        if (tracker == null || serverChannel == null || sourceServer == null) {
+            throw new NullPointerException();
+        }
+        this.tracker = tracker;
+        this.serverChannel = serverChannel;
+        this.sourceServer = sourceServer;
+        pending = new ArrayBlockingQueue<Exchange>(MAX_PENDING_REQUESTS);
+        /*
+         * The reporting channel uses the tracker's Internet address but an
+         * ephemeral port number.
+         */
+        reportChannel = DatagramChannel.open();
+        try {
+            reportChannel.socket().bind(
+                    new InetSocketAddress(serverChannel.socket()
+                            .getInetAddress(), 0));
+            selector = Selector.open();
+        }
+        catch (final IOException e) {
+            reportChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the Internet socket address on which offline servers are
+     * reported.
+     *
+     * @return The Internet socket address for reporting offline servers.
+     */
+    InetSocketAddress getReportingAddress() {
+        return (InetSocketAddress) reportChannel.socket()
+                .getLocalSocketAddress();
+    }
+
+    /**
+     * Services the channels until cancelled.
+     *
+     * @throws IOException
+     *             if a serious I/O error occurs.
+     */
+    @Override
+    public Void call() throws IOException {
+        logger.trace("Starting up: {}", this);
+        final String origThreadName = Thread.currentThread().getName();
+        Thread.currentThread().setName(toString());
+        try {
+            for (int i = 0; i < WORKER_COUNT; i++) {
+                workers.submit(new Worker());
+            }
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            reportChannel.configureBlocking(false);
+            reportChannel.register(selector, SelectionKey.OP_READ);
+            long nextSweep = System.nanoTime();
+            while (!isCancelled()) {
+                selector.select(suspects.isEmpty()
+                        ? SWEEP_INTERVAL
+                        : REPORT_WINDOW);
+                for (final SelectionKey key : selector.selectedKeys()) {
+                    try {
+                        handle(key);
+                    }
+                    catch (final CancelledKeyException ignored) {
+                    }
+                }
+                selector.selectedKeys().clear();
+                for (Exchange exchange; (exchange = replied.poll()) != null;) {
+                    reply(exchange);
+                }
+                final long now = System.nanoTime();
+                checkSuspects(now);
+                if (now - nextSweep >= 0) {
+                    sweep(now);
+                    nextSweep = now
+                            + TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL);
+                }
+            }
+        }
+        catch (final ClosedSelectorException e) {
+            if (!isCancelled()) {
+                throw new IOException("Selector closed: " + this, e);
+            }
+        }
+        catch (final IOException e) {
+            if (!isCancelled()) {
+                throw e;
+            }
+        }
+        finally {
+            workers.shutdownNow();
+            close();
+            Thread.currentThread().setName(origThreadName);
+            logger.trace("Done: {}", this);
+        }
+        return null;
+    }
+
+    /**
+     * Handles a selected key.
+     *
+     * @param key
+     *            The selected key.
+     * @throws IOException
+     *             if a serious I/O error occurs.
+     */
+    private void handle(final SelectionKey key) throws IOException {
+        final Object attachment = key.attachment();
+        if (key.channel() == serverChannel) {
+            accept();
+        }
+        else if (key.channel() == reportChannel) {
+            receiveReports();
+        }
+        else if (attachment instanceof Probe) {
+            finishProbe(key, (Probe) attachment);
+        }
+        else if (key.isReadable()) {
+            read(key, (Exchange) attachment);
+        }
+        else if (key.isWritable()) {
+            write(key, (Exchange) attachment);
+        }
+    }
+
+    /**
+     * Accepts pending connections from nodes.
+     *
+     * @throws IOException
+     *             if a serious I/O error occurs.
+     */
+    private void accept() throws IOException {
+        for (SocketChannel channel; (channel = serverChannel.accept()) != null;) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setSoLinger(false, 0);
+                channel.socket().setTcpNoDelay(false);
+                channel.socket().setKeepAlive(true);
+                channel.register(selector, SelectionKey.OP_READ, new Exchange(
+                        channel, System.nanoTime()));
+            }
+            catch (final IOException e) {
+                logger.debug("Couldn't accept connection {}: {}", channel,
+                        e.toString());
+                close(channel);
+            }
+        }
+    }
+
+    /**
+     * Reads a request from a node. Hands the request to the workers, which
+     * decode it, when it has been completely received.
+     *
+     * @param key
+     *            The selection key of the connection.
+     * @param exchange
+     *            The exchange with the node.
+     */
+    private void read(final SelectionKey key, final Exchange exchange) {
+        try {
+            boolean complete = false;
+            while (!complete) {
+                readBuffer.clear();
+                final int n = exchange.channel.read(readBuffer);
+                if (n < 0) {
+                    throw new EOFException("Connection closed by node: "
+                            + exchange.channel);
+                }
+                if (n == 0) {
+                    break;
+                }
+                readBuffer.flip();
+                complete = exchange.append(readBuffer);
+            }
+            if (complete) {
+                key.interestOps(0);
+                if (!pending.offer(exchange)) {
+                    logger.warn("Too many pending requests. Closing {}",
+                            exchange.channel);
+                    close(key);
+                }
+            }
+        }
+        catch (final IOException e) {
+            logger.debug("Couldn't read request: {}: {}", exchange,
+                    e.toString());
+            close(key);
+        }
+    }
+
+    /**
+     * Starts sending the reply to a processed request. Closes the connection
+     * if there's no reply. Resumes reading a request that hasn't been
+     * completely received.
+     *
+     * @param exchange
+     *            The exchange with the node.
+     */
+    private void reply(final Exchange exchange) {
+        final SelectionKey key = exchange.channel.keyFor(selector);
+        if (key == null || !key.isValid()) {
+            close(exchange.channel);
+        }
+        else if (exchange.incomplete) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+        else if (exchange.reply == null) {
+            close(key);
+        }
+        else {
+            write(key, exchange);
+        }
+    }
+
+    /**
+     * Writes as much of the reply to a request as possible. Closes the
+     * connection when the reply has been written.
+     *
+     * @param key
+     *            The selection key of the connection.
+     * @param exchange
+     *            The exchange with the node.
+     */
+    private void write(final SelectionKey key, final Exchange exchange) {
+        try {
+            while (exchange.reply.hasRemaining()
+                    && exchange.channel.write(exchange.reply) > 0) {
+            }
+            if (exchange.reply.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            else {
+                close(key);
+            }
+        }
+        catch (final IOException e) {
+            logger.debug("Couldn't write reply: {}: {}", exchange,
+                    e.toString());
+            close(key);
+        }
+    }
+
+    /**
+     * Receives reports of offline servers and adds the reported servers to the
+     * suspects.
+     *
+     * @throws IOException
+     *             if a serious I/O error occurs.
+     */
+    private void receiveReports() throws IOException {
+        final long now = System.nanoTime();
+        for (SocketAddress sender; (sender = reportChannel
+                .receive(reportBuffer)) != null; reportBuffer.clear()) {
+            reportBuffer.flip();
+            try {
+                suspect(OfflineReport.decode(reportBuffer,
+                        ACCEPT_LEGACY_REPORTS), now);
+            }
+            catch (final InvalidMessageException e) {
+                logger.warn("Invalid datagram from {}: {}", sender,
+                        e.toString());
+            }
+        }
+    }
+
+    /**
+     * Adds a server that's been reported offline to the suspects unless it's
+     * already a suspect, is being checked, was recently found to be online, or
+     * isn't registered.
+     *
+     * @param server
+     *            The address of the server.
+     * @param now
+     *            The current time in nanoseconds.
+     */
+    private void suspect(final InetSocketAddress server, final long now) {
+        if (suspects.containsKey(server) || probes.containsKey(server)) {
+            logger.trace("Server already suspected: {}", server);
+            return;
+        }
+        final Long online = onlineServers.get(server);
+        if (online != null && now - online < ONLINE_TTL) {
+            logger.trace("Server recently online: {}", server);
+            return;
+        }
+        if (!tracker.isRegistered(server)) {
+            logger.trace("Server not registered: {}", server);
+            return;
+        }
+        if (suspects.size() >= MAX_SUSPECTS) {
+            logger.debug("Too many suspected servers. Ignoring {}", server);
+            return;
+        }
+        logger.debug("Server reported offline: {}", server);
+        suspects.put(server, now);
+    }
+
+    /**
+     * Starts checking the suspects whose report window has elapsed, as far as
+     * the limit on concurrent checks allows. A suspect whose check couldn't be
+     * started because of a local problem is checked again after another
+     * window.
+     *
+     * @param now
+     *            The current time in nanoseconds.
+     */
+    private void checkSuspects(final long now) {
+        final long window = TimeUnit.MILLISECONDS.toNanos(REPORT_WINDOW);
+        final List<InetSocketAddress> retries = new ArrayList<InetSocketAddress>();
+        for (final Iterator<Map.Entry<InetSocketAddress, Long>> iter = suspects
+                .entrySet().iterator(); iter.hasNext()
+                && probes.size() < MAX_CONCURRENT_PROBES;) {
+            final Map.Entry<InetSocketAddress, Long> entry = iter.next();
+            if (now - entry.getValue() < window) {
+                break;
+            }
+            iter.remove();
+            if (!probe(entry.getKey(), now)) {
+                retries.add(entry.getKey());
+            }
+        }
+        for (final InetSocketAddress server : retries) {
+            suspects.put(server, now);
+        }
+    }
+
+    /**
+     * Starts checking whether a server is online by attempting to connect to
+     * it without blocking. Only a failure to connect to the server is taken
+     * to mean that the server is offline.
+     *
+     * @param server
+     *            The address of the server.
+     * @param now
+     *            The current time in nanoseconds.
+     * @return {@code false} if and only if the check couldn't be started
+     *         because of a local problem.
+     */
+    private boolean probe(final InetSocketAddress server, final long now) {
+        SocketChannel channel = null;
+        final Probe probe;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().bind(
+                    new InetSocketAddress(sourceServer.getAddress(), 0));
+            probe = new Probe(server, channel, now);
+        }
+        catch (final IOException e) {
+            logger.warn("Couldn't create connection to check server {}: {}",
+                    server, e.toString());
+            close(channel);
+            return false;
+        }
+        try {
+            if (channel.connect(server)) {
+                online(probe);
+                return true;
+            }
+        }
+        catch (final IOException e) {
+            offline(server);
+            close(channel);
+            return true;
+        }
+        try {
+            channel.register(selector, SelectionKey.OP_CONNECT, probe);
+        }
+        catch (final IOException e) {
+            logger.warn("Couldn't register connection to check server {}: {}",
+                    server, e.toString());
+            close(channel);
+            return false;
+        }
+        probes.put(server, probe);
+        return true;
+    }
+
+    /**
+     * Finishes checking whether a server is online.
+     *
+     * @param key
+     *            The selection key of the connection to the server.
+     * @param probe
+     *            The check.
+     */
+    private void finishProbe(final SelectionKey key, final Probe probe) {
+        probes.remove(probe.server);
+        key.cancel();
+        try {
+            if (probe.channel.finishConnect()) {
+                online(probe);
+            }
+            else {
+                offline(probe.server);
+                close(probe.channel);
+            }
+        }
+        catch (final IOException e) {
+            offline(probe.server);
+            close(probe.channel);
+        }
+    }
+
+    /**
+     * Handles a server that's online.
+     *
+     * @param probe
+     *            The check of the server.
+     */
+    private void online(final Probe probe) {
+        logger.debug("Connection to server succeeded: {}", probe.server);
+        onlineServers.put(probe.server, System.nanoTime());
+        close(probe.channel);
+    }
+
+    /**
+     * Handles a server that's offline by removing it from the tracker.
+     *
+     * @param server
+     *            The address of the server.
+     */
+    private void offline(final InetSocketAddress server) {
+        onlineServers.remove(server);
+        tracker.removeServer(server);
+        logger.debug("Removed server: {}", server);
+    }
+
+    /**
+     * Closes the exchanges that haven't sent their request and the checks that
+     * haven't connected within {@link Connection#SO_TIMEOUT}. Servers that
+     * haven't connected are considered offline.
+     *
+     * @param now
+     *            The current time in nanoseconds.
+     */
+    private void sweep(final long now) {
+        final long timeout = TimeUnit.MILLISECONDS
+                .toNanos(Connection.SO_TIMEOUT);
+        for (final SelectionKey key : selector.keys()) {
+            final Object attachment = key.attachment();
+            if (attachment instanceof Probe) {
+                final Probe probe = (Probe) attachment;
+                if (now - probe.start > timeout) {
+                    probes.remove(probe.server);
+                    key.cancel();
+                    offline(probe.server);
+                    close(probe.channel);
+                }
+            }
+            else if (attachment instanceof Exchange) {
+                final Exchange exchange = (Exchange) attachment;
+                if (key.isValid() && key.interestOps() != 0
+                        && now - exchange.start > timeout) {
+                    logger.debug("Exchange timed-out: {}", exchange);
+                    close(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes a connection and cancels its selection key.
+     *
+     * @param key
+     *            The selection key of the connection.
+     */
+    private static void close(final SelectionKey key) {
+        key.cancel();
+        close((SocketChannel) key.channel());
+    }
+
+    /**
+     * Closes a connection.
+     *
+     * @param channel
+     *            The connection or {@code null}.
+     */
+    private static void close(final SocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+            catch (final IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Closes all channels and the selector. Idempotent.
+     */
+    private void close() {
+        try {
+            for (final SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                }
+                catch (final IOException ignored) {
+                }
+            }
+        }
+        catch (final ClosedSelectorException ignored) {
+        }
+        try {
+            serverChannel.close();
+        }
+        catch (final IOException e) {
+            logger.error("Couldn't close tracker's server-channel", e);
+        }
+        try {
+            reportChannel.close();
+        }
+        catch (final IOException ignored) {
+        }
+        try {
+            selector.close();
+        }
+        catch (final IOException ignored) {
+        }
+    }
+
+    @Override
+    protected void stop() {
+        selector.wakeup();
+        workers.shutdownNow();
+    }
+
+    /**
+     * Waits until the worker threads have terminated.
+     *
+     * @throws InterruptedException
+     *             if the current thread is interrupted.
+     */
+    void awaitCompletion() throws InterruptedException {
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return "TrackerFrontEnd [serverChannel=" + serverChannel.socket()
+                + "]";
+    }
+}
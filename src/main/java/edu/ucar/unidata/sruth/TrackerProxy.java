@@ -143,7 +143,8 @@ final class TrackerProxy {
             }
             try {
                 socket.connect(trackerAddress, Connection.SO_TIMEOUT);
-                TopologyGetter.execute(filter, localServer, socket,
+                TopologyGetter.execute(filter, localServer,
+                        clientManager.getServerLoad(), socket,
                         TrackerProxy.this);
                 setTopology(TrackerProxy.this.getTopology());
                 TrackerProxy.this.register(clientManager);
@@ -185,7 +186,8 @@ final class TrackerProxy {
             openSocket();
             try {
                 final Topology latestTopology = TrackerProxy.this.getTopology(
-                        filter, localServer, socket);
+                        filter, localServer, clientManager.getServerLoad(),
+                        socket);
                 synchronized (this) {
                     if (rawTopology != latestTopology) {
                         setTopology(latestTopology);
@@ -224,10 +226,17 @@ final class TrackerProxy {
     @GuardedBy("this")
     private boolean                       isClosed;
     /**
-     * The version of the raw topology
+     * When the last full snapshot of the topology was received from the
+     * tracker in nanoseconds as returned by {@link System#nanoTime()}.
      */
     @GuardedBy("this")
-    public int                            currentVersion;
+    private long                          snapshotTime;
+    /**
+     * Whether or not the raw topology can be updated by a delta from the
+     * tracker.
+     */
+    @GuardedBy("this")
+    private boolean                       isUpdatable;
     /**
      * The raw topology
      */
@@ -364,6 +373,9 @@ final class TrackerProxy {
      *            registration with the tracker.
      * @param localServer
      *            The Internet socket address of the local server
+     * @param load
+     *            The load on the local server. Only used during registration
+     *            with the tracker.
      * @param socket
      *            The socket to use to communicate with the tracker, if
      *            necessary
@@ -377,8 +389,8 @@ final class TrackerProxy {
      *             if an I/O error occurs.
      */
     private synchronized Topology getTopology(final Filter filter,
-            final InetSocketAddress localServer, final Socket socket)
-            throws IOException {
+            final InetSocketAddress localServer, final ServerLoad load,
+            final Socket socket) throws IOException {
         if (localServer == null) {
             throw new NullPointerException();
         }
@@ -386,7 +398,7 @@ final class TrackerProxy {
             throw new IllegalStateException("Closed: " + this);
         }
         if ((rawTopology == null) || !topologyIsBeingReceived()) {
-            if (!setTopologyFromTracker(filter, localServer, socket)) {
+            if (!setTopologyFromTracker(filter, localServer, load, socket)) {
                 setTopologyFromFile();
                 logger.warn(
                         "Using stale network topology file {}; last modified {}",
@@ -432,16 +444,19 @@ final class TrackerProxy {
      *            The specification of locally-desired data
      * @param localServer
      *            The Internet socket address of the local server
+     * @param load
+     *            The load on the local server
      * @param socket
      *            The socket to use to communicate with the tracker
      * 
      * @return {@code true} if and only if the attempt was successful.
      */
     private synchronized boolean setTopologyFromTracker(final Filter filter,
-            final InetSocketAddress localServer, final Socket socket) {
+            final InetSocketAddress localServer, final ServerLoad load,
+            final Socket socket) {
         try {
             socket.connect(trackerAddress, Connection.SO_TIMEOUT);
-            TopologyGetter.execute(filter, localServer, socket, this);
+            TopologyGetter.execute(filter, localServer, load, socket, this);
             return true;
         }
         catch (final Exception e) {
@@ -454,13 +469,46 @@ final class TrackerProxy {
     }
 
     /**
-     * Sets the raw network topology property. Used by {@link FilteredProxy}.
+     * Sets the raw network topology property. Used by {@link TopologyGetter}.
      * 
      * @param topology
      *            The network topology or {@code null}
+     * @param isSnapshot
+     *            Whether or not the topology is a full snapshot from the
+     *            tracker rather than the result of applying a delta
      */
-    synchronized void setRawTopology(final Topology topology) {
+    synchronized void setRawTopology(final Topology topology,
+            final boolean isSnapshot) {
         this.rawTopology = topology;
+        if (isSnapshot) {
+            snapshotTime = System.nanoTime();
+            isUpdatable = true;
+        }
+    }
+
+    /**
+     * Returns the raw network topology if it can be updated by a delta from
+     * the tracker. It can't be if it's never been received from the tracker,
+     * if an update failed, or if the last full snapshot is older than
+     * {@link Topology#SNAPSHOT_PERIOD} so that a full snapshot is periodically
+     * obtained for recovery. Used by {@link TopologyGetter}.
+     * 
+     * @return The raw network topology to be updated or {@code null} if a full
+     *         snapshot should be obtained
+     */
+    synchronized Topology getUpdatableTopology() {
+        return (rawTopology != null && isUpdatable && System.nanoTime()
+                - snapshotTime < Topology.SNAPSHOT_PERIOD)
+                ? rawTopology
+                : null;
+    }
+
+    /**
+     * Causes the next topology from the tracker to be a full snapshot. Used by
+     * {@link TopologyGetter} when a delta can't be applied.
+     */
+    synchronized void invalidateTopology() {
+        isUpdatable = false;
     }
 
     /**
@@ -508,13 +556,16 @@ final class TrackerProxy {
      *            The address of the server.
      * @throws IOException
      *             if an I/O error occurs.
+     * @throws IllegalArgumentException
+     *             if the address of the server is unresolved.
+     * @see OfflineReport
      */
     synchronized void reportOffline(final InetSocketAddress serverAddress)
             throws IOException {
         logger.debug("Reporting offline server {} to {}", serverAddress,
                 reportingAddress);
         datagramSocket.connect(reportingAddress);
-        final byte[] buf = Util.serialize(serverAddress);
+        final byte[] buf = OfflineReport.encode(serverAddress);
         packet.setData(buf);
         packet.setSocketAddress(reportingAddress);
         datagramSocket.send(packet);
@@ -5,6 +5,7 @@
  */
 package edu.ucar.unidata.sruth;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
@@ -54,7 +55,9 @@ abstract class TrackerTask implements Serializable {
     }
 
     /**
-     * Sends itself to a tracker and returns the reply.
+     * Sends itself to a tracker. The serialized task isn't preceded by its
+     * length so that older trackers understand it. It's sent in one write so
+     * that the tracker usually receives it completely before decoding it.
      * <p>
      * This method is uninterruptible and potentially slow.
      * 
@@ -64,25 +67,38 @@ abstract class TrackerTask implements Serializable {
      *             if an I/O error occurs.
      */
     protected final void callTracker() throws IOException {
-        final OutputStream outputStream = trackerSocket.getOutputStream();
-        final ObjectOutputStream oos = new ObjectOutputStream(outputStream);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream oos = new ObjectOutputStream(bytes);
         oos.writeObject(this);
-        oos.flush();
+        oos.close();
+        final OutputStream output = trackerSocket.getOutputStream();
+        bytes.writeTo(output);
+        output.flush();
     }
 
     /**
-     * Interacts with a {@link Tracker} to accomplish its mission. Called by the
-     * tracker.
+     * Returns the reply to the originating node. Called by the tracker before
+     * any request in the same batch is applied (see
+     * {@link Tracker#process(java.util.List)}). Mustn't modify the tracker.
      * 
      * @param tracker
      *            The {@link Tracker} to use.
-     * @param socket
-     *            The connection to the originating node if a reply is expected.
+     * @return The serialized reply or {@code null} if no reply is expected.
      * @throws IOException
      *             if an I/O error occurs.
      */
-    abstract void process(final Tracker tracker, final Socket socket)
-            throws IOException;
+    abstract byte[] reply(final Tracker tracker) throws IOException;
+
+    /**
+     * Modifies a {@link Tracker} to accomplish its mission. Called by the
+     * tracker after the replies to all requests in the same batch have been
+     * computed.
+     * 
+     * @param tracker
+     *            The {@link Tracker} to modify.
+     * @return {@code true} if and only if the network topology was modified.
+     */
+    abstract boolean apply(final Tracker tracker);
 
     /**
      * Closes the socket to the tracker. Idempotent.
@@ -0,0 +1,1228 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.prefs.Preferences;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.NotThreadSafe;
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+
+import edu.ucar.unidata.sruth.Connection.Message;
+
+/**
+ * The compact, binary wire protocol for {@link PeerMessage}s. It replaces Java
+ * serialization on the streams of a {@link Connection} once both ends have
+ * agreed to use it during connection setup (see {@link Hello}).
+ * <p>
+ * Every message is sent as a frame that comprises a 4-byte, big-endian length
+ * followed by that many bytes. The first byte of a frame identifies the type
+ * of the message and the rest is the type-specific payload. The data of a
+ * {@link Piece} is written and read directly from the piece's byte-array.
+ * Messages of types that the protocol doesn't know are sent as Java-serialized
+ * objects inside a frame so that nothing is lost when new message types are
+ * added.
+ *
+ * @author Steven R. Emmerson
+ */
+@ThreadSafe
+final class WireProtocol {
+    /**
+     * The version of the protocol implemented by this class.
+     */
+    static final int            VERSION             = 1;
+    /**
+     * The logging service.
+     */
+    private static final Logger logger              = Util.getLogger();
+    /**
+     * The pseudo-version that means "Java serialization".
+     */
+    static final int            SERIALIZATION       = 0;
+    /**
+     * The highest version of the protocol that this node will use.
+     */
+    static final int            LOCAL_VERSION;
+    /**
+     * The name of the wire-protocol-version user-preference ({@value} ).
+     */
+    static final String         VERSION_KEY         = "wire protocol version";
+    /**
+     * The default value of the wire-protocol-version user-preference (
+     * {@value} ). A value of {@code 0} disables the binary protocol.
+     */
+    static final int            VERSION_DEFAULT     = VERSION;
+    /**
+     * Whether or not the data of pieces of complete files is sent directly
+     * from the files.
+     */
+    static final boolean        SEND_FILES;
+    /**
+     * The name of the send-files user-preference ({@value} ).
+     */
+    static final String         SEND_FILES_KEY      = "zero-copy piece sending";
+    /**
+     * The default value of the send-files user-preference ({@value} ).
+     */
+    static final boolean        SEND_FILES_DEFAULT  = true;
+    /**
+     * The maximum size of a frame in bytes. Used to detect a corrupted stream.
+     */
+    static final int            MAX_FRAME_SIZE      = 64 * 1024 * 1024;
+    /**
+     * The size of the buffers between a frame and a socket in bytes.
+     */
+    static final int            BUFFER_SIZE         = 8192;
+    /**
+     * The message types.
+     */
+    private static final int    SERIALIZED          = 0;
+    private static final int    PIECE               = 1;
+    private static final int    PIECE_REQUEST       = 2;
+    private static final int    NOTICE_REQUEST      = 3;
+    private static final int    ADDITION_NOTICE     = 4;
+    private static final int    REMOVED_FILE_NOTICE = 5;
+    private static final int    REMOVED_FILES_NOTICE = 6;
+    /**
+     * How the pieces of a file in a set of piece-specifications are encoded.
+     */
+    private static final int    ALL_PIECES          = 0;
+    private static final int    SOME_PIECES         = 1;
+
+    static {
+        final Preferences prefs = Preferences
+                .userNodeForPackage(WireProtocol.class);
+        final int version = prefs.getInt(VERSION_KEY, VERSION_DEFAULT);
+        if (version < SERIALIZATION) {
+            throw new IllegalArgumentException("Invalid preference: \""
+                    + VERSION_KEY + "\"=" + version);
+        }
+        LOCAL_VERSION = Math.min(version, VERSION);
+        SEND_FILES = prefs.getBoolean(SEND_FILES_KEY, SEND_FILES_DEFAULT);
+    }
+
+    /**
+     * The reply of a server to a client that advertised a wire-protocol
+     * version greater than {@link WireProtocol#SERIALIZATION}. It's sent using
+     * Java serialization in place of the bare {@link Filter} so that clients
+     * that don't know about the binary protocol never see it.
+     * <p>
+     * Instances are immutable.
+     *
+     * @author Steven R. Emmerson
+     */
+    @Immutable
+    static final class Hello implements Message {
+        /**
+         * The serial version identifier.
+         */
+        private static final long serialVersionUID = 1L;
+        /**
+         * The filter of the server.
+         *
+         * @serial
+         */
+        private final Filter      filter;
+        /**
+         * The negotiated version of the wire protocol.
+         *
+         * @serial
+         */
+        private final int         version;
+
+        /**
+         * Constructs from the filter of the server and the negotiated version
+         * of the wire protocol.
+         *
+         * @param filter
+         *            The filter of the server.
+         * @param version
+         *            The negotiated version of the wire protocol.
+         * @throws IllegalArgumentException
+         *             if {@code version < }{@link WireProtocol#SERIALIZATION}.
+         * @throws NullPointerException
+         *             if {@code filter == null}.
+         */
+        Hello(final Filter filter, final int version) {
+            if (filter == null) {
+                throw new NullPointerException();
+            }
+            if (version < SERIALIZATION) {
+                throw new IllegalArgumentException("Invalid version: "
+                        + version);
+            }
+            this.filter = filter;
+            this.version = version;
+        }
+
+        /**
+         * Returns the filter of the server.
+         *
+         * @return The filter of the server.
+         */
+        Filter getFilter() {
+            return filter;
+        }
+
+        /**
+         * Returns the negotiated version of the wire protocol.
+         *
+         * @return The negotiated version of the wire protocol.
+         */
+        int getVersion() {
+            return version;
+        }
+
+        @Override
+        public String toString() {
+            return "Hello [filter=" + filter + ", version=" + version + "]";
+        }
+
+        private Object readResolve() throws InvalidObjectException {
+            try {
+                return new Hello(filter, version);
+            }
+            catch (final Exception e) {
+                throw (InvalidObjectException) new InvalidObjectException(
+                        "Read invalid " + getClass().getSimpleName())
+                        .initCause(e);
+            }
+        }
+    }
+
+    /**
+     * A reusable buffer for encoding frames.
+     * <p>
+     * Instances are not thread-safe.
+     *
+     * @author Steven R. Emmerson
+     */
+    @NotThreadSafe
+    static final class FrameBuffer extends ByteArrayOutputStream {
+        /**
+         * The output stream into this buffer.
+         */
+        private final DataOutputStream out = new DataOutputStream(this);
+
+        /**
+         * Constructs.
+         */
+        FrameBuffer() {
+            super(256);
+        }
+
+        /**
+         * Encodes a message as a frame. The data of a {@link Piece} isn't
+         * encoded but is accounted for in the length of the frame: it must be
+         * sent immediately after the returned frame.
+         *
+         * @param msg
+         *            The message.
+         * @return The frame. Valid until the next invocation of this method.
+         * @throws IOException
+         *             if an I/O error occurs.
+         * @throws NullPointerException
+         *             if {@code msg == null}.
+         */
+        synchronized ByteBuffer encode(final Message msg) throws IOException {
+            reset();
+            out.writeInt(0); // frame length
+            int dataSize = 0;
+            if (msg instanceof Piece) {
+                final Piece piece = (Piece) msg;
+                dataSize = piece.getSize();
+                out.writeByte(PIECE);
+                writeFileInfo(out, piece.getFileInfo());
+                out.writeInt(piece.getIndex());
+                out.writeInt(dataSize);
+            }
+            else {
+                WireProtocol.encode(out, msg);
+            }
+            final int length = count - 4 + dataSize;
+            buf[0] = (byte) (length >>> 24);
+            buf[1] = (byte) (length >>> 16);
+            buf[2] = (byte) (length >>> 8);
+            buf[3] = (byte) length;
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * Channels to the files of pieces whose data is sent directly from their
+     * files (see {@link Piece#getFile()}). The channel to the most recently
+     * opened file is kept open for subsequent pieces of the same file.
+     * <p>
+     * Instances are not thread-safe.
+     *
+     * @author Steven R. Emmerson
+     */
+    @NotThreadSafe
+    static final class PieceFiles {
+        /**
+         * The pathname of the most recently opened file or {@code null}.
+         */
+        private Path        path;
+        /**
+         * The channel to the most recently opened file or {@code null}.
+         */
+        private FileChannel channel;
+
+        /**
+         * Returns a channel to the file of a piece.
+         *
+         * @param piece
+         *            The piece.
+         * @return A channel to the file or {@code null} if the file no longer
+         *         corresponds to the piece (because it was deleted or
+         *         replaced, for example).
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        FileChannel open(final Piece piece) throws IOException {
+            final Path file = piece.getFile();
+            if (!file.equals(path)) {
+                close();
+                final FileInfo fileInfo = piece.getFileInfo();
+                final FileChannel fileChannel;
+                try {
+                    fileChannel = FileChannel.open(file,
+                            StandardOpenOption.READ);
+                }
+                catch (final NoSuchFileException e) {
+                    return null;
+                }
+                /*
+                 * The file is vetted after it's opened so that a replacement
+                 * can't slip in between.
+                 */
+                boolean isValid = false;
+                try {
+                    isValid = fileChannel.size() == fileInfo.getSize()
+                            && new ArchiveTime(file).equals(fileInfo.getTime());
+                }
+                catch (final NoSuchFileException ignored) {
+                }
+                finally {
+                    if (!isValid) {
+                        fileChannel.close();
+                    }
+                }
+                if (!isValid) {
+                    return null;
+                }
+                path = file;
+                channel = fileChannel;
+            }
+            return channel;
+        }
+
+        /**
+         * Transfers some of the data of a piece to a channel.
+         *
+         * @param piece
+         *            The piece.
+         * @param position
+         *            The position in the file of the first byte to transfer.
+         * @param count
+         *            The maximum number of bytes to transfer.
+         * @param target
+         *            The channel to which to transfer the data.
+         * @return The number of bytes transferred. Might be zero if the target
+         *         is in non-blocking mode.
+         * @throws IllegalStateException
+         *             if the file of the piece isn't open.
+         * @throws IOException
+         *             if an I/O error occurs or the file was truncated.
+         */
+        long transfer(final Piece piece, final long position,
+                final long count, final WritableByteChannel target)
+                throws IOException {
+            if (channel == null || !piece.getFile().equals(path)) {
+                throw new IllegalStateException();
+            }
+            final long n = channel.transferTo(position, count, target);
+            if (n <= 0 && position + count > channel.size()) {
+                throw new IOException("File truncated: " + path);
+            }
+            return n;
+        }
+
+        /**
+         * Indicates that all the data of a piece has been sent. Closes the
+         * file if the piece is the last one of the file.
+         *
+         * @param piece
+         *            The piece.
+         */
+        void done(final Piece piece) {
+            if (piece.getIndex() == piece.getFileInfo().getPieceCount() - 1) {
+                close();
+            }
+        }
+
+        /**
+         * Closes the channel to the most recently opened file if it's open.
+         * Idempotent.
+         */
+        void close() {
+            if (channel != null) {
+                final FileChannel fileChannel = channel;
+                channel = null;
+                path = null;
+                try {
+                    fileChannel.close();
+                }
+                catch (final IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes messages to an output stream.
+     * <p>
+     * Instances are thread-safe.
+     *
+     * @author Steven R. Emmerson
+     */
+    @ThreadSafe
+    static final class Encoder {
+        /**
+         * The output stream.
+         */
+        @GuardedBy("this")
+        private final OutputStream        out;
+        /**
+         * The buffer for the non-data portion of a frame.
+         */
+        @GuardedBy("this")
+        private final FrameBuffer         frameBuffer = new FrameBuffer();
+        /**
+         * The number of bytes written by this instance.
+         */
+        @GuardedBy("this")
+        private long                      byteCount;
+        /**
+         * The buffer for copying the data of a piece from a direct buffer to
+         * the output stream.
+         */
+        @GuardedBy("this")
+        private final byte[]              scratch     = new byte[BUFFER_SIZE];
+        /**
+         * The channel underlying the output stream or {@code null}. Used to
+         * send the data of pieces directly from their files.
+         */
+        private final WritableByteChannel channel;
+        /**
+         * The files of pieces that are sent directly from their files.
+         */
+        @GuardedBy("this")
+        private final PieceFiles          pieceFiles  = new PieceFiles();
+
+        /**
+         * Constructs from an output stream.
+         *
+         * @param out
+         *            The output stream. Will be buffered.
+         * @throws NullPointerException
+         *             if {@code out == null}.
+         */
+        Encoder(final OutputStream out) {
+            this(out, null);
+        }
+
+        /**
+         * Constructs from an output stream and the channel to which it writes.
+         * The data of pieces that reference their files (see
+         * {@link Piece#getFile()}) will be transferred from the file to the
+         * channel without entering the Java heap.
+         *
+         * @param out
+         *            The output stream. Will be buffered.
+         * @param channel
+         *            The channel to which {@code out} writes or {@code null}.
+         *            Must be in blocking mode.
+         * @throws NullPointerException
+         *             if {@code out == null}.
+         */
+        Encoder(final OutputStream out, final WritableByteChannel channel) {
+            if (out == null) {
+                throw new NullPointerException();
+            }
+            this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+            this.channel = channel;
+        }
+
+        /**
+         * Indicates if this instance can send the data of a piece directly
+         * from the piece's file.
+         *
+         * @return {@code true} if and only if this instance can send data
+         *         directly from files.
+         */
+        boolean canSendFiles() {
+            return channel != null;
+        }
+
+        /**
+         * Writes a message and flushes the output stream. A piece whose file
+         * no longer corresponds to it (see {@link PieceFiles#open(Piece)}) is
+         * not written. The message isn't released (see {@link Piece#release()}
+         * ).
+         *
+         * @param msg
+         *            The message.
+         * @throws IOException
+         *             if an I/O error occurs.
+         * @throws NullPointerException
+         *             if {@code msg == null}.
+         */
+        synchronized void write(final Message msg) throws IOException {
+            if (msg instanceof Piece) {
+                Piece piece = (Piece) msg;
+                if (piece.getFile() != null) {
+                    if (channel != null) {
+                        writeFromFile(piece);
+                        return;
+                    }
+                    piece = piece.inMemory();
+                }
+                try {
+                    writeFrame(piece);
+                    writeData(piece.getBuffer());
+                    byteCount += piece.getSize();
+                }
+                finally {
+                    if (piece != msg) {
+                        piece.release();
+                    }
+                }
+            }
+            else {
+                writeFrame(msg);
+            }
+            out.flush();
+        }
+
+        /**
+         * Writes a message as a frame. The data of a piece isn't written.
+         *
+         * @param msg
+         *            The message.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        @GuardedBy("this")
+        private void writeFrame(final Message msg) throws IOException {
+            final ByteBuffer frame = frameBuffer.encode(msg);
+            out.write(frame.array(), 0, frame.limit());
+            byteCount += frame.limit();
+        }
+
+        /**
+         * Writes the data of a piece. Data in a direct buffer is written to
+         * the channel if possible; otherwise, it's copied to the output
+         * stream.
+         *
+         * @param buf
+         *            The data.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        @GuardedBy("this")
+        private void writeData(final ByteBuffer buf) throws IOException {
+            if (buf.hasArray()) {
+                out.write(buf.array(), buf.arrayOffset() + buf.position(),
+                        buf.remaining());
+            }
+            else if (channel != null) {
+                out.flush();
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+            }
+            else {
+                while (buf.hasRemaining()) {
+                    final int n = Math.min(buf.remaining(), scratch.length);
+                    buf.get(scratch, 0, n);
+                    out.write(scratch, 0, n);
+                }
+            }
+        }
+
+        /**
+         * Writes a piece whose data is in a file. The frame is written through
+         * the output stream and the data is then transferred from the file to
+         * the channel.
+         *
+         * @param piece
+         *            The piece.
+         * @throws IOException
+         *             if an I/O error occurs.
+         */
+        @GuardedBy("this")
+        private void writeFromFile(final Piece piece) throws IOException {
+            if (pieceFiles.open(piece) == null) {
+                logger.debug("Not sending piece of changed file: {}", piece);
+                return;
+            }
+            writeFrame(piece);
+            out.flush();
+            long position = piece.getOffset();
+            long remaining = piece.getSize();
+            while (remaining > 0) {
+                final long n = pieceFiles.transfer(piece, position, remaining,
+                        channel);
+                position += n;
+                remaining -= n;
+            }
+            byteCount += piece.getSize();
+            pieceFiles.done(piece);
+        }
+
+        /**
+         * Releases the resources of this instance. The output stream is not
+         * closed. Idempotent.
+         */
+        synchronized void close() {
+            pieceFiles.close();
+        }
+
+        /**
+         * Returns the number of bytes written by this instance.
+         *
+         * @return The number of bytes written by this instance.
+         */
+        synchronized long getByteCount() {
+            return byteCount;
+        }
+    }
+
+    /**
+     * Reads messages from an input stream.
+     * <p>
+     * Instances are not thread-safe.
+     *
+     * @author Steven R. Emmerson
+     */
+    @NotThreadSafe
+    static final class Decoder {
+        /**
+         * The input stream.
+         */
+        private final DataInputStream in;
+        /**
+         * The buffer for copying the data of a piece into a direct buffer.
+         */
+        private final byte[]          scratch = new byte[BUFFER_SIZE];
+
+        /**
+         * Constructs from an input stream.
+         *
+         * @param in
+         *            The input stream. Will be buffered.
+         * @throws NullPointerException
+         *             if {@code in == null}.
+         */
+        Decoder(final InputStream in) {
+            if (in == null) {
+                throw new NullPointerException();
+            }
+            this.in = new DataInputStream(new BufferedInputStream(in,
+                    BUFFER_SIZE));
+        }
+
+        /**
+         * Reads the next message.
+         *
+         * @return The next message.
+         * @throws ClassNotFoundException
+         *             if the message was Java-serialized and its class is
+         *             unknown.
+         * @throws EOFException
+         *             if the end of the input stream is reached.
+         * @throws IOException
+         *             if an I/O error occurs.
+         * @throws StreamCorruptedException
+         *             if the input stream doesn't contain a valid frame.
+         */
+        Message read() throws IOException, ClassNotFoundException {
+            final int length = in.readInt();
+            vetFrameLength(length);
+            return decodeFrame(in, length, scratch);
+        }
+    }
+
+    /**
+     * An input stream that's limited to the contents of a frame. Reading
+     * beyond the end of the frame is an error.
+     * <p>
+     * Instances are not thread-safe.
+     *
+     * @author Steven R. Emmerson
+     */
+    @NotThreadSafe
+    private static final class FrameInputStream extends FilterInputStream {
+        /**
+         * The number of unread bytes in the frame.
+         */
+        private int remaining;
+
+        /**
+         * Constructs from an input stream and the length of the frame.
+         *
+         * @param in
+         *            The input stream, positioned at the start of the frame's
+         *            contents.
+         * @param length
+         *            The length of the frame in bytes.
+         */
+        FrameInputStream(final InputStream in, final int length) {
+            super(in);
+            remaining = length;
+        }
+
+        /**
+         * Vets reading from this instance.
+         *
+         * @throws StreamCorruptedException
+         *             if the end of the frame has been reached.
+         */
+        private void vetRead() throws StreamCorruptedException {
+            if (remaining == 0) {
+                throw new StreamCorruptedException(
+                        "Read beyond the end of the frame");
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            vetRead();
+            final int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            vetRead();
+            final int n = in.read(b, off, Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Not instantiable.
+     */
+    private WireProtocol() {
+    }
+
+    /**
+     * Returns the version of the wire protocol to be used with a remote node.
+     *
+     * @param remoteVersion
+     *            The highest version supported by the remote node.
+     * @return The version to be used. {@link #SERIALIZATION} means Java
+     *         serialization.
+     */
+    static int negotiate(final int remoteVersion) {
+        return Math.max(SERIALIZATION, Math.min(LOCAL_VERSION, remoteVersion));
+    }
+
+    /**
+     * Vets the length of a frame.
+     *
+     * @param length
+     *            The length of a frame in bytes, excluding the length itself.
+     * @throws StreamCorruptedException
+     *             if the length is invalid.
+     */
+    static void vetFrameLength(final int length)
+            throws StreamCorruptedException {
+        if (length < 1 || length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Invalid frame length: "
+                    + length);
+        }
+    }
+
+    /**
+     * Decodes a frame. The data of a piece is copied into a buffer from
+     * {@link Piece#POOL}.
+     *
+     * @param frame
+     *            The frame, excluding its length, at the start of an array.
+     * @param length
+     *            The length of the frame in bytes.
+     * @param scratch
+     *            The buffer for copying the data of a piece.
+     * @return The message in the frame.
+     * @throws ClassNotFoundException
+     *             if the message was Java-serialized and its class is unknown.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws StreamCorruptedException
+     *             if the frame is invalid.
+     */
+    static Message decode(final byte[] frame, final int length,
+            final byte[] scratch) throws IOException, ClassNotFoundException {
+        vetFrameLength(length);
+        return decodeFrame(new ByteArrayInputStream(frame, 0, length), length,
+                scratch);
+    }
+
+    /**
+     * Decodes a frame and vets that its contents were consumed exactly.
+     *
+     * @param in
+     *            The input, positioned just after the length of the frame.
+     * @param length
+     *            The length of the frame in bytes.
+     * @param scratch
+     *            The buffer for copying the data of a piece.
+     * @return The message in the frame.
+     * @throws ClassNotFoundException
+     *             if the message was Java-serialized and its class is unknown.
+     * @throws EOFException
+     *             if the end of the input is reached.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws StreamCorruptedException
+     *             if the frame is invalid: its message is longer or shorter
+     *             than its length.
+     */
+    private static Message decodeFrame(final InputStream in, final int length,
+            final byte[] scratch) throws IOException, ClassNotFoundException {
+        final FrameInputStream frame = new FrameInputStream(in, length);
+        final Message msg = decode(new DataInputStream(frame), length, scratch);
+        if (frame.remaining != 0) {
+            if (msg instanceof Piece) {
+                ((Piece) msg).release();
+            }
+            throw new StreamCorruptedException("Frame has " + frame.remaining
+                    + " unread bytes: length=" + length + ", message=" + msg);
+        }
+        return msg;
+    }
+
+    /**
+     * Decodes the contents of a frame.
+     *
+     * @param in
+     *            The input, positioned just after the length of the frame.
+     * @param length
+     *            The length of the frame in bytes.
+     * @param scratch
+     *            The buffer for copying the data of a piece.
+     * @return The message in the frame.
+     * @throws ClassNotFoundException
+     *             if the message was Java-serialized and its class is unknown.
+     * @throws EOFException
+     *             if the end of the input is reached.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws StreamCorruptedException
+     *             if the frame is invalid.
+     */
+    private static Message decode(final DataInput in, final int length,
+            final byte[] scratch) throws IOException, ClassNotFoundException {
+        final int type = in.readUnsignedByte();
+        try {
+            switch (type) {
+            case PIECE: {
+                final FileInfo fileInfo = readFileInfo(in);
+                final PieceSpec spec = new PieceSpec(fileInfo, in.readInt());
+                final int size = in.readInt();
+                if (size != spec.getSize()) {
+                    throw new StreamCorruptedException("Invalid data-size for "
+                            + spec + ": " + size);
+                }
+                final ByteBuffer data = Piece.POOL.acquire(size);
+                try {
+                    readData(in, data, scratch);
+                }
+                catch (final IOException e) {
+                    Piece.POOL.release(data);
+                    throw e;
+                }
+                data.flip();
+                return new Piece(spec, data);
+            }
+            case PIECE_REQUEST:
+                return new PieceRequest(readSpecs(in));
+            case NOTICE_REQUEST:
+                return new NoticeRequest(readSpecs(in));
+            case ADDITION_NOTICE:
+                return new AdditionNotice(readSpecs(in));
+            case REMOVED_FILE_NOTICE:
+                return new RemovedFileNotice(readArchivePath(in));
+            case REMOVED_FILES_NOTICE: {
+                final ArchivePathSet archivePaths = new ArchivePathSet();
+                for (int n = readCount(in); n > 0; --n) {
+                    archivePaths.add(readArchivePath(in));
+                }
+                return new RemovedFilesNotice(archivePaths);
+            }
+            case SERIALIZED: {
+                final byte[] bytes = new byte[length - 1];
+                in.readFully(bytes);
+                final Object obj = Util.deserialize(bytes, 0, bytes.length);
+                if (!(obj instanceof Message)) {
+                    throw new InvalidObjectException("Not a message: " + obj);
+                }
+                return (Message) obj;
+            }
+            default:
+                throw new StreamCorruptedException("Unknown message type: "
+                        + type);
+            }
+        }
+        catch (final IllegalArgumentException e) {
+            throw (InvalidObjectException) new InvalidObjectException(
+                    "Read invalid message of type " + type).initCause(e);
+        }
+        catch (final IndexOutOfBoundsException e) {
+            throw (InvalidObjectException) new InvalidObjectException(
+                    "Read invalid message of type " + type).initCause(e);
+        }
+    }
+
+    /**
+     * Writes the type and payload of a non-piece message.
+     *
+     * @param out
+     *            The output.
+     * @param msg
+     *            The message.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static void encode(final DataOutput out, final Message msg)
+            throws IOException {
+        if (msg instanceof PieceRequest) {
+            out.writeByte(PIECE_REQUEST);
+            writeSpecs(out, ((PieceRequest) msg).getSpecs());
+        }
+        else if (msg instanceof NoticeRequest) {
+            out.writeByte(NOTICE_REQUEST);
+            writeSpecs(out, ((NoticeRequest) msg).getSpecs());
+        }
+        else if (msg instanceof AdditionNotice) {
+            out.writeByte(ADDITION_NOTICE);
+            writeSpecs(out, ((AdditionNotice) msg).getSpecs());
+        }
+        else if (msg instanceof RemovedFileNotice) {
+            out.writeByte(REMOVED_FILE_NOTICE);
+            writeArchivePath(out, ((RemovedFileNotice) msg).getArchivePath());
+        }
+        else if (msg instanceof RemovedFilesNotice) {
+            final ArchivePathSet archivePaths = ((RemovedFilesNotice) msg)
+                    .getArchivePaths();
+            synchronized (archivePaths) {
+                out.writeByte(REMOVED_FILES_NOTICE);
+                out.writeInt(archivePaths.size());
+                for (final ArchivePath archivePath : archivePaths) {
+                    writeArchivePath(out, archivePath);
+                }
+            }
+        }
+        else {
+            out.writeByte(SERIALIZED);
+            out.write(Util.serialize((Serializable) msg));
+        }
+    }
+
+    /**
+     * Writes the pathname of a file in the archive. The name components are
+     * separated by {@link ArchivePath#SEPARATOR_CHAR} so that the encoding is
+     * independent of the platform.
+     *
+     * @param out
+     *            The output.
+     * @param archivePath
+     *            The pathname.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static void writeArchivePath(final DataOutput out,
+            final ArchivePath archivePath) throws IOException {
+        final int count = archivePath.getNameCount();
+        if (count == 1) {
+            out.writeUTF(archivePath.getName(0).toString());
+        }
+        else {
+            final StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    builder.append(ArchivePath.SEPARATOR_CHAR);
+                }
+                builder.append(archivePath.getName(i));
+            }
+            out.writeUTF(builder.toString());
+        }
+    }
+
+    /**
+     * Reads the pathname of a file in the archive.
+     *
+     * @param in
+     *            The input.
+     * @return The pathname.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static ArchivePath readArchivePath(final DataInput in)
+            throws IOException {
+        return new ArchivePath(in.readUTF());
+    }
+
+    /**
+     * Writes information on a file.
+     *
+     * @param out
+     *            The output.
+     * @param fileInfo
+     *            The information on the file.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static void writeFileInfo(final DataOutput out,
+            final FileInfo fileInfo) throws IOException {
+        writeArchivePath(out, fileInfo.getPath());
+        out.writeLong(fileInfo.getTime().toMillis());
+        out.writeLong(fileInfo.getSize());
+        out.writeInt(fileInfo.getPieceSize());
+        out.writeInt(fileInfo.getTimeToLive());
+    }
+
+    /**
+     * Reads information on a file.
+     *
+     * @param in
+     *            The input.
+     * @return The information on the file.
+     * @throws IllegalArgumentException
+     *             if the information is invalid.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static FileInfo readFileInfo(final DataInput in)
+            throws IOException {
+        final ArchivePath path = readArchivePath(in);
+        final ArchiveTime time = ArchiveTime.fromMillis(in.readLong());
+        final long size = in.readLong();
+        final int pieceSize = in.readInt();
+        final int timeToLive = in.readInt();
+        return new FileInfo(new FileId(path, time), size, pieceSize,
+                timeToLive);
+    }
+
+    /**
+     * Reads a non-negative count.
+     *
+     * @param in
+     *            The input.
+     * @return The count.
+     * @throws IOException
+     *             if an I/O error occurs.
+     * @throws StreamCorruptedException
+     *             if the count is negative.
+     */
+    private static int readCount(final DataInput in) throws IOException {
+        final int count = in.readInt();
+        if (count < 0) {
+            throw new StreamCorruptedException("Invalid count: " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Reads the data of a piece into a buffer.
+     *
+     * @param in
+     *            The input.
+     * @param buf
+     *            The buffer. Filled from its position to its limit.
+     * @param scratch
+     *            The buffer for copying the data if {@code buf} is direct.
+     * @throws EOFException
+     *             if the end of the input is reached.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static void readData(final DataInput in, final ByteBuffer buf,
+            final byte[] scratch) throws IOException {
+        if (buf.hasArray()) {
+            in.readFully(buf.array(), buf.arrayOffset() + buf.position(),
+                    buf.remaining());
+            buf.position(buf.limit());
+        }
+        else {
+            while (buf.hasRemaining()) {
+                final int n = Math.min(buf.remaining(), scratch.length);
+                in.readFully(scratch, 0, n);
+                buf.put(scratch, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Writes a set of piece-specifications. The set is written as a sequence
+     * of runs, one per file. Each run comprises the information on the file
+     * followed by either {@link #ALL_PIECES} or {@link #SOME_PIECES} and the
+     * indexes of the pieces. The sequence is terminated by a {@code false}
+     * boolean.
+     *
+     * @param out
+     *            The output.
+     * @param specs
+     *            The set of piece-specifications.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static void writeSpecs(final DataOutput out,
+            final PieceSpecSetIface specs) throws IOException {
+        FileInfo fileInfo = null;
+        int[] indexes = new int[16];
+        int count = 0;
+        for (final PieceSpec spec : specs) {
+            final FileInfo info = spec.getFileInfo();
+            if (!info.equals(fileInfo)) {
+                if (fileInfo != null) {
+                    writeRun(out, fileInfo, indexes, count);
+                }
+                fileInfo = info;
+                count = 0;
+            }
+            if (count == indexes.length) {
+                final int[] tmp = new int[2 * count];
+                System.arraycopy(indexes, 0, tmp, 0, count);
+                indexes = tmp;
+            }
+            indexes[count++] = spec.getIndex();
+        }
+        if (fileInfo != null) {
+            writeRun(out, fileInfo, indexes, count);
+        }
+        out.writeBoolean(false);
+    }
+
+    /**
+     * Writes the piece-specifications of a single file.
+     *
+     * @param out
+     *            The output.
+     * @param fileInfo
+     *            Information on the file.
+     * @param indexes
+     *            The indexes of the pieces.
+     * @param count
+     *            The number of indexes.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static void writeRun(final DataOutput out,
+            final FileInfo fileInfo, final int[] indexes, final int count)
+            throws IOException {
+        out.writeBoolean(true);
+        writeFileInfo(out, fileInfo);
+        if (count == fileInfo.getPieceCount()) {
+            out.writeByte(ALL_PIECES);
+        }
+        else {
+            out.writeByte(SOME_PIECES);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeInt(indexes[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads a set of piece-specifications.
+     *
+     * @param in
+     *            The input.
+     * @return The set of piece-specifications.
+     * @throws IllegalArgumentException
+     *             if the set is invalid.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    private static PieceSpecSetIface readSpecs(final DataInput in)
+            throws IOException {
+        PieceSpecSetIface specs = EmptyPieceSpecSet.INSTANCE;
+        while (in.readBoolean()) {
+            final FileInfo fileInfo = readFileInfo(in);
+            final int kind = in.readUnsignedByte();
+            if (kind == ALL_PIECES) {
+                specs = specs.merge(FilePieceSpecSet.newInstance(fileInfo,
+                        true));
+            }
+            else if (kind == SOME_PIECES) {
+                for (int n = readCount(in); n > 0; --n) {
+                    specs = specs.merge(new PieceSpec(fileInfo, in.readInt()));
+                }
+            }
+            else {
+                throw new StreamCorruptedException(
+                        "Unknown kind of piece-specifications: " + kind);
+            }
+        }
+        return specs;
+    }
+}
@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.regex.Pattern;
@@ -113,8 +114,25 @@ final class XmlActionFile {
      *             if an I/O error occurs.
      */
     private static Processor process(final Document doc) throws IOException {
-        final Processor processor = new Processor();
         final Element rootElt = doc.getRootElement();
+        final int queueCapacity = getIntAttribute(rootElt, "queueCapacity",
+                Processor.QUEUE_CAPACITY);
+        final String string = rootElt.getAttributeValue("overflow");
+        Processor.OverflowPolicy overflowPolicy = Processor.OVERFLOW_POLICY;
+        if (string != null) {
+            try {
+                overflowPolicy = Processor.OverflowPolicy.valueOf(string
+                        .toUpperCase());
+            }
+            catch (final IllegalArgumentException e) {
+                throw new IOException("Invalid attribute: \"overflow\"=\""
+                        + string + "\"");
+            }
+        }
+        final int workerCount = getIntAttribute(rootElt, "workers",
+                Processor.WORKER_COUNT);
+        final Processor processor = new Processor(queueCapacity,
+                overflowPolicy, workerCount);
         processRootElt(rootElt, processor);
         return processor;
     }
@@ -160,6 +178,37 @@ final class XmlActionFile {
         return attr.getValue();
     }
 
+    /**
+     * Returns an optional, positive integer attribute.
+     * 
+     * @param elt
+     *            The element whose attribute is to be returned.
+     * @param name
+     *            The name of the attribute.
+     * @param defaultValue
+     *            The value to return if the attribute doesn't exist.
+     * @return The value of the attribute or {@code defaultValue}.
+     * @throws IOException
+     *             if the attribute isn't a positive integer.
+     */
+    private static int getIntAttribute(final Element elt, final String name,
+            final int defaultValue) throws IOException {
+        final String string = elt.getAttributeValue(name);
+        if (string == null) {
+            return defaultValue;
+        }
+        try {
+            final int value = Integer.parseInt(string.trim());
+            if (value > 0) {
+                return value;
+            }
+        }
+        catch (final NumberFormatException e) {
+        }
+        throw new IOException("Invalid attribute: \"" + name + "\"=\""
+                + string + "\"");
+    }
+
     /**
      * Processes an "entry" element.
      * 
@@ -173,6 +222,13 @@ final class XmlActionFile {
             final Processor processor) throws IOException {
         final String string = getAttribute(entryElt, "pattern");
         final Pattern pattern = Pattern.compile(string);
+        if (Boolean.parseBoolean(entryElt.getAttributeValue("ordered"))) {
+            processor.setMaxConcurrency(pattern, 1);
+        }
+        else if (entryElt.getAttribute("maxConcurrency") != null) {
+            processor.setMaxConcurrency(pattern,
+                    getIntAttribute(entryElt, "maxConcurrency", 1));
+        }
         for (final Element elt : (List<Element>) entryElt.getChildren()) {
             final String eltName = elt.getName();
             if (eltName.equalsIgnoreCase("file")) {
@@ -181,6 +237,9 @@ final class XmlActionFile {
             else if (eltName.equalsIgnoreCase("decode")) {
                 processDecodeElt(elt, pattern, processor);
             }
+            else if (eltName.equalsIgnoreCase("pipe")) {
+                processPipeElt(elt, pattern, processor);
+            }
         }
     }
 
@@ -200,7 +259,20 @@ final class XmlActionFile {
             final Pattern pattern, final Processor processor)
             throws IOException {
         final String path = getAttribute(fileElt, "path");
-        final Action action = new FileAction(path);
+        final String string = fileElt.getAttributeValue("mode");
+        final FileAction.Mode mode;
+        try {
+            mode = string == null
+                    ? FileAction.Mode.COPY
+                    : FileAction.Mode.valueOf(string.toUpperCase());
+        }
+        catch (final IllegalArgumentException e) {
+            throw new IOException("Invalid attribute: \"mode\"=\"" + string
+                    + "\"");
+        }
+        final boolean atomic = Boolean.parseBoolean(fileElt
+                .getAttributeValue("atomic"));
+        final Action action = new FileAction(path, mode, atomic);
         processor.add(pattern, action);
     }
 
@@ -233,4 +305,98 @@ final class XmlActionFile {
         final Action action = new DecodeAction(command);
         processor.add(pattern, action);
     }
+
+    /**
+     * Processes a "pipe" element.
+     * 
+     * @param pipeElt
+     *            The "pipe" element.
+     * @param pattern
+     *            The pattern that selects data-products to be piped.
+     * @param processor
+     *            The processor of data-products.
+     * @throws IOException
+     *             if an I/O error occurs.
+     */
+    @SuppressWarnings("unchecked")
+    private static void processPipeElt(final Element pipeElt,
+            final Pattern pattern, final Processor processor)
+            throws IOException {
+        final List<String> command = new LinkedList<String>();
+        command.add(getAttribute(pipeElt, "program"));
+        for (final Element elt : (List<Element>) pipeElt.getChildren()) {
+            if (elt.getName().equalsIgnoreCase("arg")) {
+                command.add(elt.getTextTrim());
+            }
+        }
+        final String string = pipeElt.getAttributeValue("framing");
+        final PipeAction.Framing framing;
+        try {
+            framing = string == null
+                    ? PipeAction.Framing.LENGTH
+                    : PipeAction.Framing.valueOf(string.toUpperCase());
+        }
+        catch (final IllegalArgumentException e) {
+            throw new IOException("Invalid attribute: \"framing\"=\""
+                    + string + "\"");
+        }
+        final String delimiter = pipeElt.getAttributeValue("delimiter");
+        final int backlog = getIntAttribute(pipeElt, "backlog",
+                PipeAction.BACKLOG_DEFAULT);
+        final int maxDecoders = getIntAttribute(pipeElt, "maxDecoders",
+                PipeAction.MAX_DECODERS_DEFAULT);
+        final int idleTimeout = getIntAttribute(pipeElt, "idleTimeout",
+                (int) (PipeAction.IDLE_TIMEOUT_DEFAULT / 1000));
+        final Action action = new PipeAction(command, framing,
+                unescape(delimiter == null
+                        ? "\\n"
+                        : delimiter).getBytes(StandardCharsets.UTF_8), backlog,
+                maxDecoders, 1000L * idleTimeout);
+        processor.add(pattern, action);
+    }
+
+    /**
+     * Replaces the escape sequences "\n", "\r", "\t", "\0", and "\\" in a
+     * string with the characters they represent.
+     * 
+     * @param string
+     *            The string.
+     * @return The string with its escape sequences replaced.
+     * @throws IOException
+     *             if the string contains an invalid escape sequence.
+     */
+    private static String unescape(final String string) throws IOException {
+        final StringBuilder buf = new StringBuilder(string.length());
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '\\') {
+                if (++i == string.length()) {
+                    throw new IOException("Invalid escape sequence: \""
+                            + string + "\"");
+                }
+                switch (string.charAt(i)) {
+                case 'n':
+                    c = '\n';
+                    break;
+                case 'r':
+                    c = '\r';
+                    break;
+                case 't':
+                    c = '\t';
+                    break;
+                case '0':
+                    c = '\0';
+                    break;
+                case '\\':
+                    c = '\\';
+                    break;
+                default:
+                    throw new IOException("Invalid escape sequence: \""
+                            + string + "\"");
+                }
+            }
+            buf.append(c);
+        }
+        return buf.toString();
+    }
 }
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ArchiveCatalog} class.
+ *
+ * @author Steven R. Emmerson
+ */
+public class ArchiveCatalogTest {
+    private static final Path TESTDIR    = Paths.get(
+                                                 System.getProperty("java.io.tmpdir"))
+                                                 .resolve(
+                                                         ArchiveCatalogTest.class
+                                                                 .getSimpleName());
+    private static final Path CHECKPOINT = TESTDIR.resolve("catalog");
+
+    @Before
+    public void setUp() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+        Files.createDirectories(TESTDIR);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+    }
+
+    private static FileInfo fileInfo(final String path, final long time) {
+        return new FileInfo(new FileId(new ArchivePath(path),
+                ArchiveTime.fromMillis(time)), 100, 10, 60);
+    }
+
+    private static Set<String> scan(final ArchiveCatalog catalog,
+            final String glob) throws Exception {
+        final Set<String> paths = new HashSet<String>();
+        catalog.scan(Filter.getInstance(glob), new FilePieceSpecSetConsumer() {
+            @Override
+            public void consume(final FilePieceSpecSet spec) {
+                paths.add(spec.getArchivePath().toString());
+            }
+        });
+        return paths;
+    }
+
+    private static Set<String> set(final String... strings) {
+        final Set<String> set = new HashSet<String>();
+        for (final String string : strings) {
+            set.add(string);
+        }
+        return set;
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        final ArchiveCatalog catalog = new ArchiveCatalog(CHECKPOINT);
+        catalog.reconcile(new HashMap<String, FileInfo>(), TESTDIR);
+        for (final String path : new String[] { "a", "a/b", "a/b/c", "a/bc",
+                "a.b", "a0", "x/b/c" }) {
+            catalog.put(fileInfo(path, 1000));
+        }
+        assertEquals(set("a", "a/b", "a/b/c", "a/bc", "a.b", "a0", "x/b/c"),
+                scan(catalog, ""));
+        assertEquals(set("a", "a/b", "a/b/c", "a/bc"), scan(catalog, "a"));
+        assertEquals(set("a/b", "a/b/c"), scan(catalog, "a/b"));
+        assertEquals(set("a/b/c", "x/b/c"), scan(catalog, "*/b/c"));
+        assertEquals(set(), scan(catalog, "b"));
+
+        catalog.removeTree(new ArchivePath("a/b"));
+        assertEquals(set("a", "a/bc"), scan(catalog, "a"));
+    }
+
+    @Test
+    public void testNewerVersionKept() throws Exception {
+        final ArchiveCatalog catalog = new ArchiveCatalog(CHECKPOINT);
+        catalog.put(fileInfo("a", 2000));
+        catalog.put(fileInfo("a", 1000));
+        assertEquals(1, catalog.size());
+        catalog.reconcile(new HashMap<String, FileInfo>(), TESTDIR);
+        // Removed because the walk didn't find it and it doesn't exist
+        assertEquals(0, catalog.size());
+        catalog.put(fileInfo("a", 1000));
+        catalog.put(fileInfo("a", 2000));
+        final Set<Long> times = new HashSet<Long>();
+        catalog.scan(Filter.EVERYTHING, new FilePieceSpecSetConsumer() {
+            @Override
+            public void consume(final FilePieceSpecSet spec) {
+                times.add(spec.getFileInfo().getTime().toMillis());
+            }
+        });
+        assertEquals(1, times.size());
+        assertTrue(times.contains(2000L));
+    }
+
+    @Test
+    public void testReconcileDeleted() throws Exception {
+        final ArchiveCatalog catalog = new ArchiveCatalog(CHECKPOINT);
+        final FileInfo existing = fileInfo("a", 1000);
+        final FileInfo deleted = fileInfo("b", 1000);
+        Files.write(existing.getAbsolutePath(TESTDIR), new byte[100]);
+        final HashMap<String, FileInfo> found = new HashMap<String, FileInfo>();
+        found.put("a", existing);
+        // Deleted after the walk found it
+        found.put("b", deleted);
+        catalog.reconcile(found, TESTDIR);
+        assertEquals(set("a"), scan(catalog, ""));
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        ArchiveCatalog catalog = new ArchiveCatalog(CHECKPOINT);
+        assertFalse(catalog.isReady());
+        catalog.put(fileInfo("a/b", 1000));
+        catalog.checkpoint();
+        // Not ready: nothing is written
+        assertFalse(Files.exists(CHECKPOINT));
+        catalog.reconcile(new HashMap<String, FileInfo>(), TESTDIR);
+        catalog.put(fileInfo("a/b", 1000));
+        catalog.put(fileInfo("c", 2000));
+        catalog.checkpoint();
+        assertTrue(Files.exists(CHECKPOINT));
+
+        catalog = new ArchiveCatalog(CHECKPOINT);
+        assertTrue(catalog.isReady());
+        assertEquals(set("a/b", "c"), scan(catalog, ""));
+
+        // A corrupt checkpoint is ignored
+        Files.write(CHECKPOINT, new byte[] { 0, 0, 0, 1, 0, 0, 0, 5 });
+        catalog = new ArchiveCatalog(CHECKPOINT);
+        assertFalse(catalog.isReady());
+        assertEquals(0, catalog.size());
+    }
+}
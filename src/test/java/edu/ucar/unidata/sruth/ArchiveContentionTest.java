@@ -0,0 +1,221 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures the throughput of concurrent access to an archive by many peers.
+ *
+ * @author Steven R. Emmerson
+ */
+public class ArchiveContentionTest {
+    private static final Path     TESTDIR        = Paths.get(
+                                                         System.getProperty("java.io.tmpdir"))
+                                                         .resolve(
+                                                                 ArchiveContentionTest.class
+                                                                         .getSimpleName());
+    private static final int      FILE_COUNT     = 512;
+    private static final int      PIECE_COUNT    = 4;
+    private static final int      PIECE_SIZE     = 4096;
+    private static final int      MAX_OPEN_FILES = 64;
+    private static final int      PEER_COUNT     = 64;
+    private static final int      READS_PER_PUT  = 4;
+    private static final byte[]   DATA           = new byte[PIECE_SIZE];
+
+    private final ArchiveTime     archiveTime    = new ArchiveTime();
+
+    @Before
+    public void setUp() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+    }
+
+    private List<PieceSpec> newPieceSpecs(final String dir) {
+        final List<PieceSpec> specs = new ArrayList<PieceSpec>();
+        for (int i = 0; i < FILE_COUNT; i++) {
+            final FileInfo fileInfo = new FileInfo(new FileId(new ArchivePath(
+                    Paths.get(dir, Integer.toString(i))), archiveTime),
+                    (long) PIECE_COUNT * PIECE_SIZE, PIECE_SIZE, -1);
+            for (int j = 0; j < PIECE_COUNT; j++) {
+                specs.add(new PieceSpec(fileInfo, j));
+            }
+        }
+        return specs;
+    }
+
+    /**
+     * Has a number of peers concurrently write every piece of the files of an
+     * archive, each peer checking for and reading random pieces after every
+     * write. Every piece is written by only one peer.
+     *
+     * @return The number of archive operations per second.
+     */
+    private double run(final Archive archive, final int peerCount,
+            final String dir) throws Exception {
+        final List<PieceSpec> specs = newPieceSpecs(dir);
+        Collections.shuffle(specs, new Random(peerCount));
+        final AtomicLong opCount = new AtomicLong();
+        final ExecutorService executor = Executors
+                .newFixedThreadPool(peerCount);
+        try {
+            final List<Callable<Void>> peers = new ArrayList<Callable<Void>>();
+            for (int i = 0; i < peerCount; i++) {
+                final List<PieceSpec> mySpecs = specs.subList(i * specs.size()
+                        / peerCount, (i + 1) * specs.size() / peerCount);
+                final long seed = i;
+                peers.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        final Random random = new Random(seed);
+                        long ops = 0;
+                        for (final PieceSpec spec : mySpecs) {
+                            archive.putPiece(new Piece(spec, DATA));
+                            ops++;
+                            for (int j = 0; j < READS_PER_PUT; j++) {
+                                final PieceSpec other = specs.get(random
+                                        .nextInt(specs.size()));
+                                if (archive.exists(other)) {
+                                    archive.getPiece(other);
+                                    ops++;
+                                }
+                                ops++;
+                            }
+                        }
+                        opCount.addAndGet(ops);
+                        return null;
+                    }
+                });
+            }
+            final long start = System.nanoTime();
+            for (final Future<Void> future : executor.invokeAll(peers)) {
+                future.get();
+            }
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            return opCount.get() / seconds;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testContention() throws Exception {
+        final Archive archive = new Archive(TESTDIR, MAX_OPEN_FILES);
+        try {
+            // Warm up
+            run(archive, PEER_COUNT, "warmup");
+
+            final double serial = run(archive, 1, "serial");
+            final double concurrent = run(archive, PEER_COUNT, "concurrent");
+            System.out.println("Archive contention: 1 peer: " + (long) serial
+                    + " ops/s, " + PEER_COUNT + " peers: " + (long) concurrent
+                    + " ops/s");
+
+            for (final String dir : new String[] { "serial", "concurrent" }) {
+                for (int i = 0; i < FILE_COUNT; i++) {
+                    final Path path = TESTDIR.resolve(dir).resolve(
+                            Integer.toString(i));
+                    assertTrue(path.toString(), Files.exists(path));
+                    assertEquals(PIECE_COUNT * PIECE_SIZE, Files.size(path));
+                }
+            }
+            for (final PieceSpec spec : newPieceSpecs("concurrent")) {
+                assertTrue(archive.exists(spec));
+                assertNotNull(archive.getPiece(spec));
+            }
+        }
+        finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentReadsOfCompleteFile() throws Exception {
+        final Archive archive = new Archive(TESTDIR, MAX_OPEN_FILES);
+        try {
+            final int pieceCount = 256;
+            final FileInfo fileInfo = new FileInfo(new FileId(new ArchivePath(
+                    "popular"), archiveTime), (long) pieceCount * PIECE_SIZE,
+                    PIECE_SIZE, -1);
+            for (int i = 0; i < pieceCount; i++) {
+                final byte[] data = new byte[PIECE_SIZE];
+                Arrays.fill(data, (byte) i);
+                archive.putPiece(new Piece(new PieceSpec(fileInfo, i), data));
+            }
+
+            // An interrupted reader doesn't affect subsequent readers
+            Thread.currentThread().interrupt();
+            try {
+                archive.getPiece(new PieceSpec(fileInfo, 0));
+            }
+            catch (final ClosedByInterruptException expected) {
+            }
+            Thread.interrupted();
+
+            final ExecutorService executor = Executors
+                    .newFixedThreadPool(PEER_COUNT);
+            try {
+                final List<Callable<Void>> readers = new ArrayList<Callable<Void>>();
+                for (int i = 0; i < PEER_COUNT; i++) {
+                    readers.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            for (int j = 0; j < pieceCount; j++) {
+                                final Piece piece = archive
+                                        .getPiece(new PieceSpec(fileInfo, j));
+                                assertEquals(PIECE_SIZE, piece.getSize());
+                                assertEquals((byte) j, piece.getData()[0]);
+                                assertEquals((byte) j,
+                                        piece.getData()[PIECE_SIZE - 1]);
+                            }
+                            return null;
+                        }
+                    });
+                }
+                final long start = System.nanoTime();
+                for (final Future<Void> future : executor.invokeAll(readers)) {
+                    future.get();
+                }
+                final double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.println("Complete-file reads: " + PEER_COUNT
+                        + " peers: " + (long) (PEER_COUNT * pieceCount / seconds)
+                        + " pieces/s");
+            }
+            finally {
+                executor.shutdownNow();
+            }
+        }
+        finally {
+            archive.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the parallel walking of an {@link Archive}.
+ *
+ * @author Steven R. Emmerson
+ */
+public class ArchiveWalkTest {
+    private static final Path TESTDIR   = Paths.get(
+                                                System.getProperty("java.io.tmpdir"))
+                                                .resolve(
+                                                        ArchiveWalkTest.class
+                                                                .getSimpleName());
+    private static final int  DIR_COUNT = 40;
+    private static final int  FILE_COUNT = 50;
+
+    @Before
+    public void setUp() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+        for (int i = 0; i < DIR_COUNT; i++) {
+            final Path dir = TESTDIR.resolve("a" + i % 4).resolve("b" + i);
+            Files.createDirectories(dir);
+            for (int j = 0; j < FILE_COUNT; j++) {
+                final Path file = dir.resolve("f" + j);
+                Files.write(file, new byte[j]);
+                // Not normalized
+                Files.setLastModifiedTime(file, FileTime.fromMillis(1234567));
+            }
+        }
+        // Symbolic links aren't followed: neither to an ancestor nor to a file
+        Files.createSymbolicLink(TESTDIR.resolve("a0").resolve("loop"),
+                TESTDIR.resolve("a0"));
+        Files.createSymbolicLink(TESTDIR.resolve("a1").resolve("alias"),
+                TESTDIR.resolve("a0/b0/f1"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+    }
+
+    @Test
+    public void testWalk() throws Exception {
+        final Archive archive = new Archive(TESTDIR);
+        try {
+            final Thread thread = Thread.currentThread();
+            final Set<ArchivePath> paths = new HashSet<ArchivePath>();
+            final FilePieceSpecSetConsumer consumer = new FilePieceSpecSetConsumer() {
+                @Override
+                public void consume(final FilePieceSpecSet spec) {
+                    assertTrue(Thread.currentThread() == thread);
+                    paths.add(spec.getArchivePath());
+                }
+            };
+            for (int i = 0; i < 2; i++) {
+                paths.clear();
+                final long start = System.nanoTime();
+                archive.walkArchive(consumer, Filter.EVERYTHING);
+                final double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.println("ArchiveWalkTest: walk " + i + ": "
+                        + (long) (paths.size() / seconds) + " files/s");
+                assertEquals(DIR_COUNT * FILE_COUNT, paths.size());
+                assertTrue(paths.contains(new ArchivePath(Paths.get("a1/b1/f1"))));
+            }
+            // Times were normalized
+            assertEquals(1235000, Files.getLastModifiedTime(
+                    TESTDIR.resolve("a1/b1/f1")).toMillis());
+        }
+        finally {
+            archive.close();
+        }
+    }
+
+    @Test
+    public void testRestartFromCheckpoint() throws Exception {
+        Archive archive = new Archive(TESTDIR);
+        final Set<ArchivePath> paths = new HashSet<ArchivePath>();
+        final FilePieceSpecSetConsumer consumer = new FilePieceSpecSetConsumer() {
+            @Override
+            public void consume(final FilePieceSpecSet spec) {
+                paths.add(spec.getArchivePath());
+            }
+        };
+        archive.walkArchive(consumer, Filter.EVERYTHING);
+        archive.close(); // checkpoints the catalog
+        assertTrue(Files.exists(TESTDIR.resolve(".sruth/catalog")));
+
+        // Changes while the archive isn't open are found by reconciliation
+        Files.delete(TESTDIR.resolve("a1/b1/f1"));
+        Files.write(TESTDIR.resolve("a1/b1/new"), new byte[1]);
+        archive = new Archive(TESTDIR);
+        try {
+            paths.clear();
+            archive.walkArchive(consumer, Filter.getInstance("a1/b1"));
+            // The stale checkpoint is usable immediately
+            assertTrue(paths.size() >= FILE_COUNT - 1);
+            for (int i = 0; i < 100; i++) {
+                paths.clear();
+                archive.walkArchive(consumer, Filter.getInstance("a1/b1"));
+                if (paths.size() == FILE_COUNT
+                        && !paths.contains(new ArchivePath("a1/b1/f1"))) {
+                    break;
+                }
+                Thread.sleep(50);
+            }
+            assertEquals(FILE_COUNT, paths.size());
+            assertTrue(paths.contains(new ArchivePath("a1/b1/new")));
+        }
+        finally {
+            archive.close();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the pool of buffers for the data of pieces and compares the heap
+ * allocation of the receive, archive, and forward path with and without it.
+ *
+ * @author Steven R. Emmerson
+ */
+public class BufferPoolTest {
+    private static final Path TESTDIR     = Paths.get(
+                                                  System.getProperty("java.io.tmpdir"))
+                                                  .resolve(
+                                                          BufferPoolTest.class
+                                                                  .getSimpleName());
+    private static final int  PIECE_SIZE  = FileInfo.getDefaultPieceSize();
+    private static final int  PIECE_COUNT = 256;
+
+    /**
+     * An output stream that discards its input.
+     */
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(final int b) {
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+    }
+
+    @Test
+    public void testReuse() {
+        final BufferPool pool = new BufferPool(16, 1);
+        final ByteBuffer buf = pool.acquire(10);
+        assertTrue(buf.isDirect());
+        assertEquals(0, buf.position());
+        assertEquals(10, buf.limit());
+        pool.release(buf);
+        assertSame(buf, pool.acquire(5));
+        assertEquals(5, buf.limit());
+        assertEquals(2, pool.getAcquiredCount());
+        assertEquals(1, pool.getAllocatedCount());
+
+        // Only one idle buffer is retained
+        final ByteBuffer other = pool.acquire(16);
+        pool.release(buf);
+        pool.release(other);
+        assertSame(buf, pool.acquire(16));
+        assertFalse(other == pool.acquire(16));
+
+        // Oversized buffers aren't pooled
+        final ByteBuffer big = pool.acquire(17);
+        assertFalse(big.isDirect());
+        pool.release(big);
+        assertEquals(3, pool.getReleasedCount());
+    }
+
+    @Test
+    public void testRelease() {
+        final FileInfo fileInfo = new FileInfo(new FileId(new ArchivePath(
+                "file"), new ArchiveTime()), 3, PIECE_SIZE, -1);
+        final ByteBuffer buf = Piece.POOL.acquire(3);
+        buf.put(new byte[] { 1, 2, 3 }).flip();
+        final Piece piece = new Piece(new PieceSpec(fileInfo, 0), buf);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, piece.getData());
+        assertEquals(new Piece(new PieceSpec(fileInfo, 0), new byte[] { 1, 2,
+                3 }), piece);
+        final long released = Piece.POOL.getReleasedCount();
+        piece.release();
+        piece.release();
+        assertEquals(released + 1, Piece.POOL.getReleasedCount());
+        try {
+            piece.getBuffer();
+            fail();
+        }
+        catch (final IllegalStateException expected) {
+        }
+    }
+
+    /**
+     * Returns the number of bytes allocated on the heap by the current thread
+     * or {@code -1} if that's unknown.
+     */
+    private static long allocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Receives the pieces of a file from a stream, writes them to an archive,
+     * and forwards them to another stream.
+     *
+     * @param pooled
+     *            Whether or not pieces keep their pooled buffers. If not, the
+     *            data is copied into a new array on reception and on reading
+     *            from the archive, as was done before the pool existed.
+     * @return The number of heap bytes allocated per piece or {@code -1} if
+     *         that's unknown.
+     */
+    private static long run(final Archive archive, final byte[] stream,
+            final boolean pooled) throws Exception {
+        final WireProtocol.Decoder decoder = new WireProtocol.Decoder(
+                new ByteArrayInputStream(stream));
+        final WireProtocol.Encoder encoder = new WireProtocol.Encoder(
+                NULL_OUTPUT);
+        final long start = allocatedBytes();
+        for (int i = 0; i < PIECE_COUNT; i++) {
+            Piece piece = (Piece) decoder.read();
+            if (!pooled) {
+                final Piece copy = new Piece(piece.getInfo(), piece.getData());
+                piece.release();
+                piece = copy;
+            }
+            archive.putPiece(piece);
+            piece.release();
+
+            piece = archive.getPiece(piece.getInfo());
+            if (!pooled) {
+                final Piece copy = new Piece(piece.getInfo(), piece.getData());
+                piece.release();
+                piece = copy;
+            }
+            encoder.write(piece);
+            piece.release();
+        }
+        final long end = allocatedBytes();
+        return start < 0
+                ? -1
+                : (end - start) / PIECE_COUNT;
+    }
+
+    private static byte[] newStream(final String name) throws Exception {
+        final FileInfo fileInfo = new FileInfo(new FileId(
+                new ArchivePath(name), new ArchiveTime()), (long) PIECE_COUNT
+                * PIECE_SIZE, PIECE_SIZE, -1);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final WireProtocol.Encoder encoder = new WireProtocol.Encoder(bytes);
+        final byte[] data = new byte[PIECE_SIZE];
+        for (int i = 0; i < PIECE_COUNT; i++) {
+            encoder.write(new Piece(new PieceSpec(fileInfo, i), data));
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testAllocation() throws Exception {
+        final Archive archive = new Archive(TESTDIR);
+        try {
+            // Warm up
+            run(archive, newStream("warmup-arrays"), false);
+            run(archive, newStream("warmup-pooled"), true);
+
+            final long arrays = run(archive, newStream("arrays"), false);
+            final long pooled = run(archive, newStream("pooled"), true);
+            System.out.println("Heap allocation per " + PIECE_SIZE
+                    + "-byte piece: arrays: " + arrays + " bytes, pooled: "
+                    + pooled + " bytes; " + Piece.POOL);
+            if (pooled >= 0) {
+                assertTrue(arrays >= 2 * PIECE_SIZE);
+                assertTrue(pooled < PIECE_SIZE / 4);
+            }
+        }
+        finally {
+            archive.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link FileAction} class.
+ *
+ * @author Steven R. Emmerson
+ */
+public class FileActionTest {
+    private static final Path    TESTDIR  = Paths.get(
+                                                  System.getProperty("java.io.tmpdir"))
+                                                  .resolve(
+                                                          FileActionTest.class
+                                                                  .getSimpleName());
+    private static final Path    ARCHIVE  = TESTDIR.resolve("archive");
+    private static final Path    DEST     = TESTDIR.resolve("dest");
+    private static final Pattern PATTERN  = Pattern.compile("(.*)");
+    private static final byte[]  DATA     = "data-product".getBytes();
+
+    @Before
+    public void setUp() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+        Files.createDirectories(ARCHIVE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+    }
+
+    /**
+     * Files a data-product named "product" and returns the destination.
+     */
+    private static Path file(final FileAction action) throws Exception {
+        Files.write(ARCHIVE.resolve("product"), DATA);
+        final DataProduct dataProduct = new DataProduct(ARCHIVE, new FileInfo(
+                new FileId(new ArchivePath("product")), DATA.length));
+        final Matcher matcher = dataProduct.matcher(PATTERN);
+        assertTrue(matcher.matches());
+        action.execute(matcher, dataProduct);
+        return DEST.resolve("product");
+    }
+
+    private static boolean hasTempFiles() throws Exception {
+        final DirectoryStream<Path> stream = Files.newDirectoryStream(DEST,
+                ".*");
+        try {
+            return stream.iterator().hasNext();
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void testCopyReplacesLongerFile() throws Exception {
+        Files.createDirectories(DEST);
+        Files.write(DEST.resolve("product"), new byte[100]);
+        final Path dest = file(new FileAction(DEST + "/$1"));
+        assertArrayEquals(DATA, Files.readAllBytes(dest));
+        assertFalse(Files.isSameFile(dest, ARCHIVE.resolve("product")));
+    }
+
+    @Test
+    public void testLink() throws Exception {
+        final Path dest = file(new FileAction(DEST + "/$1",
+                FileAction.Mode.LINK, false));
+        assertArrayEquals(DATA, Files.readAllBytes(dest));
+        assertTrue(Files.isSameFile(dest, ARCHIVE.resolve("product")));
+        // Filing again replaces the link
+        file(new FileAction(DEST + "/$1", FileAction.Mode.LINK, false));
+        assertTrue(Files.isSameFile(dest, ARCHIVE.resolve("product")));
+    }
+
+    @Test
+    public void testReflinkOrCopy() throws Exception {
+        final Path dest = file(new FileAction(DEST + "/$1",
+                FileAction.Mode.REFLINK, false));
+        assertArrayEquals(DATA, Files.readAllBytes(dest));
+        assertFalse(Files.isSameFile(dest, ARCHIVE.resolve("product")));
+    }
+
+    @Test
+    public void testAtomic() throws Exception {
+        for (final FileAction.Mode mode : FileAction.Mode.values()) {
+            Files.createDirectories(DEST);
+            Files.write(DEST.resolve("product"), new byte[100]);
+            final Path dest = file(new FileAction(DEST + "/$1", mode, true));
+            assertArrayEquals(mode.toString(), DATA, Files.readAllBytes(dest));
+            assertFalse(mode.toString(), hasTempFiles());
+            assertEquals(0, Misc.system("rm", "-rf", DEST.toString()));
+        }
+    }
+}
@@ -5,6 +5,7 @@
  */
 package edu.ucar.unidata.sruth;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -15,6 +16,9 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeMap;
 
 import org.junit.Test;
 
@@ -235,4 +239,40 @@ public class FilterTest {
         test(fooSubBarFilter);
         test(fooStarBarFilter);
     }
+
+    @Test
+    public final void testTrie() {
+        final Filter[] filters = { fooFilter, barFilter, subFilter,
+                fooSubBarFilter, fooStarBarFilter, Filter.NOTHING };
+        final ArchivePath[] paths = { fooPath, barPath, foobarPath, fooSubPath,
+                fooSubBarPath, new ArchivePath("bar/sub"),
+                new ArchivePath("foo/bar/bar"), new ArchivePath("baz") };
+        final TreeMap<Filter, Filter> entries = new TreeMap<Filter, Filter>();
+        Predicate predicate = Predicate.NOTHING;
+        for (final Filter filter : filters) {
+            entries.put(filter, filter);
+            predicate = predicate.add(filter);
+        }
+        final FilterTrie<Filter> trie = new FilterTrie<Filter>(entries);
+        for (final ArchivePath path : paths) {
+            final Set<Filter> expected = new HashSet<Filter>();
+            for (final Filter filter : filters) {
+                if (filter.matches(path)) {
+                    expected.add(filter);
+                }
+            }
+            final Set<Filter> actual = new HashSet<Filter>();
+            trie.getMatches(path, actual);
+            assertEquals(path.toString(), expected, actual);
+            assertEquals(!expected.isEmpty(), trie.matches(path));
+            assertEquals(!expected.isEmpty(), predicate.matches(new FileInfo(
+                    new FileId(path, new ArchiveTime()), 1, 1, -1)));
+        }
+
+        assertTrue(new FilterTrie<Filter>(new TreeMap<Filter, Filter>())
+                .isEmpty());
+        entries.clear();
+        entries.put(Filter.EVERYTHING, Filter.EVERYTHING);
+        assertTrue(new FilterTrie<Filter>(entries).matches(foobarPath));
+    }
 }
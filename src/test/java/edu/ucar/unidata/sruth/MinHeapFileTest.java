@@ -0,0 +1,248 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link MinHeapFile} class and compares the rate of insertion with
+ * and without group-commit.
+ *
+ * @author Steven R. Emmerson
+ */
+public class MinHeapFileTest {
+    /**
+     * An element with a long value.
+     */
+    static final class LongElt extends MinHeapFile.Element {
+        static final int SIZE = 8 + 2 + 255; // same as a path-delay entry
+        long             value;
+
+        LongElt() {
+        }
+
+        LongElt(final long value) {
+            this.value = value;
+        }
+
+        @Override
+        public void write(final ByteBuffer out) {
+            out.putLong(value);
+        }
+
+        @Override
+        public void read(final ByteBuffer in) {
+            value = in.getLong();
+        }
+
+        @Override
+        public int compareTo(final MinHeapFile.Element o) {
+            final long that = ((LongElt) o).value;
+            return value < that
+                    ? -1
+                    : value > that
+                            ? 1
+                            : 0;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return obj instanceof LongElt && ((LongElt) obj).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (value ^ (value >>> 32));
+        }
+    }
+
+    private static final Path TESTDIR = Paths.get(
+                                              System.getProperty("java.io.tmpdir"))
+                                              .resolve(
+                                                      MinHeapFileTest.class
+                                                              .getSimpleName());
+    private static final Path PATH    = TESTDIR.resolve("heap");
+    private static final Path LOG     = TESTDIR.resolve("heap.log");
+
+    @Before
+    public void setUp() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+        Files.createDirectories(TESTDIR);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+    }
+
+    private static MinHeapFile<LongElt> open(final long commitInterval)
+            throws IOException {
+        return new MinHeapFile<LongElt>(PATH, LongElt.SIZE, LongElt.class,
+                commitInterval, 64);
+    }
+
+    /**
+     * Adds values in random order and removes them in sorted order.
+     */
+    private static void addAndRemove(final MinHeapFile<LongElt> heap,
+            final int count) throws Exception {
+        final Random random = new Random(count);
+        for (int i = 0; i < count; i++) {
+            heap.add(new LongElt(random.nextInt(count)));
+        }
+        assertEquals(count, heap.size());
+        long prev = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            final long value = heap.remove().value;
+            assertTrue(prev <= value);
+            prev = value;
+        }
+        assertNull(heap.remove());
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        MinHeapFile<LongElt> heap = open(0);
+        addAndRemove(heap, 200);
+        heap.close();
+        heap = open(50);
+        addAndRemove(heap, 200);
+        heap.close();
+    }
+
+    /**
+     * Removes every third value of a shuffled sequence and verifies that the
+     * others are removed in order.
+     */
+    private static void removeArbitrary(final MinHeapFile<LongElt> heap,
+            final int count) throws Exception {
+        final List<Long> values = new ArrayList<Long>();
+        for (long i = 0; i < count; i++) {
+            values.add(i);
+        }
+        Collections.shuffle(values, new Random(count));
+        for (final long value : values) {
+            heap.add(new LongElt(value));
+        }
+        for (final long value : values) {
+            if (value % 3 == 0) {
+                assertTrue(heap.remove(new LongElt(value)));
+            }
+        }
+        assertFalse(heap.remove(new LongElt(0)));
+        assertFalse(heap.remove(new LongElt(count)));
+        for (long i = 0; i < count; i++) {
+            if (i % 3 != 0) {
+                assertEquals(i, heap.remove().value);
+            }
+        }
+        assertNull(heap.remove());
+    }
+
+    @Test
+    public void testRemoveArbitrary() throws Exception {
+        MinHeapFile<LongElt> heap = open(0);
+        removeArbitrary(heap, 200);
+        heap.close();
+        heap = open(50);
+        removeArbitrary(heap, 200);
+        heap.close();
+    }
+
+    @Test
+    public void testModesShareFormat() throws Exception {
+        MinHeapFile<LongElt> heap = open(50);
+        for (int i = 10; i > 0; i--) {
+            heap.add(new LongElt(i));
+        }
+        heap.close();
+        heap = open(0);
+        assertEquals(10, heap.size());
+        assertEquals(1, heap.remove().value);
+        heap.close();
+        heap = open(50);
+        assertEquals(9, heap.size());
+        assertEquals(2, heap.peek().value);
+        heap.close();
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        final MinHeapFile<LongElt> crashed = open(20);
+        for (int i = 0; i < 100; i++) {
+            crashed.add(new LongElt(i));
+        }
+        crashed.remove(); // 0
+        Thread.sleep(200); // let the commit happen
+        assertTrue(Files.size(LOG) > 0);
+        // Not closed: simulates a crash
+
+        // A torn record at the end of the log is ignored
+        final FileChannel channel = FileChannel.open(LOG,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        channel.close();
+
+        final MinHeapFile<LongElt> heap = open(20);
+        assertEquals(99, heap.size());
+        assertEquals(0, Files.size(LOG));
+        for (int i = 1; i < 100; i++) {
+            assertEquals(i, heap.remove().value);
+        }
+        heap.close();
+    }
+
+    /**
+     * Returns the number of insertions per second.
+     */
+    private static double insertRate(final long commitInterval,
+            final int count) throws Exception {
+        Files.deleteIfExists(PATH);
+        Files.deleteIfExists(LOG);
+        final MinHeapFile<LongElt> heap = open(commitInterval);
+        try {
+            final Random random = new Random(1);
+            final long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                heap.add(new LongElt(random.nextLong()));
+            }
+            return count / ((System.nanoTime() - start) / 1e9);
+        }
+        finally {
+            heap.close();
+        }
+    }
+
+    @Test
+    public void testInsertRate() throws Exception {
+        insertRate(0, 500); // warm up
+        insertRate(100, 500);
+        final double sync = insertRate(0, 2000);
+        final double group = insertRate(100, 20000);
+        System.out.println("MinHeapFile insertions: synchronous: "
+                + (long) sync + "/s, group-commit: " + (long) group + "/s");
+        assertTrue(group > sync);
+    }
+}
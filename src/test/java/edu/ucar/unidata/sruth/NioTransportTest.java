@@ -0,0 +1,428 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import edu.ucar.unidata.sruth.Connection.Message;
+
+/**
+ * Tests the {@link NioTransport} class by means of connections over the
+ * loopback interface.
+ *
+ * @author Steven R. Emmerson
+ */
+public class NioTransportTest {
+    private static final InetAddress LOOPBACK   = InetAddress
+                                                        .getLoopbackAddress();
+    private static final int         PIECE_SIZE = FileInfo.getDefaultPieceSize();
+    private static final long        TIMEOUT    = 30;
+    /**
+     * A transport with a single worker thread so that the streams of all
+     * sessions must share it.
+     */
+    private static NioTransport      transport;
+    private ExecutorService          executor;
+    private ServerSocketChannel      server;
+    private final List<Connection>   connections = new ArrayList<Connection>();
+
+    /**
+     * A source of pieces of one file.
+     */
+    private static final class PieceSource implements NioTransport.Source {
+        private final FileInfo      fileInfo;
+        private final AtomicInteger next = new AtomicInteger();
+
+        PieceSource(final FileInfo fileInfo) {
+            this.fileInfo = fileInfo;
+        }
+
+        @Override
+        public Message poll() {
+            final int index = next.getAndIncrement();
+            if (index >= fileInfo.getPieceCount()) {
+                return null;
+            }
+            return new Piece(new PieceSpec(fileInfo, index), newData(index));
+        }
+    }
+
+    /**
+     * A sink of the pieces of one file that verifies them.
+     */
+    private static class PieceSink implements NioTransport.Sink {
+        private final FileInfo      fileInfo;
+        final AtomicInteger         count = new AtomicInteger();
+
+        PieceSink(final FileInfo fileInfo) {
+            this.fileInfo = fileInfo;
+        }
+
+        @Override
+        public boolean process(final Message msg) throws IOException,
+                InterruptedException {
+            final Piece piece = (Piece) msg;
+            try {
+                final int index = count.getAndIncrement();
+                assertEquals(new PieceSpec(fileInfo, index), piece.getInfo());
+                assertArrayEquals(newData(index), piece.getData());
+            }
+            finally {
+                piece.release();
+            }
+            return count.get() == fileInfo.getPieceCount();
+        }
+    }
+
+    private static byte[] newData(final int index) {
+        final byte[] data = new byte[PIECE_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (index + i);
+        }
+        return data;
+    }
+
+    private static FileInfo newFileInfo(final String path, final int count) {
+        return new FileInfo(new FileId(new ArchivePath(path),
+                new ArchiveTime()), (long) count * PIECE_SIZE, PIECE_SIZE, -1);
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        transport = new NioTransport(1, 1);
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        transport = null;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newCachedThreadPool();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(LOOPBACK, 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (final Connection connection : connections) {
+            connection.close();
+        }
+        server.close();
+        executor.shutdownNow();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    /**
+     * Returns a connected pair of connections that use the binary wire
+     * protocol: the client side and the server side.
+     */
+    private Connection[] connect(final boolean multiplexed) throws Exception {
+        final InetSocketAddress serverAddress = (InetSocketAddress) server
+                .getLocalAddress();
+        final ConnectionToServer client = new ConnectionToServer(
+                serverAddress, serverAddress, multiplexed);
+        connections.add(client);
+        final Future<Void> future = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                client.open();
+                return null;
+            }
+        });
+        final ConnectionFactory factory = new ConnectionFactory(serverAddress);
+        Connection connection = null;
+        while (connection == null) {
+            connection = factory.getInstance(server.accept().socket());
+        }
+        connections.add(connection);
+        future.get();
+        client.useWireProtocol(WireProtocol.VERSION);
+        connection.useWireProtocol(WireProtocol.VERSION);
+        assertTrue(NioTransport.canUse(client));
+        assertTrue(NioTransport.canUse(connection));
+        return new Connection[] { client, connection };
+    }
+
+    /**
+     * Waits for a session to be done.
+     *
+     * @return {@code true} if and only if the session completed successfully.
+     */
+    private static boolean await(final NioTransport.Session session)
+            throws Exception {
+        final long deadline = System.nanoTime()
+                + TimeUnit.SECONDS.toNanos(TIMEOUT);
+        while (!session.await(100, TimeUnit.MILLISECONDS)) {
+            if (System.nanoTime() > deadline) {
+                fail("Timed out: " + session);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends enough pieces that neither a write nor a read can transfer a
+     * frame in one operation, to a receiver that's slower than the sender so
+     * that reading is suspended and resumed.
+     */
+    private void sendPieces(final boolean multiplexed) throws Exception {
+        final Connection[] pair = connect(multiplexed);
+        final FileInfo fileInfo = newFileInfo("file", 64);
+        final NioTransport.Session sender = transport.newSession("sender",
+                pair[0]);
+        final NioTransport.Session receiver = transport.newSession(
+                "receiver", pair[1]);
+        final Runnable notifier = sender.addOutput(Connection.DATA,
+                new PieceSource(fileInfo));
+        receiver.addInput(Connection.DATA, new PieceSink(fileInfo) {
+            @Override
+            public boolean process(final Message msg) throws IOException,
+                    InterruptedException {
+                Thread.sleep(2);
+                return super.process(msg);
+            }
+        });
+        sender.start();
+        receiver.start();
+        notifier.run();
+        try {
+            assertTrue(await(receiver));
+        }
+        finally {
+            receiver.close();
+            sender.close();
+        }
+    }
+
+    @Test
+    public void testPartialReadsAndWrites() throws Exception {
+        sendPieces(false);
+    }
+
+    @Test
+    public void testPartialReadsAndWritesMultiplexed() throws Exception {
+        sendPieces(true);
+    }
+
+    @Test
+    public void testConcurrentStreams() throws Exception {
+        // Both directions of both streams share the single worker
+        final Connection[] pair = connect(true);
+        final FileInfo one = newFileInfo("one", 16);
+        final FileInfo two = newFileInfo("two", 16);
+        final NioTransport.Session first = transport.newSession("first",
+                pair[0]);
+        final NioTransport.Session second = transport.newSession("second",
+                pair[1]);
+        /*
+         * A session that's done stops sending; so, neither session is
+         * completed by its sink until both have received everything.
+         */
+        final CountDownLatch received = new CountDownLatch(2);
+        final Runnable firstNotifier = first.addOutput(Connection.DATA,
+                new PieceSource(one));
+        first.addInput(Connection.DATA, new PieceSink(two) {
+            @Override
+            public boolean process(final Message msg) throws IOException,
+                    InterruptedException {
+                if (super.process(msg)) {
+                    received.countDown();
+                }
+                return false;
+            }
+        });
+        final Runnable secondNotifier = second.addOutput(Connection.DATA,
+                new PieceSource(two));
+        second.addInput(Connection.DATA, new PieceSink(one) {
+            @Override
+            public boolean process(final Message msg) throws IOException,
+                    InterruptedException {
+                if (super.process(msg)) {
+                    received.countDown();
+                }
+                return false;
+            }
+        });
+        first.start();
+        second.start();
+        firstNotifier.run();
+        secondNotifier.run();
+        try {
+            assertTrue(received.await(TIMEOUT, TimeUnit.SECONDS));
+            // Neither session failed
+            assertFalse(first.await(0, TimeUnit.SECONDS));
+            assertFalse(second.await(0, TimeUnit.SECONDS));
+        }
+        finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void testStalledStreamDoesNotBlockNotices() throws Exception {
+        final Connection[] pair = connect(true);
+        final FileInfo fileInfo = newFileInfo("file", 64);
+        final int noticeCount = 100;
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final CountDownLatch noticed = new CountDownLatch(noticeCount);
+        final AtomicInteger noticesToSend = new AtomicInteger();
+        // The second worker processes notices while the first is stalled
+        final NioTransport twoWorkers = new NioTransport(1, 2);
+        final NioTransport.Session sender = twoWorkers.newSession("sender",
+                pair[0]);
+        final NioTransport.Session receiver = twoWorkers.newSession(
+                "receiver", pair[1]);
+        final Runnable notifier = sender.addOutput(Connection.DATA,
+                new PieceSource(fileInfo));
+        sender.addOutput(Connection.NOTICE, new NioTransport.Source() {
+            @Override
+            public Message poll() {
+                return noticesToSend.getAndDecrement() > 0
+                        ? new RemovedFileNotice(new ArchivePath("removed"))
+                        : null;
+            }
+        });
+        receiver.addInput(Connection.DATA, new PieceSink(fileInfo) {
+            @Override
+            public boolean process(final Message msg) throws IOException,
+                    InterruptedException {
+                stalled.countDown();
+                proceed.await();
+                return super.process(msg);
+            }
+        });
+        receiver.addInput(Connection.NOTICE, new NioTransport.Sink() {
+            @Override
+            public boolean process(final Message msg) {
+                assertTrue(msg instanceof RemovedFileNotice);
+                noticed.countDown();
+                return false;
+            }
+        });
+        sender.start();
+        receiver.start();
+        notifier.run();
+        try {
+            assertTrue(stalled.await(TIMEOUT, TimeUnit.SECONDS));
+            // Lets the stalled data stream exhaust its window
+            Thread.sleep(500);
+            noticesToSend.set(noticeCount);
+            notifier.run();
+            assertTrue(noticed.await(TIMEOUT, TimeUnit.SECONDS));
+            proceed.countDown();
+            assertTrue(await(receiver));
+        }
+        finally {
+            proceed.countDown();
+            receiver.close();
+            sender.close();
+        }
+    }
+
+    @Test
+    public void testPeerClose() throws Exception {
+        final Connection[] pair = connect(true);
+        final NioTransport.Session receiver = transport.newSession(
+                "receiver", pair[1]);
+        receiver.addInput(Connection.DATA, new PieceSink(newFileInfo("file",
+                1)));
+        receiver.start();
+        try {
+            assertFalse(receiver.await(100, TimeUnit.MILLISECONDS));
+            pair[0].close();
+            try {
+                await(receiver);
+                fail();
+            }
+            catch (final ExecutionException expected) {
+            }
+        }
+        finally {
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void testCancellation() throws Exception {
+        final Connection[] pair = connect(true);
+        final FileInfo fileInfo = newFileInfo("file", 8);
+        final CountDownLatch processing = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicInteger processed = new AtomicInteger();
+        final NioTransport.Session sender = transport.newSession("sender",
+                pair[0]);
+        final NioTransport.Session receiver = transport.newSession(
+                "receiver", pair[1]);
+        final Runnable notifier = sender.addOutput(Connection.DATA,
+                new PieceSource(fileInfo));
+        receiver.addInput(Connection.DATA, new NioTransport.Sink() {
+            @Override
+            public boolean process(final Message msg)
+                    throws InterruptedException {
+                ((Piece) msg).release();
+                processed.incrementAndGet();
+                processing.countDown();
+                proceed.await();
+                return false;
+            }
+        });
+        sender.start();
+        receiver.start();
+        notifier.run();
+        try {
+            assertTrue(processing.await(TIMEOUT, TimeUnit.SECONDS));
+            // Closing waits for the message that's being processed
+            final Future<Void> closing = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    receiver.close();
+                    return null;
+                }
+            });
+            Thread.sleep(100);
+            assertFalse(closing.isDone());
+            assertTrue(receiver.isDone());
+            proceed.countDown();
+            closing.get(TIMEOUT, TimeUnit.SECONDS);
+            // No message is processed after cancellation
+            Thread.sleep(100);
+            assertEquals(1, processed.get());
+        }
+        finally {
+            proceed.countDown();
+            sender.close();
+        }
+    }
+}
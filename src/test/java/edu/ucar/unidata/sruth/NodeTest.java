@@ -173,13 +173,11 @@ public class NodeTest {
          */
         final SourceNode sourceNode = new SourceNode(new Archive(SOURCE_DIR));
         executorService.submit(sourceNode);
-        final InetSocketAddress serverSocketAddress = sourceNode
-                .getServerSocketAddress();
 
         /*
          * Create and start the tracker.
          */
-        final Tracker tracker = new Tracker(serverSocketAddress,
+        final Tracker tracker = new Tracker(sourceNode,
                 new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
         final InetSocketAddress trackerAddress = tracker.getServerAddress();
         executorService.submit(tracker);
@@ -236,13 +234,11 @@ public class NodeTest {
          */
         final Archive serverArchive = new Archive(SOURCE_DIR);
         final SourceNode sourceNode = new SourceNode(serverArchive);
-        final InetSocketAddress serverSocketAddress = sourceNode
-                .getServerSocketAddress();
         executorService.submit(sourceNode);
         /*
          * Create and start the tracker.
          */
-        final Tracker tracker = new Tracker(serverSocketAddress,
+        final Tracker tracker = new Tracker(sourceNode,
                 new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
         final InetSocketAddress trackerAddress = tracker.getServerAddress();
         executorService.submit(tracker);
@@ -319,14 +315,12 @@ public class NodeTest {
          * Create and start the source node.
          */
         final Archive serverArchive = new Archive(SOURCE_DIR);
-        final AbstractNode sourceNode = new SourceNode(serverArchive);
-        final InetSocketAddress serverSocketAddress = sourceNode
-                .getServerSocketAddress();
+        final SourceNode sourceNode = new SourceNode(serverArchive);
         executorService.submit(sourceNode);
         /*
          * Create and start the tracker.
          */
-        final Tracker tracker = new Tracker(serverSocketAddress,
+        final Tracker tracker = new Tracker(sourceNode,
                 new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
         final InetSocketAddress trackerAddress = tracker.getServerAddress();
         executorService.submit(tracker);
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link OfflineReport} class.
+ *
+ * @author Steven R. Emmerson
+ */
+public class OfflineReportTest {
+    private static InetSocketAddress roundTrip(final InetSocketAddress server)
+            throws InvalidMessageException {
+        final byte[] bytes = OfflineReport.encode(server);
+        assertTrue(bytes.length <= OfflineReport.MAX_SIZE);
+        return OfflineReport.decode(ByteBuffer.wrap(bytes), false);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final InetSocketAddress v4 = new InetSocketAddress(
+                InetAddress.getByAddress(new byte[] { 10, 1, 2, 3 }), 65535);
+        assertEquals(v4, roundTrip(v4));
+        assertEquals(8, OfflineReport.encode(v4).length);
+        final InetSocketAddress v6 = new InetSocketAddress(
+                InetAddress.getByName("::1"), 38800);
+        assertEquals(v6, roundTrip(v6));
+    }
+
+    @Test
+    public void testLegacy() throws Exception {
+        final InetSocketAddress server = new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), 38800);
+        final ByteBuffer buf = ByteBuffer.wrap(Util.serialize(server));
+        assertTrue(buf.remaining() <= OfflineReport.MAX_LEGACY_SIZE);
+        assertEquals(server, OfflineReport.decode(buf, true));
+        assertEquals(0, buf.remaining());
+        final InetSocketAddress v6 = new InetSocketAddress(
+                InetAddress.getByName("::1"), 38800);
+        assertEquals(v6, OfflineReport.decode(
+                ByteBuffer.wrap(Util.serialize(v6)), true));
+        try {
+            OfflineReport.decode(ByteBuffer.wrap(Util.serialize(server)),
+                    false);
+            fail();
+        }
+        catch (final InvalidMessageException expected) {
+        }
+    }
+
+    @Test
+    public void testLegacyOtherClass() throws Exception {
+        // A disallowed class is never instantiated
+        final byte[][] invalids = {
+                Util.serialize(new ArrayList<InetSocketAddress>()),
+                Util.serialize(new ArchivePath("file")),
+                new byte[OfflineReport.MAX_LEGACY_SIZE + 1] };
+        invalids[2][0] = (byte) 0xAC;
+        invalids[2][1] = (byte) 0xED;
+        for (final byte[] invalid : invalids) {
+            try {
+                OfflineReport.decode(ByteBuffer.wrap(invalid), true);
+                fail();
+            }
+            catch (final InvalidMessageException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        final byte[] bytes = OfflineReport.encode(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), 1));
+        final byte[][] invalids = { new byte[0],
+                Util.serialize("localhost:1"),
+                Arrays.copyOf(bytes, bytes.length - 1),
+                Arrays.copyOf(bytes, bytes.length + 1) };
+        for (final byte[] invalid : invalids) {
+            try {
+                OfflineReport.decode(ByteBuffer.wrap(invalid), true);
+                fail();
+            }
+            catch (final InvalidMessageException expected) {
+            }
+        }
+        try {
+            OfflineReport.encode(InetSocketAddress.createUnresolved("host", 1));
+            fail();
+        }
+        catch (final IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link PartialFileIndex} class and the resumption of incomplete
+ * files by an {@link Archive}.
+ *
+ * @author Steven R. Emmerson
+ */
+public class PartialFileIndexTest {
+    private static final Path TESTDIR = Paths.get(
+                                              System.getProperty("java.io.tmpdir"))
+                                              .resolve(
+                                                      PartialFileIndexTest.class
+                                                              .getSimpleName());
+    private static final Path INDEX   = TESTDIR.resolve("index");
+
+    @Before
+    public void setUp() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+        Files.createDirectories(TESTDIR);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+    }
+
+    private static FileInfo fileInfo(final String path, final int pieceCount) {
+        return new FileInfo(new FileId(new ArchivePath(path),
+                ArchiveTime.fromMillis(1000)), pieceCount * 10, 10, 60);
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+        PartialFileIndex index = new PartialFileIndex(INDEX);
+        final FileInfo a = fileInfo("dir/a", 20);
+        final FileInfo b = fileInfo("dir/b", 3);
+        index.add(a, FiniteBitSet.newInstance(20));
+        index.add(b, FiniteBitSet.newInstance(3));
+        index.setPiece(a.getPath(), 0);
+        index.setPiece(a.getPath(), 17);
+        index.setPiece(b.getPath(), 1);
+        index.markClean();
+        index.close();
+        index = new PartialFileIndex(INDEX);
+        assertEquals(2, index.size());
+        PartialFileIndex.Entry entry = index.get(a.getPath());
+        assertEquals(a, entry.getFileInfo());
+        assertEquals(2, entry.getPieceCount());
+        assertTrue(entry.getIndexes().isSet(17));
+        assertFalse(entry.getIndexes().isSet(16));
+        assertEquals(180, entry.getMinimumLength());
+
+        index.remove(a.getPath());
+        assertNull(index.get(a.getPath()));
+        index.markClean();
+        index.close();
+        index = new PartialFileIndex(INDEX);
+        assertEquals(1, index.size());
+        entry = index.get(b.getPath());
+        assertTrue(entry.getIndexes().isSet(1));
+        index.close();
+
+        // A truncated index keeps its valid records
+        index = new PartialFileIndex(INDEX);
+        index.add(a, FiniteBitSet.newInstance(20));
+        index.close();
+        final byte[] bytes = Files.readAllBytes(INDEX);
+        // The end of the last record is in the header
+        final int end = ByteBuffer.wrap(bytes).getInt(4);
+        Files.write(INDEX, Arrays.copyOf(bytes, end - 1));
+        index = new PartialFileIndex(INDEX);
+        assertEquals(1, index.size());
+        index.close();
+    }
+
+    @Test
+    public void testUncleanShutdown() throws Exception {
+        PartialFileIndex index = new PartialFileIndex(INDEX);
+        final FileInfo a = fileInfo("dir/a", 20);
+        index.add(a, FiniteBitSet.newInstance(20));
+        index.setPiece(a.getPath(), 17);
+        // Not marked clean: the data of the piece might not be in storage
+        index.close();
+        index = new PartialFileIndex(INDEX);
+        assertEquals(1, index.size());
+        PartialFileIndex.Entry entry = index.get(a.getPath());
+        assertEquals(a, entry.getFileInfo());
+        assertEquals(0, entry.getPieceCount());
+        assertEquals(0, entry.getMinimumLength());
+
+        // Nor does the new session start out clean
+        index.setPiece(a.getPath(), 3);
+        index = new PartialFileIndex(INDEX);
+        entry = index.get(a.getPath());
+        assertEquals(0, entry.getPieceCount());
+        index.setPiece(a.getPath(), 3);
+        index.markClean();
+        index.close();
+        index = new PartialFileIndex(INDEX);
+        assertTrue(index.get(a.getPath()).getIndexes().isSet(3));
+        index.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        final PartialFileIndex index = new PartialFileIndex(INDEX);
+        for (int i = 0; i < 10000; i++) {
+            final FileInfo fileInfo = fileInfo("file" + i, 8);
+            index.add(fileInfo, FiniteBitSet.newInstance(8));
+            if (i % 100 != 0) {
+                index.remove(fileInfo.getPath());
+            }
+        }
+        assertEquals(100, index.size());
+        assertTrue(Files.size(INDEX) < 0x20000);
+        index.close();
+    }
+
+    @Test
+    public void testArchiveResume() throws Exception {
+        final FileInfo fileInfo = new FileInfo(new FileId(new ArchivePath(
+                "dir/file"), ArchiveTime.fromMillis(1000)),
+                4 * FileInfo.getDefaultPieceSize());
+        final byte[] bytes = new byte[FileInfo.getDefaultPieceSize()];
+        Archive archive = new Archive(TESTDIR);
+        for (final int i : new int[] { 1, 3 }) {
+            assertEquals(Archive.PutStatus.WRITTEN, archive.putPiece(new Piece(
+                    new PieceSpec(fileInfo, i), bytes)));
+        }
+        archive.close();
+
+        archive = new Archive(TESTDIR);
+        try {
+            // The held pieces are advertised without waiting for the catalog
+            final List<FilePieceSpecSet> specs = new ArrayList<FilePieceSpecSet>();
+            archive.walkArchive(new FilePieceSpecSetConsumer() {
+                @Override
+                public void consume(final FilePieceSpecSet spec) {
+                    specs.add(spec);
+                }
+            }, Filter.getInstance("dir"));
+            assertEquals(1, specs.size());
+            assertTrue(specs.get(0).contains(new PieceSpec(fileInfo, 1)));
+            assertFalse(specs.get(0).contains(new PieceSpec(fileInfo, 2)));
+
+            assertTrue(archive.exists(new PieceSpec(fileInfo, 3)));
+            assertFalse(archive.exists(new PieceSpec(fileInfo, 0)));
+            // A piece that was held before the restart is a duplicate
+            assertEquals(Archive.PutStatus.UNUSED, archive.putPiece(new Piece(
+                    new PieceSpec(fileInfo, 1), bytes)));
+            assertEquals(Archive.PutStatus.WRITTEN, archive.putPiece(new Piece(
+                    new PieceSpec(fileInfo, 0), bytes)));
+            assertEquals(Archive.PutStatus.COMPLETED, archive.putPiece(
+                    new Piece(new PieceSpec(fileInfo, 2), bytes)));
+            assertTrue(Files.exists(TESTDIR.resolve("dir/file")));
+            assertEquals(fileInfo.getSize(),
+                    Files.size(TESTDIR.resolve("dir/file")));
+        }
+        finally {
+            archive.close();
+        }
+        archive = new Archive(TESTDIR);
+        archive.close();
+        assertEquals(0, new PartialFileIndex(TESTDIR.resolve(
+                ".sruth/partialFiles")).size());
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link PathDelayQueue} class.
+ *
+ * @author Steven R. Emmerson
+ */
+public class PathDelayQueueTest {
+    private static final Path TESTDIR = Paths.get(
+                                              System.getProperty("java.io.tmpdir"))
+                                              .resolve(
+                                                      PathDelayQueueTest.class
+                                                              .getSimpleName());
+    private static final Path QUEUE   = TESTDIR.resolve("queue");
+
+    @Before
+    public void setUp() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+        Files.createDirectories(TESTDIR);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+    }
+
+    @Test
+    public void testLongPathAndRestart() throws Exception {
+        final char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+        final Path longPath = Paths.get("/dir/" + new String(chars));
+        final long now = System.currentTimeMillis();
+        PathDelayQueue queue = new PathDelayQueue(QUEUE, 20, 16);
+        queue.add(Paths.get("/dir/b"), now + 2);
+        queue.add(longPath, now + 1);
+        queue.add(Paths.get("/dir/a"), now + 2);
+        queue.close();
+        // Heap entries are small and fixed-size
+        assertTrue(Files.size(QUEUE) < 100);
+
+        queue = new PathDelayQueue(QUEUE, 0, 1);
+        assertEquals(3, queue.size());
+        assertEquals(longPath, queue.take());
+        assertEquals(Paths.get("/dir/b"), queue.take());
+        queue.close();
+
+        queue = new PathDelayQueue(QUEUE, 20, 16);
+        assertEquals(Arrays.asList(Paths.get("/dir/a")), queue.awaitDue());
+        assertEquals(0, queue.size());
+        queue.close();
+    }
+
+    @Test
+    public void testLostDictionary() throws Exception {
+        final long now = System.currentTimeMillis();
+        PathDelayQueue queue = new PathDelayQueue(QUEUE, 20, 16);
+        queue.add(Paths.get("/dir/old"), now);
+        queue.close();
+        // As if the dictionary's appends hadn't been forced before a crash
+        Files.delete(PathDelayQueue.getPaths(QUEUE)[2]);
+
+        queue = new PathDelayQueue(QUEUE, 20, 16);
+        assertEquals(0, queue.size());
+        queue.add(Paths.get("/dir/new"), now);
+        queue.close();
+
+        queue = new PathDelayQueue(QUEUE, 20, 16);
+        assertEquals(Arrays.asList(Paths.get("/dir/new")), queue.awaitDue());
+        assertEquals(0, queue.size());
+        queue.close();
+    }
+
+    @Test
+    public void testConvertLegacyFormat() throws Exception {
+        // A heap-file of one entry in the previous format
+        final int eltSize = 8 + 2 + 255;
+        final byte[] name = "/dir/old".getBytes();
+        final ByteBuffer buf = ByteBuffer.allocate(12 + eltSize);
+        buf.putInt(1); // version
+        buf.putInt(eltSize);
+        buf.putInt(1); // element count
+        buf.putLong(System.currentTimeMillis());
+        buf.putShort((short) name.length);
+        buf.put(name);
+        Files.write(QUEUE, buf.array());
+
+        final PathDelayQueue queue = new PathDelayQueue(QUEUE, 20, 16);
+        assertEquals(1, queue.size());
+        final List<Path> paths = queue.awaitDue();
+        assertEquals(Arrays.asList(Paths.get("/dir/old")), paths);
+        queue.close();
+    }
+}
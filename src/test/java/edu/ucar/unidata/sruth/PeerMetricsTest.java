@@ -0,0 +1,82 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests the performance metrics of a peer.
+ *
+ * @author Steven R. Emmerson
+ */
+public class PeerMetricsTest {
+    private static final int  PIECE_SIZE = FileInfo.getDefaultPieceSize();
+    private static final long SECOND     = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Feeds a peer's metrics with pieces at a given rate for a given time.
+     *
+     * @return The time at the end.
+     */
+    private static long feed(final PeerMetrics metrics, final long start,
+            final long bytesPerSecond, final long duration, final long rtt,
+            final boolean wasUsed) {
+        final long nanosPerPiece = SECOND * PIECE_SIZE / bytesPerSecond;
+        long now = start;
+        for (; now < start + duration; now += nanosPerPiece) {
+            metrics.received(PIECE_SIZE, wasUsed, rtt, now);
+        }
+        return now;
+    }
+
+    @Test
+    public void testThroughput() {
+        final PeerMetrics metrics = new PeerMetrics(0);
+        final long rate = 10 * PIECE_SIZE;
+        final long now = feed(metrics, 0, rate, 10 * PeerMetrics.TIME_CONSTANT,
+                SECOND / 10, true);
+        final double throughput = metrics.getThroughput(now);
+        assertTrue("throughput=" + throughput,
+                Math.abs(throughput - rate) < 0.05 * rate);
+        assertEquals(SECOND / 10, metrics.getRoundTripTime(), 1);
+        assertEquals(0, metrics.getDuplicateRatio(), 0);
+
+        // Decays while nothing arrives
+        final double decayed = metrics.getThroughput(now
+                + PeerMetrics.TIME_CONSTANT);
+        assertTrue("decayed=" + decayed,
+                Math.abs(decayed - rate / Math.E) < 0.05 * rate);
+    }
+
+    @Test
+    public void testScore() {
+        final long duration = 5 * PeerMetrics.TIME_CONSTANT;
+        final long rate = 10 * PIECE_SIZE;
+        // Same throughput: latency decides
+        final PeerMetrics near = new PeerMetrics(0);
+        final PeerMetrics far = new PeerMetrics(0);
+        final long now = feed(near, 0, rate, duration, SECOND / 100, true);
+        feed(far, 0, rate, duration, SECOND, true);
+        assertTrue(near.getScore(now) > far.getScore(now));
+
+        // Duplicates aren't useful
+        final PeerMetrics redundant = new PeerMetrics(0);
+        feed(redundant, 0, rate, duration, SECOND / 100, false);
+        assertEquals(1, redundant.getDuplicateRatio(), 0.01);
+        assertTrue(redundant.getScore(now) < 0.01 * near.getScore(now));
+
+        // A young peer is measured on the same time-scale as an old one
+        final PeerMetrics young = new PeerMetrics(now - SECOND);
+        feed(young, now - SECOND, rate, SECOND, SECOND / 100, true);
+        assertTrue(young.getAge(now) < near.getAge(now));
+        assertTrue(young.getThroughput(now) < near.getThroughput(now));
+    }
+}
@@ -187,4 +187,29 @@ public class PieceSpecSetTest {
         verify(multiFilePieceSpecs1, pieceSpec1,
                 multiFilePieceSpecs1.merge(pieceSpec1));
     }
+
+    /**
+     * Test method for
+     * {@link edu.ucar.unidata.sruth.PieceSpecSetIface#remove(edu.ucar.unidata.sruth.PieceSpec)}
+     * .
+     */
+    @Test
+    public final void testRemove() {
+        final FileInfo fileInfo = new FileInfo(new FileId(new ArchivePath(
+                Paths.get("removal"))), 8L * FileInfo.getDefaultPieceSize());
+        PieceSpecSetIface specs = new FilePieceSpecs(fileInfo, true);
+        specs = specs.remove(new PieceSpec(fileInfo, 2));
+        assertTrue(!specs.contains(new PieceSpec(fileInfo, 2)));
+        assertTrue(specs.contains(new PieceSpec(fileInfo, 7)));
+        for (int i = 0; i < 8; i++) {
+            specs = specs.remove(new PieceSpec(fileInfo, i));
+        }
+        assertTrue(specs.isEmpty());
+
+        specs = multiFilePieceSpecs1.merge(new FilePieceSpecs(fileInfo, true));
+        for (int i = 0; i < 8; i++) {
+            specs = specs.remove(new PieceSpec(fileInfo, i));
+        }
+        verify(multiFilePieceSpecs1, multiFilePieceSpecs1, specs);
+    }
 }
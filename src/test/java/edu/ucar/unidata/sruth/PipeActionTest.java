@@ -0,0 +1,156 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link PipeAction} class.
+ *
+ * @author Steven R. Emmerson
+ */
+public class PipeActionTest {
+    private static final Path    TESTDIR  = Paths.get(
+                                                  System.getProperty("java.io.tmpdir"))
+                                                  .resolve(
+                                                          PipeActionTest.class
+                                                                  .getSimpleName());
+    private static final Path    PRODUCTS = TESTDIR.resolve("products");
+    private static final Path    OUT      = TESTDIR.resolve("out");
+    private static final Pattern PATTERN  = Pattern.compile("(.*)");
+
+    @Before
+    public void setUp() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+        Files.createDirectories(PRODUCTS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+    }
+
+    private static void execute(final Action action, final String name,
+            final byte[] data) throws Exception {
+        Files.write(PRODUCTS.resolve(name), data);
+        final DataProduct dataProduct = new DataProduct(PRODUCTS,
+                new FileInfo(new FileId(new ArchivePath(name)), data.length));
+        final Matcher matcher = dataProduct.matcher(PATTERN);
+        matcher.matches();
+        action.execute(matcher, dataProduct);
+    }
+
+    private static byte[] awaitOutput(final int size) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            if (Files.exists(OUT) && Files.size(OUT) >= size) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        return Files.readAllBytes(OUT);
+    }
+
+    @Test
+    public void testLengthFraming() throws Exception {
+        final PipeAction action = new PipeAction(Arrays.asList("sh", "-c",
+                "cat >" + OUT), PipeAction.Framing.LENGTH, null, 2);
+        try {
+            final ByteBuffer expected = ByteBuffer.allocate(3 * (4 + 100));
+            for (int i = 0; i < 3; i++) {
+                final byte[] data = new byte[100];
+                Arrays.fill(data, (byte) i);
+                execute(action, "product" + i, data);
+                expected.putInt(data.length).put(data);
+            }
+            assertArrayEquals(expected.array(),
+                    awaitOutput(expected.capacity()));
+            assertEquals(1, action.getStartCount());
+        }
+        finally {
+            action.close();
+        }
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        // The decoder handles one data-product and exits
+        final PipeAction action = new PipeAction(Arrays.asList("sh", "-c",
+                "read line; echo \"$line\" >>" + OUT),
+                PipeAction.Framing.DELIMITER, "\n".getBytes(), 2);
+        try {
+            execute(action, "product0", "first".getBytes());
+            assertEquals("first\n", new String(awaitOutput(6)));
+            Thread.sleep(200);
+            execute(action, "product1", "second".getBytes());
+            assertEquals("first\nsecond\n", new String(awaitOutput(13)));
+            assertEquals(2, action.getStartCount());
+        }
+        finally {
+            action.close();
+        }
+    }
+
+    private static void awaitDecoderCount(final PipeAction action,
+            final int count) throws Exception {
+        for (int i = 0; i < 100 && action.getDecoderCount() != count; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(count, action.getDecoderCount());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        final PipeAction action = new PipeAction(Arrays.asList("sh", "-c",
+                "cat >" + TESTDIR + "/$1"), PipeAction.Framing.DELIMITER,
+                "\n".getBytes(), 2, 1, PipeAction.IDLE_TIMEOUT_DEFAULT);
+        try {
+            execute(action, "product0", "first".getBytes());
+            execute(action, "product1", "second".getBytes());
+            // The least-recently-used decoder is closed after its backlog
+            awaitDecoderCount(action, 1);
+            assertEquals("first\n", new String(Files.readAllBytes(TESTDIR
+                    .resolve("product0"))));
+            execute(action, "product0", "third".getBytes());
+            awaitDecoderCount(action, 1);
+            assertEquals("second\n", new String(Files.readAllBytes(TESTDIR
+                    .resolve("product1"))));
+        }
+        finally {
+            action.close();
+        }
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        final PipeAction action = new PipeAction(Arrays.asList("sh", "-c",
+                "cat >" + OUT), PipeAction.Framing.DELIMITER, "\n".getBytes(),
+                2, PipeAction.MAX_DECODERS_DEFAULT, 200);
+        try {
+            execute(action, "product0", "first".getBytes());
+            assertEquals(1, action.getDecoderCount());
+            awaitDecoderCount(action, 0);
+            assertEquals("first\n", new String(awaitOutput(6)));
+            execute(action, "product1", "second".getBytes());
+            assertEquals(1, action.getDecoderCount());
+        }
+        finally {
+            action.close();
+        }
+    }
+}
@@ -12,8 +12,15 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.junit.After;
@@ -28,8 +35,54 @@ import org.junit.Test;
  * @author Steven R. Emmerson
  */
 public class ProcessorTest {
+    /**
+     * An action that records the names of the data-products it acts upon.
+     */
+    private static class RecordingAction extends Action {
+        final List<String>  names = Collections
+                                          .synchronizedList(new ArrayList<String>());
+        final AtomicInteger running  = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        private final long  sleep;
+
+        RecordingAction(final long sleep) {
+            this.sleep = sleep;
+        }
+
+        @Override
+        void execute(final Matcher matcher, final DataProduct dataProduct)
+                throws InterruptedException {
+            final int n = running.incrementAndGet();
+            for (int max = maxRunning.get(); n > max
+                    && !maxRunning.compareAndSet(max, n); max = maxRunning
+                    .get()) {
+            }
+            Thread.sleep(sleep);
+            names.add(dataProduct.getFileInfo().getPath().toString());
+            running.decrementAndGet();
+        }
+
+        @Override
+        public String toString() {
+            return "RecordingAction";
+        }
+    }
+
     private ExecutorService executor;
 
+    private static DataProduct newDataProduct(final String name) {
+        return new DataProduct(Paths.get("/tmp"), new FileInfo(new FileId(
+                new ArchivePath(name)), 1));
+    }
+
+    private static void awaitProcessed(final Processor processor,
+            final long count) throws InterruptedException {
+        for (int i = 0; i < 1000 && processor.getProcessedCount() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, processor.getProcessedCount());
+    }
+
     /**
      * @throws java.lang.Exception
      */
@@ -112,4 +165,150 @@ public class ProcessorTest {
         Files.delete(destDir);
     }
 
+    @Test
+    public final void testSlowPatternDoesNotBlockOthers() throws Exception {
+        final Processor processor = new Processor(16,
+                Processor.OverflowPolicy.BLOCK, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        processor.add(Pattern.compile("slow.*"), new Action() {
+            @Override
+            void execute(final Matcher matcher, final DataProduct dataProduct)
+                    throws InterruptedException {
+                release.await();
+            }
+
+            @Override
+            public String toString() {
+                return "BlockingAction";
+            }
+        });
+        final RecordingAction fast = new RecordingAction(0);
+        processor.add(Pattern.compile("fast.*"), fast);
+        executor.submit(processor);
+        processor.waitUntilRunning();
+        processor.put(newDataProduct("slow"));
+        for (int i = 0; i < 10; i++) {
+            processor.put(newDataProduct("fast" + i));
+        }
+        awaitProcessed(processor, 10);
+        assertEquals(10, fast.names.size());
+        release.countDown();
+        awaitProcessed(processor, 11);
+    }
+
+    @Test
+    public final void testOrdered() throws Exception {
+        final Processor processor = new Processor(64,
+                Processor.OverflowPolicy.BLOCK, 4);
+        final Pattern pattern = Pattern.compile(".*");
+        final RecordingAction action = new RecordingAction(1);
+        processor.add(pattern, action);
+        processor.setMaxConcurrency(pattern, 1);
+        executor.submit(processor);
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            expected.add("product" + i);
+            processor.put(newDataProduct("product" + i));
+        }
+        awaitProcessed(processor, 50);
+        assertEquals(expected, action.names);
+        assertEquals(1, action.maxRunning.get());
+        assertTrue(processor.getMeanLatency(pattern) > 0);
+        assertTrue(processor.getMaxLatency(pattern) >= processor
+                .getMeanLatency(pattern));
+    }
+
+    @Test
+    public final void testMaxConcurrency() throws Exception {
+        final Processor processor = new Processor(64,
+                Processor.OverflowPolicy.BLOCK, 8);
+        final Pattern pattern = Pattern.compile(".*");
+        final RecordingAction action = new RecordingAction(20);
+        processor.add(pattern, action);
+        processor.setMaxConcurrency(pattern, 2);
+        executor.submit(processor);
+        for (int i = 0; i < 20; i++) {
+            processor.put(newDataProduct("product" + i));
+        }
+        awaitProcessed(processor, 20);
+        assertTrue(action.maxRunning.get() <= 2);
+    }
+
+    @Test
+    public final void testErrorReleasesWorker() throws Exception {
+        final Processor processor = new Processor(64,
+                Processor.OverflowPolicy.BLOCK, 2);
+        final Pattern pattern = Pattern.compile(".*");
+        final RecordingAction action = new RecordingAction(0) {
+            @Override
+            void execute(final Matcher matcher, final DataProduct dataProduct)
+                    throws InterruptedException {
+                if (dataProduct.getFileInfo().getPath().toString()
+                        .equals("error")) {
+                    throw new AssertionError("Expected");
+                }
+                super.execute(matcher, dataProduct);
+            }
+        };
+        processor.add(pattern, action);
+        processor.setMaxConcurrency(pattern, 1);
+        executor.submit(processor);
+        processor.put(newDataProduct("error"));
+        awaitProcessed(processor, 1);
+        processor.put(newDataProduct("product"));
+        awaitProcessed(processor, 2);
+        assertEquals(Collections.singletonList("product"), action.names);
+    }
+
+    @Test
+    public final void testDropNewest() throws Exception {
+        final Processor processor = new Processor(4,
+                Processor.OverflowPolicy.DROP_NEWEST, 1);
+        final RecordingAction action = new RecordingAction(0);
+        processor.add(Pattern.compile(".*"), action);
+        // Not running, so nothing is taken from the queue
+        for (int i = 0; i < 10; i++) {
+            processor.put(newDataProduct("product" + i));
+        }
+        assertEquals(4, processor.getQueueDepth());
+        assertEquals(6, processor.getDroppedCount());
+        executor.submit(processor);
+        awaitProcessed(processor, 4);
+        assertEquals(4, action.names.size());
+        assertEquals("product0", action.names.get(0));
+    }
+
+    @Test
+    public final void testDropOldest() throws Exception {
+        final Processor processor = new Processor(4,
+                Processor.OverflowPolicy.DROP_OLDEST, 1);
+        final Pattern pattern = Pattern.compile(".*");
+        final RecordingAction action = new RecordingAction(0);
+        processor.add(pattern, action);
+        processor.setMaxConcurrency(pattern, 1);
+        for (int i = 0; i < 10; i++) {
+            processor.put(newDataProduct("product" + i));
+        }
+        assertEquals(4, processor.getQueueDepth());
+        assertEquals(6, processor.getDroppedCount());
+        executor.submit(processor);
+        awaitProcessed(processor, 4);
+        assertEquals("product6", action.names.get(0));
+        assertEquals("product9", action.names.get(3));
+    }
+
+    @Test
+    public final void testXmlAttributes() throws Exception {
+        final Processor processor = XmlActionFile
+                .getProcessor("<?xml version=\"1.0\"?>"
+                        + "<actions queueCapacity=\"2\" overflow=\"drop_newest\" workers=\"1\">"
+                        + "<entry pattern=\"(.*)\" ordered=\"true\">"
+                        + "<file path=\"/tmp/ProcessorTest/$1\"/>"
+                        + "</entry>" + "</actions>");
+        for (int i = 0; i < 3; i++) {
+            processor.put(newDataProduct("product" + i));
+        }
+        assertEquals(2, processor.getQueueDepth());
+        assertEquals(1, processor.getDroppedCount());
+    }
 }
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests the window of outstanding requests.
+ *
+ * @author Steven R. Emmerson
+ */
+public class RequestWindowTest {
+    private static final int      PIECE_SIZE = FileInfo.getDefaultPieceSize();
+    private static final FileInfo FILE_INFO  = new FileInfo(new FileId(
+                                                     new ArchivePath("file"),
+                                                     new ArchiveTime()),
+                                                     100000L * PIECE_SIZE,
+                                                     PIECE_SIZE, -1);
+    private static final long     RTT        = TimeUnit.MILLISECONDS
+                                                     .toNanos(100);
+
+    /**
+     * Simulates a link with a given bandwidth and a round-trip time of
+     * {@link #RTT}: requests are sent whenever the window isn't full and the
+     * pieces arrive one round-trip time later but no faster than the link
+     * allows.
+     *
+     * @return The final size of the window.
+     */
+    private static long simulate(final RequestWindow window,
+            final long bytesPerSecond, final int pieceCount) {
+        final long nanosPerPiece = TimeUnit.SECONDS.toNanos(1) * PIECE_SIZE
+                / bytesPerSecond;
+        // Piece index and arrival time
+        final Queue<long[]> inTransit = new ArrayDeque<long[]>();
+        int next = 0;
+        long now = 0;
+        long lastArrival = 0;
+        for (int received = 0; received < pieceCount; received++) {
+            while (window.available() > 0) {
+                lastArrival = Math.max(now + RTT, lastArrival + nanosPerPiece);
+                window.sent(new PieceSpec(FILE_INFO, next), now);
+                inTransit.add(new long[] { next++, lastArrival });
+            }
+            final long[] arrival = inTransit.remove();
+            now = arrival[1];
+            window.received(new PieceSpec(FILE_INFO, (int) arrival[0]), now);
+        }
+        return window.getSize();
+    }
+
+    @Test
+    public void testInitialWindow() {
+        final RequestWindow window = new RequestWindow();
+        assertEquals(RequestWindow.MINIMUM_SIZE, window.getSize());
+        assertEquals(RequestWindow.MINIMUM_SIZE, window.available());
+        window.sent(new PieceSpec(FILE_INFO, 0), 0);
+        assertEquals(PIECE_SIZE, window.getInFlight());
+        window.received(new PieceSpec(FILE_INFO, 1), 1); // never requested
+        assertEquals(PIECE_SIZE, window.getInFlight());
+        window.received(new PieceSpec(FILE_INFO, 0), 1);
+        assertEquals(0, window.getInFlight());
+    }
+
+    @Test
+    public void testGrowsToBandwidthDelayProduct() {
+        final long bytesPerSecond = 100L * 1024 * 1024;
+        final long bdp = bytesPerSecond * RTT / TimeUnit.SECONDS.toNanos(1);
+        final long size = simulate(new RequestWindow(), bytesPerSecond, 20000);
+        System.out.println("Bandwidth-delay product=" + bdp + ", window="
+                + size);
+        assertTrue(size > bdp);
+        assertTrue(size <= Math.max(4 * bdp, RequestWindow.MINIMUM_SIZE));
+    }
+
+    @Test
+    public void testSlowLinkKeepsSmallWindow() {
+        final long size = simulate(new RequestWindow(), 64 * 1024, 200);
+        assertEquals(RequestWindow.MINIMUM_SIZE, size);
+    }
+
+    @Test
+    public void testListener() {
+        final RequestWindow window = new RequestWindow();
+        final AtomicInteger count = new AtomicInteger();
+        window.setListener(new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        });
+        int i = 0;
+        while (window.available() > 0) {
+            window.sent(new PieceSpec(FILE_INFO, i++), 0);
+        }
+        window.received(new PieceSpec(FILE_INFO, 0), 1);
+        assertEquals(1, count.get());
+        assertTrue(window.available() > 0);
+    }
+
+    @Test
+    public void testStall() {
+        final RequestWindow window = new RequestWindow();
+        assertNull(window.removeStalled(RequestWindow.STALL_TIMEOUT + 1));
+        window.sent(new PieceSpec(FILE_INFO, 0), 0);
+        window.sent(new PieceSpec(FILE_INFO, 1), 0);
+        assertNull(window.removeStalled(RequestWindow.STALL_TIMEOUT));
+        window.received(new PieceSpec(FILE_INFO, 0), 1);
+        assertNull(window.removeStalled(RequestWindow.STALL_TIMEOUT));
+
+        final PieceSpecSetIface stalled = window
+                .removeStalled(RequestWindow.STALL_TIMEOUT + 1);
+        assertTrue(stalled.contains(new PieceSpec(FILE_INFO, 1)));
+        assertTrue(!stalled.contains(new PieceSpec(FILE_INFO, 0)));
+        assertEquals(0, window.getInFlight());
+        assertNull(window.removeStalled(2 * RequestWindow.STALL_TIMEOUT + 2));
+    }
+
+    @Test
+    public void testStallPerRequest() {
+        final RequestWindow window = new RequestWindow();
+        window.sent(new PieceSpec(FILE_INFO, 0), 0);
+        window.sent(new PieceSpec(FILE_INFO, 1), 10);
+        // Progress on other requests doesn't save a lost one
+        window.sent(new PieceSpec(FILE_INFO, 2), RequestWindow.STALL_TIMEOUT);
+        window.received(new PieceSpec(FILE_INFO, 2),
+                RequestWindow.STALL_TIMEOUT + 1);
+
+        PieceSpecSetIface stalled = window
+                .removeStalled(RequestWindow.STALL_TIMEOUT + 1);
+        assertTrue(stalled.contains(new PieceSpec(FILE_INFO, 0)));
+        assertTrue(!stalled.contains(new PieceSpec(FILE_INFO, 1)));
+        assertEquals(PIECE_SIZE, window.getInFlight());
+
+        stalled = window.removeStalled(RequestWindow.STALL_TIMEOUT + 11);
+        assertTrue(stalled.contains(new PieceSpec(FILE_INFO, 1)));
+        assertEquals(0, window.getInFlight());
+    }
+
+    @Test
+    public void testRemoveFile() {
+        final FileInfo otherInfo = new FileInfo(new FileId(new ArchivePath(
+                "other"), new ArchiveTime()), 10L * PIECE_SIZE, PIECE_SIZE, -1);
+        final RequestWindow window = new RequestWindow();
+        final AtomicInteger signals = new AtomicInteger();
+        window.setListener(new Runnable() {
+            @Override
+            public void run() {
+                signals.incrementAndGet();
+            }
+        });
+        int i = 0;
+        while (window.available() > 0) {
+            window.sent(new PieceSpec(FILE_INFO, i++), 0);
+        }
+        window.sent(new PieceSpec(otherInfo, 0), 0);
+        assertNull(window.remove(new ArchivePath("absent")));
+
+        final PieceSpecSetIface removed = window.remove(new ArchivePath(
+                "file"));
+        assertTrue(removed.contains(new PieceSpec(FILE_INFO, 0)));
+        assertTrue(!removed.contains(new PieceSpec(otherInfo, 0)));
+        assertEquals(PIECE_SIZE, window.getInFlight());
+        assertEquals(1, signals.get());
+        assertEquals(-1, window.received(new PieceSpec(FILE_INFO, 0), 1));
+    }
+}
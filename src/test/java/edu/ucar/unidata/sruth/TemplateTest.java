@@ -0,0 +1,105 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link Template} class and compares it with substitution by
+ * regular expressions.
+ *
+ * @author Steven R. Emmerson
+ */
+public class TemplateTest {
+    private static final Pattern PATTERN    = Pattern
+                                                    .compile("([^/]*)/([^/]*)/(.*)\\.(\\w+)");
+    private static final String  PATH       = "NEXRAD/FTG/N0R_20120301_1200.nids";
+    private static final int     ITERATIONS = 200000;
+
+    /**
+     * Replaces references by compiling a regular expression for every
+     * capturing group -- as was done before templates existed.
+     */
+    private static String regexReplace(final Matcher matcher,
+            final String string) {
+        String str = string;
+        final int groupCount = matcher.groupCount();
+        for (int groupIndex = 1; groupIndex <= groupCount; groupIndex++) {
+            final Pattern capturingGroupPat = Pattern.compile("([^\\\\]?)\\$"
+                    + groupIndex + "\\b");
+            final String replacement = "$1"
+                    + Matcher.quoteReplacement(matcher.group(groupIndex));
+            str = capturingGroupPat.matcher(str).replaceAll(replacement);
+        }
+        return str;
+    }
+
+    private static Matcher matcher() {
+        final Matcher matcher = PATTERN.matcher(PATH);
+        assertTrue(matcher.matches());
+        return matcher;
+    }
+
+    @Test
+    public void testExpand() {
+        final Matcher matcher = matcher();
+        final String[] strings = { "", "/data/$1/$2/$3.$4", "$1$2", "$$1",
+                "\\$1", "a$1b", "$1_x", "$1-x", "$5", "$12", "$01", "$0",
+                "$", "x$", "$4$", "cost: $ 3", "/tmp/$3/$3" };
+        for (final String string : strings) {
+            assertEquals(string, regexReplace(matcher, string), new Template(
+                    string).expand(matcher));
+        }
+        assertEquals("/data/NEXRAD/FTG/N0R_20120301_1200.nids", new Template(
+                "/data/$1/$2/$3.$4").expand(matcher));
+        assertFalse(new Template("/data/$1x").hasReferences());
+        assertTrue(new Template("/data/$1").hasReferences());
+    }
+
+    @Test
+    public void testPerformance() {
+        final Matcher matcher = matcher();
+        final String[] command = { "pqinsert", "-f", "NEXRAD", "-p",
+                "$1 $2 $3", "/data/$1/$2/$3.$4" };
+        final Template[] templates = new Template[command.length];
+        for (int i = 0; i < command.length; i++) {
+            templates[i] = new Template(command[i]);
+        }
+        int length = 0;
+        for (int pass = 0; pass < 2; pass++) { // first pass is a warm-up
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS / 10; i++) {
+                for (final String arg : command) {
+                    length += regexReplace(matcher, arg).length();
+                }
+            }
+            final double regex = (System.nanoTime() - start)
+                    / (ITERATIONS / 10.0);
+            start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                for (final Template template : templates) {
+                    length += template.expand(matcher).length();
+                }
+            }
+            final double compiled = (System.nanoTime() - start)
+                    / (double) ITERATIONS;
+            if (pass == 1) {
+                System.out.println("Substitution of a " + command.length
+                        + "-argument command: regex: " + (long) regex
+                        + " ns, template: " + (long) compiled + " ns");
+                assertTrue(compiled < regex);
+            }
+        }
+        assertTrue(length > 0);
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link TimingWheel} class and its use by the
+ * {@link DelayedPathActionQueue} class.
+ *
+ * @author Steven R. Emmerson
+ */
+public class TimingWheelTest {
+    private static final Path TESTDIR    = Paths.get(
+                                                 System.getProperty("java.io.tmpdir"))
+                                                 .resolve(
+                                                         TimingWheelTest.class
+                                                                 .getSimpleName());
+    private static final Path WHEEL      = TESTDIR.resolve("wheel");
+    private static final long RESOLUTION = 10;
+
+    @Before
+    public void setUp() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+        Files.createDirectories(TESTDIR);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+    }
+
+    /**
+     * Removes pathnames from a wheel until a given number have been obtained
+     * and verifies that none was obtained before its time.
+     */
+    private static List<Path> drain(final TimingWheel wheel, final int count,
+            final long start) throws Exception {
+        final List<Path> paths = new ArrayList<Path>();
+        while (paths.size() < count) {
+            final List<Path> batch = wheel.awaitDue();
+            final long now = System.currentTimeMillis();
+            for (final Path path : batch) {
+                final long delay = Long.parseLong(path.getFileName()
+                        .toString());
+                assertTrue(path.toString(), now >= start + delay);
+            }
+            paths.addAll(batch);
+            wheel.removeDue();
+        }
+        return paths;
+    }
+
+    @Test
+    public void testCascade() throws Exception {
+        final TimingWheel wheel = new TimingWheel(WHEEL, RESOLUTION, 20);
+        final long start = System.currentTimeMillis();
+        // Delays span the first three levels
+        final long[] delays = { 0, 5, 30, 700, 1500, 50, 3000 };
+        for (final long delay : delays) {
+            wheel.add(Paths.get("/dir/" + delay), start + delay);
+        }
+        final List<Path> paths = drain(wheel, delays.length, start);
+        assertEquals(delays.length, new HashSet<Path>(paths).size());
+        assertEquals(0, wheel.getBucketCount());
+        wheel.close();
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        TimingWheel wheel = new TimingWheel(WHEEL, RESOLUTION, 20);
+        final long start = System.currentTimeMillis();
+        for (int delay = 100; delay < 1100; delay += 100) {
+            wheel.add(Paths.get("/dir/" + delay), start + delay);
+        }
+        Thread.sleep(100); // let the commit happen
+        // Not closed: simulates a crash
+
+        // A torn record at the end of a bucket-file is ignored
+        final DirectoryStream<Path> stream = Files.newDirectoryStream(WHEEL);
+        final Path bucket = stream.iterator().next();
+        stream.close();
+        final FileChannel channel = FileChannel.open(bucket,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        channel.close();
+
+        wheel = new TimingWheel(WHEEL, RESOLUTION, 20);
+        assertEquals(10, new HashSet<Path>(drain(wheel, 10, start)).size());
+        wheel.close();
+        wheel = new TimingWheel(WHEEL, RESOLUTION, 20);
+        assertEquals(0, wheel.getBucketCount());
+        wheel.close();
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        final Path heapPath = TESTDIR.resolve("heap");
+        final long start = System.currentTimeMillis();
+        TimingWheel wheel = new TimingWheel(WHEEL, RESOLUTION, 20);
+        // Delays span the first three levels
+        final long[] delays = { 0, 30, 700, 3000 };
+        for (final long delay : delays) {
+            wheel.add(Paths.get("/dir/" + delay), start + delay);
+        }
+        PathDelayQueue heap = new PathDelayQueue(heapPath);
+        wheel.copyTo(heap);
+        wheel.close();
+        assertEquals(delays.length, heap.size());
+
+        // And back again into an empty wheel
+        assertEquals(0, Misc.system("rm", "-rf", WHEEL.toString()));
+        wheel = new TimingWheel(WHEEL, RESOLUTION, 20);
+        heap.copyTo(wheel);
+        assertEquals(delays.length, heap.size());
+        heap.close();
+        assertEquals(delays.length,
+                new HashSet<Path>(drain(wheel, delays.length, start)).size());
+        wheel.close();
+    }
+
+    @Test
+    public void testParallelDeletion() throws Exception {
+        final Path root = TESTDIR.resolve("root");
+        final int count = 200;
+        final Set<Path> files = new HashSet<Path>();
+        for (int i = 0; i < count; i++) {
+            final Path file = root.resolve("dir" + i % 10).resolve("file" + i);
+            Files.createDirectories(file.getParent());
+            Files.createFile(file);
+            files.add(file);
+        }
+        final DelayedPathActionQueue deleter = new DelayedPathActionQueue(
+                root, new TimingWheel(WHEEL, RESOLUTION, 20),
+                new DelayedPathActionQueue.Action() {
+                    @Override
+                    void act(final Path path) throws IOException {
+                        Files.delete(path);
+                    }
+                });
+        try {
+            for (final Path file : files) {
+                deleter.actUponEventurally(file, 50);
+            }
+            deleter.waitUntilEmpty();
+            assertEquals(count, deleter.getActedUponCount());
+            for (final Path file : files) {
+                assertFalse(file.toString(), Files.exists(file));
+            }
+        }
+        finally {
+            deleter.stop();
+        }
+    }
+}
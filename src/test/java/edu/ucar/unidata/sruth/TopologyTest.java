@@ -0,0 +1,222 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import edu.ucar.unidata.sruth.Archive.DistributedTrackerFiles;
+
+/**
+ * Tests the {@link Topology} class.
+ *
+ * @author Steven R. Emmerson
+ */
+public class TopologyTest {
+    private static final int               TRIALS = 2000;
+    private static final InetSocketAddress NEAR   = new InetSocketAddress(
+                                                          "localhost", 38801);
+    private static final InetSocketAddress FAR    = new InetSocketAddress(
+                                                          "localhost", 38802);
+    private static final Path              TESTDIR = Paths.get(
+                                                          System.getProperty("java.io.tmpdir"))
+                                                          .resolve(
+                                                                  TopologyTest.class
+                                                                          .getSimpleName());
+
+    /**
+     * Returns the number of times a server is chosen.
+     */
+    private static int count(final Topology topology,
+            final Map<InetSocketAddress, Long> rtts,
+            final InetSocketAddress server) {
+        final Filter filter = Filter.getInstance("dir");
+        int count = 0;
+        for (int i = 0; i < TRIALS; i++) {
+            if (server.equals(topology.getBestServer(filter, rtts))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Topology newTopology() {
+        final Topology topology = new Topology();
+        topology.add(Filter.EVERYTHING, NEAR);
+        topology.add(Filter.EVERYTHING, FAR);
+        return topology;
+    }
+
+    @Test
+    public void testUniform() {
+        final Topology topology = newTopology();
+        final int count = count(topology,
+                new HashMap<InetSocketAddress, Long>(), NEAR);
+        assertTrue("count=" + count, Math.abs(count - TRIALS / 2) < TRIALS / 8);
+    }
+
+    @Test
+    public void testLoadAndDepth() {
+        final Topology topology = newTopology();
+        topology.setLoad(NEAR, new ServerLoad(0, 8, 0));
+        topology.setLoad(FAR, new ServerLoad(7, 8, 3));
+        final int count = count(topology,
+                new HashMap<InetSocketAddress, Long>(), NEAR);
+        assertTrue("count=" + count, count > 0.9 * TRIALS);
+
+        // A server of unknown depth is deeper than any known one
+        topology.setLoad(FAR, ServerLoad.UNKNOWN);
+        assertTrue(count(topology, new HashMap<InetSocketAddress, Long>(),
+                NEAR) > 0.6 * TRIALS);
+
+        // A full server can still be chosen
+        topology.remove(NEAR);
+        topology.setLoad(FAR, new ServerLoad(8, 8, 1));
+        assertEquals(TRIALS, count(topology,
+                new HashMap<InetSocketAddress, Long>(), FAR));
+    }
+
+    @Test
+    public void testRoundTripTime() {
+        final Topology topology = newTopology();
+        final Map<InetSocketAddress, Long> rtts = new HashMap<InetSocketAddress, Long>();
+        rtts.put(NEAR, TimeUnit.MILLISECONDS.toNanos(10));
+        rtts.put(FAR, TimeUnit.MILLISECONDS.toNanos(500));
+        final int count = count(topology, rtts, NEAR);
+        assertTrue("count=" + count, count > 0.8 * TRIALS);
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        final Topology topology = newTopology();
+        topology.setLoad(NEAR, new ServerLoad(2, 8, 1));
+        final byte[] bytes = Util.serialize(topology);
+        final Topology copy = (Topology) Util.deserialize(bytes, 0,
+                bytes.length);
+        assertEquals(2, copy.getLoad(NEAR).getClientCount());
+        assertEquals(1, copy.getLoad(NEAR).getDepth());
+        assertEquals(ServerLoad.UNKNOWN, copy.getLoad(FAR));
+
+        final Topology subset = topology.subset(Filter.getInstance("dir"));
+        assertEquals(1, subset.getLoad(NEAR).getDepth());
+        topology.remove(NEAR);
+        assertEquals(ServerLoad.UNKNOWN, topology.getLoad(NEAR));
+    }
+
+    /**
+     * Returns a copy of a topology as received by another node.
+     */
+    private static Topology receive(final Topology topology) throws Exception {
+        final byte[] bytes = Util.serialize(topology);
+        return (Topology) Util.deserialize(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void testDelta() throws Exception {
+        final Topology topology = newTopology();
+        topology.setLoad(NEAR, new ServerLoad(1, 8, 0));
+        final Topology copy = receive(topology);
+        assertEquals(topology.getVersion(), copy.getVersion());
+
+        final InetSocketAddress other = new InetSocketAddress("localhost",
+                38803);
+        topology.add(Filter.getInstance("dir"), other);
+        topology.remove(FAR);
+        topology.setLoad(NEAR, new ServerLoad(2, 8, 0));
+        topology.setLoad(other, new ServerLoad(0, 8, 1));
+        final TopologyDelta delta = receive(topology).getDelta(
+                copy.getEpoch(), copy.getVersion());
+        // A received copy can't compute earlier deltas
+        assertNull(delta);
+
+        final TopologyDelta realDelta = topology.getDelta(copy.getEpoch(),
+                copy.getVersion());
+        assertNotNull(realDelta);
+        assertEquals(3, realDelta.size());
+        final byte[] bytes = Util.serialize(realDelta);
+        final Topology updated = copy.update((TopologyDelta) Util.deserialize(
+                bytes, 0, bytes.length));
+        assertEquals(topology.getVersion(), updated.getVersion());
+        assertEquals(topology.getServers(), updated.getServers());
+        assertEquals(2, updated.getLoad(NEAR).getClientCount());
+        assertEquals(1, updated.getLoad(other).getDepth());
+        assertEquals(ServerLoad.UNKNOWN, updated.getLoad(FAR));
+        // The original copy is unchanged
+        assertEquals(2, copy.getServerCount());
+
+        // A delta doesn't apply to another version or epoch
+        try {
+            updated.update(realDelta);
+            fail();
+        }
+        catch (final IllegalArgumentException expected) {
+        }
+        assertNull(topology.getDelta(copy.getEpoch() + 1, copy.getVersion()));
+        assertEquals(0, topology.getDelta(topology.getEpoch(),
+                topology.getVersion()).size());
+    }
+
+    @Test
+    public void testHorizon() {
+        final Topology topology = newTopology();
+        final long version = topology.getVersion();
+        for (int i = 0; i < 2000; i++) {
+            final InetSocketAddress server = new InetSocketAddress(
+                    "localhost", 40000 + i);
+            topology.add(Filter.EVERYTHING, server);
+            topology.remove(server);
+        }
+        // Too many removals have been forgotten
+        assertNull(topology.getDelta(topology.getEpoch(), version));
+        final TopologyDelta delta = topology.getDelta(topology.getEpoch(),
+                topology.getVersion() - 10);
+        assertNotNull(delta);
+        assertEquals(5, delta.getRemovals().size());
+    }
+
+    @Test
+    public void testDistribution() throws Exception {
+        assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+        final Archive archive = new Archive(TESTDIR);
+        try {
+            final DistributedTrackerFiles files = archive
+                    .getDistributedTrackerFiles(new InetSocketAddress(
+                            "localhost", Tracker.IANA_PORT));
+            final Topology topology = newTopology();
+            files.distribute(new Topology(topology));
+            Thread.sleep(1500);
+            final Topology snapshot = files.getTopology();
+            assertEquals(topology.getVersion(), snapshot.getVersion());
+            assertSame(snapshot, files.getTopology());
+
+            topology.remove(FAR);
+            files.distribute(new Topology(topology));
+            Thread.sleep(1500);
+            assertTrue(files.getTopologyArchiveTime().compareTo(
+                    archive.getArchiveTime(files.getTopologyArchivePath())) > 0);
+            final Topology updated = files.getTopology();
+            assertEquals(topology.getVersion(), updated.getVersion());
+            assertEquals(topology.getServers(), updated.getServers());
+        }
+        finally {
+            archive.close();
+            assertEquals(0, Misc.system("rm", "-rf", TESTDIR.toString()));
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link TrackerFrontEnd} class by means of a {@link Tracker}.
+ *
+ * @author Steven R. Emmerson
+ */
+public class TrackerFrontEndTest {
+    private static final InetAddress LOOPBACK = InetAddress
+                                                      .getLoopbackAddress();
+    private ServerSocket             sourceServer;
+    private Tracker                  tracker;
+    private ExecutorService          executor;
+
+    @Before
+    public void setUp() throws Exception {
+        sourceServer = new ServerSocket(0, 50, LOOPBACK);
+        tracker = new Tracker(
+                (InetSocketAddress) sourceServer.getLocalSocketAddress(),
+                new InetSocketAddress(LOOPBACK, 0));
+        executor = Executors.newCachedThreadPool();
+        executor.submit(tracker);
+        tracker.waitUntilRunning();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        sourceServer.close();
+    }
+
+    /**
+     * Registers a server with the tracker and returns the tracker's reply.
+     */
+    private Topology register(final InetSocketAddress server) throws Exception {
+        final Socket socket = new Socket(tracker.getServerAddress()
+                .getAddress(), tracker.getServerAddress().getPort());
+        try {
+            new TopologyGetter(Filter.EVERYTHING, server, new ServerLoad(0, 8,
+                    1), null, socket).callTracker();
+            final ObjectInputStream ois = new ObjectInputStream(
+                    socket.getInputStream());
+            final Topology topology = (Topology) ois.readObject();
+            assertEquals(tracker.getReportingAddress(), ois.readObject());
+            return topology;
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testManyRegistrations() throws Exception {
+        final int count = 500;
+        final InetAddress other = InetAddress.getByAddress(new byte[] { 127,
+                0, 0, 2 });
+        final List<Future<Topology>> futures = new ArrayList<Future<Topology>>(
+                count);
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            final InetSocketAddress server = new InetSocketAddress(other,
+                    40000 + i);
+            futures.add(executor.submit(new Callable<Topology>() {
+                @Override
+                public Topology call() throws Exception {
+                    return register(server);
+                }
+            }));
+        }
+        for (final Future<Topology> future : futures) {
+            assertTrue(future.get().getServerCount() >= 1);
+        }
+        final long elapsed = System.nanoTime() - start;
+        System.out.println("Registrations: " + count + " in "
+                + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+        assertEquals(count + 1, tracker.getNetwork().getServerCount());
+        for (int i = 0; i < count; i++) {
+            assertTrue(tracker.isRegistered(new InetSocketAddress(other,
+                    40000 + i)));
+        }
+    }
+
+    @Test
+    public void testFragmentedRequest() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(new TopologyGetter(Filter.EVERYTHING,
+                new InetSocketAddress(LOOPBACK, 40000), new ServerLoad(0, 8,
+                        1), null, null));
+        oos.close();
+        final Socket socket = new Socket(tracker.getServerAddress()
+                .getAddress(), tracker.getServerAddress().getPort());
+        try {
+            socket.setTcpNoDelay(true);
+            final DataOutputStream out = new DataOutputStream(
+                    socket.getOutputStream());
+            out.writeInt(bytes.size());
+            out.flush();
+            for (final byte b : bytes.toByteArray()) {
+                out.write(b);
+                out.flush();
+            }
+            final ObjectInputStream ois = new ObjectInputStream(
+                    socket.getInputStream());
+            assertTrue(((Topology) ois.readObject()).getServerCount() >= 1);
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testFragmentedUnframedRequest() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(new TopologyGetter(Filter.EVERYTHING,
+                new InetSocketAddress(LOOPBACK, 40000), new ServerLoad(0, 8,
+                        1), null, null));
+        oos.close();
+        final Socket socket = new Socket(tracker.getServerAddress()
+                .getAddress(), tracker.getServerAddress().getPort());
+        try {
+            socket.setTcpNoDelay(true);
+            final OutputStream out = socket.getOutputStream();
+            for (final byte b : bytes.toByteArray()) {
+                out.write(b);
+                out.flush();
+            }
+            // The connection stays open, like that of an older node
+            final ObjectInputStream ois = new ObjectInputStream(
+                    socket.getInputStream());
+            assertTrue(((Topology) ois.readObject()).getServerCount() >= 1);
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testInvalidLength() throws Exception {
+        final Socket socket = new Socket(tracker.getServerAddress()
+                .getAddress(), tracker.getServerAddress().getPort());
+        try {
+            final DataOutputStream out = new DataOutputStream(
+                    socket.getOutputStream());
+            out.writeInt(Integer.MAX_VALUE);
+            out.flush();
+            // The tracker closes the connection without replying
+            assertEquals(-1, socket.getInputStream().read());
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testOfflineReport() throws Exception {
+        final ServerSocket online = new ServerSocket(0, 50, LOOPBACK);
+        final InetSocketAddress onlineAddress = (InetSocketAddress) online
+                .getLocalSocketAddress();
+        final ServerSocket closed = new ServerSocket(0, 50, LOOPBACK);
+        final InetSocketAddress offlineAddress = (InetSocketAddress) closed
+                .getLocalSocketAddress();
+        closed.close();
+        try {
+            register(onlineAddress);
+            register(offlineAddress);
+            assertEquals(3, tracker.getNetwork().getServerCount());
+
+            final DatagramSocket socket = new DatagramSocket();
+            try {
+                // Many nodes report the same servers at once
+                for (int i = 0; i < 100; i++) {
+                    for (final InetSocketAddress server : new InetSocketAddress[] {
+                            onlineAddress, offlineAddress }) {
+                        final byte[] bytes = OfflineReport.encode(server);
+                        socket.send(new DatagramPacket(bytes, bytes.length,
+                                tracker.getReportingAddress()));
+                    }
+                }
+            }
+            finally {
+                socket.close();
+            }
+            for (int i = 0; i < 50
+                    && tracker.getNetwork().getServerCount() > 2; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(2, tracker.getNetwork().getServerCount());
+            assertTrue(tracker.getNetwork().getServers()
+                    .contains(onlineAddress));
+        }
+        finally {
+            online.close();
+        }
+    }
+}
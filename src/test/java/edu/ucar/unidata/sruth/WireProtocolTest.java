@@ -0,0 +1,337 @@
+/**
+ * Copyright 2012 University Corporation for Atmospheric Research.  All rights
+ * reserved.  See file LICENSE.txt in the top-level directory for licensing
+ * information.
+ */
+package edu.ucar.unidata.sruth;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.ucar.unidata.sruth.Connection.Message;
+
+/**
+ * Tests the binary wire protocol and compares its throughput with that of
+ * Java serialization.
+ *
+ * @author Steven R. Emmerson
+ */
+public class WireProtocolTest {
+    private static FileInfo newFileInfo(final String path, final long size) {
+        return new FileInfo(new FileId(new ArchivePath(path),
+                new ArchiveTime()), size, FileInfo.getDefaultPieceSize(), -1);
+    }
+
+    private static List<PieceSpec> toList(final PieceSpecSetIface specs) {
+        final List<PieceSpec> list = new ArrayList<PieceSpec>();
+        for (final PieceSpec spec : specs) {
+            list.add(spec);
+        }
+        return list;
+    }
+
+    private static Message roundTrip(final Message msg) throws IOException,
+            ClassNotFoundException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final WireProtocol.Encoder encoder = new WireProtocol.Encoder(bytes);
+        encoder.write(msg);
+        assertEquals(bytes.size(), encoder.getByteCount());
+        final WireProtocol.Decoder decoder = new WireProtocol.Decoder(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        return decoder.read();
+    }
+
+    private static PieceSpecSetIface newSpecs() {
+        final FileInfo one = newFileInfo("a/one", 1);
+        final FileInfo many = newFileInfo("a/b/many",
+                10L * FileInfo.getDefaultPieceSize() + 1);
+        final FileInfo all = newFileInfo("all", 3L * FileInfo
+                .getDefaultPieceSize());
+        PieceSpecSetIface specs = new PieceSpec(one, 0);
+        specs = specs.merge(new PieceSpec(many, 0));
+        specs = specs.merge(new PieceSpec(many, 5));
+        specs = specs.merge(new PieceSpec(many, 10));
+        return specs.merge(FilePieceSpecSet.newInstance(all, true));
+    }
+
+    @Test
+    public void testPiece() throws Exception {
+        final FileInfo fileInfo = newFileInfo("dir/file",
+                FileInfo.getDefaultPieceSize() + 10);
+        final byte[] data = new byte[10];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        final Piece piece = new Piece(new PieceSpec(fileInfo, 1), data);
+        final Piece copy = (Piece) roundTrip(piece);
+        assertEquals(piece.getInfo(), copy.getInfo());
+        assertEquals(fileInfo, copy.getFileInfo());
+        assertEquals(fileInfo.getTime(), copy.getFileInfo().getTime());
+        assertEquals(-1, copy.getTimeToLive());
+        assertArrayEquals(data, copy.getData());
+    }
+
+    @Test
+    public void testSpecs() throws Exception {
+        final PieceSpecSetIface specs = newSpecs();
+        final List<PieceSpec> expected = toList(specs);
+
+        assertEquals(expected,
+                toList(((PieceRequest) roundTrip(new PieceRequest(specs)))
+                        .getSpecs()));
+        assertEquals(expected, toList(((NoticeRequest) roundTrip(
+                new NoticeRequest(specs))).getSpecs()));
+        assertEquals(expected, toList(((AdditionNotice) roundTrip(
+                new AdditionNotice(specs))).getSpecs()));
+        assertTrue(((PieceRequest) roundTrip(new PieceRequest(
+                EmptyPieceSpecSet.INSTANCE))).getSpecs().isEmpty());
+    }
+
+    @Test
+    public void testRemovals() throws Exception {
+        final ArchivePath path = new ArchivePath("x/y/z");
+        assertEquals(path, ((RemovedFileNotice) roundTrip(
+                new RemovedFileNotice(path))).getArchivePath());
+
+        final ArchivePathSet paths = new ArchivePathSet();
+        paths.add(path);
+        paths.add(new ArchivePath("w"));
+        final Iterator<ArchivePath> iter = ((RemovedFilesNotice) roundTrip(
+                new RemovedFilesNotice(paths))).getArchivePaths().iterator();
+        assertEquals(new ArchivePath("w"), iter.next());
+        assertEquals(path, iter.next());
+        assertTrue(!iter.hasNext());
+    }
+
+    @Test
+    public void testSerializedFallback() throws Exception {
+        final Message msg = new WireProtocol.Hello(Filter.EVERYTHING,
+                WireProtocol.VERSION);
+        final WireProtocol.Hello copy = (WireProtocol.Hello) roundTrip(msg);
+        assertEquals(Filter.EVERYTHING, copy.getFilter());
+        assertEquals(WireProtocol.VERSION, copy.getVersion());
+    }
+
+    @Test
+    public void testCorruptFrame() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1);
+        out.writeByte(127);
+        out.flush();
+        try {
+            new WireProtocol.Decoder(new ByteArrayInputStream(
+                    bytes.toByteArray())).read();
+            fail();
+        }
+        catch (final StreamCorruptedException expected) {
+        }
+    }
+
+    private static void assertCorrupt(final byte[] frame, final int length)
+            throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(length);
+        out.write(frame);
+        out.flush();
+        try {
+            new WireProtocol.Decoder(new ByteArrayInputStream(
+                    bytes.toByteArray())).read();
+            fail();
+        }
+        catch (final StreamCorruptedException expected) {
+        }
+        try {
+            WireProtocol.decode(Arrays.copyOf(frame, length), length,
+                    new byte[8192]);
+            fail();
+        }
+        catch (final StreamCorruptedException expected) {
+        }
+    }
+
+    @Test
+    public void testFrameLength() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new WireProtocol.Encoder(bytes).write(new RemovedFileNotice(
+                new ArchivePath("x/y/z")));
+        final byte[] encoded = bytes.toByteArray();
+        final byte[] frame = Arrays.copyOfRange(encoded, 4, encoded.length);
+        // The message is shorter than the frame
+        assertCorrupt(Arrays.copyOf(frame, frame.length + 1), frame.length + 1);
+        // The message is longer than the frame
+        assertCorrupt(frame, frame.length - 1);
+    }
+
+    @Test
+    public void testNegotiate() {
+        assertEquals(WireProtocol.SERIALIZATION,
+                WireProtocol.negotiate(WireProtocol.SERIALIZATION));
+        assertEquals(WireProtocol.LOCAL_VERSION,
+                WireProtocol.negotiate(WireProtocol.VERSION + 1));
+    }
+
+    @Test
+    public void testFilePiece() throws Exception {
+        final int pieceSize = FileInfo.getDefaultPieceSize();
+        final Path path = Files.createTempFile("WireProtocolTest", null);
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            final byte[] bytes = new byte[2 * pieceSize + 10];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) i;
+            }
+            Files.write(path, bytes);
+            ArchiveTime.adjustTime(path);
+            final FileInfo fileInfo = new FileInfo(new FileId(new ArchivePath(
+                    "file"), new ArchiveTime(path)), bytes.length, pieceSize,
+                    -1);
+
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    0));
+            final SocketChannel sender = SocketChannel.open(server
+                    .getLocalAddress());
+            final SocketChannel receiver = server.accept();
+            try {
+                final WireProtocol.Encoder encoder = new WireProtocol.Encoder(
+                        Channels.newOutputStream(sender), sender);
+                assertTrue(encoder.canSendFiles());
+                final WireProtocol.Decoder decoder = new WireProtocol.Decoder(
+                        Channels.newInputStream(receiver));
+
+                for (int i = 0; i < fileInfo.getPieceCount(); i++) {
+                    final PieceSpec spec = new PieceSpec(fileInfo, i);
+                    encoder.write(new Piece(spec, path));
+                    final Piece piece = (Piece) decoder.read();
+                    assertEquals(spec, piece.getInfo());
+                    assertArrayEquals(Arrays.copyOfRange(bytes,
+                            (int) spec.getOffset(),
+                            (int) spec.getOffset() + spec.getSize()),
+                            piece.getData());
+                }
+
+                // A piece of a changed file isn't sent
+                final FileInfo oldInfo = new FileInfo(new FileId(
+                        new ArchivePath("file"), ArchiveTime.fromMillis(0)),
+                        bytes.length, pieceSize, -1);
+                encoder.write(new Piece(new PieceSpec(oldInfo, 0), path));
+                final ArchivePath archivePath = new ArchivePath("next");
+                encoder.write(new RemovedFileNotice(archivePath));
+                assertEquals(archivePath,
+                        ((RemovedFileNotice) decoder.read()).getArchivePath());
+
+                // Java serialization reads the data
+                final byte[] serialized = Util.serialize(new Piece(
+                        new PieceSpec(fileInfo, 2), path));
+                final Piece piece = (Piece) Util.deserialize(serialized, 0,
+                        serialized.length);
+                assertArrayEquals(Arrays.copyOfRange(bytes, 2 * pieceSize,
+                        bytes.length), piece.getData());
+            }
+            finally {
+                sender.close();
+                receiver.close();
+            }
+        }
+        finally {
+            server.close();
+            Files.delete(path);
+        }
+    }
+
+    private static long javaSerialization(final List<Message> msgs)
+            throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        for (final Message msg : msgs) {
+            oos.writeObject(msg);
+            oos.reset();
+            oos.flush();
+        }
+        final ObjectInputStream ois = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        for (int i = 0; i < msgs.size(); i++) {
+            ois.readUnshared();
+        }
+        return bytes.size();
+    }
+
+    private static long wireProtocol(final List<Message> msgs)
+            throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final WireProtocol.Encoder encoder = new WireProtocol.Encoder(bytes);
+        for (final Message msg : msgs) {
+            encoder.write(msg);
+        }
+        final WireProtocol.Decoder decoder = new WireProtocol.Decoder(
+                new ByteArrayInputStream(bytes.toByteArray()));
+        for (int i = 0; i < msgs.size(); i++) {
+            decoder.read();
+        }
+        return bytes.size();
+    }
+
+    private static void compare(final String what, final List<Message> msgs)
+            throws Exception {
+        // Warm up
+        javaSerialization(msgs);
+        wireProtocol(msgs);
+
+        long start = System.nanoTime();
+        final long javaBytes = javaSerialization(msgs);
+        final double javaSeconds = (System.nanoTime() - start) / 1e9;
+
+        start = System.nanoTime();
+        final long wireBytes = wireProtocol(msgs);
+        final double wireSeconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(what + ": Java serialization: " + javaBytes
+                + " bytes, " + msgs.size() / javaSeconds + " msgs/s");
+        System.out.println(what + ": Wire protocol:      " + wireBytes
+                + " bytes, " + msgs.size() / wireSeconds + " msgs/s");
+        assertTrue(wireBytes < javaBytes);
+    }
+
+    @Test
+    public void testThroughput() throws Exception {
+        final int pieceSize = FileInfo.getDefaultPieceSize();
+        final FileInfo fileInfo = newFileInfo("big/file", 256L * pieceSize);
+        final List<Message> pieces = new ArrayList<Message>();
+        final byte[] data = new byte[pieceSize];
+        for (int i = 0; i < 256; i++) {
+            pieces.add(new Piece(new PieceSpec(fileInfo, i), data));
+        }
+        compare("Pieces", pieces);
+
+        final List<Message> notices = new ArrayList<Message>();
+        for (int i = 0; i < 20000; i++) {
+            notices.add(new AdditionNotice(FilePieceSpecSet.newInstance(
+                    newFileInfo("products/" + i, 1 + 3L * pieceSize), true)));
+        }
+        compare("Notices", notices);
+    }
+}
@@ -116,4 +116,52 @@ public class XmlActionFileTest {
         Files.delete(destPath);
         Files.delete(destDir);
     }
+
+    @Test(expected = IOException.class)
+    public void testBadFraming() throws IOException {
+        XmlActionFile.getProcessor("<?xml version=\"1.0\"?>" + "<actions>"
+                + "<entry pattern=\"(.*)\">"
+                + "<pipe program=\"cat\" framing=\"bogus\"/>" + "</entry>"
+                + "</actions>");
+    }
+
+    @Test
+    public void testPipeAction() throws IOException, InterruptedException {
+        final Path dir = Paths.get("/tmp/XmlActionFileTest-pipe");
+        final Path outPath = dir.resolve("out");
+        assertEquals(0, Misc.system("rm", "-rf", dir.toString()));
+        Files.createDirectories(dir.resolve("products"));
+        try {
+            final Processor processor = XmlActionFile
+                    .getProcessor("<?xml version=\"1.0\"?>" + "<actions>"
+                            + "<entry pattern=\"(.*)\" ordered=\"true\">"
+                            + "<pipe program=\"sh\" framing=\"delimiter\" delimiter=\"|\\n\">"
+                            + "<arg>-c</arg>" + "<arg>cat &gt;&gt;" + outPath
+                            + "</arg>" + "</pipe>" + "</entry>"
+                            + "</actions>");
+            executor.submit(processor);
+            final StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 3; i++) {
+                final String name = "product" + i;
+                final byte[] data = name.getBytes();
+                Files.write(dir.resolve("products").resolve(name), data);
+                processor.put(new DataProduct(dir.resolve("products"),
+                        new FileInfo(new FileId(new ArchivePath(name)),
+                                data.length)));
+                expected.append(name).append("|\n");
+            }
+            String actual = "";
+            for (int i = 0; i < 100 && !actual.equals(expected.toString()); i++) {
+                Thread.sleep(50);
+                if (Files.exists(outPath)) {
+                    actual = new String(Files.readAllBytes(outPath));
+                }
+            }
+            assertEquals(expected.toString(), actual);
+        }
+        finally {
+            executor.shutdownNow();
+            assertEquals(0, Misc.system("rm", "-rf", dir.toString()));
+        }
+    }
 }